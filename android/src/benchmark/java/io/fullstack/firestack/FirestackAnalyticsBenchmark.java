@@ -0,0 +1,66 @@
+package io.fullstack.firestack;
+
+import android.os.Bundle;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of FirestackAnalyticsModule.makeEventBundle() for the properties
+ * logEventWithName() hands it. Bundle is the unit test stub of android.jar,
+ * whose puts do nothing, so this is the key lookups and casts alone.
+ *
+ *   known:  the standard parameters of a purchase event
+ *   custom: 50 app specific properties, all taking the fallback loop
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FirestackAnalyticsBenchmark {
+  @Param({ "known", "custom" })
+  public String shape;
+
+  private Map<String, Object> mProps;
+
+  @Setup
+  public void setUp() {
+    mProps = new LinkedHashMap<String, Object>();
+    if (shape.equals("known")) {
+      mProps.put("id", "sku-1");
+      mProps.put("name", "Socks");
+      mProps.put("quantity", 2.0);
+      mProps.put("price", 4.5);
+      mProps.put("value", 9.0);
+      mProps.put("currency", "EUR");
+      mProps.put("transaction_id", "t-42");
+      mProps.put("coupon", "WINTER");
+      mProps.put("tax", 1L);
+      mProps.put("shipping", 3.5);
+    } else {
+      for (int i = 0; i < 50; i++) {
+        mProps.put("prop" + i, i % 2 == 0 ? "value" + i : (Object) (double) i);
+      }
+    }
+  }
+
+  @Benchmark
+  public Bundle makeEventBundle() {
+    return FirestackAnalyticsModule.makeEventBundle("purchase", mProps);
+  }
+}
@@ -0,0 +1,129 @@
+package io.fullstack.firestack;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.mockito.MockedStatic;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.ReadableMapKeySetIterator;
+import com.facebook.react.bridge.ReadableType;
+
+/**
+ * Latency of building a snapshot value for the bridge as a nested map
+ * against the `format:binary` MessagePack string, and how many bridge
+ * calls each one costs. Every put on a native map is a JNI call, so the
+ * map payload makes one per node while the binary one is a single string.
+ * The throughput runs report the calls and the payload size as the
+ * `bridgeCalls` and `chars` counters; they carry over to a device where the
+ * timings don't.
+ *
+ * On the JVM Arguments.createMap() goes through a mockito static mock, which
+ * is far slower than the native call; `createMap` measures that overhead so
+ * it can be taken out of `mapPayload` (once per nested map). android.util.Base64
+ * is a stub on the JVM, java.util.Base64 stands in for it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FirestackPayloadBenchmark {
+  @Param({ "list", "wide" })
+  public String shape;
+
+  /**
+   * Set per payload, not added up, so each measurement iteration reports
+   * one payload's worth. The summary row sums the iterations: divide by Cnt.
+   */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  public static class Counters {
+    public long bridgeCalls;
+    public long chars;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      bridgeCalls = 0;
+      chars = 0;
+    }
+  }
+
+  private Map<String, Object> mTree;
+  private MockedStatic<Arguments> mArguments;
+  private int mMapCalls;
+
+  @Setup
+  public void setUp() {
+    // static mocks are per thread, and setup runs on the benchmark thread
+    mArguments = Fakes.mockArguments();
+    mTree = new LinkedHashMap<String, Object>();
+    for (int i = 0; i < 1000; i++) {
+      if (shape.equals("wide")) {
+        mTree.put("field" + i, (long) i);
+      } else {
+        Map<String, Object> item = new LinkedHashMap<String, Object>();
+        item.put("title", "Item " + i);
+        item.put("score", (long) i);
+        item.put("ratio", i / 7.0);
+        item.put("done", i % 2 == 0);
+        mTree.put("item" + i, item);
+      }
+    }
+    mMapCalls = bridgeCalls(FirestackSnapshotSerializer.treeToMap(mTree));
+  }
+
+  @TearDown
+  public void tearDown() {
+    mArguments.close();
+  }
+
+  @Benchmark
+  public ReadableMap mapPayload(final Counters counters) {
+    counters.bridgeCalls = mMapCalls;
+    return FirestackSnapshotSerializer.treeToMap(mTree);
+  }
+
+  @Benchmark
+  public ReadableMap createMap() {
+    return Arguments.createMap();
+  }
+
+  @Benchmark
+  public String binaryPayload(final Counters counters) {
+    String payload = java.util.Base64.getEncoder().encodeToString(FirestackMsgPackEncoder.encodeTree(mTree));
+    counters.bridgeCalls = 1;
+    counters.chars = payload.length();
+    return payload;
+  }
+
+  /**
+   * One call to create the map and one per put into it.
+   */
+  private static int bridgeCalls(final ReadableMap map) {
+    int calls = 1;
+    ReadableMapKeySetIterator it = map.keySetIterator();
+    while (it.hasNextKey()) {
+      String key = it.nextKey();
+      calls += map.getType(key) == ReadableType.Map ? 1 + bridgeCalls(map.getMap(key)) : 1;
+    }
+    return calls;
+  }
+}
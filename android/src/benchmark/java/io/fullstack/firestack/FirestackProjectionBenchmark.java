@@ -0,0 +1,224 @@
+package io.fullstack.firestack;
+
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.mockito.MockedStatic;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.ReadableMapKeySetIterator;
+import com.facebook.react.bridge.WritableMap;
+
+import com.google.firebase.database.DataSnapshot;
+
+/**
+ * Time of building the value event payload for a list of wide documents,
+ * in full and with each projection option, and how big that payload is.
+ * Every item has a `title` and `updatedAt` next to a 4 KB `body` and a map
+ * of comments, the case `select` and `shallow` are meant for.
+ *
+ *   full:     no projection
+ *   select:   `select` of every item's title and updatedAt
+ *   maxDepth: `maxDepth:2`, comments arrive as `true`
+ *   shallow:  `shallow`, every item arrives as `true`
+ *
+ * The throughput runs report the payload's JSON size as `bytes` and its
+ * native map calls as `bridgeCalls`; like in FirestackPayloadBenchmark
+ * those carry over to a device where the mockito-bound timings don't.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FirestackProjectionBenchmark {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  @Param({ "full", "select", "maxDepth", "shallow" })
+  public String projection;
+
+  /**
+   * Set per payload, not added up. The summary row sums the iterations:
+   * divide by Cnt.
+   */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  public static class Counters {
+    public long bridgeCalls;
+    public long bytes;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      bridgeCalls = 0;
+      bytes = 0;
+    }
+  }
+
+  private DataSnapshot mSnapshot;
+  private FirestackQueryPlan mPlan;
+  private MockedStatic<Arguments> mArguments;
+  private int mBridgeCalls;
+  private int mBytes;
+
+  @Setup
+  public void setUp() {
+    // static mocks are per thread, and setup runs on the benchmark thread
+    mArguments = Fakes.mockArguments();
+    mSnapshot = Fakes.snapshot("posts", documents());
+    String option = null;
+    if (projection.equals("select")) {
+      option = "select:*/title:*/updatedAt";
+    } else if (projection.equals("maxDepth")) {
+      option = "maxDepth:2";
+    } else if (projection.equals("shallow")) {
+      option = "shallow";
+    }
+    mPlan = FirestackQueryPlan.compile(option == null ? null : JavaOnlyArray.of(option));
+
+    WritableMap payload = this.payload(new Counters());
+    mBridgeCalls = bridgeCalls(payload);
+    StringBuilder json = new StringBuilder();
+    appendJson(json, payload);
+    mBytes = json.toString().getBytes(UTF_8).length;
+  }
+
+  @TearDown
+  public void tearDown() {
+    mArguments.close();
+  }
+
+  @Benchmark
+  public WritableMap payload(final Counters counters) {
+    counters.bridgeCalls = mBridgeCalls;
+    counters.bytes = mBytes;
+    return FirestackUtils.dataSnapshotToMap("value", "/posts", mSnapshot, mPlan);
+  }
+
+  private static Map<String, Object> documents() {
+    StringBuilder body = new StringBuilder();
+    while (body.length() < 4096) {
+      body.append("Lorem ipsum dolor sit amet, consectetur adipiscing elit. ");
+    }
+    Map<String, Object> posts = new LinkedHashMap<String, Object>();
+    for (int i = 0; i < 200; i++) {
+      Map<String, Object> comments = new LinkedHashMap<String, Object>();
+      for (int c = 0; c < 20; c++) {
+        Map<String, Object> comment = new LinkedHashMap<String, Object>();
+        comment.put("author", "user" + c);
+        comment.put("text", "Comment " + c + " on post " + i);
+        comments.put("c" + c, comment);
+      }
+      Map<String, Object> post = new LinkedHashMap<String, Object>();
+      post.put("title", "Post " + i);
+      post.put("updatedAt", 1480000000000L + i);
+      post.put("body", body.toString());
+      post.put("comments", comments);
+      posts.put("p" + i, post);
+    }
+    return posts;
+  }
+
+  /**
+   * One call to create each map or array and one per put into it.
+   */
+  private static int bridgeCalls(final ReadableMap map) {
+    int calls = 1;
+    ReadableMapKeySetIterator it = map.keySetIterator();
+    while (it.hasNextKey()) {
+      String key = it.nextKey();
+      switch (map.getType(key)) {
+        case Map:
+          calls += 1 + bridgeCalls(map.getMap(key));
+          break;
+        case Array:
+          calls += 2 + map.getArray(key).size();
+          break;
+        default:
+          calls += 1;
+      }
+    }
+    return calls;
+  }
+
+  private static void appendJson(final StringBuilder json, final ReadableMap map) {
+    json.append('{');
+    ReadableMapKeySetIterator it = map.keySetIterator();
+    boolean first = true;
+    while (it.hasNextKey()) {
+      String key = it.nextKey();
+      if (!first) {
+        json.append(',');
+      }
+      first = false;
+      json.append('"').append(key).append("\":");
+      switch (map.getType(key)) {
+        case Map:
+          appendJson(json, map.getMap(key));
+          break;
+        case Array:
+          appendJson(json, map.getArray(key));
+          break;
+        case String:
+          json.append('"').append(map.getString(key)).append('"');
+          break;
+        case Number:
+          json.append(map.getDouble(key));
+          break;
+        case Boolean:
+          json.append(map.getBoolean(key));
+          break;
+        default:
+          json.append("null");
+      }
+    }
+    json.append('}');
+  }
+
+  private static void appendJson(final StringBuilder json, final ReadableArray array) {
+    json.append('[');
+    for (int i = 0; i < array.size(); i++) {
+      if (i > 0) {
+        json.append(',');
+      }
+      switch (array.getType(i)) {
+        case Map:
+          appendJson(json, array.getMap(i));
+          break;
+        case Array:
+          appendJson(json, array.getArray(i));
+          break;
+        case String:
+          json.append('"').append(array.getString(i)).append('"');
+          break;
+        case Number:
+          json.append(array.getDouble(i));
+          break;
+        case Boolean:
+          json.append(array.getBoolean(i));
+          break;
+        default:
+          json.append("null");
+      }
+    }
+    json.append(']');
+  }
+}
@@ -0,0 +1,48 @@
+package io.fullstack.firestack;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of FirestackQueryPlan.compile() for a modifier list seen before
+ * (an LRU hit) against one it has never seen. Both build the modifier
+ * array the way the bridge hands it over.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FirestackQueryPlanBenchmark {
+  private double mStart = 0;
+
+  @Benchmark
+  public FirestackQueryPlan cached() {
+    return FirestackQueryPlan.compile(modifiers(0));
+  }
+
+  @Benchmark
+  public FirestackQueryPlan cold() {
+    // a new start value every call, so the cache never hits
+    return FirestackQueryPlan.compile(modifiers(++mStart));
+  }
+
+  private static JavaOnlyArray modifiers(final double start) {
+    return JavaOnlyArray.of(
+      "orderByChild:score",
+      JavaOnlyArray.of("startAt", start, "k"),
+      "limitToLast:20",
+      "diff",
+      "select:title:author/name");
+  }
+}
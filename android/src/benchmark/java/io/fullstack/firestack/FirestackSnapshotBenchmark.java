@@ -0,0 +1,115 @@
+package io.fullstack.firestack;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.mockito.MockedStatic;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableMap;
+
+import com.google.firebase.database.DataSnapshot;
+
+/**
+ * Time and allocations of turning a DataSnapshot into the event payload
+ * every value and child event sends (FirestackUtils.dataSnapshotToMap),
+ * and of the plain java tree the binary format walks instead (toTree).
+ *
+ * The snapshot is a mockito mock of DataSnapshot built from a java tree and
+ * Arguments.createMap() is a static mock, so the times include mockito's
+ * dispatch on every call. Compare runs with each other, not with a device.
+ *
+ *   wide:  one level of 1000 scalar children
+ *   deep:  a chain of 50 nested children with a few fields each
+ *   list:  1000 small records stored as "0", "1", ... keyed children
+ *   mixed: 100 records of strings, longs, doubles, booleans and a nested child
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FirestackSnapshotBenchmark {
+  @Param({ "wide", "deep", "list", "mixed" })
+  public String shape;
+
+  private DataSnapshot mSnapshot;
+  private MockedStatic<Arguments> mArguments;
+
+  @Setup
+  public void setUp() {
+    // static mocks are per thread, and setup runs on the benchmark thread
+    mArguments = Fakes.mockArguments();
+    mSnapshot = Fakes.snapshot("root", tree(shape));
+  }
+
+  @TearDown
+  public void tearDown() {
+    mArguments.close();
+  }
+
+  @Benchmark
+  public WritableMap dataSnapshotToMap() {
+    return FirestackUtils.dataSnapshotToMap("value", "/bench", mSnapshot);
+  }
+
+  @Benchmark
+  public Object toTree() {
+    return FirestackSnapshotSerializer.toTree(mSnapshot);
+  }
+
+  static Map<String, Object> tree(final String shape) {
+    Map<String, Object> tree = new LinkedHashMap<String, Object>();
+    if (shape.equals("wide")) {
+      for (int i = 0; i < 1000; i++) {
+        tree.put("field" + i, (long) i);
+      }
+    } else if (shape.equals("deep")) {
+      tree.put("depth", 0L);
+      tree.put("name", "leaf");
+      for (int i = 1; i < 50; i++) {
+        Map<String, Object> parent = new LinkedHashMap<String, Object>();
+        parent.put("depth", (long) i);
+        parent.put("name", "node" + i);
+        parent.put("child", tree);
+        tree = parent;
+      }
+    } else if (shape.equals("list")) {
+      for (int i = 0; i < 1000; i++) {
+        Map<String, Object> item = new LinkedHashMap<String, Object>();
+        item.put("id", "item" + i);
+        item.put("score", (long) i);
+        item.put("seen", i % 2 == 0);
+        tree.put(String.valueOf(i), item);
+      }
+    } else {
+      for (int i = 0; i < 100; i++) {
+        Map<String, Object> author = new LinkedHashMap<String, Object>();
+        author.put("name", "Ann");
+        author.put("karma", 12L);
+        Map<String, Object> record = new LinkedHashMap<String, Object>();
+        record.put("title", "Record " + i);
+        record.put("count", (long) i);
+        record.put("ratio", i / 3.0);
+        record.put("active", i % 3 == 0);
+        record.put("author", author);
+        tree.put("r" + i, record);
+      }
+    }
+    return tree;
+  }
+}
@@ -0,0 +1,97 @@
+package io.fullstack.firestack;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time and allocations of turning bridge maps and arrays into java
+ * collections (recursivelyDeconstructReadableMap/Array), as analytics
+ * properties, storage metadata and transaction results still are; database
+ * writes go through FirestackWriteEncoder instead, which `writeEncoder`
+ * measures on the same input for comparison. The input is an in-memory
+ * JavaOnlyMap/JavaOnlyArray, so the numbers leave out the JNI reads of a
+ * ReadableNativeMap and show the conversion alone.
+ *
+ *   wide:  one level of 1000 scalar fields
+ *   deep:  a chain of 50 nested maps with a few fields each
+ *   list:  an array of 1000 small maps
+ *   mixed: 100 records of strings, numbers, booleans, nulls, tags and a nested map
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FirestackUtilsBenchmark {
+  @Param({ "wide", "deep", "list", "mixed" })
+  public String shape;
+
+  private JavaOnlyMap mMap;
+  private JavaOnlyArray mArray;
+
+  @Setup
+  public void setUp() {
+    mArray = new JavaOnlyArray();
+    if (shape.equals("wide")) {
+      mMap = new JavaOnlyMap();
+      for (int i = 0; i < 1000; i++) {
+        mMap.putDouble("field" + i, i);
+      }
+      mArray.pushMap(mMap);
+    } else if (shape.equals("deep")) {
+      mMap = JavaOnlyMap.of("depth", 0, "name", "leaf", "done", true);
+      for (int i = 1; i < 50; i++) {
+        mMap = JavaOnlyMap.of("depth", i, "name", "node" + i, "child", mMap);
+      }
+      mArray.pushMap(mMap);
+    } else if (shape.equals("list")) {
+      for (int i = 0; i < 1000; i++) {
+        mArray.pushMap(JavaOnlyMap.of("id", "item" + i, "score", i, "seen", i % 2 == 0));
+      }
+      mMap = JavaOnlyMap.of("items", mArray);
+    } else {
+      mMap = new JavaOnlyMap();
+      for (int i = 0; i < 100; i++) {
+        JavaOnlyMap record = JavaOnlyMap.of(
+          "title", "Record " + i,
+          "count", i,
+          "ratio", i / 3.0,
+          "active", i % 3 == 0,
+          "tags", JavaOnlyArray.of("a", "b", "c"),
+          "author", JavaOnlyMap.of("name", "Ann", "karma", 12));
+        record.putNull("deletedAt");
+        mMap.putMap("r" + i, record);
+        mArray.pushMap(record);
+      }
+    }
+  }
+
+  @Benchmark
+  public Map<String, Object> readableMap() {
+    return FirestackUtils.recursivelyDeconstructReadableMap(mMap);
+  }
+
+  @Benchmark
+  public List<Object> readableArray() {
+    return FirestackUtils.recursivelyDeconstructReadableArray(mArray);
+  }
+
+  @Benchmark
+  public Map<String, Object> writeEncoder() {
+    return FirestackWriteEncoder.encode(mMap);
+  }
+}
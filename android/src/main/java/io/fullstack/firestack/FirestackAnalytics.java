@@ -53,7 +53,9 @@ class FirestackAnalyticsModule extends ReactContextBaseJavaModule {
     // FirestackUtils.todoNote(TAG, "logEventWithName", callback);
     Map<String, Object> m = FirestackUtils.recursivelyDeconstructReadableMap(props);
     final String eventName = getEventName(name);
+    long start = FirestackMetrics.start();
     final Bundle bundle = makeEventBundle(name, m);
+    FirestackMetrics.stop("analytics.eventBundle", start);
     Log.d(TAG, "Logging event " + eventName);
     mFirebaseAnalytics.logEvent(name, bundle);
   }
@@ -86,7 +88,7 @@ class FirestackAnalyticsModule extends ReactContextBaseJavaModule {
     else return name;
   }
 
-  private Bundle makeEventBundle(final String name, final Map<String, Object> map) {
+  static Bundle makeEventBundle(final String name, final Map<String, Object> map) {
     Bundle bundle = new Bundle();
     // Available from the Analytics event
     if (map.containsKey("id")) {
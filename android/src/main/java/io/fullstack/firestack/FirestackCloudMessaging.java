@@ -39,13 +39,15 @@ public class FirestackCloudMessaging extends ReactContextBaseJavaModule {
     public static final String INTENT_NAME_SEND = "io.fullstack.firestack.Upstream";
 
     private ReactContext mReactContext;
+    private FirestackEventDispatcher mEventDispatcher;
     private IntentFilter mRefreshTokenIntentFilter;
     private IntentFilter mReceiveNotificationIntentFilter;
     private IntentFilter mReceiveSendIntentFilter;
 
-    public FirestackCloudMessaging(ReactApplicationContext reactContext) {
+    public FirestackCloudMessaging(ReactApplicationContext reactContext, FirestackEventDispatcher eventDispatcher) {
         super(reactContext);
         mReactContext = reactContext;
+        mEventDispatcher = eventDispatcher;
         mRefreshTokenIntentFilter = new IntentFilter(INTENT_NAME_TOKEN);
         mReceiveNotificationIntentFilter = new IntentFilter(INTENT_NAME_NOTIFICATION);
         mReceiveSendIntentFilter = new IntentFilter(INTENT_NAME_SEND);
@@ -83,9 +85,8 @@ public class FirestackCloudMessaging extends ReactContextBaseJavaModule {
             public void onReceive(Context context, Intent intent) {
                 WritableMap params = Arguments.createMap();
                 params.putString("token", intent.getStringExtra("token"));
-                ReactContext ctx = getReactApplicationContext();
                 Log.d(TAG, "initRefreshTokenHandler received event " + EVENT_NAME_TOKEN);
-                FirestackUtils.sendEvent(ctx, EVENT_NAME_TOKEN, params);
+                mEventDispatcher.emit(EVENT_NAME_TOKEN, params);
             }
 
             ;
@@ -150,8 +151,7 @@ public class FirestackCloudMessaging extends ReactContextBaseJavaModule {
                 } else {
                     params.putNull("notification");
                 }
-                ReactContext ctx = getReactApplicationContext();
-                FirestackUtils.sendEvent(ctx, EVENT_NAME_NOTIFICATION, params);
+                mEventDispatcher.emit(EVENT_NAME_NOTIFICATION, params);
             }
         }, mReceiveNotificationIntentFilter);
     }
@@ -199,8 +199,7 @@ public class FirestackCloudMessaging extends ReactContextBaseJavaModule {
                 } else {
                     params.putNull("err");
                 }
-                ReactContext ctx = getReactApplicationContext();
-                FirestackUtils.sendEvent(ctx, EVENT_NAME_SEND, params);
+                mEventDispatcher.emit(EVENT_NAME_SEND, params);
             }
         }, mReceiveSendIntentFilter);
     }
@@ -1,11 +1,14 @@
 package io.fullstack.firestack;
 
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import android.net.Uri;
 
 import com.facebook.react.bridge.Arguments;
@@ -13,6 +16,7 @@ import com.facebook.react.bridge.ReactApplicationContext;
 import com.facebook.react.bridge.ReactContextBaseJavaModule;
 import com.facebook.react.bridge.ReactMethod;
 import com.facebook.react.bridge.Callback;
+import com.facebook.react.bridge.WritableArray;
 import com.facebook.react.bridge.WritableMap;
 import com.facebook.react.bridge.ReadableMap;
 import com.facebook.react.bridge.ReadableMapKeySetIterator;
@@ -28,176 +32,349 @@ import com.google.firebase.database.ValueEventListener;
 import com.google.firebase.database.DataSnapshot;
 import com.google.firebase.database.DatabaseError;
 
+/**
+ * A single native listener for one (path, modifiers, event type) descriptor.
+ *
+ * Every javascript subscription to the same descriptor shares this listener
+ * (child_added aside, see isShareable()): acquire() attaches it to Firebase on the first subscriber and release()
+ * of the last one takes it off again for good. Each Firebase event is
+ * serialized once no matter how many subscribers there are.
+ *
+ * Attach and detach are synchronized on the handle; the event path only
+ * reads volatile fields and drops callbacks from a listener that is no
+ * longer the current one. A retired handle never attaches again, so the
+ * registry can replace it without racing a concurrent on().
+ */
 class FirestackDBReference {
   private static final String TAG = "FirestackDBReference";
 
   private String mPath;
-  private ReadableArray mModifiers;
-  private HashMap<String, Boolean> mListeners = new HashMap<String, Boolean>();
-  private FirestackDatabaseModule mDatabase;
-  private ChildEventListener mEventListener;
-  private ValueEventListener mValueListener;
-  private ValueEventListener mOnceValueListener;
-  private ReactContext mReactContext;
-
-  public FirestackDBReference(final ReactContext context, final String path) {
-    mReactContext = context;
+  private String mEventName;
+  private String mKey;
+  private FirestackQueryPlan mPlan;
+  private volatile int mRefCount = 0;
+  private volatile boolean mRetired = false;
+  private volatile Query mQuery;
+  private volatile ChildEventListener mChildListener;
+  private volatile ValueEventListener mValueListener;
+  private volatile FirestackSnapshotDiff mValueDiff;
+  private FirestackEventDispatcher mEventDispatcher;
+  private FirestackSerializationExecutor mSerializer;
+  private FirestackSnapshotCache mSnapshotCache;
+  private FirestackSnapshotStore mSnapshotStore;
+
+  // lifecycle, for leak diagnostics and idle detach
+  private static final AtomicLong sInstances = new AtomicLong();
+  private final long mInstance = sInstances.incrementAndGet();
+  private final long mCreatedAt = System.currentTimeMillis();
+  private volatile long mAttachedAt = 0;
+  private final AtomicLong mEventCount = new AtomicLong();
+  private volatile long mLastEventAt = 0;
+
+  public FirestackDBReference(final FirestackEventDispatcher eventDispatcher,
+                              final FirestackSerializationExecutor serializer,
+                              final FirestackSnapshotCache snapshotCache,
+                              final FirestackSnapshotStore snapshotStore,
+                              final String key,
+                              final String path,
+                              final FirestackQueryPlan plan,
+                              final String eventName) {
+    mEventDispatcher = eventDispatcher;
+    mSerializer = serializer;
+    mSnapshotCache = snapshotCache;
+    mSnapshotStore = snapshotStore;
     mPath = path;
+    mPlan = plan;
+    mEventName = eventName;
+    mKey = key;
   }
 
-  public void setModifiers(final ReadableArray modifiers) {
-    mModifiers = modifiers;
+  public String getPath() {
+    return mPath;
   }
 
-  public void addChildEventListener(final String name, final ReadableArray modifiers) {
-    final FirestackDBReference self = this;
+  public String getEventName() {
+    return mEventName;
+  }
 
-    if (mEventListener == null) {
-      mEventListener = new ChildEventListener() {
-        @Override
-        public void onChildAdded(DataSnapshot dataSnapshot, String previousChildName) {
-          self.handleDatabaseEvent("child_added", mPath, dataSnapshot);
-        }
+  public String getKey() {
+    return mKey;
+  }
 
-        @Override
-        public void onChildChanged(DataSnapshot dataSnapshot, String previousChildName) {
-          self.handleDatabaseEvent("child_changed", mPath, dataSnapshot);
-        }
+  public int getRefCount() {
+    return mRefCount;
+  }
 
-        @Override
-        public void onChildRemoved(DataSnapshot dataSnapshot) {
-          self.handleDatabaseEvent("child_removed", mPath, dataSnapshot);
-        }
+  public boolean isAttached() {
+    return mQuery != null;
+  }
 
-        @Override
-        public void onChildMoved(DataSnapshot dataSnapshot, String previousChildName) {
-          self.handleDatabaseEvent("child_moved", mPath, dataSnapshot);
-        }
+  /**
+   * Tells this handle apart from an earlier or later one of the same key.
+   */
+  public long getInstance() {
+    return mInstance;
+  }
 
-        @Override
-        public void onCancelled(DatabaseError error) {
-          self.handleDatabaseError(name, mPath, error);
-        }
-      };
+  /**
+   * Last time this handle attached or emitted an event.
+   */
+  public long getLastActivity() {
+    return Math.max(mAttachedAt, mLastEventAt);
+  }
+
+  public WritableMap getLifecycle() {
+    long now = System.currentTimeMillis();
+    WritableMap info = Arguments.createMap();
+    info.putString("descriptor", mKey);
+    info.putString("path", mPath);
+    info.putString("eventName", mEventName);
+    info.putDouble("instance", mInstance);
+    info.putInt("subscribers", mRefCount);
+    info.putBoolean("attached", mQuery != null);
+    info.putDouble("createdAt", mCreatedAt);
+    info.putDouble("attachedAt", mAttachedAt);
+    info.putDouble("events", mEventCount.get());
+    info.putDouble("lastEventAt", mLastEventAt);
+    info.putDouble("idleMs", mQuery == null ? 0 : now - this.getLastActivity());
+    return info;
+  }
+
+  /**
+   * Adds a subscriber, attaching the Firebase listener for the first one.
+   * Returns false if the handle was retired and a new one is needed.
+   */
+  public synchronized boolean acquire() {
+    if (mRetired) {
+      return false;
+    }
+    mRefCount++;
+    if (mRefCount > 1) {
+      return true;
+    }
+
+    mAttachedAt = System.currentTimeMillis();
+    mQuery = mPlan.buildQuery(this.getDatabaseRef());
+    if (mEventName.equals("value")) {
+      if (this.isPersisted()) {
+        this.emitPersisted();
+      }
+      this.addValueEventListener();
+    } else {
+      this.addChildEventListener();
     }
+    return true;
+  }
 
-    Query ref = this.getDatabaseQueryAtPathAndModifiers(modifiers);
-    ref.addChildEventListener(mEventListener);
-    this.setListeningTo(mPath, name);
+  /**
+   * Drops a subscriber. The last one retires the handle, detaching the
+   * Firebase listener; returns true in that case.
+   */
+  public synchronized boolean release() {
+    if (mRetired || mRefCount == 0) {
+      return false;
+    }
+    mRefCount--;
+    if (mRefCount > 0) {
+      return false;
+    }
+    this.retire();
+    return true;
   }
 
-  public void addValueEventListener(final String name, final ReadableArray modifiers) {
+  /**
+   * Detaches for good; used when the handle leaves the registry.
+   */
+  public synchronized void retire() {
+    mRetired = true;
+    this.detach();
+  }
+
+  /**
+   * Retires the handle if it has neither attached nor emitted since
+   * `cutoff`, whether or not anyone still subscribes to it. Checked under
+   * the lock so it cannot race an acquire() or release().
+   */
+  public synchronized boolean retireIfIdle(final long cutoff) {
+    if (mRetired || mQuery == null || this.getLastActivity() >= cutoff) {
+      return false;
+    }
+    this.retire();
+    return true;
+  }
+
+  private void detach() {
+    Log.d(TAG, "detaching database listener " + mKey);
+    mRefCount = 0;
+    if (mQuery != null) {
+      removeListeners(mQuery, mValueListener, mChildListener);
+    }
+    mQuery = null;
+    mValueListener = null;
+    mChildListener = null;
+    mValueDiff = null;
+  }
+
+  private static void removeListeners(final Query query,
+                                      final ValueEventListener valueListener,
+                                      final ChildEventListener childListener) {
+    if (valueListener != null) {
+      query.removeEventListener(valueListener);
+    }
+    if (childListener != null) {
+      query.removeEventListener(childListener);
+    }
+  }
+
+  private boolean isPersisted() {
+    return mEventName.equals("value") && mPlan.hasOption("persist");
+  }
+
+  /**
+   * Sends the last value stored on disk as a `cached` value event. It is
+   * queued on this handle's lane ahead of any live event.
+   */
+  private void emitPersisted() {
+    mSerializer.execute(mKey, new Runnable() {
+      @Override
+      public void run() {
+        WritableMap snapshot = mSnapshotStore.load(mKey);
+        if (snapshot == null || mQuery == null) {
+          return;
+        }
+        WritableMap data = Arguments.createMap();
+        data.putString("eventName", "value");
+        data.putString("path", mPath);
+        data.putMap("snapshot", snapshot);
+        data.putBoolean("cached", true);
+        sendDatabaseEvent("value", data, true);
+      }
+    });
+  }
+
+  private void addChildEventListener() {
     final FirestackDBReference self = this;
 
-    mValueListener = new ValueEventListener() {
+    mChildListener = new ChildEventListener() {
       @Override
-      public void onDataChange(DataSnapshot dataSnapshot) {
-        self.handleDatabaseEvent("value", mPath, dataSnapshot);
+      public void onChildAdded(DataSnapshot dataSnapshot, String previousChildName) {
+        self.handleDatabaseEvent(this, "child_added", dataSnapshot);
+      }
+
+      @Override
+      public void onChildChanged(DataSnapshot dataSnapshot, String previousChildName) {
+        self.handleDatabaseEvent(this, "child_changed", dataSnapshot);
+      }
+
+      @Override
+      public void onChildRemoved(DataSnapshot dataSnapshot) {
+        self.handleDatabaseEvent(this, "child_removed", dataSnapshot);
+      }
+
+      @Override
+      public void onChildMoved(DataSnapshot dataSnapshot, String previousChildName) {
+        self.handleDatabaseEvent(this, "child_moved", dataSnapshot);
       }
 
       @Override
       public void onCancelled(DatabaseError error) {
-        self.handleDatabaseError("value", mPath, error);
+        self.handleDatabaseError(mEventName, error);
       }
     };
 
-    Query ref = this.getDatabaseQueryAtPathAndModifiers(modifiers);
-    ref.addValueEventListener(mValueListener);
-    this.setListeningTo(mPath, "value");
+    mQuery.addChildEventListener(mChildListener);
   }
 
-  public void addOnceValueEventListener(final ReadableArray modifiers,
-                                        final Callback callback) {
+  private void addValueEventListener() {
     final FirestackDBReference self = this;
 
-    mOnceValueListener = new ValueEventListener() {
+    // opt-in: emit structural patches against the previous value instead of full trees
+    mValueDiff = mPlan.hasOption("diff") ? new FirestackSnapshotDiff() : null;
+
+    mValueListener = new ValueEventListener() {
       @Override
       public void onDataChange(DataSnapshot dataSnapshot) {
-        WritableMap data = FirestackUtils.dataSnapshotToMap("value", mPath, dataSnapshot);
-        callback.invoke(null, data);
+        self.handleDatabaseEvent(this, "value", dataSnapshot);
       }
 
       @Override
       public void onCancelled(DatabaseError error) {
-        WritableMap err = Arguments.createMap();
-        err.putInt("errorCode", error.getCode());
-        err.putString("errorDetails", error.getDetails());
-        err.putString("description", error.getMessage());
-        callback.invoke(err);
+        self.handleDatabaseError("value", error);
       }
     };
 
-    Query ref = this.getDatabaseQueryAtPathAndModifiers(modifiers);
-    ref.addListenerForSingleValueEvent(mOnceValueListener);
-  }
-
-  public Boolean isListeningTo(final String path, final String evtName) {
-    String key = this.pathListeningKey(path, evtName);
-    return mListeners.containsKey(key);
+    mQuery.addValueEventListener(mValueListener);
   }
 
   /**
-   * Note: these path/eventType listeners only get removed when javascript calls .off() and cleanup is run on the entire path
+   * Re-emits the last full value for a diff-mode listener, used when javascript
+   * receives a patch it cannot apply
    */
-  public void setListeningTo(final String path, final String evtName) {
-    String key = this.pathListeningKey(path, evtName);
-    mListeners.put(key, true);
-  }
-
-  public void notListeningTo(final String path, final String evtName) {
-    String key = this.pathListeningKey(path, evtName);
-    mListeners.remove(key);
-  }
-
-  private String pathListeningKey(final String path, final String eventName) {
-    return "listener/" + path + "/" + eventName;
-  }
-
-  public void cleanup() {
-    Log.d(TAG, "cleaning up database reference " + this);
-    this.removeChildEventListener();
-    this.removeValueEventListener();
-  }
-
-  public void removeChildEventListener() {
-    if (mEventListener != null) {
-      DatabaseReference ref = this.getDatabaseRef();
-      ref.removeEventListener(mEventListener);
-      this.notListeningTo(mPath, "child_added");
-      this.notListeningTo(mPath, "child_changed");
-      this.notListeningTo(mPath, "child_removed");
-      this.notListeningTo(mPath, "child_moved");
-      mEventListener = null;
+  public void resync() {
+    final FirestackSnapshotDiff diff = mValueDiff;
+    if (diff == null) {
+      return;
     }
+    // queued behind pending events so the resync can't overtake a patch
+    mSerializer.execute(mKey, new Runnable() {
+      @Override
+      public void run() {
+        WritableMap data = diff.resyncPayload("value", mPath);
+        if (data != null) {
+          sendDatabaseEvent("value", data, false);
+        }
+      }
+    });
   }
 
-  public void removeValueEventListener() {
-    DatabaseReference ref = this.getDatabaseRef();
-    if (mValueListener != null) {
-      ref.removeEventListener(mValueListener);
-      this.notListeningTo(mPath, "value");
-      mValueListener = null;
+  private void handleDatabaseEvent(final Object listener, final String name, final DataSnapshot dataSnapshot) {
+    // late callbacks from a detached listener are dropped
+    if (listener != mValueListener && listener != mChildListener) {
+      return;
     }
-    if (mOnceValueListener != null) {
-      ref.removeEventListener(mOnceValueListener);
-      mOnceValueListener = null;
+    // a child listener hears every child event, only serialize the one we were asked for
+    if (!name.equals(mEventName)) {
+      return;
     }
+    mEventCount.incrementAndGet();
+    mLastEventAt = System.currentTimeMillis();
+    // whatever changed here may be part of a cached one-time read
+    mSnapshotCache.invalidate(mPath);
+
+    // Firebase calls back on the main thread, convert on the serializer lane for this handle
+    final FirestackSnapshotDiff diff = mValueDiff;
+    final boolean persisted = this.isPersisted();
+    // a full value still waiting for a thread is replaced by this one; patches all count
+    final boolean supersedes = diff == null && name.equals("value");
+    mSerializer.execute(mKey, new Runnable() {
+      @Override
+      public void run() {
+        WritableMap data;
+        if (diff != null) {
+          data = diff.nextPayload(name, mPath, dataSnapshot, mPlan.getProjection());
+        } else {
+          data = FirestackUtils.dataSnapshotToMap(name, mPath, dataSnapshot, mPlan);
+        }
+        // a full value makes any older one still waiting to be sent redundant
+        sendDatabaseEvent(name, data, supersedes);
+        if (persisted) {
+          mSnapshotStore.save(mKey, dataSnapshot, mPlan.getProjection());
+        }
+      }
+    }, supersedes);
   }
 
-  private void handleDatabaseEvent(final String name, final String path, final DataSnapshot dataSnapshot) {
-    if (!FirestackDBReference.this.isListeningTo(path, name)) {
-      return;
-    }
-    WritableMap data = FirestackUtils.dataSnapshotToMap(name, path, dataSnapshot);
+  private void sendDatabaseEvent(final String name, final WritableMap data, final boolean supersedes) {
     WritableMap evt = Arguments.createMap();
     evt.putString("eventName", name);
-    evt.putString("path", path);
+    evt.putString("path", mPath);
+    evt.putString("handle", mKey);
     evt.putMap("body", data);
-    
-    FirestackUtils.sendEvent(mReactContext, "database_event", evt);
+
+    mEventDispatcher.emit("database_event", evt, supersedes ? mKey : null);
   }
 
-  private void handleDatabaseError(final String name, final String path, final DatabaseError error) {
+  private void handleDatabaseError(final String name, final DatabaseError error) {
     WritableMap err = Arguments.createMap();
     err.putInt("errorCode", error.getCode());
     err.putString("errorDetails", error.getDetails());
@@ -205,93 +382,65 @@ class FirestackDBReference {
 
     WritableMap evt  = Arguments.createMap();
     evt.putString("eventName", name);
-    evt.putString("path", path);
+    evt.putString("path", mPath);
+    evt.putString("handle", mKey);
     evt.putMap("body", err);
 
-    FirestackUtils.sendEvent(mReactContext, "database_error", evt);
+    mEventDispatcher.emit("database_error", evt);
   }
 
   public DatabaseReference getDatabaseRef() {
     return FirebaseDatabase.getInstance().getReference(mPath);
   }
 
-  private Query getDatabaseQueryAtPathAndModifiers(final ReadableArray modifiers) {
-    DatabaseReference ref = this.getDatabaseRef();
-
-    List<Object> strModifiers = FirestackUtils.recursivelyDeconstructReadableArray(modifiers);
-    ListIterator<Object> it = strModifiers.listIterator();
-    Query query = ref.orderByKey();
-
-    while(it.hasNext()) {
-      String str = (String) it.next();
-
-      String[] strArr = str.split(":");
-      String methStr = strArr[0];
-
-      if (methStr.equalsIgnoreCase("orderByKey")) {
-        query = ref.orderByKey();
-      } else if (methStr.equalsIgnoreCase("orderByValue")) {
-        query = ref.orderByValue();
-      } else if (methStr.equalsIgnoreCase("orderByPriority")) {
-        query = ref.orderByPriority();
-      } else if (methStr.contains("orderByChild")) {
-        String key = strArr[1];
-        Log.d(TAG, "orderByChild: " + key);
-        query = ref.orderByChild(key);
-      } else if (methStr.contains("limitToLast")) {
-        String key = strArr[1];
-        int limit = Integer.parseInt(key);
-        Log.d(TAG, "limitToLast: " + limit);
-        query = query.limitToLast(limit);
-      } else if (methStr.contains("limitToFirst")) {
-        String key = strArr[1];
-        int limit = Integer.parseInt(key);
-        Log.d(TAG, "limitToFirst: " + limit);
-        query = query.limitToFirst(limit);
-      } else if (methStr.contains("equalTo")) {
-        String value = strArr[1];
-        String key = strArr.length >= 3 ? strArr[2] : null;
-        if (key == null) {
-          query = query.equalTo(value);
-        } else {
-          query = query.equalTo(value, key);
-        }
-      } else if (methStr.contains("endAt")) {
-        String value = strArr[1];
-        String key = strArr.length >= 3 ? strArr[2] : null;
-        if (key == null) {
-          query = query.endAt(value);
-        } else {
-          query = query.endAt(value, key);
-        }
-      } else if (methStr.contains("startAt")) {
-        String value = strArr[1];
-        String key = strArr.length >= 3 ? strArr[2] : null;
-        if (key == null) {
-          query = query.startAt(value);
-        } else {
-          query = query.startAt(value, key);
-        }
-      }
-    }
-
-    return query;
+  /**
+   * Whether subscribers to the same descriptor can share one listener.
+   * child_added replays the existing children only to a newly added
+   * listener, so it is never shared.
+   */
+  public static boolean isShareable(final String eventName) {
+    return !"child_added".equals(eventName);
   }
 
+  public static String descriptorKey(final String path,
+                                     final FirestackQueryPlan plan,
+                                     final String eventName) {
+    return path + "[" + plan.getSignature() + "]#" + eventName;
+  }
 }
 
 class FirestackDatabaseModule extends ReactContextBaseJavaModule {
 
   private static final String TAG = "FirestackDatabase";
+  private static final long DEFAULT_CACHE_TTL_MS = 30000;
+  private static final long MAX_IDLE_SWEEP_MS = 60000;
 
   private Context context;
   private ReactContext mReactContext;
-  private HashMap<String, FirestackDBReference> mDBListeners = new HashMap<String, FirestackDBReference>();
-
-  public FirestackDatabaseModule(ReactApplicationContext reactContext) {
+  private FirestackEventDispatcher mEventDispatcher;
+  private FirestackSerializationExecutor mSerializer = new FirestackSerializationExecutor();
+  private FirestackWriteCoalescer mWriteCoalescer = new FirestackWriteCoalescer();
+  private FirestackSnapshotCache mSnapshotCache = new FirestackSnapshotCache();
+  private FirestackSnapshotStore mSnapshotStore;
+  private final Handler mHandler = new Handler(Looper.getMainLooper());
+  private long mIdleDetachMs = 0;
+  private final ConcurrentHashMap<String, FirestackDatabaseCursor> mCursors =
+    new ConcurrentHashMap<String, FirestackDatabaseCursor>();
+  private final FirestackListenerRegistry mDBListeners;
+
+  public FirestackDatabaseModule(ReactApplicationContext reactContext, FirestackEventDispatcher eventDispatcher) {
     super(reactContext);
     this.context = reactContext;
     mReactContext = reactContext;
+    mEventDispatcher = eventDispatcher;
+    mSnapshotStore = new FirestackSnapshotStore(reactContext);
+    mDBListeners = new FirestackListenerRegistry(new FirestackListenerRegistry.Factory() {
+      @Override
+      public FirestackDBReference create(String key, String path, FirestackQueryPlan plan, String eventName) {
+        return new FirestackDBReference(
+          mEventDispatcher, mSerializer, mSnapshotCache, mSnapshotStore, key, path, plan, eventName);
+      }
+    });
   }
 
   @Override
@@ -299,6 +448,20 @@ class FirestackDatabaseModule extends ReactContextBaseJavaModule {
     return TAG;
   }
 
+  @Override
+  public void onCatalystInstanceDestroy() {
+    // javascript is gone (reload or teardown), nothing will call off() for these
+    Log.d(TAG, "Detaching " + mDBListeners.size() + " listeners on teardown");
+    mHandler.removeCallbacks(mIdleSweep);
+    mDBListeners.retireAll();
+    for (FirestackDatabaseCursor cursor : mCursors.values()) {
+      cursor.close();
+    }
+    mCursors.clear();
+    mSerializer.shutdown();
+    mSnapshotStore.shutdown();
+  }
+
   // Persistence
   @ReactMethod
   public void enablePersistence(
@@ -337,9 +500,11 @@ class FirestackDatabaseModule extends ReactContextBaseJavaModule {
           final ReadableMap props,
           final Callback callback) {
     DatabaseReference ref = this.getDatabaseReferenceAtPath(path);
+    mSnapshotCache.invalidate(path);
+    mWriteCoalescer.flushOverlapping(path);
 
     final FirestackDatabaseModule self = this;
-    Map<String, Object> m = FirestackUtils.recursivelyDeconstructReadableMap(props);
+    Map<String, Object> m = FirestackWriteEncoder.encode(props);
 
     DatabaseReference.CompletionListener listener = new DatabaseReference.CompletionListener() {
       @Override
@@ -351,13 +516,28 @@ class FirestackDatabaseModule extends ReactContextBaseJavaModule {
     ref.setValue(m, listener);
   }
 
+  /**
+   * set() that keeps only the latest value per path within `windowMs`.
+   * Replaced writes complete with a `coalesced` status.
+   */
+  @ReactMethod
+  public void setCoalesced(final String path,
+                           final ReadableMap props,
+                           final double windowMs,
+                           final Callback callback) {
+    mSnapshotCache.invalidate(path);
+    mWriteCoalescer.set(path, FirestackWriteEncoder.encode(props), (long) windowMs, callback);
+  }
+
   @ReactMethod
   public void update(final String path,
                      final ReadableMap props,
                      final Callback callback) {
     DatabaseReference ref = this.getDatabaseReferenceAtPath(path);
+    mSnapshotCache.invalidate(path);
+    mWriteCoalescer.flushOverlapping(path);
     final FirestackDatabaseModule self = this;
-    Map<String, Object> m = FirestackUtils.recursivelyDeconstructReadableMap(props);
+    Map<String, Object> m = FirestackWriteEncoder.encode(props);
 
     DatabaseReference.CompletionListener listener = new DatabaseReference.CompletionListener() {
       @Override
@@ -373,6 +553,8 @@ class FirestackDatabaseModule extends ReactContextBaseJavaModule {
   public void remove(final String path,
                      final Callback callback) {
     DatabaseReference ref = this.getDatabaseReferenceAtPath(path);
+    mSnapshotCache.invalidate(path);
+    mWriteCoalescer.flushOverlapping(path);
     final FirestackDatabaseModule self = this;
     DatabaseReference.CompletionListener listener = new DatabaseReference.CompletionListener() {
       @Override
@@ -392,6 +574,7 @@ class FirestackDatabaseModule extends ReactContextBaseJavaModule {
     Log.d(TAG, "Called push with " + path);
     DatabaseReference ref = this.getDatabaseReferenceAtPath(path);
     DatabaseReference newRef = ref.push();
+    mSnapshotCache.invalidate(path);
 
     final Uri url = Uri.parse(newRef.toString());
     final String newPath = url.getPath();
@@ -401,7 +584,8 @@ class FirestackDatabaseModule extends ReactContextBaseJavaModule {
       Log.d(TAG, "Passed value to push");
       // lame way to check if the `props` are empty
       final FirestackDatabaseModule self = this;
-      Map<String, Object> m = FirestackUtils.recursivelyDeconstructReadableMap(props);
+      Map<String, Object> m = FirestackWriteEncoder.encode(props);
+      mWriteCoalescer.flushOverlapping(newPath);
 
       DatabaseReference.CompletionListener listener = new DatabaseReference.CompletionListener() {
         @Override
@@ -431,26 +615,115 @@ class FirestackDatabaseModule extends ReactContextBaseJavaModule {
     }
   }
 
+  /**
+   * Applies a list of `{op, path, value}` writes, where op is set, update or
+   * remove and paths are absolute, as one atomic updateChildren() on the root.
+   */
+  @ReactMethod
+  public void batchWrite(final ReadableArray operations, final Callback callback) {
+    final FirestackWriteBatch batch = new FirestackWriteBatch();
+    try {
+      for (int i = 0; i < operations.size(); i++) {
+        ReadableMap operation = operations.getMap(i);
+        String op = operation.getString("op");
+        String path = operation.getString("path");
+
+        if (op.equals("set")) {
+          batch.set(path, operation.hasKey("value") ? FirestackWriteEncoder.encodeValue(operation, "value") : null);
+        } else if (op.equals("update")) {
+          batch.update(path, FirestackWriteEncoder.encode(operation.getMap("value")));
+        } else if (op.equals("remove")) {
+          batch.remove(path);
+        } else {
+          throw new IllegalArgumentException("Unknown batch operation: " + op);
+        }
+      }
+    } catch (Exception e) {
+      Log.e(TAG, "Invalid batch write", e);
+      WritableMap err = Arguments.createMap();
+      err.putString("description", e.getMessage());
+      callback.invoke(err);
+      return;
+    }
+
+    DatabaseReference.CompletionListener listener = new DatabaseReference.CompletionListener() {
+      @Override
+      public void onComplete(DatabaseError error, DatabaseReference ref) {
+        if (error != null) {
+          handleCallback("batchWrite", callback, error, ref);
+          return;
+        }
+        WritableMap res = Arguments.createMap();
+        res.putString("status", "success");
+        res.putString("method", "batchWrite");
+        res.putInt("operations", batch.getOperationCount());
+        res.putInt("paths", batch.getUpdates().size());
+        callback.invoke(null, res);
+      }
+    };
+
+    DatabaseReference root = FirebaseDatabase.getInstance().getReference();
+    Map<String, Object> updates = batch.getUpdates();
+    for (String updatedPath : updates.keySet()) {
+      mSnapshotCache.invalidate(updatedPath);
+      mWriteCoalescer.flushOverlapping(updatedPath);
+    }
+    if (updates.containsKey("/")) {
+      // the batch replaced the root, everything else is merged into its value
+      root.setValue(updates.get("/"), listener);
+    } else {
+      root.updateChildren(updates, listener);
+    }
+  }
+
+  /**
+   * Runs a transaction whose update is a list of declarative ops, see
+   * FirestackTransactionOps. Retries happen natively; the result reports
+   * how many there were.
+   */
+  @ReactMethod
+  public void runTransaction(final String path,
+                             final ReadableArray operations,
+                             final Boolean applyLocally,
+                             final Callback callback) {
+    final FirestackTransactionOps ops;
+    try {
+      ops = FirestackTransactionOps.parse(operations);
+    } catch (Exception e) {
+      Log.e(TAG, "Invalid transaction", e);
+      WritableMap err = Arguments.createMap();
+      err.putString("description", e.getMessage());
+      callback.invoke(err);
+      return;
+    }
+
+    DatabaseReference ref = this.getDatabaseReferenceAtPath(path);
+    mSnapshotCache.invalidate(path);
+    mWriteCoalescer.flushOverlapping(path);
+    ref.runTransaction(ops.handler(path, mSerializer, callback), applyLocally);
+  }
+
   @ReactMethod
   public void on(final String path,
                  final ReadableArray modifiers,
                  final String name,
                  final Callback callback) {
-    FirestackDBReference ref = this.getDBHandle(path);
-
-    WritableMap resp = Arguments.createMap();
-
-    if (name.equals("value")) {
-      ref.addValueEventListener(name, modifiers);
-    } else {
-      ref.addChildEventListener(name, modifiers);
+    FirestackQueryPlan plan = compilePlan(modifiers, callback);
+    if (plan == null) {
+      return;
     }
+    FirestackDBReference ref = mDBListeners.acquire(path, plan, name);
+    boolean attached = ref.getRefCount() == 1;
 
-    this.saveDBHandle(path, ref);
+    WritableMap resp = Arguments.createMap();
     resp.putString("result", "success");
-    Log.d(TAG, "Added listener " + name + " for " + ref);
-    
+    Log.d(TAG, (attached ? "Added listener " : "Shared listener ") + ref.getKey() +
+      " (" + ref.getRefCount() + " subscribers)");
+
     resp.putString("handle", path);
+    resp.putString("descriptor", ref.getKey());
+    resp.putDouble("instance", ref.getInstance());
+    resp.putInt("subscribers", ref.getRefCount());
     callback.invoke(null, resp);
   }
 
@@ -460,31 +733,290 @@ class FirestackDatabaseModule extends ReactContextBaseJavaModule {
                      final String name,
                      final Callback callback) {
     Log.d(TAG, "Setting one-time listener on event: " + name + " for path " + path);
-    FirestackDBReference ref = this.getDBHandle(path);
-    ref.addOnceValueEventListener(modifiers, callback);
+
+    final FirestackQueryPlan plan = compilePlan(modifiers, callback);
+    if (plan == null) {
+      return;
+    }
+    // opt-in: `cache[:ttlMs]` serves repeated reads from FirestackSnapshotCache
+    final String cacheKey = plan.hasOption("cache") ? FirestackSnapshotCache.cacheKey(path, plan) : null;
+    final long ttlMs = cacheKey == null ? 0 : this.cacheTtl(plan.getOption("cache"));
+    if (cacheKey != null) {
+      WritableMap cached = mSnapshotCache.get(cacheKey);
+      if (cached != null) {
+        WritableMap data = Arguments.createMap();
+        data.putString("eventName", "value");
+        data.putMap("snapshot", cached);
+        data.putString("path", path);
+        callback.invoke(null, data);
+        return;
+      }
+    }
+
+    // taken before the read, so a change that lands while it runs keeps it out of the cache
+    final long generation = cacheKey == null ? 0 : mSnapshotCache.beginRead();
+    Query ref = plan.buildQuery(this.getDatabaseReferenceAtPath(path));
+    ref.addListenerForSingleValueEvent(new ValueEventListener() {
+      @Override
+      public void onDataChange(final DataSnapshot dataSnapshot) {
+        mSerializer.execute(path, new Runnable() {
+          @Override
+          public void run() {
+            if (cacheKey != null) {
+              mSnapshotCache.put(cacheKey, path, dataSnapshot, plan.getProjection(), ttlMs, generation);
+            }
+            WritableMap data = FirestackUtils.dataSnapshotToMap("value", path, dataSnapshot, plan);
+            callback.invoke(null, data);
+          }
+        });
+      }
+
+      @Override
+      public void onCancelled(DatabaseError error) {
+        if (cacheKey != null) {
+          mSnapshotCache.endRead();
+        }
+        WritableMap err = Arguments.createMap();
+        err.putInt("errorCode", error.getCode());
+        err.putString("errorDetails", error.getDetails());
+        err.putString("description", error.getMessage());
+        callback.invoke(err);
+      }
+    });
   }
 
   /**
-   * At the time of this writing, off() only gets called when there are no more subscribers to a given path.
-   * `mListeners` might therefore be out of sync (though javascript isnt listening for those eventTypes, so
-   * it doesn't really matter- just polluting the RN bridge a little more than necessary.
-   * off() should therefore clean *everything* up
+   * One-time read that streams the children of the snapshot as `database_chunk`
+   * events of at most `chunkSize` keys instead of building the whole value as
+   * a single map. Every chunk carries the stream id and a `seq`; the stream
+   * ends with a `complete` chunk holding the snapshot's metadata, after which
+   * the callback is invoked. Children are projected one at a time by the
+   * plan's `select`, `maxDepth` or `shallow` options, and chunks are
+   * MessagePack encoded for `format:binary`.
    */
   @ReactMethod
-  public void off(final String path, @Deprecated final String name, final Callback callback) {
-    this.removeDBHandle(path);
-    Log.d(TAG, "Removed listener " + path);
+  public void onceChunked(final String path,
+                          final ReadableArray modifiers,
+                          final String streamId,
+                          final int chunkSize,
+                          final Callback callback) {
+    Log.d(TAG, "Streaming one-time read " + streamId + " for path " + path);
+
+    final FirestackQueryPlan plan = compilePlan(modifiers, callback);
+    if (plan == null) {
+      return;
+    }
+    Query ref = plan.buildQuery(this.getDatabaseReferenceAtPath(path));
+    ref.addListenerForSingleValueEvent(new ValueEventListener() {
+      @Override
+      public void onDataChange(final DataSnapshot dataSnapshot) {
+        mSerializer.execute(streamId, new Runnable() {
+          @Override
+          public void run() {
+            callback.invoke(null, emitChunks(streamId, path, dataSnapshot, plan, Math.max(1, chunkSize)));
+          }
+        });
+      }
+
+      @Override
+      public void onCancelled(DatabaseError error) {
+        WritableMap err = Arguments.createMap();
+        err.putInt("errorCode", error.getCode());
+        err.putString("errorDetails", error.getDetails());
+        err.putString("description", error.getMessage());
+        callback.invoke(err);
+      }
+    });
+  }
+
+  // Snapshot cache
+  @ReactMethod
+  public void configureSnapshotCache(final double maxBytes, final Boolean clear, final Callback callback) {
+    if (clear) {
+      mSnapshotCache.clear();
+    }
+    mSnapshotCache.setMaxBytes((long) maxBytes);
+    callback.invoke(null, mSnapshotCache.getStats());
+  }
+
+  @ReactMethod
+  public void getSnapshotCacheStats(final Callback callback) {
+    callback.invoke(null, mSnapshotCache.getStats());
+  }
+
+  // Listener lifecycle
+  /**
+   * Detaches listeners that have neither attached nor emitted an event for
+   * `idleMs`, subscribed or not, sending a `database_detached` event for
+   * each. 0 turns it off.
+   */
+  @ReactMethod
+  public void setIdleDetach(final double idleMs, final Callback callback) {
+    mIdleDetachMs = (long) Math.max(0, idleMs);
+    mHandler.removeCallbacks(mIdleSweep);
+    if (mIdleDetachMs > 0) {
+      mHandler.postDelayed(mIdleSweep, this.idleSweepInterval());
+    }
     WritableMap resp = Arguments.createMap();
-    resp.putString("handle", path);
+    resp.putString("status", "success");
+    resp.putDouble("idleMs", mIdleDetachMs);
+    callback.invoke(null, resp);
+  }
+
+  @ReactMethod
+  public void dumpListeners(final Callback callback) {
+    WritableArray listeners = Arguments.createArray();
+    for (FirestackDBReference ref : mDBListeners.handles()) {
+      listeners.pushMap(ref.getLifecycle());
+    }
+    callback.invoke(null, listeners);
+  }
+
+  private final Runnable mIdleSweep = new Runnable() {
+    @Override
+    public void run() {
+      if (mIdleDetachMs > 0) {
+        detachIdleListeners(System.currentTimeMillis() - mIdleDetachMs);
+        mHandler.postDelayed(mIdleSweep, idleSweepInterval());
+      }
+    }
+  };
+
+  private long idleSweepInterval() {
+    return Math.max(1000, Math.min(mIdleDetachMs / 2, MAX_IDLE_SWEEP_MS));
+  }
+
+  /**
+   * Detaches the listeners that went quiet before `cutoff`.
+   */
+  private void detachIdleListeners(final long cutoff) {
+    for (FirestackDBReference ref : mDBListeners.handles()) {
+      WritableMap evt = ref.getLifecycle();
+      if (ref.retireIfIdle(cutoff)) {
+        mDBListeners.remove(ref);
+        Log.d(TAG, "Detached idle listener " + ref.getKey());
+        evt.putString("reason", "idle");
+        mEventDispatcher.emit("database_detached", evt);
+      }
+    }
+  }
+
+  // Persisted snapshots
+  @ReactMethod
+  public void configurePersistedSnapshots(final double maxBytes, final Boolean clear, final Callback callback) {
+    if (clear) {
+      mSnapshotStore.clear();
+    }
+    mSnapshotStore.setMaxBytes((long) maxBytes);
+    WritableMap resp = Arguments.createMap();
+    resp.putString("status", "success");
+    resp.putDouble("maxBytes", maxBytes);
+    callback.invoke(null, resp);
+  }
+
+  // Cursors
+  @ReactMethod
+  public void openCursor(final String cursorId,
+                         final String path,
+                         final ReadableArray modifiers,
+                         final int pageSize,
+                         final Callback callback) {
+    FirestackQueryPlan plan = compilePlan(modifiers, callback);
+    if (plan == null) {
+      return;
+    }
+    FirestackDatabaseCursor cursor = new FirestackDatabaseCursor(
+      cursorId, path, plan, pageSize, mSerializer);
+    FirestackDatabaseCursor previous = mCursors.put(cursorId, cursor);
+    if (previous != null) {
+      previous.close();
+    }
+
+    WritableMap resp = Arguments.createMap();
+    resp.putString("status", "success");
+    resp.putString("cursorId", cursorId);
+    callback.invoke(null, resp);
+  }
+
+  @ReactMethod
+  public void cursorNext(final String cursorId, final Callback callback) {
+    FirestackDatabaseCursor cursor = this.getCursor(cursorId, callback);
+    if (cursor != null) {
+      cursor.next(callback);
+    }
+  }
+
+  @ReactMethod
+  public void cursorPrev(final String cursorId, final Callback callback) {
+    FirestackDatabaseCursor cursor = this.getCursor(cursorId, callback);
+    if (cursor != null) {
+      cursor.prev(callback);
+    }
+  }
+
+  @ReactMethod
+  public void closeCursor(final String cursorId, final Callback callback) {
+    FirestackDatabaseCursor cursor = mCursors.remove(cursorId);
+    if (cursor != null) {
+      cursor.close();
+    }
+    WritableMap resp = Arguments.createMap();
+    resp.putString("status", "success");
+    resp.putString("cursorId", cursorId);
+    callback.invoke(null, resp);
+  }
+
+  /**
+   * Drops one subscriber of the listener `handle`, the descriptor on() returned.
+   * javascript calls it once per callback it removes; the Firebase listener
+   * is detached with the last subscriber.
+   */
+  @ReactMethod
+  public void off(final String handle, final Callback callback) {
+    boolean detached = mDBListeners.release(handle);
+    Log.d(TAG, (detached ? "Removed listener " : "Released listener ") + handle);
+    WritableMap resp = Arguments.createMap();
+    resp.putString("handle", handle);
     resp.putString("result", "success");
+    resp.putBoolean("detached", detached);
+    callback.invoke(null, resp);
+  }
+
+  @ReactMethod
+  public void resync(final String handle, final Callback callback) {
+    FirestackDBReference ref = mDBListeners.get(handle);
+    if (ref != null) {
+      ref.resync();
+    }
+    WritableMap resp = Arguments.createMap();
+    resp.putString("handle", handle);
+    resp.putString("result", "success");
+    callback.invoke(null, resp);
+  }
+
+  /**
+   * Sets how many threads convert snapshots for the bridge. Listeners keep
+   * their ordering, also for events already queued.
+   */
+  @ReactMethod
+  public void setSerializationThreads(final int threads, final Callback callback) {
+    mSerializer.setThreads(threads);
+    WritableMap resp = Arguments.createMap();
+    resp.putString("status", "success");
+    resp.putInt("threads", Math.max(1, threads));
     callback.invoke(null, resp);
   }
 
+  @ReactMethod
+  public void getSerializationStats(final Callback callback) {
+    callback.invoke(null, mSerializer.getStats());
+  }
+
   // On Disconnect
   @ReactMethod
   public void onDisconnectSetObject(final String path, final ReadableMap props, final Callback callback) {
     DatabaseReference ref = this.getDatabaseReferenceAtPath(path);
-    Map<String, Object> m = FirestackUtils.recursivelyDeconstructReadableMap(props);
+    Map<String, Object> m = FirestackWriteEncoder.encode(props);
 
     OnDisconnect od = ref.onDisconnect();
     od.setValue(m, new DatabaseReference.CompletionListener() {
@@ -573,147 +1105,158 @@ class FirestackDatabaseModule extends ReactContextBaseJavaModule {
     }
   }
 
-  private FirestackDBReference getDBHandle(final String path) {
-    if (!mDBListeners.containsKey(path)) {
-      ReactContext ctx = getReactApplicationContext();
-      mDBListeners.put(path, new FirestackDBReference(ctx, path));
-    }
+  /**
+   * Emits the children of `snapshot` in chunks and returns the stream's
+   * summary: the number of chunks sent, including the terminal one, and of
+   * children sent. Only one chunk is held at a time.
+   */
+  private WritableMap emitChunks(final String streamId,
+                                 final String path,
+                                 final DataSnapshot snapshot,
+                                 final FirestackQueryPlan plan,
+                                 final int chunkSize) {
+    FirestackProjection projection = plan.getProjection();
+    boolean binary = "binary".equals(plan.getOption("format"));
+    int seq = 0;
+    int childrenCount = 0;
+    // binary chunks are built as a tree and encoded in one go
+    Map<String, Object> tree = null;
+    WritableMap value = null;
+    WritableArray childKeys = null;
+    int pending = 0;
+
+    for (DataSnapshot child : snapshot.getChildren()) {
+      String key = child.getKey();
+      Object projected = null;
+      if (projection != null) {
+        projected = projection.projectChild(child);
+        if (projected == null) {
+          continue;
+        }
+      }
 
-    return mDBListeners.get(path);
-  }
+      if (binary) {
+        if (tree == null) {
+          tree = new LinkedHashMap<String, Object>();
+        }
+        tree.put(key, projection != null ? projected : FirestackSnapshotSerializer.toTree(child));
+      } else {
+        if (value == null) {
+          value = Arguments.createMap();
+          childKeys = Arguments.createArray();
+        }
+        childKeys.pushString(key);
+        if (projection != null) {
+          FirestackSnapshotSerializer.putTree(value, key, projected);
+        } else {
+          FirestackSnapshotSerializer.putChild(value, key, child);
+        }
+      }
+      childrenCount++;
 
-  private void saveDBHandle(final String path, final FirestackDBReference dbRef) {
-    mDBListeners.put(path, dbRef);
-  }
+      if (++pending == chunkSize) {
+        this.sendChunk(streamId, path, seq++, tree, value, childKeys);
+        tree = null;
+        value = null;
+        pending = 0;
+      }
+    }
+    if (pending > 0) {
+      this.sendChunk(streamId, path, seq++, tree, value, childKeys);
+    }
 
-  private void removeDBHandle(final String path) {
-    if (mDBListeners.containsKey(path)) {
-      FirestackDBReference r = mDBListeners.get(path);
-      r.cleanup();
-      mDBListeners.remove(path);
+    // leaves have no children, so their value rides on the terminal chunk
+    WritableMap snap = Arguments.createMap();
+    snap.putString("key", snapshot.getKey());
+    snap.putBoolean("exists", snapshot.exists());
+    snap.putBoolean("hasChildren", childrenCount > 0);
+    snap.putDouble("childrenCount", childrenCount);
+    Object priority = snapshot.getPriority();
+    snap.putString("priority", priority == null ? null : priority.toString());
+    if (!snapshot.hasChildren()) {
+      FirestackSnapshotSerializer.putTree(snap, "value",
+        projection == null ? snapshot.getValue() : projection.project(snapshot));
     }
-  }
 
-  private String keyPath(final String path, final String eventName) {
-    return path + "-" + eventName;
+    WritableMap evt = Arguments.createMap();
+    evt.putString("streamId", streamId);
+    evt.putString("path", path);
+    evt.putInt("seq", seq++);
+    evt.putBoolean("complete", true);
+    evt.putMap("snapshot", snap);
+    mEventDispatcher.emit("database_chunk", evt);
+
+    WritableMap res = Arguments.createMap();
+    res.putString("streamId", streamId);
+    res.putString("path", path);
+    res.putInt("chunks", seq);
+    res.putDouble("childrenCount", childrenCount);
+    return res;
   }
 
-  // TODO: move to FirestackDBReference?
-  private DatabaseReference getDatabaseReferenceAtPath(final String path) {
-    DatabaseReference mDatabase = FirebaseDatabase.getInstance().getReference(path);
-    return mDatabase;
+  /**
+   * Sends one chunk: `tree` MessagePack encoded when set, otherwise `value`
+   * and `childKeys` as they are.
+   */
+  private void sendChunk(final String streamId,
+                         final String path,
+                         final int seq,
+                         final Map<String, Object> tree,
+                         final WritableMap value,
+                         final WritableArray childKeys) {
+    WritableMap evt = Arguments.createMap();
+    evt.putString("streamId", streamId);
+    evt.putString("path", path);
+    evt.putInt("seq", seq);
+    evt.putBoolean("complete", false);
+    if (tree != null) {
+      evt.putString("encoding", "msgpack");
+      evt.putString("data", FirestackMsgPackEncoder.treeToData(tree));
+    } else {
+      evt.putMap("value", value);
+      evt.putArray("childKeys", childKeys);
+    }
+    mEventDispatcher.emit("database_chunk", evt);
   }
 
-  private Query getDatabaseQueryAtPathAndModifiers(
-          final String path,
-          final ReadableArray modifiers) {
-    DatabaseReference ref = this.getDatabaseReferenceAtPath(path);
-
-    List<Object> strModifiers = FirestackUtils.recursivelyDeconstructReadableArray(modifiers);
-    ListIterator<Object> it = strModifiers.listIterator();
-    Query query = ref.orderByKey();
-
-    while(it.hasNext()) {
-      String str = (String) it.next();
-      String[] strArr = str.split(":");
-      String methStr = strArr[0];
-
-      if (methStr.equalsIgnoreCase("orderByKey")) {
-        query = ref.orderByKey();
-      } else if (methStr.equalsIgnoreCase("orderByValue")) {
-        query = ref.orderByValue();
-      } else if (methStr.equalsIgnoreCase("orderByPriority")) {
-        query = ref.orderByPriority();
-      } else if (methStr.contains("orderByChild")) {
-        String key = strArr[1];
-        Log.d(TAG, "orderByChild: " + key);
-        query = ref.orderByChild(key);
-      } else if (methStr.contains("limitToLast")) {
-        String key = strArr[1];
-        int limit = Integer.parseInt(key);
-        Log.d(TAG, "limitToLast: " + limit);
-        query = query.limitToLast(limit);
-      } else if (methStr.contains("limitToFirst")) {
-        String key = strArr[1];
-        int limit = Integer.parseInt(key);
-        Log.d(TAG, "limitToFirst: " + limit);
-        query = query.limitToFirst(limit);
-      } else if (methStr.contains("equalTo")) {
-        String value = strArr[1];
-        String key = strArr.length >= 3 ? strArr[2] : null;
-        if (key == null) {
-          query = query.equalTo(value);
-        } else {
-          query = query.equalTo(value, key);
-        }
-      } else if (methStr.contains("endAt")) {
-        String value = strArr[1];
-        String key = strArr.length >= 3 ? strArr[2] : null;
-        if (key == null) {
-          query = query.endAt(value);
-        } else {
-          query = query.endAt(value, key);
-        }
-      } else if (methStr.contains("startAt")) {
-        String value = strArr[1];
-        String key = strArr.length >= 3 ? strArr[2] : null;
-        if (key == null) {
-          query = query.startAt(value);
-        } else {
-          query = query.startAt(value, key);
-        }
-      }
+  private long cacheTtl(final String ttl) {
+    try {
+      return ttl == null ? DEFAULT_CACHE_TTL_MS : (long) Double.parseDouble(ttl);
+    } catch (NumberFormatException e) {
+      Log.w(TAG, "Invalid cache ttl " + ttl);
+      return DEFAULT_CACHE_TTL_MS;
     }
-
-    return query;
   }
 
-  private WritableMap dataSnapshotToMap(String name, String path, DataSnapshot dataSnapshot) {
-    return FirestackUtils.dataSnapshotToMap(name, path, dataSnapshot);
+  private FirestackDatabaseCursor getCursor(final String cursorId, final Callback callback) {
+    FirestackDatabaseCursor cursor = mCursors.get(cursorId);
+    if (cursor == null) {
+      WritableMap err = Arguments.createMap();
+      err.putString("description", "No open cursor " + cursorId);
+      callback.invoke(err);
+    }
+    return cursor;
   }
 
-  private <Any> Any castSnapshotValue(DataSnapshot snapshot) {
-    if (snapshot.hasChildren()) {
-      WritableMap data = Arguments.createMap();
-      for (DataSnapshot child : snapshot.getChildren()) {
-        Any castedChild = castSnapshotValue(child);
-        switch (castedChild.getClass().getName()) {
-          case "java.lang.Boolean":
-            data.putBoolean(child.getKey(), (Boolean) castedChild);
-            break;
-          case "java.lang.Long":
-            data.putDouble(child.getKey(), (Long) castedChild);
-            break;
-          case "java.lang.Double":
-            data.putDouble(child.getKey(), (Double) castedChild);
-            break;
-          case "java.lang.String":
-            data.putString(child.getKey(), (String) castedChild);
-            break;
-          case "com.facebook.react.bridge.WritableNativeMap":
-            data.putMap(child.getKey(), (WritableMap) castedChild);
-            break;
-        }
-      }
-      return (Any) data;
-    } else {
-      if (snapshot.getValue() != null) {
-        String type = snapshot.getValue().getClass().getName();
-        switch (type) {
-          case "java.lang.Boolean":
-            return (Any)((Boolean) snapshot.getValue());
-          case "java.lang.Long":
-            return (Any) ((Long) snapshot.getValue());
-          case "java.lang.Double":
-            return (Any)((Double) snapshot.getValue());
-          case "java.lang.String":
-            return (Any)((String) snapshot.getValue());
-          default:
-            return (Any) null;
-        }
-      } else {
-        return (Any) null;
-      }
+  /**
+   * Compiles `modifiers`, or passes Firebase's objection to them to
+   * `callback` and returns null.
+   */
+  private static FirestackQueryPlan compilePlan(final ReadableArray modifiers, final Callback callback) {
+    try {
+      return FirestackQueryPlan.compile(modifiers);
+    } catch (IllegalArgumentException e) {
+      Log.e(TAG, "Invalid query", e);
+      WritableMap err = Arguments.createMap();
+      err.putString("description", e.getMessage());
+      callback.invoke(err);
+      return null;
     }
   }
+
+  // TODO: move to FirestackDBReference?
+  private DatabaseReference getDatabaseReferenceAtPath(final String path) {
+    DatabaseReference mDatabase = FirebaseDatabase.getInstance().getReference(path);
+    return mDatabase;
+  }
 }
@@ -0,0 +1,256 @@
+package io.fullstack.firestack;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.Callback;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.FirebaseDatabase;
+import com.google.firebase.database.Query;
+import com.google.firebase.database.ValueEventListener;
+
+/**
+ * Native paging state for a query over the children of a path.
+ *
+ * The cursor remembers the sort value and key of the first and last child
+ * of the current page, so next() and prev() can ask Firebase for just the
+ * neighbouring page instead of javascript re-issuing ever growing queries.
+ * Each page fetches one extra child past the page size to tell whether
+ * there is more in that direction. Pages stay within the range of the
+ * query; the cursor sets its own limit and the bound it pages from.
+ *
+ * One page loads at a time: next() or prev() while a page is loading fails,
+ * and so does paging past a child whose sort value is an object, which
+ * Firebase can't start or end a query at.
+ */
+class FirestackDatabaseCursor {
+  private static final String TAG = "FirestackDBCursor";
+
+  private final String mId;
+  private final String mPath;
+  private final FirestackQueryPlan mPlan;
+  private final int mPageSize;
+  private final FirestackSerializationExecutor mSerializer;
+
+  private boolean mHasPage = false;
+  private String mFirstKey;
+  private Object mFirstValue;
+  private String mLastKey;
+  private Object mLastValue;
+
+  private boolean mClosed = false;
+  private Query mPendingQuery;
+  private ValueEventListener mPendingListener;
+
+  public FirestackDatabaseCursor(final String id,
+                                 final String path,
+                                 final FirestackQueryPlan plan,
+                                 final int pageSize,
+                                 final FirestackSerializationExecutor serializer) {
+    mId = id;
+    mPath = path;
+    mPlan = plan;
+    mPageSize = Math.max(1, pageSize);
+    mSerializer = serializer;
+  }
+
+  public String getId() {
+    return mId;
+  }
+
+  public synchronized void next(final Callback callback) {
+    if (!this.canFetch(callback, mHasPage ? mLastValue : null)) {
+      return;
+    }
+    Query query;
+    if (mHasPage) {
+      query = mPlan.buildPagedQuery(this.getDatabaseRef(), "startAt");
+      query = this.bound(query, "startAt", mLastValue, mLastKey).limitToFirst(mPageSize + 2);
+    } else {
+      query = mPlan.buildPagedQuery(this.getDatabaseRef(), null).limitToFirst(mPageSize + 1);
+    }
+    this.fetch(query, true, callback);
+  }
+
+  public synchronized void prev(final Callback callback) {
+    if (!mHasPage) {
+      // nothing before a cursor that has not moved yet
+      callback.invoke(null, this.emptyPage("prev"));
+      return;
+    }
+    if (!this.canFetch(callback, mFirstValue)) {
+      return;
+    }
+    Query query = mPlan.buildPagedQuery(this.getDatabaseRef(), "endAt");
+    query = this.bound(query, "endAt", mFirstValue, mFirstKey).limitToLast(mPageSize + 2);
+    this.fetch(query, false, callback);
+  }
+
+  public DatabaseReference getDatabaseRef() {
+    return FirebaseDatabase.getInstance().getReference(mPath);
+  }
+
+  /**
+   * Releases the listener of a page that is still loading.
+   */
+  public synchronized void close() {
+    mClosed = true;
+    if (mPendingQuery != null && mPendingListener != null) {
+      mPendingQuery.removeEventListener(mPendingListener);
+    }
+    mPendingQuery = null;
+    mPendingListener = null;
+  }
+
+  /**
+   * Fails the call unless the cursor is open, idle and `boundary` is a value
+   * Firebase can page from.
+   */
+  private boolean canFetch(final Callback callback, final Object boundary) {
+    String error = null;
+    if (mClosed) {
+      error = "Cursor " + mId + " is closed";
+    } else if (mPendingQuery != null) {
+      error = "Cursor " + mId + " is already loading a page";
+    } else if (boundary != null && !(boundary instanceof String || boundary instanceof Number || boundary instanceof Boolean)) {
+      error = "Cursor " + mId + " can't page past a child whose sort value is an object";
+    }
+    if (error == null) {
+      return true;
+    }
+    WritableMap err = Arguments.createMap();
+    err.putString("description", error);
+    callback.invoke(err);
+    return false;
+  }
+
+  private void fetch(final Query query, final boolean forward, final Callback callback) {
+    final String boundaryKey = forward ? mLastKey : mFirstKey;
+    final ValueEventListener listener = new ValueEventListener() {
+      @Override
+      public void onDataChange(final DataSnapshot dataSnapshot) {
+        mSerializer.execute(mId, new Runnable() {
+          @Override
+          public void run() {
+            WritableMap page = pageFrom(dataSnapshot, forward, boundaryKey);
+            if (page != null) {
+              callback.invoke(null, page);
+            }
+          }
+        });
+      }
+
+      @Override
+      public void onCancelled(DatabaseError error) {
+        synchronized (FirestackDatabaseCursor.this) {
+          mPendingQuery = null;
+          mPendingListener = null;
+        }
+        WritableMap err = Arguments.createMap();
+        err.putInt("errorCode", error.getCode());
+        err.putString("errorDetails", error.getDetails());
+        err.putString("description", error.getMessage());
+        callback.invoke(err);
+      }
+    };
+
+    mPendingQuery = query;
+    mPendingListener = listener;
+    query.addListenerForSingleValueEvent(listener);
+  }
+
+  private synchronized WritableMap pageFrom(final DataSnapshot snapshot,
+                                            final boolean forward,
+                                            final String boundaryKey) {
+    mPendingQuery = null;
+    mPendingListener = null;
+    if (mClosed) {
+      return null;
+    }
+
+    List<DataSnapshot> children = new ArrayList<DataSnapshot>(mPageSize + 2);
+    for (DataSnapshot child : snapshot.getChildren()) {
+      // the boundary child belongs to the page we already have
+      if (boundaryKey == null || !boundaryKey.equals(child.getKey())) {
+        children.add(child);
+      }
+    }
+
+    boolean hasMore = children.size() > mPageSize;
+    if (hasMore) {
+      children = forward
+        ? children.subList(0, mPageSize)
+        : children.subList(children.size() - mPageSize, children.size());
+    }
+
+    if (children.isEmpty()) {
+      return this.emptyPage(forward ? "next" : "prev");
+    }
+
+    WritableMap value = Arguments.createMap();
+    WritableArray childKeys = Arguments.createArray();
+    for (DataSnapshot child : children) {
+      childKeys.pushString(child.getKey());
+      FirestackSnapshotSerializer.putChild(value, child.getKey(), child);
+    }
+
+    DataSnapshot first = children.get(0);
+    DataSnapshot last = children.get(children.size() - 1);
+    mHasPage = true;
+    mFirstKey = first.getKey();
+    mFirstValue = this.sortValue(first);
+    mLastKey = last.getKey();
+    mLastValue = this.sortValue(last);
+
+    WritableMap page = Arguments.createMap();
+    page.putString("cursorId", mId);
+    page.putString("path", mPath);
+    page.putString("direction", forward ? "next" : "prev");
+    page.putMap("value", value);
+    page.putArray("childKeys", childKeys);
+    page.putInt("count", children.size());
+    page.putBoolean("hasMore", hasMore);
+    Log.d(TAG, "Cursor " + mId + " fetched " + children.size() + " children");
+    return page;
+  }
+
+  private WritableMap emptyPage(final String direction) {
+    WritableMap page = Arguments.createMap();
+    page.putString("cursorId", mId);
+    page.putString("path", mPath);
+    page.putString("direction", direction);
+    page.putMap("value", Arguments.createMap());
+    page.putArray("childKeys", Arguments.createArray());
+    page.putInt("count", 0);
+    page.putBoolean("hasMore", false);
+    return page;
+  }
+
+  private Query bound(final Query query, final String method, final Object value, final String key) {
+    if (mPlan.getOrderBy().equals("orderByKey")) {
+      // key ordering takes the key itself as the value and no second argument
+      return FirestackQueryPlan.applyFilter(query, method, key, null);
+    }
+    return FirestackQueryPlan.applyFilter(query, method, value, key);
+  }
+
+  private Object sortValue(final DataSnapshot child) {
+    String orderBy = mPlan.getOrderBy();
+    if (orderBy.equals("orderByChild")) {
+      return child.child(mPlan.getOrderByChild()).getValue();
+    } else if (orderBy.equals("orderByValue")) {
+      return child.getValue();
+    } else if (orderBy.equals("orderByPriority")) {
+      return child.getPriority();
+    }
+    return child.getKey();
+  }
+}
@@ -0,0 +1,205 @@
+package io.fullstack.firestack;
+
+import android.net.Uri;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.Callback;
+import com.facebook.react.bridge.WritableMap;
+
+import com.google.firebase.storage.StorageMetadata;
+import com.google.firebase.storage.StorageReference;
+
+/**
+ * Resolved download urls and metadata of storage objects, keyed by
+ * `bucket/path`.
+ *
+ * At most `maxEntries` results are kept, least recently used first out, and
+ * each expires `ttlMs` after it was resolved. Callers asking for a key that
+ * is already being resolved wait for that lookup instead of starting their
+ * own. Results are kept as plain values because a WritableMap can only be
+ * sent once.
+ */
+class FirestackDownloadUrlCache {
+  private static final int DEFAULT_MAX_ENTRIES = 500;
+  private static final long DEFAULT_TTL_MS = 60 * 60 * 1000;
+
+  static class Entry {
+    final String url;
+    final String path;
+    final String bucket;
+    final String name;
+    final long sizeBytes;
+    final long createdAt;
+    final long updatedAt;
+    final String md5Hash;
+    final String contentEncoding;
+    final String contentType;
+    final long expiresAt;
+
+    Entry(final Uri uri, final StorageMetadata metadata, final long ttlMs) {
+      this.url = uri.toString();
+      this.path = uri.getPath();
+      this.bucket = metadata.getBucket();
+      this.name = metadata.getName();
+      this.sizeBytes = metadata.getSizeBytes();
+      this.createdAt = metadata.getCreationTimeMillis();
+      this.updatedAt = metadata.getUpdatedTimeMillis();
+      this.md5Hash = metadata.getMd5Hash();
+      this.contentEncoding = metadata.getContentEncoding();
+      this.contentType = metadata.getContentType();
+      this.expiresAt = SystemClock.elapsedRealtime() + ttlMs;
+    }
+
+    /**
+     * The `downloadUrl` result, in the shape it has always had.
+     */
+    WritableMap toMap() {
+      WritableMap res = Arguments.createMap();
+      res.putString("status", "success");
+      res.putString("bucket", bucket);
+      res.putString("fullPath", url);
+      res.putString("path", path);
+      res.putString("url", url);
+      res.putString("name", name);
+
+      WritableMap metadata = Arguments.createMap();
+      metadata.putString("getBucket", bucket);
+      metadata.putString("getName", name);
+      metadata.putDouble("sizeBytes", sizeBytes);
+      metadata.putDouble("created_at", createdAt);
+      metadata.putDouble("updated_at", updatedAt);
+      metadata.putString("md5hash", md5Hash);
+      metadata.putString("encoding", contentEncoding);
+      metadata.putString("contentType", contentType);
+      res.putMap("metadata", metadata);
+      return res;
+    }
+  }
+
+  private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+  private final Map<String, List<Callback>> mPending = new HashMap<String, List<Callback>>();
+  // lookups invalidated while in flight, their result is not stored
+  private final Set<String> mStale = new HashSet<String>();
+  private int mMaxEntries = DEFAULT_MAX_ENTRIES;
+  private long mTtlMs = DEFAULT_TTL_MS;
+
+  private long mHits = 0;
+  private long mMisses = 0;
+  private long mCoalesced = 0;
+  private long mEvictions = 0;
+  private long mExpirations = 0;
+  private long mInvalidations = 0;
+
+  public static String cacheKey(final StorageReference ref) {
+    String path = ref.getPath();
+    return ref.getBucket() + "/" + (path.startsWith("/") ? path.substring(1) : path);
+  }
+
+  public synchronized void configure(final int maxEntries, final long ttlMs) {
+    mMaxEntries = Math.max(0, maxEntries);
+    mTtlMs = Math.max(0, ttlMs);
+    this.trim();
+  }
+
+  public synchronized long getTtl() {
+    return mTtlMs;
+  }
+
+  public synchronized Entry get(final String cacheKey) {
+    Entry entry = mEntries.get(cacheKey);
+    if (entry != null && entry.expiresAt <= SystemClock.elapsedRealtime()) {
+      mEntries.remove(cacheKey);
+      mExpirations++;
+      entry = null;
+    }
+    if (entry == null) {
+      mMisses++;
+      FirestackMetrics.increment("storage.urlCacheMisses");
+      return null;
+    }
+    mHits++;
+    FirestackMetrics.increment("storage.urlCacheHits");
+    return entry;
+  }
+
+  /**
+   * Registers `callback` for the lookup of `cacheKey`. Returns true when it
+   * is the first one and the caller has to start the lookup.
+   */
+  public synchronized boolean await(final String cacheKey, final Callback callback) {
+    List<Callback> waiting = mPending.get(cacheKey);
+    if (waiting != null) {
+      waiting.add(callback);
+      mCoalesced++;
+      return false;
+    }
+    waiting = new ArrayList<Callback>();
+    waiting.add(callback);
+    mPending.put(cacheKey, waiting);
+    return true;
+  }
+
+  /**
+   * Stores the result, when there is one, and hands back everyone waiting
+   * for it.
+   */
+  public synchronized List<Callback> resolve(final String cacheKey, final Entry entry) {
+    boolean stale = mStale.remove(cacheKey);
+    if (entry != null && !stale && mMaxEntries > 0) {
+      mEntries.put(cacheKey, entry);
+      this.trim();
+    }
+    List<Callback> waiting = mPending.remove(cacheKey);
+    return waiting == null ? new ArrayList<Callback>() : waiting;
+  }
+
+  public synchronized void invalidate(final String cacheKey) {
+    if (mEntries.remove(cacheKey) != null) {
+      mInvalidations++;
+    }
+    if (mPending.containsKey(cacheKey)) {
+      mStale.add(cacheKey);
+    }
+  }
+
+  public synchronized void clear() {
+    mInvalidations += mEntries.size();
+    mEntries.clear();
+    mStale.addAll(mPending.keySet());
+  }
+
+  public synchronized WritableMap getStats() {
+    long lookups = mHits + mMisses;
+    WritableMap stats = Arguments.createMap();
+    stats.putDouble("entries", mEntries.size());
+    stats.putDouble("maxEntries", mMaxEntries);
+    stats.putDouble("ttlMs", mTtlMs);
+    stats.putDouble("hits", mHits);
+    stats.putDouble("misses", mMisses);
+    stats.putDouble("hitRate", lookups == 0 ? 0 : (double) mHits / lookups);
+    stats.putDouble("coalesced", mCoalesced);
+    stats.putDouble("evictions", mEvictions);
+    stats.putDouble("expirations", mExpirations);
+    stats.putDouble("invalidations", mInvalidations);
+    return stats;
+  }
+
+  private void trim() {
+    Iterator<Map.Entry<String, Entry>> it = mEntries.entrySet().iterator();
+    while (mEntries.size() > mMaxEntries && it.hasNext()) {
+      it.next();
+      it.remove();
+      mEvictions++;
+    }
+  }
+}
@@ -0,0 +1,246 @@
+package io.fullstack.firestack;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.ReactContext;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+/**
+ * Shared event emitter for the Firestack modules.
+ *
+ * Events are sent straight through by default. Once batching is configured
+ * for an event name, its events are buffered and flushed together as a
+ * single `{batch: [...]}` event, either when the window elapses or as soon
+ * as `maxEvents` are pending. A single buffer is used for all names so the
+ * emission order (and therefore the per-path order) is preserved; the
+ * decision to send or buffer and the send itself happen under one lock.
+ *
+ * The buffer pushes back on producers instead of growing: an event emitted
+ * with a coalesce key replaces the one with the same key still waiting, and
+ * at MAX_PENDING events the emitting thread flushes before it returns.
+ *
+ * Chunks of a chunked read are bounded in size so they can cross the bridge
+ * one at a time; they are never batched back into one big event.
+ */
+class FirestackEventDispatcher {
+  private static final String TAG = "FirestackDispatcher";
+  private static final int MAX_PENDING = 500;
+  private static final String UNBATCHED = "database_chunk";
+
+  private static class BatchConfig {
+    final long windowMs;
+    final int maxEvents;
+
+    BatchConfig(final long windowMs, final int maxEvents) {
+      this.windowMs = windowMs;
+      this.maxEvents = maxEvents;
+    }
+  }
+
+  private static class PendingEvent {
+    final String name;
+    final WritableMap params;
+    boolean superseded = false;
+
+    PendingEvent(final String name, final WritableMap params) {
+      this.name = name;
+      this.params = params;
+    }
+  }
+
+  private final ReactContext mReactContext;
+  private final Handler mHandler = new Handler(Looper.getMainLooper());
+  private final Object mSendLock = new Object();
+  private final Map<String, BatchConfig> mBatchConfigs = new HashMap<String, BatchConfig>();
+  private List<PendingEvent> mPending = new ArrayList<PendingEvent>();
+  private Map<String, PendingEvent> mCoalescible = new HashMap<String, PendingEvent>();
+  private boolean mFlushScheduled = false;
+
+  private long mEventsEmitted = 0;
+  private long mEventsCoalesced = 0;
+  private long mEventsBatched = 0;
+  private long mBatchesFlushed = 0;
+  private long mForcedFlushes = 0;
+  private long mEventsDropped = 0;
+  private int mMaxPending = 0;
+
+  private final Runnable mFlushRunnable = new Runnable() {
+    @Override
+    public void run() {
+      flush();
+    }
+  };
+
+  public FirestackEventDispatcher(final ReactContext context) {
+    mReactContext = context;
+  }
+
+  /**
+   * Batch events with the given name. A window of 0 turns batching off.
+   * Returns false for events that can't be batched.
+   */
+  public synchronized boolean setBatching(final String eventName, final long windowMs, final int maxEvents) {
+    if (UNBATCHED.equals(eventName)) {
+      Log.w(TAG, "Events " + eventName + " can't be batched");
+      return false;
+    }
+    if (windowMs <= 0) {
+      mBatchConfigs.remove(eventName);
+    } else {
+      mBatchConfigs.put(eventName, new BatchConfig(windowMs, Math.max(1, maxEvents)));
+    }
+    Log.d(TAG, "Batching for " + eventName + " set to " + windowMs + "ms / " + maxEvents + " events");
+    return true;
+  }
+
+  public void emit(final String eventName, final WritableMap params) {
+    this.emit(eventName, params, null);
+  }
+
+  /**
+   * Like emit(), but while the event waits in the buffer a later one with the
+   * same name and `coalesceKey` replaces it, e.g. the newer value of a listener.
+   */
+  public void emit(final String eventName, final WritableMap params, final String coalesceKey) {
+    // taken first so nothing can be sent between deciding and sending
+    synchronized (mSendLock) {
+      boolean sendNow = false;
+      boolean flushNow = false;
+
+      synchronized (this) {
+        BatchConfig config = mBatchConfigs.get(eventName);
+        if (config == null && mPending.isEmpty()) {
+          sendNow = true;
+        } else {
+          // once anything is buffered, everything queues behind it to keep ordering
+          PendingEvent event = new PendingEvent(eventName, params);
+          if (coalesceKey != null) {
+            PendingEvent previous = mCoalescible.put(eventName + '\u001f' + coalesceKey, event);
+            if (previous != null) {
+              previous.superseded = true;
+              mEventsCoalesced++;
+            }
+          }
+          mPending.add(event);
+          mMaxPending = Math.max(mMaxPending, mPending.size());
+          if (config != null) {
+            mEventsBatched++;
+          }
+
+          if ((config != null && mPending.size() >= config.maxEvents) || mPending.size() >= MAX_PENDING) {
+            mForcedFlushes++;
+            flushNow = true;
+          } else if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            mHandler.postDelayed(mFlushRunnable, config != null ? config.windowMs : 0);
+          }
+        }
+      }
+
+      if (sendNow) {
+        this.send(eventName, params);
+      } else if (flushNow) {
+        this.flush();
+      }
+    }
+  }
+
+  /**
+   * Sends everything pending. Consecutive events batched under the same name
+   * are grouped into one array event; other events are sent as they are.
+   */
+  public void flush() {
+    // flushes run one at a time so a later flush can't overtake an earlier one
+    synchronized (mSendLock) {
+      List<PendingEvent> pending;
+      Map<String, BatchConfig> configs;
+      synchronized (this) {
+        mHandler.removeCallbacks(mFlushRunnable);
+        mFlushScheduled = false;
+        if (mPending.isEmpty()) {
+          return;
+        }
+        pending = mPending;
+        mPending = new ArrayList<PendingEvent>();
+        mCoalescible = new HashMap<String, PendingEvent>();
+        configs = new HashMap<String, BatchConfig>(mBatchConfigs);
+      }
+
+      String batchName = null;
+      WritableArray batch = null;
+      for (PendingEvent event : pending) {
+        if (event.superseded) {
+          continue;
+        }
+        if (batch != null && !event.name.equals(batchName)) {
+          this.sendBatch(batchName, batch);
+          batch = null;
+          batchName = null;
+        }
+        if (configs.containsKey(event.name)) {
+          if (batch == null) {
+            batch = Arguments.createArray();
+            batchName = event.name;
+          }
+          batch.pushMap(event.params);
+        } else {
+          this.send(event.name, event.params);
+        }
+      }
+      if (batch != null) {
+        this.sendBatch(batchName, batch);
+      }
+    }
+  }
+
+  public synchronized WritableMap getStats() {
+    WritableMap stats = Arguments.createMap();
+    stats.putDouble("pending", mPending.size());
+    stats.putDouble("maxPending", mMaxPending);
+    stats.putDouble("eventsEmitted", mEventsEmitted);
+    stats.putDouble("eventsBatched", mEventsBatched);
+    stats.putDouble("eventsCoalesced", mEventsCoalesced);
+    stats.putDouble("batchesFlushed", mBatchesFlushed);
+    stats.putDouble("forcedFlushes", mForcedFlushes);
+    stats.putDouble("eventsDropped", mEventsDropped);
+
+    WritableMap batching = Arguments.createMap();
+    for (Map.Entry<String, BatchConfig> entry : mBatchConfigs.entrySet()) {
+      WritableMap config = Arguments.createMap();
+      config.putDouble("windowMs", entry.getValue().windowMs);
+      config.putDouble("maxEvents", entry.getValue().maxEvents);
+      batching.putMap(entry.getKey(), config);
+    }
+    stats.putMap("batching", batching);
+    return stats;
+  }
+
+  private void sendBatch(final String eventName, final WritableArray batch) {
+    WritableMap params = Arguments.createMap();
+    params.putArray("batch", batch);
+    synchronized (this) {
+      mBatchesFlushed++;
+    }
+    this.send(eventName, params);
+  }
+
+  private void send(final String eventName, final WritableMap params) {
+    synchronized (this) {
+      if (mReactContext.hasActiveCatalystInstance()) {
+        mEventsEmitted++;
+      } else {
+        mEventsDropped++;
+      }
+    }
+    FirestackUtils.sendEvent(mReactContext, eventName, params);
+  }
+}
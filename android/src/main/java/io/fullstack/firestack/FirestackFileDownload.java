@@ -0,0 +1,206 @@
+package io.fullstack.firestack;
+
+import android.util.Base64;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Streams one storage object to disk.
+ *
+ * Bytes go to `<target>.part` through a fixed 64KB buffer. An existing part
+ * file is continued with an HTTP Range request, so a download that was
+ * paused or interrupted by the process dying does not start over. Once
+ * complete the file is checked against the object's MD5 and renamed into
+ * place; a mismatch deletes the part file so the next attempt starts clean.
+ */
+class FirestackFileDownload implements Runnable {
+  private static final String TAG = "FirestackFileDownload";
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final int TIMEOUT_MS = 30000;
+
+  interface Listener {
+    void onResumed(FirestackFileDownload download, long offset);
+    void onProgress(FirestackFileDownload download, long bytesTransferred, long totalBytes);
+    void onPaused(FirestackFileDownload download, long bytesTransferred);
+    void onComplete(FirestackFileDownload download, boolean verified);
+    void onError(FirestackFileDownload download, Exception error);
+  }
+
+  private final String mTaskId;
+  private final String mUrl;
+  private final File mTarget;
+  private final File mPart;
+  private final long mTotalBytes;
+  private final String mMd5Hash;
+  private final Listener mListener;
+  private volatile boolean mPaused = false;
+
+  public FirestackFileDownload(final String taskId,
+                               final String url,
+                               final File target,
+                               final long totalBytes,
+                               final String md5Hash,
+                               final Listener listener) {
+    mTaskId = taskId;
+    mUrl = url;
+    mTarget = target;
+    mPart = new File(target.getPath() + ".part");
+    mTotalBytes = totalBytes;
+    mMd5Hash = md5Hash;
+    mListener = listener;
+  }
+
+  public String getTaskId() {
+    return mTaskId;
+  }
+
+  public File getTarget() {
+    return mTarget;
+  }
+
+  /**
+   * Stops after the current buffer, keeping the part file for a later resume.
+   */
+  public void pause() {
+    mPaused = true;
+  }
+
+  @Override
+  public void run() {
+    try {
+      File parent = mTarget.getParentFile();
+      if (parent != null && !parent.exists() && !parent.mkdirs()) {
+        throw new IOException("Could not create " + parent);
+      }
+
+      long offset = mPart.exists() ? mPart.length() : 0;
+      if (offset > mTotalBytes) {
+        mPart.delete();
+        offset = 0;
+      }
+      if (offset > 0) {
+        mListener.onResumed(this, offset);
+      }
+      if (offset < mTotalBytes || mTotalBytes == 0) {
+        if (!this.transfer(offset)) {
+          mListener.onPaused(this, mPart.length());
+          return;
+        }
+      }
+
+      boolean verified = this.verify();
+      if (mTarget.exists() && !mTarget.delete()) {
+        throw new IOException("Could not replace " + mTarget);
+      }
+      if (!mPart.renameTo(mTarget)) {
+        throw new IOException("Could not move download to " + mTarget);
+      }
+      mListener.onComplete(this, verified);
+    } catch (Exception e) {
+      Log.e(TAG, "Download of " + mTaskId + " failed", e);
+      mListener.onError(this, e);
+    }
+  }
+
+  // false when paused before the end
+  private boolean transfer(final long offset) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL(mUrl).openConnection();
+    connection.setConnectTimeout(TIMEOUT_MS);
+    connection.setReadTimeout(TIMEOUT_MS);
+    if (offset > 0) {
+      connection.setRequestProperty("Range", "bytes=" + offset + "-");
+    }
+
+    InputStream in = null;
+    FileOutputStream out = null;
+    try {
+      int status = connection.getResponseCode();
+      long position = offset;
+      if (status == HttpURLConnection.HTTP_OK) {
+        // range not honoured, the whole object is coming again
+        position = 0;
+      } else if (status != HttpURLConnection.HTTP_PARTIAL) {
+        throw new IOException("Unexpected HTTP status " + status + " for " + mTaskId);
+      }
+
+      in = connection.getInputStream();
+      out = new FileOutputStream(mPart, position > 0);
+      byte[] buffer = new byte[BUFFER_SIZE];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+        position += read;
+        FirestackMetrics.add("storage.downloadBytes", read);
+        mListener.onProgress(this, position, mTotalBytes);
+        if (mPaused) {
+          return false;
+        }
+      }
+      // a dropped connection can look like a clean end of stream
+      if (mTotalBytes > 0 && position < mTotalBytes) {
+        throw new IOException("Connection closed after " + position + " of " + mTotalBytes + " bytes for " + mTaskId);
+      }
+      out.getFD().sync();
+      return true;
+    } finally {
+      closeQuietly(in);
+      closeQuietly(out);
+      connection.disconnect();
+    }
+  }
+
+  // true when checked, false when there was no hash to check against
+  private boolean verify() throws IOException {
+    if (mMd5Hash == null || mMd5Hash.length() == 0) {
+      return false;
+    }
+
+    long start = FirestackMetrics.start();
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      return false;
+    }
+
+    FileInputStream in = new FileInputStream(mPart);
+    try {
+      byte[] buffer = new byte[BUFFER_SIZE];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        digest.update(buffer, 0, read);
+      }
+    } finally {
+      closeQuietly(in);
+    }
+    FirestackMetrics.stop("storage.downloadVerify", start);
+
+    String md5 = Base64.encodeToString(digest.digest(), Base64.NO_WRAP);
+    if (!md5.equals(mMd5Hash)) {
+      mPart.delete();
+      throw new IOException("Checksum mismatch for " + mTaskId + ": expected " + mMd5Hash + ", got " + md5);
+    }
+    return true;
+  }
+
+  private static void closeQuietly(final Closeable closeable) {
+    if (closeable == null) {
+      return;
+    }
+    try {
+      closeable.close();
+    } catch (IOException e) {
+      // nothing left to do
+    }
+  }
+}
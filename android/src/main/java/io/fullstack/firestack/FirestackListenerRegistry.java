@@ -0,0 +1,105 @@
+package io.fullstack.firestack;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The native database listeners, keyed by descriptor (see
+ * FirestackDBReference.descriptorKey).
+ *
+ * Every on() from javascript is one acquire() and every off() one release()
+ * of the same descriptor, so a handle's subscriber count always matches the
+ * javascript callbacks behind it. child_added is the exception: Firebase
+ * only replays the existing children when a listener is added, so a shared
+ * handle would never show them to a later subscriber. Each child_added
+ * on() gets a handle, and a Firebase listener, of its own. The Firebase listener is attached with
+ * the first subscriber and detached with the last; a handle that was
+ * detached is retired and replaced by the next acquire(). Reads are plain
+ * ConcurrentHashMap lookups.
+ */
+class FirestackListenerRegistry {
+
+  interface Factory {
+    FirestackDBReference create(String key, String path, FirestackQueryPlan plan, String eventName);
+  }
+
+  private final ConcurrentHashMap<String, FirestackDBReference> mHandles =
+    new ConcurrentHashMap<String, FirestackDBReference>();
+  private final Factory mFactory;
+  private final AtomicLong mUnsharedCount = new AtomicLong();
+
+  public FirestackListenerRegistry(final Factory factory) {
+    mFactory = factory;
+  }
+
+  /**
+   * Finds or creates the handle for the descriptor and adds a subscriber.
+   * A handle retired by a concurrent release() or idle sweep is replaced.
+   */
+  public FirestackDBReference acquire(final String path,
+                                      final FirestackQueryPlan plan,
+                                      final String eventName) {
+    String key = FirestackDBReference.descriptorKey(path, plan, eventName);
+    if (!FirestackDBReference.isShareable(eventName)) {
+      key = key + "@" + mUnsharedCount.incrementAndGet();
+    }
+
+    while (true) {
+      FirestackDBReference ref = mHandles.get(key);
+      if (ref == null) {
+        FirestackDBReference created = mFactory.create(key, path, plan, eventName);
+        ref = mHandles.putIfAbsent(key, created);
+        if (ref == null) {
+          ref = created;
+        }
+      }
+      if (ref.acquire()) {
+        return ref;
+      }
+      mHandles.remove(key, ref);
+    }
+  }
+
+  /**
+   * Drops one subscriber of `handle`. Returns true when that was the last
+   * one and the Firebase listener was detached.
+   */
+  public boolean release(final String handle) {
+    FirestackDBReference ref = mHandles.get(handle);
+    if (ref == null || !ref.release()) {
+      return false;
+    }
+    mHandles.remove(handle, ref);
+    return true;
+  }
+
+  /**
+   * Takes a handle out after it was retired elsewhere, e.g. by the idle sweep.
+   */
+  public boolean remove(final FirestackDBReference ref) {
+    return mHandles.remove(ref.getKey(), ref);
+  }
+
+  public FirestackDBReference get(final String handle) {
+    return mHandles.get(handle);
+  }
+
+  public Collection<FirestackDBReference> handles() {
+    return mHandles.values();
+  }
+
+  public int size() {
+    return mHandles.size();
+  }
+
+  /**
+   * Detaches and forgets every handle, whatever its subscribers.
+   */
+  public void retireAll() {
+    for (FirestackDBReference ref : mHandles.values()) {
+      ref.retire();
+      mHandles.remove(ref.getKey(), ref);
+    }
+  }
+}
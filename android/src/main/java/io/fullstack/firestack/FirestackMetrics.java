@@ -0,0 +1,163 @@
+package io.fullstack.firestack;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableMap;
+
+/**
+ * Process wide timers and counters for the hot paths of the native modules.
+ *
+ * Timers are off by default and cost a volatile read when disabled. When
+ * enabled each timer keeps its count, total and max plus the last SAMPLES
+ * durations, from which the p50/p99 are computed on read. Counters are
+ * always on.
+ *
+ * Usage:
+ *   long start = FirestackMetrics.start();
+ *   ... work ...
+ *   FirestackMetrics.stop("serializer.snapshot", start);
+ */
+class FirestackMetrics {
+  private static final int SAMPLES = 512;
+
+  private static volatile boolean sEnabled = false;
+  private static final Map<String, Timer> sTimers = new HashMap<String, Timer>();
+  private static final Map<String, long[]> sCounters = new HashMap<String, long[]>();
+
+  private static class Timer {
+    long count = 0;
+    long totalNanos = 0;
+    long maxNanos = 0;
+    long firstNanos = 0;
+    long lastNanos = 0;
+    final long[] samples = new long[SAMPLES];
+
+    void record(final long nanos, final long now) {
+      if (count == 0) {
+        firstNanos = now;
+      }
+      samples[(int) (count % SAMPLES)] = nanos;
+      count++;
+      totalNanos += nanos;
+      maxNanos = Math.max(maxNanos, nanos);
+      lastNanos = now;
+    }
+
+    WritableMap toMap() {
+      int size = (int) Math.min(count, SAMPLES);
+      long[] sorted = Arrays.copyOf(samples, size);
+      Arrays.sort(sorted);
+
+      WritableMap map = Arguments.createMap();
+      map.putDouble("count", count);
+      map.putDouble("totalMs", toMillis(totalNanos));
+      map.putDouble("meanMs", count == 0 ? 0 : toMillis(totalNanos) / count);
+      map.putDouble("maxMs", toMillis(maxNanos));
+      map.putDouble("p50Ms", percentile(sorted, 0.50));
+      map.putDouble("p99Ms", percentile(sorted, 0.99));
+
+      // calls per second of wall time between the first and last sample
+      long span = lastNanos - firstNanos;
+      map.putDouble("perSecond", span <= 0 ? 0 : (count - 1) * 1e9 / span);
+      return map;
+    }
+  }
+
+  public static void setEnabled(final boolean enabled) {
+    sEnabled = enabled;
+  }
+
+  public static boolean isEnabled() {
+    return sEnabled;
+  }
+
+  /**
+   * Returns a start mark for stop(), or 0 when timing is disabled.
+   */
+  public static long start() {
+    return sEnabled ? System.nanoTime() : 0;
+  }
+
+  public static void stop(final String name, final long start) {
+    if (start == 0) {
+      return;
+    }
+    long now = System.nanoTime();
+    synchronized (sTimers) {
+      Timer timer = sTimers.get(name);
+      if (timer == null) {
+        timer = new Timer();
+        sTimers.put(name, timer);
+      }
+      timer.record(now - start, now);
+    }
+  }
+
+  public static void increment(final String name) {
+    add(name, 1);
+  }
+
+  public static void add(final String name, final long delta) {
+    synchronized (sCounters) {
+      long[] counter = sCounters.get(name);
+      if (counter == null) {
+        counter = new long[1];
+        sCounters.put(name, counter);
+      }
+      counter[0] += delta;
+    }
+  }
+
+  public static long get(final String name) {
+    synchronized (sCounters) {
+      long[] counter = sCounters.get(name);
+      return counter == null ? 0 : counter[0];
+    }
+  }
+
+  public static WritableMap toMap() {
+    WritableMap timers = Arguments.createMap();
+    synchronized (sTimers) {
+      for (Map.Entry<String, Timer> entry : sTimers.entrySet()) {
+        timers.putMap(entry.getKey(), entry.getValue().toMap());
+      }
+    }
+
+    WritableMap counters = Arguments.createMap();
+    synchronized (sCounters) {
+      for (Map.Entry<String, long[]> entry : sCounters.entrySet()) {
+        counters.putDouble(entry.getKey(), entry.getValue()[0]);
+      }
+    }
+
+    WritableMap metrics = Arguments.createMap();
+    metrics.putBoolean("enabled", sEnabled);
+    metrics.putMap("timers", timers);
+    metrics.putMap("counters", counters);
+    return metrics;
+  }
+
+  public static void reset() {
+    synchronized (sTimers) {
+      sTimers.clear();
+    }
+    synchronized (sCounters) {
+      sCounters.clear();
+    }
+  }
+
+  private static double toMillis(final long nanos) {
+    return nanos / 1e6;
+  }
+
+  private static double percentile(final long[] sorted, final double p) {
+    if (sorted.length == 0) {
+      return 0;
+    }
+    int index = (int) Math.ceil(p * sorted.length) - 1;
+    return toMillis(sorted[Math.max(0, Math.min(index, sorted.length - 1))]);
+  }
+}
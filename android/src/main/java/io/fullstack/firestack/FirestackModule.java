@@ -32,12 +32,16 @@ class FirestackModule extends ReactContextBaseJavaModule implements LifecycleEve
   private static final String TAG = "Firestack";
   private Context context;
   private ReactContext mReactContext;
+  private FirestackEventDispatcher mEventDispatcher;
   private FirebaseApp app;
 
-  public FirestackModule(ReactApplicationContext reactContext, Context context) {
+  public FirestackModule(ReactApplicationContext reactContext,
+                         Context context,
+                         FirestackEventDispatcher eventDispatcher) {
     super(reactContext);
     this.context = context;
     mReactContext = reactContext;
+    mEventDispatcher = eventDispatcher;
 
     Log.d(TAG, "New instance");
   }
@@ -189,6 +193,55 @@ class FirestackModule extends ReactContextBaseJavaModule implements LifecycleEve
     onComplete.invoke(null, map);
   }
 
+  // Events
+  @ReactMethod
+  public void setEventBatching(final String eventName,
+                               final double windowMs,
+                               final int maxEvents,
+                               final Callback callback) {
+    if (!mEventDispatcher.setBatching(eventName, (long) windowMs, maxEvents)) {
+      WritableMap err = Arguments.createMap();
+      err.putString("description", "Events " + eventName + " can't be batched");
+      callback.invoke(err);
+      return;
+    }
+
+    WritableMap res = Arguments.createMap();
+    res.putString("status", "success");
+    res.putString("eventName", eventName);
+    callback.invoke(null, res);
+  }
+
+  @ReactMethod
+  public void getEventStats(final Callback callback) {
+    callback.invoke(null, mEventDispatcher.getStats());
+  }
+
+  // Metrics
+  @ReactMethod
+  public void setMetricsEnabled(final Boolean enabled, final Callback callback) {
+    FirestackMetrics.setEnabled(enabled);
+
+    WritableMap res = Arguments.createMap();
+    res.putString("status", "success");
+    res.putBoolean("enabled", enabled);
+    callback.invoke(null, res);
+  }
+
+  @ReactMethod
+  public void getMetrics(final Callback callback) {
+    callback.invoke(null, FirestackMetrics.toMap());
+  }
+
+  @ReactMethod
+  public void resetMetrics(final Callback callback) {
+    FirestackMetrics.reset();
+
+    WritableMap res = Arguments.createMap();
+    res.putString("status", "success");
+    callback.invoke(null, res);
+  }
+
     // Internal helpers
     @Override
     public void onHostResume() {
@@ -0,0 +1,233 @@
+package io.fullstack.firestack;
+
+import android.util.Base64;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Map;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableMap;
+
+import com.google.firebase.database.DataSnapshot;
+
+/**
+ * MessagePack encoding of a snapshot value for the `format:binary` option.
+ *
+ * The whole value is written into one byte array and sent as a single
+ * base64 string, instead of one WritableMap call per field. The top level
+ * is a map of `value` and `childKeys` (child order is not kept by object
+ * keys in javascript); lib/utils/msgpack.js decodes it.
+ */
+class FirestackMsgPackEncoder {
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private byte[] mBuffer = new byte[1024];
+  private int mLength = 0;
+  private long mNodes = 0;
+
+  /**
+   * The `snapshot` payload with its value and child keys in `data`.
+   */
+  public static WritableMap snapshotToMap(final DataSnapshot snapshot, final FirestackProjection projection) {
+    Object tree = projection == null ? null : projection.project(snapshot);
+    long childrenCount = projection == null
+      ? snapshot.getChildrenCount()
+      : (tree instanceof Map ? ((Map<?, ?>) tree).size() : 0);
+    Object priority = snapshot.getPriority();
+
+    WritableMap data = Arguments.createMap();
+    data.putString("key", snapshot.getKey());
+    data.putBoolean("exists", snapshot.exists());
+    data.putBoolean("hasChildren", childrenCount > 0);
+    data.putDouble("childrenCount", childrenCount);
+    data.putString("priority", priority == null ? null : priority.toString());
+    data.putString("encoding", "msgpack");
+    data.putString("data", projection == null
+      ? encodeSnapshot(snapshot, null, false)
+      : encodeSnapshot(snapshot, tree, true));
+    return data;
+  }
+
+  private static String encodeSnapshot(final DataSnapshot snapshot, final Object tree, final boolean projected) {
+    long start = FirestackMetrics.start();
+    FirestackMsgPackEncoder encoder = new FirestackMsgPackEncoder();
+
+    if (projected) {
+      encoder.writeTreePayload(tree);
+    } else {
+      encoder.writeMapHeader(2);
+      encoder.writeString("value");
+      encoder.writeSnapshot(snapshot);
+      encoder.writeString("childKeys");
+      encoder.writeArrayHeader((int) snapshot.getChildrenCount());
+      for (DataSnapshot child : snapshot.getChildren()) {
+        encoder.writeString(child.getKey());
+      }
+    }
+
+    String data = Base64.encodeToString(encoder.mBuffer, 0, encoder.mLength, Base64.NO_WRAP);
+    FirestackMetrics.add("serializer.binaryBytes", encoder.mLength);
+    FirestackMetrics.add("serializer.binaryNodes", encoder.mNodes);
+    FirestackMetrics.stop("serializer.binary", start);
+    return data;
+  }
+
+  /**
+   * The `data` payload for a plain java tree (see
+   * FirestackSnapshotSerializer.toTree), e.g. one chunk of a chunked read.
+   */
+  public static String treeToData(final Object tree) {
+    return encodeSnapshot(null, tree, true);
+  }
+
+  /**
+   * The unencoded bytes of the `data` payload for a plain java tree (see
+   * FirestackSnapshotSerializer.toTree).
+   */
+  static byte[] encodeTree(final Object tree) {
+    FirestackMsgPackEncoder encoder = new FirestackMsgPackEncoder();
+    encoder.writeTreePayload(tree);
+    return Arrays.copyOf(encoder.mBuffer, encoder.mLength);
+  }
+
+  private void writeTreePayload(final Object tree) {
+    this.writeMapHeader(2);
+    this.writeString("value");
+    this.writeTree(tree);
+    this.writeString("childKeys");
+    this.writeKeys(tree);
+  }
+
+  private void writeSnapshot(final DataSnapshot snapshot) {
+    if (!snapshot.hasChildren()) {
+      this.writeLeaf(snapshot.getValue());
+      return;
+    }
+    this.writeMapHeader((int) snapshot.getChildrenCount());
+    for (DataSnapshot child : snapshot.getChildren()) {
+      this.writeString(child.getKey());
+      this.writeSnapshot(child);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private void writeTree(final Object tree) {
+    if (!(tree instanceof Map)) {
+      this.writeLeaf(tree);
+      return;
+    }
+    Map<String, Object> map = (Map<String, Object>) tree;
+    this.writeMapHeader(map.size());
+    for (Map.Entry<String, Object> entry : map.entrySet()) {
+      this.writeString(entry.getKey());
+      this.writeTree(entry.getValue());
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private void writeKeys(final Object tree) {
+    if (!(tree instanceof Map)) {
+      this.writeArrayHeader(0);
+      return;
+    }
+    Map<String, Object> map = (Map<String, Object>) tree;
+    this.writeArrayHeader(map.size());
+    for (String key : map.keySet()) {
+      this.writeString(key);
+    }
+  }
+
+  private void writeLeaf(final Object value) {
+    mNodes++;
+    if (value == null) {
+      this.put(0xc0);
+    } else if (value instanceof Boolean) {
+      this.put((Boolean) value ? 0xc3 : 0xc2);
+    } else if (value instanceof Long || value instanceof Integer) {
+      this.writeLong(((Number) value).longValue());
+    } else if (value instanceof Number) {
+      this.put(0xcb);
+      this.putLong(Double.doubleToLongBits(((Number) value).doubleValue()), 8);
+    } else {
+      this.writeString(value.toString());
+    }
+  }
+
+  private void writeLong(final long value) {
+    if (value >= 0 && value < 128) {
+      this.put((int) value);
+    } else if (value < 0 && value >= -32) {
+      this.put((int) (value & 0xff));
+    } else if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+      this.put(0xd2);
+      this.putLong(value, 4);
+    } else {
+      this.put(0xd3);
+      this.putLong(value, 8);
+    }
+  }
+
+  private void writeString(final String value) {
+    byte[] utf8 = value.getBytes(UTF8);
+    int length = utf8.length;
+    if (length < 32) {
+      this.put(0xa0 | length);
+    } else if (length < 0x100) {
+      this.put(0xd9);
+      this.put(length);
+    } else if (length < 0x10000) {
+      this.put(0xda);
+      this.putLong(length, 2);
+    } else {
+      this.put(0xdb);
+      this.putLong(length, 4);
+    }
+    this.ensure(length);
+    System.arraycopy(utf8, 0, mBuffer, mLength, length);
+    mLength += length;
+  }
+
+  private void writeMapHeader(final int size) {
+    mNodes++;
+    if (size < 16) {
+      this.put(0x80 | size);
+    } else if (size < 0x10000) {
+      this.put(0xde);
+      this.putLong(size, 2);
+    } else {
+      this.put(0xdf);
+      this.putLong(size, 4);
+    }
+  }
+
+  private void writeArrayHeader(final int size) {
+    if (size < 16) {
+      this.put(0x90 | size);
+    } else if (size < 0x10000) {
+      this.put(0xdc);
+      this.putLong(size, 2);
+    } else {
+      this.put(0xdd);
+      this.putLong(size, 4);
+    }
+  }
+
+  private void put(final int b) {
+    this.ensure(1);
+    mBuffer[mLength++] = (byte) b;
+  }
+
+  private void putLong(final long value, final int bytes) {
+    this.ensure(bytes);
+    for (int i = bytes - 1; i >= 0; i--) {
+      mBuffer[mLength++] = (byte) (value >>> (i * 8));
+    }
+  }
+
+  private void ensure(final int extra) {
+    if (mLength + extra > mBuffer.length) {
+      mBuffer = Arrays.copyOf(mBuffer, Math.max(mBuffer.length * 2, mLength + extra));
+    }
+  }
+}
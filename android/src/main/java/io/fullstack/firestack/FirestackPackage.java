@@ -24,13 +24,14 @@ public class FirestackPackage implements ReactPackage {
     @Override
     public List<NativeModule> createNativeModules(ReactApplicationContext reactContext) {
         List<NativeModule> modules = new ArrayList<>();
+        FirestackEventDispatcher eventDispatcher = new FirestackEventDispatcher(reactContext);
 
-        modules.add(new FirestackModule(reactContext, reactContext.getBaseContext()));
+        modules.add(new FirestackModule(reactContext, reactContext.getBaseContext(), eventDispatcher));
         modules.add(new FirestackAuthModule(reactContext));
-        modules.add(new FirestackDatabaseModule(reactContext));
+        modules.add(new FirestackDatabaseModule(reactContext, eventDispatcher));
         modules.add(new FirestackAnalyticsModule(reactContext));
-        modules.add(new FirestackStorageModule(reactContext));
-        modules.add(new FirestackCloudMessaging(reactContext));
+        modules.add(new FirestackStorageModule(reactContext, eventDispatcher));
+        modules.add(new FirestackCloudMessaging(reactContext, eventDispatcher));
         return modules;
     }
 
@@ -0,0 +1,57 @@
+package io.fullstack.firestack;
+
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Per task rate limit for transfer progress events.
+ *
+ * An update is let through when at least `intervalMs` have passed since the
+ * last one for the task and the percentage moved by at least `minPercent`.
+ * The first update and the one that completes the transfer always go out.
+ */
+class FirestackProgressThrottle {
+  private static final long DEFAULT_INTERVAL_MS = 250;
+  private static final double DEFAULT_MIN_PERCENT = 1.0;
+
+  private static class State {
+    long emittedAt;
+    double percent;
+  }
+
+  private final Map<String, State> mStates = new HashMap<String, State>();
+  private long mIntervalMs = DEFAULT_INTERVAL_MS;
+  private double mMinPercent = DEFAULT_MIN_PERCENT;
+
+  public synchronized void configure(final long intervalMs, final double minPercent) {
+    mIntervalMs = Math.max(0, intervalMs);
+    mMinPercent = Math.max(0, minPercent);
+  }
+
+  public synchronized boolean shouldEmit(final String taskId, final long bytesTransferred, final long totalBytes) {
+    long now = SystemClock.elapsedRealtime();
+    double percent = totalBytes > 0 ? (100.0 * bytesTransferred) / totalBytes : 0;
+
+    State state = mStates.get(taskId);
+    if (state == null) {
+      state = new State();
+      mStates.put(taskId, state);
+    } else {
+      boolean done = totalBytes > 0 && bytesTransferred >= totalBytes;
+      if (!done && (now - state.emittedAt < mIntervalMs || percent - state.percent < mMinPercent)) {
+        FirestackMetrics.increment("storage.progressThrottled");
+        return false;
+      }
+    }
+
+    state.emittedAt = now;
+    state.percent = percent;
+    return true;
+  }
+
+  public synchronized void forget(final String taskId) {
+    mStates.remove(taskId);
+  }
+}
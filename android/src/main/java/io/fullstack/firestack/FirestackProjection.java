@@ -0,0 +1,263 @@
+package io.fullstack.firestack;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+import com.google.firebase.database.DataSnapshot;
+
+/**
+ * Field mask for the value sent over the bridge, built from the `select`,
+ * `maxDepth` and `shallow` query options.
+ *
+ * `select` is a `:` separated list of child paths relative to the delivered
+ * snapshot, e.g. `select:title:updatedAt` for a child event. A `*` segment
+ * matches any key, so a value listener on a list selects the same fields
+ * with a leading `*` segment. Named children are looked up directly, so
+ * unselected subtrees are never walked. `maxDepth` limits how many levels below a selected node (or the
+ * root, without `select`) are serialized; deeper objects are sent as
+ * `true`, like the REST api's shallow reads.
+ *
+ * `shallow[:N]` is for list screens that only need keys and counts: the
+ * children are listed with `true` as their value and nothing below them is
+ * read, or with N levels of their values when N is given.
+ *
+ * Counts and child keys describe the projected value, not the snapshot.
+ * Select paths Firebase could never match (keys with `. # $ [ ]` or
+ * control characters) throw IllegalArgumentException when the plan is built.
+ */
+class FirestackProjection {
+  private static final Object MISSING = new Object();
+
+  private static class Node {
+    final Map<String, Node> children = new LinkedHashMap<String, Node>();
+    Node wildcard;
+    boolean terminal;
+
+    Node child(final String key) {
+      if (key.equals("*")) {
+        if (wildcard == null) {
+          wildcard = new Node();
+        }
+        return wildcard;
+      }
+      Node node = children.get(key);
+      if (node == null) {
+        node = new Node();
+        children.put(key, node);
+      }
+      return node;
+    }
+  }
+
+  private final Node mRoot = new Node();
+  private final int mMaxDepth;
+  private final boolean mKeysOnly;
+
+  private FirestackProjection(final String select, final int maxDepth, final boolean keysOnly) {
+    mMaxDepth = maxDepth;
+    mKeysOnly = keysOnly;
+    if (select == null) {
+      mRoot.terminal = true;
+      return;
+    }
+    for (String path : select.split(":")) {
+      Node node = mRoot;
+      for (String segment : path.split("/")) {
+        if (segment.length() > 0) {
+          checkSegment(path, segment);
+          node = node.child(segment);
+        }
+      }
+      node.terminal = true;
+    }
+  }
+
+  private static void checkSegment(final String path, final String segment) {
+    for (int i = 0; i < segment.length(); i++) {
+      char c = segment.charAt(i);
+      if (c < 0x20 || c == 0x7f || ".#$[]".indexOf(c) >= 0) {
+        throw new IllegalArgumentException("Invalid select path '" + path +
+          "': keys can't contain '.', '#', '$', '[', ']' or control characters");
+      }
+    }
+  }
+
+  /**
+   * The projection for a plan's options, or null when there is nothing to cut.
+   */
+  public static FirestackProjection fromOptions(final String select,
+                                                final String maxDepth,
+                                                final boolean shallow,
+                                                final String shallowDepth) {
+    boolean hasSelect = select != null && select.length() > 0;
+    int depth = parseDepth(maxDepth);
+    if (shallow) {
+      int levels = Math.max(0, parseDepth(shallowDepth));
+      if (levels == 0 && !hasSelect) {
+        return new FirestackProjection(null, -1, true);
+      }
+      // depth counts the root's own level, the N levels are below each child
+      depth = depth < 0 ? levels + 1 : Math.min(depth, levels + 1);
+    }
+    if (!hasSelect && depth < 0) {
+      return null;
+    }
+    return new FirestackProjection(hasSelect ? select : null, depth, false);
+  }
+
+  private static int parseDepth(final String depth) {
+    if (depth == null) {
+      return -1;
+    }
+    try {
+      return Integer.parseInt(depth);
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * The projected value tree, in the form of FirestackSnapshotSerializer.toTree().
+   */
+  public Object project(final DataSnapshot snapshot) {
+    if (mKeysOnly) {
+      return keysOf(snapshot);
+    }
+    Object tree = project(snapshot, mRoot);
+    return tree == MISSING ? null : tree;
+  }
+
+  /**
+   * The projected value of one child of the delivered snapshot, as it would
+   * appear in project(), or null when the projection leaves it out. Lets a
+   * chunked read project a child at a time.
+   */
+  public Object projectChild(final DataSnapshot child) {
+    if (mKeysOnly) {
+      return Boolean.TRUE;
+    }
+    Object value;
+    if (mRoot.terminal) {
+      value = limitedTree(child, mMaxDepth < 0 ? -1 : Math.max(0, mMaxDepth - 1));
+    } else {
+      value = mRoot.wildcard == null ? MISSING : project(child, mRoot.wildcard);
+      Node explicit = mRoot.children.get(child.getKey());
+      if (explicit != null) {
+        value = merge(value, project(child, explicit));
+      }
+    }
+    return value == MISSING ? null : value;
+  }
+
+  public WritableMap snapshotToMap(final DataSnapshot snapshot) {
+    long start = FirestackMetrics.start();
+    Object tree = this.project(snapshot);
+
+    WritableMap data = Arguments.createMap();
+    WritableArray childKeys = Arguments.createArray();
+    int childrenCount = 0;
+    if (tree instanceof Map) {
+      for (Object key : ((Map<?, ?>) tree).keySet()) {
+        childKeys.pushString((String) key);
+        childrenCount++;
+      }
+    }
+
+    data.putString("key", snapshot.getKey());
+    data.putBoolean("exists", snapshot.exists());
+    data.putBoolean("hasChildren", childrenCount > 0);
+    data.putDouble("childrenCount", childrenCount);
+    FirestackSnapshotSerializer.putTree(data, "value", tree);
+    data.putArray("childKeys", childKeys);
+
+    Object priority = snapshot.getPriority();
+    data.putString("priority", priority == null ? null : priority.toString());
+    FirestackMetrics.stop("serializer.projection", start);
+    return data;
+  }
+
+  private Object project(final DataSnapshot snapshot, final Node node) {
+    if (node.terminal) {
+      return limitedTree(snapshot, mMaxDepth);
+    }
+    if (!snapshot.hasChildren()) {
+      return MISSING;
+    }
+
+    Map<String, Object> out = new LinkedHashMap<String, Object>();
+    if (node.wildcard != null) {
+      for (DataSnapshot child : snapshot.getChildren()) {
+        String key = child.getKey();
+        Object value = project(child, node.wildcard);
+        Node explicit = node.children.get(key);
+        if (explicit != null) {
+          value = merge(value, project(child, explicit));
+        }
+        if (value != MISSING) {
+          out.put(key, value);
+        }
+      }
+    } else {
+      for (Map.Entry<String, Node> entry : node.children.entrySet()) {
+        DataSnapshot child = snapshot.child(entry.getKey());
+        if (child == null || !child.exists()) {
+          continue;
+        }
+        Object value = project(child, entry.getValue());
+        if (value != MISSING) {
+          out.put(entry.getKey(), value);
+        }
+      }
+    }
+    return out.isEmpty() ? MISSING : out;
+  }
+
+  private static Object keysOf(final DataSnapshot snapshot) {
+    if (!snapshot.hasChildren()) {
+      return snapshot.getValue();
+    }
+    Map<String, Object> keys = new LinkedHashMap<String, Object>();
+    for (DataSnapshot child : snapshot.getChildren()) {
+      keys.put(child.getKey(), Boolean.TRUE);
+    }
+    return keys;
+  }
+
+  private static Object limitedTree(final DataSnapshot snapshot, final int depth) {
+    if (!snapshot.hasChildren()) {
+      return snapshot.getValue();
+    }
+    if (depth < 0) {
+      return FirestackSnapshotSerializer.toTree(snapshot);
+    }
+    if (depth == 0) {
+      return Boolean.TRUE;
+    }
+
+    Map<String, Object> children = new LinkedHashMap<String, Object>();
+    for (DataSnapshot child : snapshot.getChildren()) {
+      children.put(child.getKey(), limitedTree(child, depth - 1));
+    }
+    return children;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Object merge(final Object a, final Object b) {
+    if (a == MISSING) {
+      return b;
+    }
+    if (b == MISSING || !(a instanceof Map) || !(b instanceof Map)) {
+      return b == MISSING ? a : b;
+    }
+    Map<String, Object> merged = (Map<String, Object>) a;
+    for (Map.Entry<String, Object> entry : ((Map<String, Object>) b).entrySet()) {
+      Object existing = merged.get(entry.getKey());
+      merged.put(entry.getKey(), existing == null ? entry.getValue() : merge(existing, entry.getValue()));
+    }
+    return merged;
+  }
+}
@@ -0,0 +1,401 @@
+package io.fullstack.firestack;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.bridge.ReadableType;
+
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.Query;
+
+/**
+ * Compiled, immutable form of the modifier list javascript sends with
+ * on() and onOnce().
+ *
+ * Modifiers are either the legacy `name:arg:arg` strings or typed arrays
+ * such as `["startAt", 5, "key"]`, which keep numbers and booleans as they
+ * are instead of turning them into strings. Plans are kept in a small LRU
+ * cache keyed by the raw modifier list, so a repeated query only has its
+ * entries read, not parsed again.
+ *
+ * Anything that is not a query method (orderBy*, limitTo*, startAt, endAt,
+ * equalTo) is kept as an option, e.g. `diff` or `select`, for the
+ * serialization side.
+ *
+ * Range values are checked against the ordering when the plan is compiled,
+ * since Firebase throws for a mismatch only once the query is built: with
+ * key ordering they are turned into key strings, and a boolean can't be a
+ * priority, so compile() throws an IllegalArgumentException for it.
+ */
+class FirestackQueryPlan {
+  private static final String TAG = "FirestackQueryPlan";
+  private static final int CACHE_SIZE = 64;
+
+  private static final Map<String, FirestackQueryPlan> sCache =
+    new LinkedHashMap<String, FirestackQueryPlan>(CACHE_SIZE, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, FirestackQueryPlan> eldest) {
+        return size() > CACHE_SIZE;
+      }
+    };
+
+  private static final FirestackQueryPlan EMPTY =
+    new FirestackQueryPlan("orderByKey", null, Collections.<Step>emptyList(), new TreeMap<String, String>());
+
+  private static class Step implements Comparable<Step> {
+    final String method;
+    final Object value;
+    final String key;
+
+    Step(final String method, final Object value, final String key) {
+      this.method = method;
+      this.value = value;
+      this.key = key;
+    }
+
+    @Override
+    public int compareTo(final Step other) {
+      return this.toString().compareTo(other.toString());
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder sb = new StringBuilder(method).append(':');
+      if (value instanceof String) {
+        sb.append('\'').append(value).append('\'');
+      } else {
+        sb.append(value);
+      }
+      if (key != null) {
+        sb.append(':').append(key);
+      }
+      return sb.toString();
+    }
+  }
+
+  private final String mOrderBy;
+  private final String mOrderByChild;
+  private final List<Step> mSteps;
+  private final Map<String, String> mOptions;
+  private final String mSignature;
+  private final FirestackProjection mProjection;
+
+  private FirestackQueryPlan(final String orderBy,
+                             final String orderByChild,
+                             final List<Step> steps,
+                             final Map<String, String> options) {
+    mOrderBy = orderBy;
+    mOrderByChild = orderByChild;
+    mSteps = steps;
+    mOptions = options;
+
+    StringBuilder sb = new StringBuilder(orderBy);
+    if (orderByChild != null) {
+      sb.append(':').append(orderByChild);
+    }
+    for (Step step : steps) {
+      sb.append('|').append(step);
+    }
+    for (Map.Entry<String, String> option : options.entrySet()) {
+      sb.append('|').append(option.getKey());
+      if (option.getValue() != null) {
+        sb.append(':').append(option.getValue());
+      }
+    }
+    mSignature = sb.toString();
+    mProjection = FirestackProjection.fromOptions(
+      options.get("select"), options.get("maxDepth"), options.containsKey("shallow"), options.get("shallow"));
+  }
+
+  /**
+   * Throws IllegalArgumentException for modifiers Firebase would reject.
+   */
+  public static FirestackQueryPlan compile(final ReadableArray modifiers) {
+    if (modifiers == null || modifiers.size() == 0) {
+      return EMPTY;
+    }
+
+    long start = FirestackMetrics.start();
+    String cacheKey = cacheKey(modifiers);
+    synchronized (sCache) {
+      FirestackQueryPlan cached = sCache.get(cacheKey);
+      if (cached != null) {
+        FirestackMetrics.stop("queryPlan.cached", start);
+        return cached;
+      }
+    }
+
+    FirestackQueryPlan plan = parse(modifiers);
+    synchronized (sCache) {
+      sCache.put(cacheKey, plan);
+    }
+    FirestackMetrics.stop("queryPlan.compile", start);
+    return plan;
+  }
+
+  /**
+   * Canonical form of the plan. Anything before the last orderBy is dropped
+   * and limits, filters and options are sorted, so equivalent modifier lists
+   * share a signature.
+   */
+  public String getSignature() {
+    return mSignature;
+  }
+
+  public String getOrderBy() {
+    return mOrderBy;
+  }
+
+  public String getOrderByChild() {
+    return mOrderByChild;
+  }
+
+  /**
+   * Field mask from the `select`, `maxDepth` and `shallow` options, or null.
+   */
+  public FirestackProjection getProjection() {
+    return mProjection;
+  }
+
+  public boolean hasOption(final String name) {
+    return mOptions.containsKey(name);
+  }
+
+  public String getOption(final String name) {
+    return mOptions.get(name);
+  }
+
+  public Query buildQuery(final DatabaseReference ref) {
+    Query query = this.orderedQuery(ref);
+    for (Step step : mSteps) {
+      if (step.method.equals("limitToLast")) {
+        query = query.limitToLast(((Number) step.value).intValue());
+      } else if (step.method.equals("limitToFirst")) {
+        query = query.limitToFirst(((Number) step.value).intValue());
+      } else {
+        query = applyFilter(query, step.method, step.value, step.key);
+      }
+    }
+    return query;
+  }
+
+  /**
+   * The query without its limits, for a cursor that sets its own. When the
+   * cursor also sets `ownBound` (startAt or endAt), the plan's bound of that
+   * kind is left out, and an equalTo becomes the opposite bound, so pages
+   * stay within the plan's range.
+   */
+  public Query buildPagedQuery(final DatabaseReference ref, final String ownBound) {
+    Query query = this.orderedQuery(ref);
+    for (Step step : mSteps) {
+      if (step.method.startsWith("limitTo") || step.method.equals(ownBound)) {
+        continue;
+      }
+      String method = step.method;
+      if (ownBound != null && method.equals("equalTo")) {
+        method = ownBound.equals("startAt") ? "endAt" : "startAt";
+      }
+      query = applyFilter(query, method, step.value, step.key);
+    }
+    return query;
+  }
+
+  private Query orderedQuery(final DatabaseReference ref) {
+    Query query;
+    if (mOrderBy.equals("orderByValue")) {
+      query = ref.orderByValue();
+    } else if (mOrderBy.equals("orderByPriority")) {
+      query = ref.orderByPriority();
+    } else if (mOrderBy.equals("orderByChild")) {
+      query = ref.orderByChild(mOrderByChild);
+    } else {
+      query = ref.orderByKey();
+    }
+    return query;
+  }
+
+  /**
+   * Applies startAt, endAt or equalTo with a value as Firebase returns it:
+   * a String, Number, Boolean or null. The value must fit the ordering of
+   * `query`, see rangeValue().
+   */
+  public static Query applyFilter(final Query query, final String method, final Object value, final String key) {
+    if (value instanceof Number) {
+      return applyFilter(query, method, ((Number) value).doubleValue(), key);
+    } else if (value instanceof Boolean) {
+      return applyFilter(query, method, ((Boolean) value).booleanValue(), key);
+    }
+    return applyFilter(query, method, (String) value, key);
+  }
+
+  private static Query applyFilter(final Query query, final String method, final String value, final String key) {
+    if (method.equals("startAt")) {
+      return key == null ? query.startAt(value) : query.startAt(value, key);
+    } else if (method.equals("endAt")) {
+      return key == null ? query.endAt(value) : query.endAt(value, key);
+    }
+    return key == null ? query.equalTo(value) : query.equalTo(value, key);
+  }
+
+  private static Query applyFilter(final Query query, final String method, final double value, final String key) {
+    if (method.equals("startAt")) {
+      return key == null ? query.startAt(value) : query.startAt(value, key);
+    } else if (method.equals("endAt")) {
+      return key == null ? query.endAt(value) : query.endAt(value, key);
+    }
+    return key == null ? query.equalTo(value) : query.equalTo(value, key);
+  }
+
+  private static Query applyFilter(final Query query, final String method, final boolean value, final String key) {
+    if (method.equals("startAt")) {
+      return key == null ? query.startAt(value) : query.startAt(value, key);
+    } else if (method.equals("endAt")) {
+      return key == null ? query.endAt(value) : query.endAt(value, key);
+    }
+    return key == null ? query.equalTo(value) : query.equalTo(value, key);
+  }
+
+  private static String cacheKey(final ReadableArray modifiers) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < modifiers.size(); i++) {
+      if (i > 0) {
+        sb.append('\u001f');
+      }
+      if (modifiers.getType(i) == ReadableType.Array) {
+        // typed entries get a prefix so they can't collide with a legacy string
+        ReadableArray entry = modifiers.getArray(i);
+        sb.append('\u001e');
+        for (int j = 0; j < entry.size(); j++) {
+          switch (entry.getType(j)) {
+            case Number:
+              sb.append('n').append(entry.getDouble(j));
+              break;
+            case Boolean:
+              sb.append('b').append(entry.getBoolean(j));
+              break;
+            case String:
+              sb.append('s').append(entry.getString(j));
+              break;
+            default:
+              sb.append('0');
+              break;
+          }
+          sb.append('\u001e');
+        }
+      } else {
+        sb.append(modifiers.getString(i));
+      }
+    }
+    return sb.toString();
+  }
+
+  private static FirestackQueryPlan parse(final ReadableArray modifiers) {
+    String orderBy = "orderByKey";
+    String orderByChild = null;
+    List<Step> steps = new ArrayList<Step>();
+    Map<String, String> options = new TreeMap<String, String>();
+
+    for (int i = 0; i < modifiers.size(); i++) {
+      String method;
+      Object value = null;
+      String key = null;
+      String args = null;
+
+      if (modifiers.getType(i) == ReadableType.Array) {
+        ReadableArray entry = modifiers.getArray(i);
+        if (entry.size() == 0) {
+          continue;
+        }
+        method = entry.getString(0);
+        if (entry.size() > 1) {
+          value = typedValue(entry, 1);
+          args = String.valueOf(value);
+        }
+        if (entry.size() > 2 && entry.getType(2) == ReadableType.String) {
+          key = entry.getString(2);
+        }
+      } else {
+        String str = modifiers.getString(i).trim();
+        if (str.length() == 0) {
+          continue;
+        }
+        int sep = str.indexOf(':');
+        method = sep < 0 ? str : str.substring(0, sep);
+        args = sep < 0 ? null : str.substring(sep + 1);
+        if (args != null) {
+          String[] parts = args.split(":");
+          value = parts[0];
+          key = parts.length >= 2 ? parts[1] : null;
+        }
+      }
+
+      if (method.startsWith("orderBy")) {
+        // the query restarts from the reference on every orderBy
+        orderBy = method;
+        orderByChild = method.equals("orderByChild") ? String.valueOf(value) : null;
+        steps.clear();
+      } else if (method.equals("limitToLast") || method.equals("limitToFirst")) {
+        int limit = value instanceof Double ? ((Double) value).intValue() : Integer.parseInt((String) value);
+        steps.add(new Step(method, limit, null));
+      } else if (method.equals("startAt") || method.equals("endAt") || method.equals("equalTo")) {
+        if (value != null) {
+          steps.add(new Step(method, value, key));
+        }
+      } else {
+        options.put(method, args);
+      }
+    }
+
+    for (int i = 0; i < steps.size(); i++) {
+      Step step = steps.get(i);
+      if (!step.method.startsWith("limitTo")) {
+        // key ordering takes no second argument
+        String key = orderBy.equals("orderByKey") ? null : step.key;
+        steps.set(i, new Step(step.method, rangeValue(orderBy, step.method, step.value), key));
+      }
+    }
+    Collections.sort(steps);
+    FirestackQueryPlan plan = new FirestackQueryPlan(orderBy, orderByChild, steps, options);
+    Log.d(TAG, "Compiled query plan " + plan.getSignature());
+    return plan;
+  }
+
+  /**
+   * The value a range method takes under `orderBy`. Key ordering only takes
+   * a key, so numbers and booleans become the key they spell; priorities are
+   * numbers or strings only.
+   */
+  public static Object rangeValue(final String orderBy, final String method, final Object value) {
+    if (orderBy.equals("orderByKey")) {
+      if (value instanceof Double && !((Double) value).isInfinite() && (Double) value == Math.rint((Double) value)) {
+        return String.valueOf(((Double) value).longValue());
+      }
+      return value == null ? null : String.valueOf(value);
+    }
+    if (orderBy.equals("orderByPriority") && value instanceof Boolean) {
+      throw new IllegalArgumentException(
+        method + "(" + value + ") with orderByPriority: a priority is a number or a string");
+    }
+    return value;
+  }
+
+  private static Object typedValue(final ReadableArray entry, final int index) {
+    switch (entry.getType(index)) {
+      case Number:
+        return entry.getDouble(index);
+      case Boolean:
+        return entry.getBoolean(index);
+      case String:
+        return entry.getString(index);
+      default:
+        return null;
+    }
+  }
+}
@@ -0,0 +1,240 @@
+package io.fullstack.firestack;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableMap;
+
+/**
+ * Runs snapshot serialization off the thread Firebase delivers callbacks on.
+ *
+ * Every handle has a mailbox of pending tasks that at most one thread drains
+ * at a time, so events for one listener are serialized and emitted in the
+ * order Firebase delivered them, whatever the pool size. The pool only ever
+ * queues mailboxes, one entry per handle with work, so its queue is
+ * unbounded and execute() neither waits nor converts on the calling thread
+ * (the Firebase main thread) when the pool is busy. A mailbox backed up
+ * with full values keeps only the newest (see execute()).
+ */
+class FirestackSerializationExecutor {
+  private static final String TAG = "FirestackSerializer";
+  private static final int DEFAULT_THREADS = 2;
+  // tasks a drainer runs before letting other handles have the thread
+  private static final int DRAIN_BATCH = 32;
+
+  /**
+   * A task that makes any earlier superseding one of its handle redundant.
+   */
+  private static class Superseding implements Runnable {
+    final Runnable task;
+
+    Superseding(final Runnable task) {
+      this.task = task;
+    }
+
+    @Override
+    public void run() {
+      task.run();
+    }
+  }
+
+  private class Mailbox implements Runnable {
+    final String handle;
+    final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+    boolean scheduled = false;
+    boolean removed = false;
+
+    Mailbox(final String handle) {
+      this.handle = handle;
+    }
+
+    @Override
+    public void run() {
+      if (drain()) {
+        // more to do, go to the back of the pool queue
+        schedule(this);
+      }
+    }
+
+    /**
+     * Runs up to DRAIN_BATCH tasks; returns true if there are more.
+     */
+    boolean drain() {
+      for (int i = 0; i < DRAIN_BATCH; i++) {
+        Runnable task;
+        synchronized (this) {
+          task = tasks.poll();
+          if (task == null) {
+            scheduled = false;
+            removed = true;
+            mMailboxes.remove(handle, this);
+            return false;
+          }
+        }
+        runTask(task);
+      }
+      return true;
+    }
+  }
+
+  private final ConcurrentHashMap<String, Mailbox> mMailboxes = new ConcurrentHashMap<String, Mailbox>();
+  private final ThreadPoolExecutor mPool;
+
+  private long mTasks = 0;
+  private long mSuperseded = 0;
+  private long mTotalNanos = 0;
+  private long mMaxNanos = 0;
+  private int mMaxQueueDepth = 0;
+
+  public FirestackSerializationExecutor() {
+    mPool = new ThreadPoolExecutor(DEFAULT_THREADS, DEFAULT_THREADS, 0L, TimeUnit.MILLISECONDS,
+      new LinkedBlockingQueue<Runnable>(),
+      new ThreadFactory() {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable r) {
+          Thread thread = new Thread(r, "firestack-serializer-" + mCount.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+  }
+
+  /**
+   * Resizes the pool. Mailboxes stay as they are, so ordering per handle
+   * holds while work is in flight.
+   */
+  public synchronized void setThreads(final int threads) {
+    int size = Math.max(1, threads);
+    // the core size may never exceed the maximum, in either direction
+    if (size > mPool.getMaximumPoolSize()) {
+      mPool.setMaximumPoolSize(size);
+      mPool.setCorePoolSize(size);
+    } else {
+      mPool.setCorePoolSize(size);
+      mPool.setMaximumPoolSize(size);
+    }
+    Log.d(TAG, "Serializing on " + size + " threads");
+  }
+
+  public void execute(final String handle, final Runnable task) {
+    this.execute(handle, task, false);
+  }
+
+  /**
+   * Queues `task` behind the handle's pending work. With `supersedes` set,
+   * superseding tasks of the handle that have not started yet are dropped:
+   * converting a full value that a newer one replaces is wasted work.
+   */
+  public void execute(final String handle, final Runnable task, final boolean supersedes) {
+    if (mPool.isShutdown()) {
+      return;
+    }
+    while (true) {
+      Mailbox mailbox = mMailboxes.get(handle);
+      if (mailbox == null) {
+        Mailbox created = new Mailbox(handle);
+        mailbox = mMailboxes.putIfAbsent(handle, created);
+        if (mailbox == null) {
+          mailbox = created;
+        }
+      }
+
+      boolean schedule;
+      int depth;
+      int dropped = 0;
+      synchronized (mailbox) {
+        if (mailbox.removed) {
+          // emptied and dropped by its drainer, start a new one
+          continue;
+        }
+        if (supersedes) {
+          Iterator<Runnable> queued = mailbox.tasks.iterator();
+          while (queued.hasNext()) {
+            if (queued.next() instanceof Superseding) {
+              queued.remove();
+              dropped++;
+            }
+          }
+          mailbox.tasks.add(new Superseding(task));
+        } else {
+          mailbox.tasks.add(task);
+        }
+        depth = mailbox.tasks.size();
+        schedule = !mailbox.scheduled;
+        mailbox.scheduled = true;
+      }
+      synchronized (this) {
+        mMaxQueueDepth = Math.max(mMaxQueueDepth, depth);
+        mSuperseded += dropped;
+      }
+      if (schedule) {
+        schedule(mailbox);
+      }
+      return;
+    }
+  }
+
+  public void shutdown() {
+    mPool.shutdownNow();
+    mMailboxes.clear();
+  }
+
+  public synchronized WritableMap getStats() {
+    int depth = 0;
+    for (Mailbox mailbox : mMailboxes.values()) {
+      synchronized (mailbox) {
+        depth += mailbox.tasks.size();
+      }
+    }
+
+    WritableMap stats = Arguments.createMap();
+    stats.putInt("threads", mPool.getMaximumPoolSize());
+    stats.putInt("queueDepth", depth);
+    stats.putInt("maxQueueDepth", mMaxQueueDepth);
+    stats.putDouble("tasks", mTasks);
+    stats.putDouble("superseded", mSuperseded);
+    stats.putDouble("meanConversionMs", mTasks == 0 ? 0 : mTotalNanos / 1e6 / mTasks);
+    stats.putDouble("maxConversionMs", mMaxNanos / 1e6);
+    return stats;
+  }
+
+  private void schedule(final Mailbox mailbox) {
+    try {
+      mPool.execute(mailbox);
+    } catch (RejectedExecutionException e) {
+      // the queue is unbounded, only a shut down pool turns work away
+      Log.d(TAG, "Serializer shut down, dropping events for " + mailbox.handle);
+    }
+  }
+
+  private void runTask(final Runnable task) {
+    long start = System.nanoTime();
+    long metricsStart = FirestackMetrics.start();
+    try {
+      task.run();
+    } catch (Exception e) {
+      Log.e(TAG, "Serialization failed", e);
+    } finally {
+      FirestackMetrics.stop("serializer.executor", metricsStart);
+      recordTask(System.nanoTime() - start);
+    }
+  }
+
+  private synchronized void recordTask(final long nanos) {
+    mTasks++;
+    mTotalNanos += nanos;
+    mMaxNanos = Math.max(mMaxNanos, nanos);
+  }
+}
@@ -0,0 +1,335 @@
+package io.fullstack.firestack;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+import com.google.firebase.database.DataSnapshot;
+
+/**
+ * In-process cache of one-time read results, keyed by path and query plan
+ * signature.
+ *
+ * Entries keep the plain java tree of the snapshot (a WritableMap can only
+ * be sent once) and are evicted least recently used first once their
+ * estimated size passes the byte budget. Each entry has its own TTL, and
+ * any event from a live listener or write on an overlapping path drops it.
+ * Entries are also indexed by path, sorted so the paths below one form a
+ * contiguous range, so an invalidation only looks at the entries it drops.
+ *
+ * A read takes a generation from beginRead() before it asks Firebase; its
+ * put() is dropped if an overlapping path was invalidated in the meantime,
+ * since the value it read may predate that change. Invalidation stamps are
+ * only kept while reads are in flight.
+ */
+class FirestackSnapshotCache {
+  private static final long DEFAULT_MAX_BYTES = 2 * 1024 * 1024;
+
+  private static class Entry {
+    final String path;
+    final String key;
+    final boolean exists;
+    final String priority;
+    final Object tree;
+    final List<String> childKeys;
+    final long bytes;
+    final long expiresAt;
+
+    Entry(final String path, final DataSnapshot snapshot, final Object tree, final long ttlMs) {
+      Object priorityValue = snapshot.getPriority();
+      this.path = path;
+      this.key = snapshot.getKey();
+      this.exists = snapshot.exists();
+      this.priority = priorityValue == null ? null : priorityValue.toString();
+      this.tree = tree;
+      this.childKeys = childKeysOf(tree);
+      this.bytes = estimateBytes(tree) + estimateBytes(key) + 64;
+      this.expiresAt = SystemClock.elapsedRealtime() + ttlMs;
+    }
+  }
+
+  private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+  // normalized path -> cache keys of the entries at that path
+  private final TreeMap<String, Set<String>> mKeysByPath = new TreeMap<String, Set<String>>();
+  // normalized path -> generation of its last invalidation, while reads are in flight
+  private final Map<String, Long> mInvalidatedAt = new HashMap<String, Long>();
+  private long mGeneration = 0;
+  private int mReadsInFlight = 0;
+  private long mMaxBytes = DEFAULT_MAX_BYTES;
+  private long mBytes = 0;
+
+  private long mHits = 0;
+  private long mMisses = 0;
+  private long mEvictions = 0;
+  private long mExpirations = 0;
+  private long mInvalidations = 0;
+  private long mStalePuts = 0;
+
+  public static String cacheKey(final String path, final FirestackQueryPlan plan) {
+    return path + "[" + plan.getSignature() + "]";
+  }
+
+  public synchronized void setMaxBytes(final long maxBytes) {
+    mMaxBytes = Math.max(0, maxBytes);
+    this.trim();
+  }
+
+  /**
+   * The `snapshot` payload of a live entry, or null on a miss.
+   */
+  public synchronized WritableMap get(final String cacheKey) {
+    Entry entry = mEntries.get(cacheKey);
+    if (entry != null && entry.expiresAt <= SystemClock.elapsedRealtime()) {
+      this.removeEntry(cacheKey, entry);
+      mExpirations++;
+      entry = null;
+    }
+    if (entry == null) {
+      mMisses++;
+      return null;
+    }
+    mHits++;
+    return toSnapshotMap(entry);
+  }
+
+  /**
+   * Starts a read that may be cached; pass the generation to put(), or call
+   * endRead() if the read fails.
+   */
+  public synchronized long beginRead() {
+    mReadsInFlight++;
+    return mGeneration;
+  }
+
+  public synchronized void endRead() {
+    mReadsInFlight = Math.max(0, mReadsInFlight - 1);
+    if (mReadsInFlight == 0) {
+      mInvalidatedAt.clear();
+    }
+  }
+
+  /**
+   * Caches the result of the read started at `generation`, unless a path
+   * overlapping `path` was invalidated since.
+   */
+  public synchronized void put(final String cacheKey,
+                               final String path,
+                               final DataSnapshot snapshot,
+                               final FirestackProjection projection,
+                               final long ttlMs,
+                               final long generation) {
+    try {
+      if (this.invalidatedSince(normalize(path), generation)) {
+        mStalePuts++;
+        return;
+      }
+      Object tree = projection == null
+        ? FirestackSnapshotSerializer.toTree(snapshot)
+        : projection.project(snapshot);
+      Entry entry = new Entry(path, snapshot, tree, ttlMs);
+      Entry previous = mEntries.get(cacheKey);
+      if (previous != null) {
+        this.removeEntry(cacheKey, previous);
+      }
+      if (entry.bytes > mMaxBytes) {
+        return;
+      }
+      mEntries.put(cacheKey, entry);
+      this.index(cacheKey, entry);
+      mBytes += entry.bytes;
+      this.trim();
+    } finally {
+      this.endRead();
+    }
+  }
+
+  /**
+   * Drops every entry at, above or below `path`.
+   */
+  public synchronized void invalidate(final String path) {
+    String normalized = normalize(path);
+    if (mReadsInFlight > 0) {
+      mInvalidatedAt.put(normalized, ++mGeneration);
+    }
+    if (mEntries.isEmpty()) {
+      return;
+    }
+
+    List<String> keys = new ArrayList<String>();
+    if (normalized.length() == 0) {
+      keys.addAll(mEntries.keySet());
+    } else {
+      // at or above: one lookup per ancestor
+      for (String ancestor : ancestorsOf(normalized)) {
+        Set<String> atPath = mKeysByPath.get(ancestor);
+        if (atPath != null) {
+          keys.addAll(atPath);
+        }
+      }
+      // below: every path in ["a/b/", "a/b0")
+      for (Set<String> below : mKeysByPath.subMap(normalized + "/", normalized + "0").values()) {
+        keys.addAll(below);
+      }
+    }
+    for (String key : keys) {
+      Entry entry = mEntries.get(key);
+      if (entry != null) {
+        this.removeEntry(key, entry);
+        mInvalidations++;
+      }
+    }
+  }
+
+  public synchronized void clear() {
+    mEntries.clear();
+    mKeysByPath.clear();
+    mBytes = 0;
+  }
+
+  public synchronized WritableMap getStats() {
+    WritableMap stats = Arguments.createMap();
+    stats.putDouble("entries", mEntries.size());
+    stats.putDouble("bytes", mBytes);
+    stats.putDouble("maxBytes", mMaxBytes);
+    stats.putDouble("hits", mHits);
+    stats.putDouble("misses", mMisses);
+    stats.putDouble("evictions", mEvictions);
+    stats.putDouble("expirations", mExpirations);
+    stats.putDouble("invalidations", mInvalidations);
+    stats.putDouble("stalePuts", mStalePuts);
+    return stats;
+  }
+
+  private boolean invalidatedSince(final String normalized, final long generation) {
+    if (mInvalidatedAt.isEmpty()) {
+      return false;
+    }
+    for (Map.Entry<String, Long> stamp : mInvalidatedAt.entrySet()) {
+      if (stamp.getValue() > generation && overlaps(stamp.getKey(), normalized)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void trim() {
+    Iterator<Map.Entry<String, Entry>> it = mEntries.entrySet().iterator();
+    while (mBytes > mMaxBytes && it.hasNext()) {
+      Map.Entry<String, Entry> eldest = it.next();
+      it.remove();
+      this.unindex(eldest.getKey(), eldest.getValue());
+      mBytes -= eldest.getValue().bytes;
+      mEvictions++;
+    }
+  }
+
+  private void removeEntry(final String cacheKey, final Entry entry) {
+    mEntries.remove(cacheKey);
+    this.unindex(cacheKey, entry);
+    mBytes -= entry.bytes;
+  }
+
+  private void index(final String cacheKey, final Entry entry) {
+    String normalized = normalize(entry.path);
+    Set<String> keys = mKeysByPath.get(normalized);
+    if (keys == null) {
+      keys = new HashSet<String>();
+      mKeysByPath.put(normalized, keys);
+    }
+    keys.add(cacheKey);
+  }
+
+  private void unindex(final String cacheKey, final Entry entry) {
+    String normalized = normalize(entry.path);
+    Set<String> keys = mKeysByPath.get(normalized);
+    if (keys != null && keys.remove(cacheKey) && keys.isEmpty()) {
+      mKeysByPath.remove(normalized);
+    }
+  }
+
+  private static WritableMap toSnapshotMap(final Entry entry) {
+    WritableMap data = Arguments.createMap();
+    WritableArray childKeys = Arguments.createArray();
+    for (String key : entry.childKeys) {
+      childKeys.pushString(key);
+    }
+    data.putString("key", entry.key);
+    data.putBoolean("exists", entry.exists);
+    data.putBoolean("hasChildren", !entry.childKeys.isEmpty());
+    data.putDouble("childrenCount", entry.childKeys.size());
+    FirestackSnapshotSerializer.putTree(data, "value", entry.tree);
+    data.putArray("childKeys", childKeys);
+    data.putString("priority", entry.priority);
+    data.putBoolean("cached", true);
+    return data;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static List<String> childKeysOf(final Object tree) {
+    if (tree instanceof Map) {
+      return new ArrayList<String>(((Map<String, Object>) tree).keySet());
+    }
+    return Collections.emptyList();
+  }
+
+  /**
+   * Rough heap size of a tree built by FirestackSnapshotSerializer.toTree().
+   */
+  @SuppressWarnings("unchecked")
+  private static long estimateBytes(final Object value) {
+    if (value == null) {
+      return 0;
+    } else if (value instanceof String) {
+      return 40 + 2 * ((String) value).length();
+    } else if (value instanceof Map) {
+      long bytes = 48;
+      for (Map.Entry<String, Object> entry : ((Map<String, Object>) value).entrySet()) {
+        bytes += 40 + estimateBytes(entry.getKey()) + estimateBytes(entry.getValue());
+      }
+      return bytes;
+    }
+    return 16;
+  }
+
+  /**
+   * "a/b/c" -> "", "a", "a/b", "a/b/c".
+   */
+  private static List<String> ancestorsOf(final String normalized) {
+    List<String> ancestors = new ArrayList<String>();
+    ancestors.add("");
+    for (int i = normalized.indexOf('/'); i >= 0; i = normalized.indexOf('/', i + 1)) {
+      ancestors.add(normalized.substring(0, i));
+    }
+    ancestors.add(normalized);
+    return ancestors;
+  }
+
+  private static boolean overlaps(final String a, final String b) {
+    return a.equals(b) || a.length() == 0 || b.length() == 0 ||
+      a.startsWith(b + "/") || b.startsWith(a + "/");
+  }
+
+  private static String normalize(final String path) {
+    String normalized = path == null ? "" : path;
+    while (normalized.startsWith("/")) {
+      normalized = normalized.substring(1);
+    }
+    while (normalized.endsWith("/")) {
+      normalized = normalized.substring(0, normalized.length() - 1);
+    }
+    return normalized;
+  }
+}
@@ -0,0 +1,186 @@
+package io.fullstack.firestack;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+import com.google.firebase.database.DataSnapshot;
+
+/**
+ * Keeps the last tree emitted for a `value` listener and turns each new
+ * snapshot into a structural patch against it.
+ *
+ * Every payload carries a `seq`. Patches also carry the `baseSeq` they apply
+ * to; when javascript is not at that sequence it asks for a resync and gets
+ * the full tree again. Full trees are also sent for the first event and
+ * whenever the patch would be larger than MAX_PATCH_OPS.
+ */
+class FirestackSnapshotDiff {
+  private static final int MAX_PATCH_OPS = 256;
+  private static final Object REMOVED = new Object();
+
+  private long mSeq = 0;
+  private String mKey;
+  private boolean mExists;
+  private String mPriority;
+  private Object mLastTree;
+  private List<String> mLastChildKeys;
+
+  public synchronized WritableMap nextPayload(final String name,
+                                              final String path,
+                                              final DataSnapshot snapshot,
+                                              final FirestackProjection projection) {
+    Object tree = projection == null
+      ? FirestackSnapshotSerializer.toTree(snapshot)
+      : projection.project(snapshot);
+    List<String> childKeys = childKeysOf(tree);
+
+    List<Object[]> ops = null;
+    if (mLastTree != null) {
+      ops = new ArrayList<Object[]>();
+      if (!diff("", mLastTree, tree, ops)) {
+        ops = null;
+      }
+    }
+
+    boolean childKeysChanged = !childKeys.equals(mLastChildKeys);
+    Object priority = snapshot.getPriority();
+
+    mKey = snapshot.getKey();
+    mExists = snapshot.exists();
+    mPriority = priority == null ? null : priority.toString();
+    mLastTree = tree;
+    mLastChildKeys = childKeys;
+
+    if (ops == null) {
+      return fullPayload(name, path);
+    }
+
+    long baseSeq = mSeq++;
+    WritableMap data = Arguments.createMap();
+    WritableMap meta = this.snapshotMeta();
+    if (childKeysChanged) {
+      meta.putArray("childKeys", this.childKeysArray());
+    }
+
+    WritableArray patch = Arguments.createArray();
+    for (Object[] op : ops) {
+      WritableMap entry = Arguments.createMap();
+      entry.putString("path", (String) op[0]);
+      if (op[1] == REMOVED) {
+        entry.putString("op", "remove");
+      } else {
+        entry.putString("op", "set");
+        FirestackSnapshotSerializer.putTree(entry, "value", op[1]);
+      }
+      patch.pushMap(entry);
+    }
+
+    data.putString("eventName", name);
+    data.putString("path", path);
+    data.putMap("snapshot", meta);
+    data.putArray("patch", patch);
+    data.putDouble("seq", mSeq);
+    data.putDouble("baseSeq", baseSeq);
+    return data;
+  }
+
+  /**
+   * Full payload for the last emitted tree, or null if nothing was emitted yet.
+   */
+  public synchronized WritableMap resyncPayload(final String name, final String path) {
+    if (mLastChildKeys == null) {
+      return null;
+    }
+    return fullPayload(name, path);
+  }
+
+  private WritableMap fullPayload(final String name, final String path) {
+    WritableMap snapshot = this.snapshotMeta();
+    snapshot.putArray("childKeys", this.childKeysArray());
+    FirestackSnapshotSerializer.putTree(snapshot, "value", mLastTree);
+
+    WritableMap data = Arguments.createMap();
+    data.putString("eventName", name);
+    data.putString("path", path);
+    data.putMap("snapshot", snapshot);
+    data.putDouble("seq", ++mSeq);
+    data.putBoolean("resync", true);
+    return data;
+  }
+
+  private WritableMap snapshotMeta() {
+    WritableMap meta = Arguments.createMap();
+    meta.putString("key", mKey);
+    meta.putBoolean("exists", mExists);
+    meta.putBoolean("hasChildren", !mLastChildKeys.isEmpty());
+    meta.putDouble("childrenCount", mLastChildKeys.size());
+    meta.putString("priority", mPriority);
+    return meta;
+  }
+
+  private WritableArray childKeysArray() {
+    WritableArray keys = Arguments.createArray();
+    for (String key : mLastChildKeys) {
+      keys.pushString(key);
+    }
+    return keys;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static List<String> childKeysOf(final Object tree) {
+    if (tree instanceof Map) {
+      return new ArrayList<String>(((Map<String, Object>) tree).keySet());
+    }
+    return Collections.emptyList();
+  }
+
+  /**
+   * Appends the ops turning `before` into `after`. Returns false once the
+   * patch grows past MAX_PATCH_OPS, in which case a full resync is cheaper.
+   */
+  @SuppressWarnings("unchecked")
+  private static boolean diff(final String path,
+                              final Object before,
+                              final Object after,
+                              final List<Object[]> ops) {
+    if (!(before instanceof Map) || !(after instanceof Map)) {
+      if (before == null ? after != null : !before.equals(after)) {
+        ops.add(new Object[] { path, after == null ? REMOVED : after });
+      }
+      return ops.size() <= MAX_PATCH_OPS;
+    }
+
+    Map<String, Object> prev = (Map<String, Object>) before;
+    Map<String, Object> next = (Map<String, Object>) after;
+    String prefix = path.length() == 0 ? "" : path + "/";
+
+    for (String key : prev.keySet()) {
+      if (!next.containsKey(key)) {
+        ops.add(new Object[] { prefix + key, REMOVED });
+        if (ops.size() > MAX_PATCH_OPS) {
+          return false;
+        }
+      }
+    }
+
+    for (Map.Entry<String, Object> entry : next.entrySet()) {
+      String key = entry.getKey();
+      Object prevValue = prev.get(key);
+      if (prevValue == null) {
+        ops.add(new Object[] { prefix + key, entry.getValue() });
+        if (ops.size() > MAX_PATCH_OPS) {
+          return false;
+        }
+      } else if (!diff(prefix + key, prevValue, entry.getValue(), ops)) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,121 @@
+package io.fullstack.firestack;
+
+import android.util.Log;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+import com.google.firebase.database.DataSnapshot;
+
+/**
+ * Converts a DataSnapshot into the `snapshot` payload sent over the bridge.
+ *
+ * The tree is walked once: child keys are collected while the value map is
+ * being built and leaves are dispatched with instanceof checks, so large
+ * snapshots are never iterated twice.
+ */
+class FirestackSnapshotSerializer {
+  private static final String TAG = "FirestackSerializer";
+
+  public static WritableMap snapshotToMap(final DataSnapshot snapshot) {
+    WritableMap data = Arguments.createMap();
+    WritableArray childKeys = Arguments.createArray();
+
+    data.putString("key", snapshot.getKey());
+    data.putBoolean("exists", snapshot.exists());
+
+    long childrenCount = snapshot.getChildrenCount();
+    data.putBoolean("hasChildren", childrenCount > 0);
+    data.putDouble("childrenCount", childrenCount);
+
+    if (childrenCount > 0) {
+      WritableMap value = Arguments.createMap();
+      for (DataSnapshot child : snapshot.getChildren()) {
+        String key = child.getKey();
+        childKeys.pushString(key);
+        putChild(value, key, child);
+      }
+      data.putMap("value", value);
+    } else if (!putLeaf(data, "value", snapshot.getValue())) {
+      data.putString("value", null);
+    }
+
+    data.putArray("childKeys", childKeys);
+
+    Object priority = snapshot.getPriority();
+    data.putString("priority", priority == null ? null : priority.toString());
+    return data;
+  }
+
+  public static WritableMap valueToMap(final DataSnapshot snapshot) {
+    WritableMap data = Arguments.createMap();
+    for (DataSnapshot child : snapshot.getChildren()) {
+      putChild(data, child.getKey(), child);
+    }
+    return data;
+  }
+
+  /**
+   * Plain java copy of a snapshot value: a LinkedHashMap (in query order) for
+   * nodes with children, otherwise the leaf value itself.
+   */
+  public static Object toTree(final DataSnapshot snapshot) {
+    if (!snapshot.hasChildren()) {
+      return snapshot.getValue();
+    }
+
+    Map<String, Object> children = new LinkedHashMap<String, Object>();
+    for (DataSnapshot child : snapshot.getChildren()) {
+      children.put(child.getKey(), toTree(child));
+    }
+    return children;
+  }
+
+  public static WritableMap treeToMap(final Map<String, Object> tree) {
+    WritableMap data = Arguments.createMap();
+    for (Map.Entry<String, Object> entry : tree.entrySet()) {
+      putTree(data, entry.getKey(), entry.getValue());
+    }
+    return data;
+  }
+
+  @SuppressWarnings("unchecked")
+  public static void putTree(final WritableMap map, final String key, final Object value) {
+    if (value instanceof Map) {
+      map.putMap(key, treeToMap((Map<String, Object>) value));
+    } else if (!putLeaf(map, key, value)) {
+      map.putNull(key);
+    }
+  }
+
+  public static void putChild(final WritableMap map, final String key, final DataSnapshot child) {
+    if (child.hasChildren()) {
+      map.putMap(key, valueToMap(child));
+      return;
+    }
+
+    Object value = child.getValue();
+    if (!putLeaf(map, key, value)) {
+      Log.w(TAG, "Invalid type: " + (value == null ? "null" : value.getClass().getName()));
+    }
+  }
+
+  private static boolean putLeaf(final WritableMap map, final String key, final Object value) {
+    if (value instanceof String) {
+      map.putString(key, (String) value);
+    } else if (value instanceof Long) {
+      map.putDouble(key, ((Long) value).doubleValue());
+    } else if (value instanceof Double) {
+      map.putDouble(key, (Double) value);
+    } else if (value instanceof Boolean) {
+      map.putBoolean(key, (Boolean) value);
+    } else {
+      return false;
+    }
+    return true;
+  }
+}
@@ -0,0 +1,482 @@
+package io.fullstack.firestack;
+
+import android.content.Context;
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+import com.google.firebase.database.DataSnapshot;
+
+/**
+ * Last known value of persisted listeners, kept on disk so it can be shown
+ * on a cold start before Firebase has delivered anything.
+ *
+ * Every query is one file under `filesDir/firestack-snapshots`, named after
+ * a hash of its descriptor:
+ *
+ *   magic "FSS1" | crc32 of body (int) | body length (int) | body
+ *
+ * The body holds the snapshot key, exists flag, priority and the value tree
+ * in a small tagged binary encoding. Writes go to a temporary file that is
+ * synced and then renamed over the old one, and the directory is synced
+ * after the rename (Android 5.0 and up), so a crash leaves either the old or
+ * the new file; anything torn or corrupt fails the CRC and is ignored.
+ * Temporary files a crash left behind are deleted on start. Reads map the
+ * file and check and decode the body straight from the mapping. When the
+ * snapshot files grow past the size cap the least recently written ones are
+ * deleted.
+ */
+class FirestackSnapshotStore {
+  private static final String TAG = "FirestackSnapshotStore";
+  private static final String DIRECTORY = "firestack-snapshots";
+  private static final String SUFFIX = ".bin";
+  private static final String TMP_SUFFIX = ".tmp";
+  private static final int MAGIC = 0x46535331; // "FSS1"
+  private static final long DEFAULT_MAX_BYTES = 5 * 1024 * 1024;
+  private static final int CRC_CHUNK = 8192;
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private static final byte TAG_NULL = 0;
+  private static final byte TAG_FALSE = 1;
+  private static final byte TAG_TRUE = 2;
+  private static final byte TAG_LONG = 3;
+  private static final byte TAG_DOUBLE = 4;
+  private static final byte TAG_STRING = 5;
+  private static final byte TAG_MAP = 6;
+
+  private final File mDirectory;
+  private final ExecutorService mWriter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+    @Override
+    public Thread newThread(final Runnable r) {
+      Thread thread = new Thread(r, "firestack-snapshot-writer");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+  // latest payload waiting per file, older ones are skipped by the writer
+  private final Map<String, byte[]> mPendingWrites = new HashMap<String, byte[]>();
+  private long mMaxBytes = DEFAULT_MAX_BYTES;
+
+  public FirestackSnapshotStore(final Context context) {
+    mDirectory = new File(context.getFilesDir(), DIRECTORY);
+    mWriter.execute(new Runnable() {
+      @Override
+      public void run() {
+        deleteTemporaryFiles();
+      }
+    });
+  }
+
+  public synchronized void setMaxBytes(final long maxBytes) {
+    mMaxBytes = Math.max(0, maxBytes);
+  }
+
+  /**
+   * Encodes the snapshot on the calling thread and writes it in the background.
+   */
+  public void save(final String descriptor, final DataSnapshot snapshot, final FirestackProjection projection) {
+    final String name = fileName(descriptor);
+    byte[] body;
+    try {
+      body = encode(snapshot, projection);
+    } catch (IOException e) {
+      Log.e(TAG, "Could not encode snapshot for " + descriptor, e);
+      return;
+    }
+
+    synchronized (mPendingWrites) {
+      boolean queued = mPendingWrites.containsKey(name);
+      mPendingWrites.put(name, body);
+      if (queued) {
+        return;
+      }
+    }
+
+    this.submit(new Runnable() {
+      @Override
+      public void run() {
+        byte[] latest;
+        synchronized (mPendingWrites) {
+          latest = mPendingWrites.remove(name);
+        }
+        if (latest != null) {
+          write(name, latest);
+        }
+      }
+    });
+  }
+
+  /**
+   * The stored `snapshot` payload for the descriptor, or null when there is
+   * none or it does not pass its checksum.
+   */
+  public WritableMap load(final String descriptor) {
+    File file = new File(mDirectory, fileName(descriptor));
+    if (!file.exists()) {
+      return null;
+    }
+
+    RandomAccessFile raf = null;
+    try {
+      raf = new RandomAccessFile(file, "r");
+      FileChannel channel = raf.getChannel();
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+      if (buffer.remaining() < 12 || buffer.getInt() != MAGIC) {
+        Log.w(TAG, "Ignoring unknown snapshot file " + file.getName());
+        return null;
+      }
+      int crc = buffer.getInt();
+      int length = buffer.getInt();
+      if (length != buffer.remaining()) {
+        Log.w(TAG, "Ignoring truncated snapshot file " + file.getName());
+        return null;
+      }
+
+      if (checksum(buffer.duplicate()) != crc) {
+        Log.w(TAG, "Ignoring corrupt snapshot file " + file.getName());
+        return null;
+      }
+      return decode(buffer);
+    } catch (IOException e) {
+      Log.e(TAG, "Could not read snapshot file " + file.getName(), e);
+      return null;
+    } catch (BufferUnderflowException e) {
+      Log.e(TAG, "Malformed snapshot file " + file.getName(), e);
+      return null;
+    } finally {
+      closeQuietly(raf);
+    }
+  }
+
+  /**
+   * Stops the writer once the writes already queued are done.
+   */
+  public void shutdown() {
+    mWriter.shutdown();
+  }
+
+  public void clear() {
+    this.submit(new Runnable() {
+      @Override
+      public void run() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+          for (File file : files) {
+            file.delete();
+          }
+        }
+      }
+    });
+  }
+
+  private void submit(final Runnable task) {
+    try {
+      mWriter.execute(task);
+    } catch (RejectedExecutionException e) {
+      Log.w(TAG, "Snapshot store is shut down, dropping write");
+    }
+  }
+
+  private void deleteTemporaryFiles() {
+    File[] files = mDirectory.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      if (file.getName().endsWith(TMP_SUFFIX) && file.delete()) {
+        Log.d(TAG, "Deleted leftover " + file.getName());
+      }
+    }
+  }
+
+  private void write(final String name, final byte[] body) {
+    if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+      Log.e(TAG, "Could not create " + mDirectory);
+      return;
+    }
+
+    CRC32 checksum = new CRC32();
+    checksum.update(body);
+
+    File tmp = new File(mDirectory, name + TMP_SUFFIX);
+    File file = new File(mDirectory, name);
+    FileOutputStream out = null;
+    try {
+      out = new FileOutputStream(tmp);
+      ByteBuffer header = ByteBuffer.allocate(12);
+      header.putInt(MAGIC).putInt((int) checksum.getValue()).putInt(body.length);
+      out.write(header.array());
+      out.write(body);
+      out.getFD().sync();
+      out.close();
+      out = null;
+
+      if (!tmp.renameTo(file)) {
+        throw new IOException("rename failed");
+      }
+      this.syncDirectory();
+    } catch (IOException e) {
+      Log.e(TAG, "Could not write snapshot file " + name, e);
+      tmp.delete();
+      return;
+    } finally {
+      closeQuietly(out);
+    }
+
+    this.trim(file);
+  }
+
+  /**
+   * Makes the rename itself durable. Needs Os, so older releases skip it.
+   */
+  private void syncDirectory() throws IOException {
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+      return;
+    }
+    try {
+      FileDescriptor fd = Os.open(mDirectory.getPath(), OsConstants.O_RDONLY, 0);
+      try {
+        Os.fsync(fd);
+      } finally {
+        Os.close(fd);
+      }
+    } catch (ErrnoException e) {
+      throw new IOException("Could not sync " + mDirectory + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * Deletes the oldest snapshot files until they fit the cap, keeping the
+   * one just written.
+   */
+  private void trim(final File keep) {
+    File[] files = mDirectory.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(final File dir, final String name) {
+        return name.endsWith(SUFFIX);
+      }
+    });
+    if (files == null) {
+      return;
+    }
+
+    long total = 0;
+    for (File file : files) {
+      total += file.length();
+    }
+
+    long maxBytes;
+    synchronized (this) {
+      maxBytes = mMaxBytes;
+    }
+    if (total <= maxBytes) {
+      return;
+    }
+
+    Arrays.sort(files, new Comparator<File>() {
+      @Override
+      public int compare(final File a, final File b) {
+        long diff = a.lastModified() - b.lastModified();
+        return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+      }
+    });
+    for (File file : files) {
+      if (total <= maxBytes) {
+        break;
+      }
+      if (file.equals(keep)) {
+        continue;
+      }
+      long length = file.length();
+      if (file.delete()) {
+        total -= length;
+        Log.d(TAG, "Evicted snapshot file " + file.getName());
+      }
+    }
+  }
+
+  private static byte[] encode(final DataSnapshot snapshot, final FirestackProjection projection) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    Object priority = snapshot.getPriority();
+
+    writeValue(out, snapshot.getKey());
+    out.writeBoolean(snapshot.exists());
+    writeValue(out, priority == null ? null : priority.toString());
+    writeValue(out, projection == null
+      ? FirestackSnapshotSerializer.toTree(snapshot)
+      : projection.project(snapshot));
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  @SuppressWarnings("unchecked")
+  private static void writeValue(final DataOutputStream out, final Object value) throws IOException {
+    if (value == null) {
+      out.writeByte(TAG_NULL);
+    } else if (value instanceof Boolean) {
+      out.writeByte((Boolean) value ? TAG_TRUE : TAG_FALSE);
+    } else if (value instanceof Long) {
+      out.writeByte(TAG_LONG);
+      out.writeLong((Long) value);
+    } else if (value instanceof Number) {
+      out.writeByte(TAG_DOUBLE);
+      out.writeDouble(((Number) value).doubleValue());
+    } else if (value instanceof Map) {
+      Map<String, Object> map = (Map<String, Object>) value;
+      out.writeByte(TAG_MAP);
+      out.writeInt(map.size());
+      for (Map.Entry<String, Object> entry : map.entrySet()) {
+        writeString(out, entry.getKey());
+        writeValue(out, entry.getValue());
+      }
+    } else {
+      out.writeByte(TAG_STRING);
+      writeString(out, value.toString());
+    }
+  }
+
+  private static void writeString(final DataOutputStream out, final String value) throws IOException {
+    byte[] utf8 = value.getBytes(UTF8);
+    out.writeInt(utf8.length);
+    out.write(utf8);
+  }
+
+  private static WritableMap decode(final ByteBuffer in) throws IOException {
+    String key = (String) readValue(in);
+    boolean exists = in.get() != 0;
+    String priority = (String) readValue(in);
+    Object tree = readValue(in);
+
+    WritableMap data = Arguments.createMap();
+    WritableArray childKeys = Arguments.createArray();
+    int childrenCount = 0;
+    if (tree instanceof Map) {
+      for (Object childKey : ((Map<?, ?>) tree).keySet()) {
+        childKeys.pushString((String) childKey);
+        childrenCount++;
+      }
+    }
+
+    data.putString("key", key);
+    data.putBoolean("exists", exists);
+    data.putBoolean("hasChildren", childrenCount > 0);
+    data.putDouble("childrenCount", childrenCount);
+    FirestackSnapshotSerializer.putTree(data, "value", tree);
+    data.putArray("childKeys", childKeys);
+    data.putString("priority", priority);
+    return data;
+  }
+
+  private static Object readValue(final ByteBuffer in) throws IOException {
+    byte tag = in.get();
+    switch (tag) {
+      case TAG_NULL:
+        return null;
+      case TAG_FALSE:
+        return false;
+      case TAG_TRUE:
+        return true;
+      case TAG_LONG:
+        return in.getLong();
+      case TAG_DOUBLE:
+        return in.getDouble();
+      case TAG_STRING:
+        return readString(in);
+      case TAG_MAP:
+        int size = in.getInt();
+        Map<String, Object> map = new LinkedHashMap<String, Object>(size * 4 / 3 + 1);
+        for (int i = 0; i < size; i++) {
+          String key = readString(in);
+          map.put(key, readValue(in));
+        }
+        return map;
+      default:
+        throw new IOException("Unknown tag " + tag);
+    }
+  }
+
+  private static String readString(final ByteBuffer in) throws IOException {
+    int length = in.getInt();
+    if (length < 0 || length > in.remaining()) {
+      throw new IOException("Bad string length " + length);
+    }
+    byte[] utf8 = new byte[length];
+    in.get(utf8);
+    return new String(utf8, UTF8);
+  }
+
+  /**
+   * CRC32 of what is left in `buffer`, read through a small scratch array
+   * since CRC32.update(ByteBuffer) needs API 26.
+   */
+  private static int checksum(final ByteBuffer buffer) {
+    CRC32 checksum = new CRC32();
+    byte[] chunk = new byte[Math.min(CRC_CHUNK, buffer.remaining())];
+    while (buffer.hasRemaining()) {
+      int length = Math.min(chunk.length, buffer.remaining());
+      buffer.get(chunk, 0, length);
+      checksum.update(chunk, 0, length);
+    }
+    return (int) checksum.getValue();
+  }
+
+  private static String fileName(final String descriptor) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      byte[] hash = digest.digest(descriptor.getBytes(UTF8));
+      StringBuilder sb = new StringBuilder(hash.length * 2 + 4);
+      for (byte b : hash) {
+        sb.append(String.format("%02x", b));
+      }
+      return sb.append(SUFFIX).toString();
+    } catch (NoSuchAlgorithmException e) {
+      return Integer.toHexString(descriptor.hashCode()) + SUFFIX;
+    }
+  }
+
+  private static void closeQuietly(final Closeable closeable) {
+    if (closeable == null) {
+      return;
+    }
+    try {
+      closeable.close();
+    } catch (IOException e) {
+      // nothing left to do
+    }
+  }
+}
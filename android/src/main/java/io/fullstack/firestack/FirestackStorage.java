@@ -10,6 +10,11 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.InputStream;
 import java.io.FileNotFoundException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.net.Uri;
 import android.provider.MediaStore;
@@ -22,6 +27,7 @@ import com.facebook.react.bridge.ReactApplicationContext;
 import com.facebook.react.bridge.ReactContextBaseJavaModule;
 import com.facebook.react.bridge.ReactMethod;
 import com.facebook.react.bridge.Callback;
+import com.facebook.react.bridge.WritableArray;
 import com.facebook.react.bridge.WritableMap;
 import com.facebook.react.bridge.ReadableMap;
 import com.facebook.react.modules.core.DeviceEventManagerModule;
@@ -60,12 +66,29 @@ class FirestackStorageModule extends ReactContextBaseJavaModule {
 
   private Context context;
   private ReactContext mReactContext;
+  private FirestackEventDispatcher mEventDispatcher;
   private FirebaseApp app;
-
-  public FirestackStorageModule(ReactApplicationContext reactContext) {
+  private final FirestackUploadSessions mUploadSessions;
+  private final Map<String, UploadTask> mUploads = new ConcurrentHashMap<String, UploadTask>();
+  private final FirestackUploadQueue mUploadQueue;
+  private final FirestackProgressThrottle mProgressThrottle = new FirestackProgressThrottle();
+  private final FirestackProgressThrottle mDownloadThrottle = new FirestackProgressThrottle();
+  private final ConcurrentHashMap<String, FirestackFileDownload> mDownloads = new ConcurrentHashMap<String, FirestackFileDownload>();
+  private final ExecutorService mDownloadExecutor = Executors.newFixedThreadPool(2);
+  private final FirestackDownloadUrlCache mUrlCache = new FirestackDownloadUrlCache();
+
+  public FirestackStorageModule(ReactApplicationContext reactContext, FirestackEventDispatcher eventDispatcher) {
     super(reactContext);
     this.context = reactContext;
     mReactContext = reactContext;
+    mEventDispatcher = eventDispatcher;
+    mUploadSessions = new FirestackUploadSessions(reactContext);
+    mUploadQueue = new FirestackUploadQueue(new FirestackUploadQueue.Starter() {
+      @Override
+      public void start(final FirestackUploadQueue.Entry entry) {
+        startUpload(entry.session, entry.callback);
+      }
+    });
 
     Log.d(TAG, "New instance");
   }
@@ -75,6 +98,14 @@ class FirestackStorageModule extends ReactContextBaseJavaModule {
     return TAG;
   }
 
+  @Override
+  public void onCatalystInstanceDestroy() {
+    for (FirestackFileDownload download : mDownloads.values()) {
+      download.pause();
+    }
+    mDownloadExecutor.shutdown();
+  }
+
   @ReactMethod
   public void downloadUrl(final String javascriptStorageBucket,
                           final String path,
@@ -82,146 +113,485 @@ class FirestackStorageModule extends ReactContextBaseJavaModule {
       FirebaseStorage storage = FirebaseStorage.getInstance();
       String storageBucket = storage.getApp().getOptions().getStorageBucket();
       String storageUrl = "gs://"+storageBucket;
-      Log.d(TAG, "Storage url " + storageUrl + path);
       final StorageReference storageRef = storage.getReferenceFromUrl(storageUrl);
       final StorageReference fileRef = storageRef.child(path);
+      final String cacheKey = FirestackDownloadUrlCache.cacheKey(fileRef);
+
+      FirestackDownloadUrlCache.Entry cached = mUrlCache.get(cacheKey);
+      if (cached != null) {
+        callback.invoke(null, cached.toMap());
+        return;
+      }
+      if (!mUrlCache.await(cacheKey, callback)) {
+        return;
+      }
+      Log.d(TAG, "Storage url " + storageUrl + path);
+
+      // both lookups run at once, the result is built when the second lands
+      final Uri[] uri = new Uri[1];
+      final StorageMetadata[] metadata = new StorageMetadata[1];
+      final AtomicInteger remaining = new AtomicInteger(2);
+      final AtomicBoolean failed = new AtomicBoolean(false);
+      final long ttlMs = mUrlCache.getTtl();
+
+      final Runnable complete = new Runnable() {
+        @Override
+        public void run() {
+          if (remaining.decrementAndGet() > 0) {
+            return;
+          }
+          FirestackDownloadUrlCache.Entry entry = new FirestackDownloadUrlCache.Entry(uri[0], metadata[0], ttlMs);
+          for (Callback waiting : mUrlCache.resolve(cacheKey, entry)) {
+            waiting.invoke(null, entry.toMap());
+          }
+        }
+      };
+      final OnFailureListener failure = new OnFailureListener() {
+        @Override
+        public void onFailure(@NonNull Exception exception) {
+          Log.e(TAG, "Failed to resolve download url " + exception.getMessage());
+          if (!failed.compareAndSet(false, true)) {
+            return;
+          }
+          for (Callback waiting : mUrlCache.resolve(cacheKey, null)) {
+            WritableMap err = Arguments.createMap();
+            err.putString("status", "error");
+            err.putString("description", exception.getLocalizedMessage());
+            waiting.invoke(err);
+          }
+        }
+      };
 
-      Task<Uri> downloadTask = fileRef.getDownloadUrl();
-      downloadTask.addOnSuccessListener(new OnSuccessListener<Uri>() {
+      fileRef.getDownloadUrl().addOnSuccessListener(new OnSuccessListener<Uri>() {
         @Override
-        public void onSuccess(Uri uri) {
-          final WritableMap res = Arguments.createMap();
+        public void onSuccess(Uri result) {
+          uri[0] = result;
+          complete.run();
+        }
+      }).addOnFailureListener(failure);
 
-          res.putString("status", "success");
-          res.putString("bucket", storageRef.getBucket());
-          res.putString("fullPath", uri.toString());
-          res.putString("path", uri.getPath());
-
-          storageRef.getMetadata()
-          .addOnSuccessListener(new OnSuccessListener<StorageMetadata>() {
-              @Override
-              public void onSuccess(final StorageMetadata storageMetadata) {
-                Log.d(TAG, "getMetadata success " + storageMetadata);
-                res.putString("name", storageMetadata.getName());
-
-                WritableMap metadata = Arguments.createMap();
-                metadata.putString("getBucket", storageMetadata.getBucket());
-                metadata.putString("getName", storageMetadata.getName());
-                metadata.putDouble("sizeBytes", storageMetadata.getSizeBytes());
-                metadata.putDouble("created_at", storageMetadata.getCreationTimeMillis());
-                metadata.putDouble("updated_at", storageMetadata.getUpdatedTimeMillis());
-                metadata.putString("md5hash", storageMetadata.getMd5Hash());
-                metadata.putString("encoding", storageMetadata.getContentEncoding());
-                res.putString("url", storageMetadata.getDownloadUrl().toString());
-
-                res.putMap("metadata", metadata);
-                callback.invoke(null, res);
-              }
+      fileRef.getMetadata().addOnSuccessListener(new OnSuccessListener<StorageMetadata>() {
+        @Override
+        public void onSuccess(final StorageMetadata result) {
+          metadata[0] = result;
+          complete.run();
+        }
+      }).addOnFailureListener(failure);
+  }
+
+  /**
+   * Drops the cached download url of `path`, or of every object when
+   * `path` is null.
+   */
+  @ReactMethod
+  public void invalidateDownloadUrl(final String path, final Callback callback) {
+    if (path == null) {
+      mUrlCache.clear();
+    } else {
+      FirebaseStorage storage = FirebaseStorage.getInstance();
+      String storageUrl = "gs://" + storage.getApp().getOptions().getStorageBucket();
+      mUrlCache.invalidate(FirestackDownloadUrlCache.cacheKey(storage.getReferenceFromUrl(storageUrl).child(path)));
+    }
+    callback.invoke(null, mUrlCache.getStats());
+  }
+
+  @ReactMethod
+  public void configureDownloadUrlCache(final int maxEntries, final int ttlMs, final Callback callback) {
+    mUrlCache.configure(maxEntries, ttlMs);
+    callback.invoke(null, mUrlCache.getStats());
+  }
+
+  @ReactMethod
+  public void getDownloadUrlCacheStats(final Callback callback) {
+    callback.invoke(null, mUrlCache.getStats());
+  }
+
+  /**
+   * Streams `path` to `downloadPath` (relative paths are inside the files
+   * directory), continuing a previous partial download of the same target.
+   */
+  @ReactMethod
+  public void downloadFile(final String urlStr,
+                           final String path,
+                           final String downloadPath,
+                           final Callback callback) {
+    final String taskId = uploadTaskId(urlStr, path);
+    if (mDownloads.containsKey(taskId)) {
+      WritableMap err = Arguments.createMap();
+      err.putString("description", "A download of " + taskId + " is already running");
+      callback.invoke(err);
+      return;
+    }
+
+    String localPath = downloadPath.replace("file://", "");
+    final File target = localPath.startsWith("/")
+      ? new File(localPath)
+      : new File(getReactApplicationContext().getFilesDir(), localPath);
+
+    try {
+      final StorageReference fileRef = FirebaseStorage.getInstance().getReferenceFromUrl(urlStr).child(path);
+      fileRef.getMetadata().addOnSuccessListener(new OnSuccessListener<StorageMetadata>() {
+        @Override
+        public void onSuccess(final StorageMetadata storageMetadata) {
+          fileRef.getDownloadUrl().addOnSuccessListener(new OnSuccessListener<Uri>() {
+            @Override
+            public void onSuccess(final Uri uri) {
+              startDownload(taskId, uri.toString(), target, storageMetadata, callback);
+            }
           }).addOnFailureListener(new OnFailureListener() {
-              @Override
-              public void onFailure(@NonNull Exception exception) {
-                Log.e(TAG, "Failure in download " + exception);
-                  callback.invoke(makeErrorPayload(1, exception));
-              }
+            @Override
+            public void onFailure(@NonNull Exception exception) {
+              callback.invoke(makeErrorPayload(1, exception));
+            }
           });
-
         }
       }).addOnFailureListener(new OnFailureListener() {
         @Override
         public void onFailure(@NonNull Exception exception) {
-          Log.e(TAG, "Failed to download file " + exception.getMessage());
+          Log.e(TAG, "Could not read metadata of " + taskId, exception);
+          callback.invoke(makeErrorPayload(1, exception));
+        }
+      });
+    } catch (Exception ex) {
+      callback.invoke(makeErrorPayload(2, ex));
+    }
+  }
 
-          WritableMap err = Arguments.createMap();
-          err.putString("status", "error");
-          err.putString("description", exception.getLocalizedMessage());
+  /**
+   * Stops a running download and keeps what it has so far; calling
+   * downloadFile again for the same target picks up from there.
+   */
+  @ReactMethod
+  public void pauseDownload(final String taskId, final Callback callback) {
+    FirestackFileDownload download = mDownloads.get(taskId);
+    if (download == null) {
+      WritableMap err = Arguments.createMap();
+      err.putString("description", "No running download " + taskId);
+      callback.invoke(err);
+      return;
+    }
+    download.pause();
+    callback.invoke(null, taskId);
+  }
 
-          callback.invoke(err);
+  private void startDownload(final String taskId,
+                             final String url,
+                             final File target,
+                             final StorageMetadata storageMetadata,
+                             final Callback callback) {
+    FirestackFileDownload download = new FirestackFileDownload(taskId, url, target,
+      storageMetadata.getSizeBytes(), storageMetadata.getMd5Hash(),
+      new FirestackFileDownload.Listener() {
+        @Override
+        public void onResumed(final FirestackFileDownload download, final long offset) {
+          Log.d(TAG, "Resuming download " + taskId + " at byte " + offset);
+          WritableMap data = Arguments.createMap();
+          data.putString("eventName", "download_resumed");
+          data.putString("taskId", taskId);
+          data.putDouble("bytesTransferred", offset);
+          mEventDispatcher.emit("download_resumed", data);
+        }
+
+        @Override
+        public void onProgress(final FirestackFileDownload download, final long bytesTransferred, final long totalBytes) {
+          if (mDownloadThrottle.shouldEmit(taskId, bytesTransferred, totalBytes)) {
+            emitProgress("download_progress", taskId, bytesTransferred, totalBytes);
+          }
+        }
+
+        @Override
+        public void onPaused(final FirestackFileDownload download, final long bytesTransferred) {
+          finishDownload(taskId);
+          WritableMap data = Arguments.createMap();
+          data.putString("eventName", "download_paused");
+          data.putString("taskId", taskId);
+          data.putDouble("bytesTransferred", bytesTransferred);
+          mEventDispatcher.emit("download_paused", data);
+
+          WritableMap res = Arguments.createMap();
+          res.putString("status", "paused");
+          res.putString("taskId", taskId);
+          res.putDouble("bytesTransferred", bytesTransferred);
+          callback.invoke(null, res);
+        }
+
+        @Override
+        public void onComplete(final FirestackFileDownload download, final boolean verified) {
+          finishDownload(taskId);
+          WritableMap res = Arguments.createMap();
+          res.putString("status", "success");
+          res.putString("taskId", taskId);
+          res.putString("path", target.getAbsolutePath());
+          res.putDouble("bytes", target.length());
+          res.putString("md5hash", storageMetadata.getMd5Hash());
+          res.putBoolean("verified", verified);
+          callback.invoke(null, res);
+        }
+
+        @Override
+        public void onError(final FirestackFileDownload download, final Exception error) {
+          finishDownload(taskId);
+          callback.invoke(makeErrorPayload(3, error));
         }
       });
+
+    if (mDownloads.putIfAbsent(taskId, download) != null) {
+      WritableMap err = Arguments.createMap();
+      err.putString("description", "A download of " + taskId + " is already running");
+      callback.invoke(err);
+      return;
+    }
+    mDownloadExecutor.execute(download);
+  }
+
+  private void finishDownload(final String taskId) {
+    mDownloads.remove(taskId);
+    mDownloadThrottle.forget(taskId);
   }
 
   // STORAGE
   @ReactMethod
-  public void uploadFile(final String urlStr, final String name, final String filepath, final ReadableMap metadata, final Callback callback) {
-    FirebaseStorage storage = FirebaseStorage.getInstance();
+  public void uploadFile(final String urlStr,
+                         final String name,
+                         final String filepath,
+                         final ReadableMap metadata,
+                         final String priority,
+                         final Callback callback) {
+    Log.i(TAG, "From file: " + filepath + " to " + urlStr + " with name " + name);
+    String taskId = uploadTaskId(urlStr, name);
+    if (mUploads.containsKey(taskId) || mUploadQueue.contains(taskId)) {
+      WritableMap err = Arguments.createMap();
+      err.putString("description", "An upload to " + taskId + " is already queued");
+      callback.invoke(err);
+      return;
+    }
+
+    FirestackUploadSessions.Session session = mUploadSessions.load(taskId);
+    if (session == null || !filepath.equals(session.filepath)) {
+      session = new FirestackUploadSessions.Session(taskId, urlStr, name, filepath);
+    }
+    mUploadQueue.enqueue(new FirestackUploadQueue.Entry(session, callback, priority));
+  }
+
+  /**
+   * Progress events for a task are at least `intervalMs` and `minPercent`
+   * apart; the final one is always sent.
+   */
+  @ReactMethod
+  public void setProgressThrottle(final int intervalMs, final double minPercent, final Callback callback) {
+    mProgressThrottle.configure(intervalMs, minPercent);
+    mDownloadThrottle.configure(intervalMs, minPercent);
+
+    WritableMap res = Arguments.createMap();
+    res.putString("status", "success");
+    res.putDouble("intervalMs", intervalMs);
+    res.putDouble("minPercent", minPercent);
+    callback.invoke(null, res);
+  }
+
+  @ReactMethod
+  public void setUploadConcurrency(final int maxConcurrent, final Callback callback) {
+    mUploadQueue.setMaxConcurrent(maxConcurrent);
+    callback.invoke(null, maxConcurrent);
+  }
+
+  /**
+   * Running and waiting uploads plus the totals the aggregate
+   * `upload_queue_progress` event reports.
+   */
+  @ReactMethod
+  public void getUploadQueue(final Callback callback) {
+    callback.invoke(null, mUploadQueue.getState());
+  }
+
+  /**
+   * Restarts uploads that were still running when the app was last killed.
+   * Their results arrive as `upload_complete` / `upload_failed` events.
+   */
+  @ReactMethod
+  public void resumePendingUploads(final Callback callback) {
+    WritableArray resumed = Arguments.createArray();
+    for (FirestackUploadSessions.Session session : mUploadSessions.loadResumable()) {
+      if (mUploads.containsKey(session.taskId) || mUploadQueue.contains(session.taskId)) {
+        continue;
+      }
+      Log.d(TAG, "Resuming upload " + session.taskId + " at byte " + session.bytesTransferred);
+      mUploadQueue.enqueue(new FirestackUploadQueue.Entry(session, null, FirestackUploadQueue.PRIORITY_BACKGROUND));
+      resumed.pushString(session.taskId);
+    }
+    callback.invoke(null, resumed);
+  }
+
+  @ReactMethod
+  public void pauseUpload(final String taskId, final Callback callback) {
+    UploadTask task = mUploads.get(taskId);
+    if (task == null) {
+      callback.invoke(makeTaskError(taskId));
+      return;
+    }
+    task.pause();
+    callback.invoke(null, taskId);
+  }
+
+  @ReactMethod
+  public void resumeUpload(final String taskId, final Callback callback) {
+    UploadTask task = mUploads.get(taskId);
+    if (task == null) {
+      callback.invoke(makeTaskError(taskId));
+      return;
+    }
+    if (task.resume()) {
+      WritableMap data = Arguments.createMap();
+      data.putString("eventName", "upload_resumed");
+      data.putString("taskId", taskId);
+      mEventDispatcher.emit("upload_resumed", data);
+    }
+    callback.invoke(null, taskId);
+  }
 
-    StorageReference storageRef = storage.getReferenceFromUrl(urlStr);
-    StorageReference fileRef = storageRef.child(name);
+  /**
+   * Cancels a running or queued upload, or forgets a persisted one that has
+   * not been resumed yet.
+   */
+  @ReactMethod
+  public void cancelUpload(final String taskId, final Callback callback) {
+    UploadTask task = mUploads.get(taskId);
+    FirestackUploadQueue.Entry queued = mUploadQueue.dequeue(taskId);
+    mUploadSessions.remove(taskId);
+    if (task != null) {
+      task.cancel();
+    }
+    if (queued != null && queued.callback != null) {
+      WritableMap err = Arguments.createMap();
+      err.putString("description", "Upload " + taskId + " was cancelled");
+      queued.callback.invoke(err);
+    }
+    callback.invoke(null, taskId);
+  }
 
-Log.i(TAG, "From file: " + filepath + " to " + urlStr + " with name " + name);
+  private void startUpload(final FirestackUploadSessions.Session session, @Nullable final Callback callback) {
+    final String taskId = session.taskId;
     try {
-      // InputStream stream = new FileInputStream(new File(filepath));
-      Uri file = Uri.fromFile(new File(filepath));
+      FirebaseStorage storage = FirebaseStorage.getInstance();
+      StorageReference storageRef = storage.getReferenceFromUrl(session.storageUrl);
+      final StorageReference fileRef = storageRef.child(session.name);
 
-      StorageMetadata.Builder metadataBuilder = new StorageMetadata.Builder();
-      Map<String, Object> m = FirestackUtils.recursivelyDeconstructReadableMap(metadata);
+      Uri file = Uri.fromFile(new File(session.filepath));
+      StorageMetadata md = new StorageMetadata.Builder().build();
 
-      StorageMetadata md = metadataBuilder.build();
-      UploadTask uploadTask = fileRef.putFile(file, md);
-      // UploadTask uploadTask = fileRef.putStream(stream, md);
+      UploadTask uploadTask = session.sessionUri == null
+        ? fileRef.putFile(file, md)
+        : fileRef.putFile(file, md, Uri.parse(session.sessionUri));
+      mUploads.put(taskId, uploadTask);
+      mUploadSessions.save(session);
 
-      // Register observers to listen for when the download is done or if it fails
+      // Register observers to listen for when the upload is done or if it fails
       uploadTask.addOnFailureListener(new OnFailureListener() {
         @Override
         public void onFailure(@NonNull Exception exception) {
-          // Handle unsuccessful uploads
           Log.e(TAG, "Failed to upload file " + exception.getMessage());
+          finishUpload(taskId, false);
 
           WritableMap err = Arguments.createMap();
           err.putString("description", exception.getLocalizedMessage());
-
-          callback.invoke(err);
+          if (callback != null) {
+            callback.invoke(err);
+          } else {
+            err.putString("eventName", "upload_failed");
+            err.putString("taskId", taskId);
+            mEventDispatcher.emit("upload_failed", err);
+          }
         }
       }).addOnSuccessListener(new OnSuccessListener<UploadTask.TaskSnapshot>() {
         @Override
         public void onSuccess(UploadTask.TaskSnapshot taskSnapshot) {
           Log.d(TAG, "Successfully uploaded file " + taskSnapshot);
-          // taskSnapshot.getMetadata() contains file metadata such as size, content-type, and download URL.
+          finishUpload(taskId, true);
+          mUrlCache.invalidate(FirestackDownloadUrlCache.cacheKey(fileRef));
+
           WritableMap resp = getDownloadData(taskSnapshot);
-                  // NSDictionary *props = @{
-                  //               @"fullPath": ref.fullPath,
-                  //               @"bucket": ref.bucket,
-                  //               @"name": ref.name,
-                  //               @"metadata": [snapshot.metadata dictionaryRepresentation]
-                  //               };
-
-          callback.invoke(null, resp);
+          resp.putString("taskId", taskId);
+          if (callback != null) {
+            callback.invoke(null, resp);
+          } else {
+            resp.putString("eventName", "upload_complete");
+            mEventDispatcher.emit("upload_complete", resp);
+          }
         }
       })
       .addOnProgressListener(new OnProgressListener<UploadTask.TaskSnapshot>() {
         @Override
         public void onProgress(UploadTask.TaskSnapshot taskSnapshot) {
-          double totalBytes = taskSnapshot.getTotalByteCount();
-          double bytesTransferred = taskSnapshot.getBytesTransferred();
-          double progress = (100.0 * bytesTransferred) / totalBytes;
+          long totalBytes = taskSnapshot.getTotalByteCount();
+          long bytesTransferred = taskSnapshot.getBytesTransferred();
+          mUploadQueue.progress(taskId, bytesTransferred, totalBytes);
+          if (totalBytes <= 0 || !mProgressThrottle.shouldEmit(taskId, bytesTransferred, totalBytes)) {
+            return;
+          }
 
-          System.out.println("Transferred " + bytesTransferred + "/" + totalBytes + "("+progress + "% complete)");
+          saveUploadProgress(session, taskSnapshot);
+          emitProgress("upload_progress", taskId, bytesTransferred, totalBytes);
 
-          if (progress >= 0) {
-            WritableMap data = Arguments.createMap();
-            data.putString("eventName", "upload_progress");
-            data.putDouble("progress", progress);
-            FirestackUtils.sendEvent(mReactContext, "upload_progress", data);
-          }
+          WritableMap queue = mUploadQueue.getProgress();
+          queue.putString("eventName", "upload_queue_progress");
+          mEventDispatcher.emit("upload_queue_progress", queue);
         }
       }).addOnPausedListener(new OnPausedListener<UploadTask.TaskSnapshot>() {
         @Override
         public void onPaused(UploadTask.TaskSnapshot taskSnapshot) {
-          System.out.println("Upload is paused");
-          StorageMetadata d = taskSnapshot.getMetadata();
-          String bucket = d.getBucket();
+          saveUploadProgress(session, taskSnapshot);
+
           WritableMap data = Arguments.createMap();
           data.putString("eventName", "upload_paused");
-          data.putString("ref", bucket);
-          FirestackUtils.sendEvent(mReactContext, "upload_paused", data);
+          data.putString("taskId", taskId);
+          data.putString("ref", session.storageUrl);
+          mEventDispatcher.emit("upload_paused", data);
         }
       });
     }
     catch (Exception ex) {
-      callback.invoke(makeErrorPayload(2, ex));
+      finishUpload(taskId, false);
+      if (callback != null) {
+        callback.invoke(makeErrorPayload(2, ex));
+      }
     }
   }
 
+  // the session uri only appears once Firebase has opened the upload
+  private void saveUploadProgress(final FirestackUploadSessions.Session session, final UploadTask.TaskSnapshot taskSnapshot) {
+    Uri sessionUri = taskSnapshot.getUploadSessionUri();
+    if (sessionUri == null || !mUploads.containsKey(session.taskId)) {
+      return;
+    }
+    session.sessionUri = sessionUri.toString();
+    session.bytesTransferred = taskSnapshot.getBytesTransferred();
+    session.totalBytes = taskSnapshot.getTotalByteCount();
+    mUploadSessions.save(session);
+  }
+
+  private void finishUpload(final String taskId, final boolean success) {
+    mUploads.remove(taskId);
+    mUploadSessions.remove(taskId);
+    mUploadQueue.finished(taskId, success);
+    mProgressThrottle.forget(taskId);
+  }
+
+  private void emitProgress(final String eventName, final String taskId, final long bytesTransferred, final long totalBytes) {
+    WritableMap data = Arguments.createMap();
+    data.putString("eventName", eventName);
+    data.putString("taskId", taskId);
+    data.putDouble("bytesTransferred", bytesTransferred);
+    data.putDouble("totalBytes", totalBytes);
+    data.putDouble("progress", totalBytes > 0 ? (100.0 * bytesTransferred) / totalBytes : 0);
+    mEventDispatcher.emit(eventName, data);
+  }
+
+  // the same string the js side builds, so either can name the task
+  static String uploadTaskId(final String storageUrl, final String name) {
+    String base = storageUrl.endsWith("/") ? storageUrl.substring(0, storageUrl.length() - 1) : storageUrl;
+    return base + "/" + (name.startsWith("/") ? name.substring(1) : name);
+  }
+
   @ReactMethod
   public void getRealPathFromURI(final String uri, final Callback callback) {
     try {
@@ -259,6 +629,12 @@ Log.i(TAG, "From file: " + filepath + " to " + urlStr + " with name " + name);
     return resp;
   }
 
+  private WritableMap makeTaskError(final String taskId) {
+    WritableMap err = Arguments.createMap();
+    err.putString("description", "No running upload " + taskId);
+    return err;
+  }
+
   private WritableMap makeErrorPayload(double code, Exception ex) {
     WritableMap error = Arguments.createMap();
     error.putDouble("code", code);
@@ -0,0 +1,182 @@
+package io.fullstack.firestack;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.Callback;
+import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.WritableMap;
+
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.MutableData;
+import com.google.firebase.database.Transaction;
+
+/**
+ * Declarative update function for runTransaction().
+ *
+ * Javascript describes the update as a list of `{op, path, value}` entries
+ * (increment, append, setIfAbsent, max, min) that is decoded once and then
+ * replayed natively on every retry of doTransaction(), so contention never
+ * costs a bridge round trip. `path` is relative to the transaction's
+ * reference; an empty path is the reference itself.
+ */
+class FirestackTransactionOps {
+
+  private static class Op {
+    final String name;
+    final String path;
+    final Object value;
+
+    Op(final String name, final String path, final Object value) {
+      this.name = name;
+      this.path = path;
+      this.value = value;
+    }
+  }
+
+  private final List<Op> mOps;
+
+  private FirestackTransactionOps(final List<Op> ops) {
+    mOps = ops;
+  }
+
+  public static FirestackTransactionOps parse(final ReadableArray operations) {
+    List<Op> ops = new ArrayList<Op>(operations.size());
+    for (int i = 0; i < operations.size(); i++) {
+      ReadableMap operation = operations.getMap(i);
+      String name = operation.getString("op");
+      if (!name.equals("increment") && !name.equals("append") && !name.equals("setIfAbsent") &&
+          !name.equals("max") && !name.equals("min")) {
+        throw new IllegalArgumentException("Unknown transaction operation: " + name);
+      }
+      String path = operation.hasKey("path") ? operation.getString("path") : "";
+      Object value = operation.hasKey("value") ? FirestackWriteEncoder.encodeValue(operation, "value") : null;
+      if (value == null) {
+        throw new IllegalArgumentException("Transaction operation " + name + " needs a value");
+      }
+      ops.add(new Op(name, path, value));
+    }
+    return new FirestackTransactionOps(ops);
+  }
+
+  /**
+   * The handler for DatabaseReference.runTransaction(): applies the ops on
+   * every try and reports `committed` and the number of `retries` to
+   * `callback` once Firebase is done. The resulting snapshot is serialized
+   * on the serializer lane of `path`.
+   */
+  public Transaction.Handler handler(final String path,
+                                     final FirestackSerializationExecutor serializer,
+                                     final Callback callback) {
+    // doTransaction() runs on a Firebase worker, onComplete() on the main thread
+    final AtomicInteger attempts = new AtomicInteger();
+    return new Transaction.Handler() {
+      @Override
+      public Transaction.Result doTransaction(MutableData data) {
+        attempts.incrementAndGet();
+        return apply(data) ? Transaction.success(data) : Transaction.abort();
+      }
+
+      @Override
+      public void onComplete(final DatabaseError error, final boolean committed, final DataSnapshot snapshot) {
+        final int retries = Math.max(0, attempts.get() - 1);
+        FirestackMetrics.add("database.transactionRetries", retries);
+        if (error != null) {
+          WritableMap err = Arguments.createMap();
+          err.putInt("errorCode", error.getCode());
+          err.putString("errorDetails", error.getDetails());
+          err.putString("description", error.getMessage());
+          err.putInt("retries", retries);
+          callback.invoke(err);
+          return;
+        }
+
+        serializer.execute(path, new Runnable() {
+          @Override
+          public void run() {
+            WritableMap res = Arguments.createMap();
+            res.putString("status", committed ? "success" : "aborted");
+            res.putString("method", "runTransaction");
+            res.putBoolean("committed", committed);
+            res.putInt("retries", retries);
+            if (snapshot != null) {
+              res.putMap("snapshot", FirestackSnapshotSerializer.snapshotToMap(snapshot));
+            }
+            callback.invoke(null, res);
+          }
+        });
+      }
+    };
+  }
+
+  /**
+   * Applies every op to `data`. Returns false when an op does not fit the
+   * current value (e.g. incrementing a string), which aborts the transaction.
+   */
+  public boolean apply(final MutableData data) {
+    for (Op op : mOps) {
+      MutableData node = op.path.length() == 0 ? data : data.child(op.path);
+      Object next = applyOp(op.name, node.getValue(), op.value);
+      if (next == null) {
+        return false;
+      }
+      node.setValue(next);
+    }
+    return true;
+  }
+
+  /**
+   * New value for `current` after the op, or null if it can't be applied.
+   */
+  static Object applyOp(final String name, final Object current, final Object value) {
+    if (name.equals("setIfAbsent")) {
+      return current == null ? value : current;
+    }
+
+    if (name.equals("append")) {
+      if (current == null) {
+        List<Object> list = new ArrayList<Object>(1);
+        list.add(value);
+        return list;
+      } else if (current instanceof List) {
+        List<Object> list = new ArrayList<Object>((List<?>) current);
+        list.add(value);
+        return list;
+      } else if (current instanceof String && value instanceof String) {
+        return current + (String) value;
+      }
+      return null;
+    }
+
+    if (!(value instanceof Number) || (current != null && !(current instanceof Number))) {
+      return null;
+    }
+    Number base = current == null ? 0L : (Number) current;
+    Number delta = (Number) value;
+    boolean integral = base instanceof Long && delta instanceof Long;
+
+    if (name.equals("increment")) {
+      return integral
+        ? (Object) (base.longValue() + delta.longValue())
+        : (Object) (base.doubleValue() + delta.doubleValue());
+    }
+
+    if (current == null) {
+      return value;
+    }
+    boolean greater = integral
+      ? delta.longValue() > base.longValue()
+      : delta.doubleValue() > base.doubleValue();
+    if (name.equals("max")) {
+      return greater ? delta : base;
+    }
+    boolean less = integral
+      ? delta.longValue() < base.longValue()
+      : delta.doubleValue() < base.doubleValue();
+    return less ? delta : base;
+  }
+}
@@ -0,0 +1,233 @@
+package io.fullstack.firestack;
+
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.Callback;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+/**
+ * Decides when queued uploads start.
+ *
+ * At most `maxConcurrent` uploads run at once. Waiting uploads sit in one of
+ * two FIFO lanes: user initiated uploads are preferred over background ones,
+ * but after USER_BURST user starts in a row a waiting background upload gets
+ * the next slot so it is never starved. A paused upload keeps its slot.
+ *
+ * Byte totals are summed over everything queued, running or finished since
+ * the queue was last idle, which is what the aggregate progress reports.
+ */
+class FirestackUploadQueue {
+  private static final String TAG = "FirestackUploadQueue";
+  private static final int DEFAULT_MAX_CONCURRENT = 3;
+  private static final int USER_BURST = 4;
+
+  public static final String PRIORITY_USER = "user";
+  public static final String PRIORITY_BACKGROUND = "background";
+
+  interface Starter {
+    void start(Entry entry);
+  }
+
+  static class Entry {
+    final FirestackUploadSessions.Session session;
+    final Callback callback;
+    final String priority;
+    final long queuedAt = System.currentTimeMillis();
+    long bytesTransferred;
+    long totalBytes;
+
+    Entry(final FirestackUploadSessions.Session session, final Callback callback, final String priority) {
+      this.session = session;
+      this.callback = callback;
+      this.priority = PRIORITY_BACKGROUND.equals(priority) ? PRIORITY_BACKGROUND : PRIORITY_USER;
+      this.bytesTransferred = session.bytesTransferred;
+      this.totalBytes = new File(session.filepath).length();
+    }
+  }
+
+  private final Starter mStarter;
+  private final ArrayDeque<Entry> mUserLane = new ArrayDeque<Entry>();
+  private final ArrayDeque<Entry> mBackgroundLane = new ArrayDeque<Entry>();
+  private final Map<String, Entry> mRunning = new LinkedHashMap<String, Entry>();
+  private int mMaxConcurrent = DEFAULT_MAX_CONCURRENT;
+  private int mUserStreak = 0;
+
+  // since the queue was last idle
+  private int mCompleted = 0;
+  private int mFailed = 0;
+  private long mFinishedBytes = 0;
+
+  public FirestackUploadQueue(final Starter starter) {
+    mStarter = starter;
+  }
+
+  public void setMaxConcurrent(final int maxConcurrent) {
+    synchronized (this) {
+      mMaxConcurrent = Math.max(1, maxConcurrent);
+    }
+    this.drain();
+  }
+
+  public synchronized boolean contains(final String taskId) {
+    return mRunning.containsKey(taskId) || find(mUserLane, taskId) != null || find(mBackgroundLane, taskId) != null;
+  }
+
+  public void enqueue(final Entry entry) {
+    synchronized (this) {
+      if (mRunning.isEmpty() && mUserLane.isEmpty() && mBackgroundLane.isEmpty()) {
+        mCompleted = 0;
+        mFailed = 0;
+        mFinishedBytes = 0;
+      }
+      (PRIORITY_BACKGROUND.equals(entry.priority) ? mBackgroundLane : mUserLane).addLast(entry);
+      Log.d(TAG, "Queued " + entry.session.taskId + " (" + entry.priority + ")");
+    }
+    this.drain();
+  }
+
+  /**
+   * Removes an upload that has not started yet, returning it so its caller
+   * can be told. Running uploads are left alone.
+   */
+  public synchronized Entry dequeue(final String taskId) {
+    Entry entry = find(mUserLane, taskId);
+    if (entry != null) {
+      mUserLane.remove(entry);
+      return entry;
+    }
+    entry = find(mBackgroundLane, taskId);
+    if (entry != null) {
+      mBackgroundLane.remove(entry);
+    }
+    return entry;
+  }
+
+  public synchronized void progress(final String taskId, final long bytesTransferred, final long totalBytes) {
+    Entry entry = mRunning.get(taskId);
+    if (entry != null) {
+      entry.bytesTransferred = bytesTransferred;
+      if (totalBytes > 0) {
+        entry.totalBytes = totalBytes;
+      }
+    }
+  }
+
+  public void finished(final String taskId, final boolean success) {
+    synchronized (this) {
+      Entry entry = mRunning.remove(taskId);
+      if (entry == null) {
+        return;
+      }
+      if (success) {
+        mCompleted++;
+        mFinishedBytes += entry.totalBytes;
+      } else {
+        mFailed++;
+      }
+    }
+    this.drain();
+  }
+
+  /**
+   * `{running, queued, completed, failed, bytesTransferred, totalBytes}`
+   * over the current run of the queue.
+   */
+  public synchronized WritableMap getProgress() {
+    long transferred = mFinishedBytes;
+    long total = mFinishedBytes;
+    for (Entry entry : mRunning.values()) {
+      transferred += entry.bytesTransferred;
+      total += entry.totalBytes;
+    }
+    for (Entry entry : mUserLane) {
+      total += entry.totalBytes;
+    }
+    for (Entry entry : mBackgroundLane) {
+      total += entry.totalBytes;
+    }
+
+    WritableMap data = Arguments.createMap();
+    data.putInt("running", mRunning.size());
+    data.putInt("queued", mUserLane.size() + mBackgroundLane.size());
+    data.putInt("completed", mCompleted);
+    data.putInt("failed", mFailed);
+    data.putDouble("bytesTransferred", transferred);
+    data.putDouble("totalBytes", total);
+    return data;
+  }
+
+  public synchronized WritableMap getState() {
+    WritableArray running = Arguments.createArray();
+    for (Entry entry : mRunning.values()) {
+      running.pushMap(describe(entry));
+    }
+    WritableArray queued = Arguments.createArray();
+    for (Entry entry : mUserLane) {
+      queued.pushMap(describe(entry));
+    }
+    for (Entry entry : mBackgroundLane) {
+      queued.pushMap(describe(entry));
+    }
+
+    WritableMap state = this.getProgress();
+    state.putInt("maxConcurrent", mMaxConcurrent);
+    state.putArray("runningTasks", running);
+    state.putArray("queuedTasks", queued);
+    return state;
+  }
+
+  private void drain() {
+    while (true) {
+      Entry next;
+      synchronized (this) {
+        if (mRunning.size() >= mMaxConcurrent) {
+          return;
+        }
+        next = this.pollNext();
+        if (next == null) {
+          return;
+        }
+        mRunning.put(next.session.taskId, next);
+      }
+      Log.d(TAG, "Starting " + next.session.taskId);
+      mStarter.start(next);
+    }
+  }
+
+  private Entry pollNext() {
+    boolean backgroundTurn = mUserStreak >= USER_BURST && !mBackgroundLane.isEmpty();
+    if (!backgroundTurn && !mUserLane.isEmpty()) {
+      mUserStreak++;
+      return mUserLane.pollFirst();
+    }
+    mUserStreak = 0;
+    return mBackgroundLane.pollFirst();
+  }
+
+  private static Entry find(final ArrayDeque<Entry> lane, final String taskId) {
+    for (Entry entry : lane) {
+      if (entry.session.taskId.equals(taskId)) {
+        return entry;
+      }
+    }
+    return null;
+  }
+
+  private static WritableMap describe(final Entry entry) {
+    WritableMap task = Arguments.createMap();
+    task.putString("taskId", entry.session.taskId);
+    task.putString("priority", entry.priority);
+    task.putString("filepath", entry.session.filepath);
+    task.putDouble("queuedAt", entry.queuedAt);
+    task.putDouble("bytesTransferred", entry.bytesTransferred);
+    task.putDouble("totalBytes", entry.totalBytes);
+    return task;
+  }
+}
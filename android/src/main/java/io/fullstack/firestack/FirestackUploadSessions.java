@@ -0,0 +1,123 @@
+package io.fullstack.firestack;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Upload sessions that have not finished yet, kept in SharedPreferences so an
+ * upload interrupted by the app being killed can carry on from its last
+ * committed byte on the next launch.
+ *
+ * Entries are keyed by task id and hold what is needed to call `putFile`
+ * again: the bucket url, object name, local file and, once Firebase has
+ * created it, the resumable session uri.
+ */
+class FirestackUploadSessions {
+  private static final String TAG = "FirestackUploadSessions";
+  private static final String PREFERENCES = "firestack-uploads";
+
+  static class Session {
+    final String taskId;
+    final String storageUrl;
+    final String name;
+    final String filepath;
+    String sessionUri;
+    long bytesTransferred;
+    long totalBytes;
+
+    Session(final String taskId, final String storageUrl, final String name, final String filepath) {
+      this.taskId = taskId;
+      this.storageUrl = storageUrl;
+      this.name = name;
+      this.filepath = filepath;
+    }
+  }
+
+  private final SharedPreferences mPreferences;
+
+  public FirestackUploadSessions(final Context context) {
+    mPreferences = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+  }
+
+  public void save(final Session session) {
+    try {
+      JSONObject json = new JSONObject();
+      json.put("storageUrl", session.storageUrl);
+      json.put("name", session.name);
+      json.put("filepath", session.filepath);
+      json.put("sessionUri", session.sessionUri);
+      json.put("bytesTransferred", session.bytesTransferred);
+      json.put("totalBytes", session.totalBytes);
+      mPreferences.edit().putString(session.taskId, json.toString()).apply();
+    } catch (JSONException e) {
+      Log.e(TAG, "Could not save upload session " + session.taskId, e);
+    }
+  }
+
+  public Session load(final String taskId) {
+    return parse(taskId, mPreferences.getString(taskId, null));
+  }
+
+  public List<Session> loadAll() {
+    List<Session> sessions = new ArrayList<Session>();
+    for (Map.Entry<String, ?> entry : mPreferences.getAll().entrySet()) {
+      Object value = entry.getValue();
+      Session session = parse(entry.getKey(), value instanceof String ? (String) value : null);
+      if (session != null) {
+        sessions.add(session);
+      }
+    }
+    return sessions;
+  }
+
+  /**
+   * The saved sessions that can still be resumed. Sessions whose local file
+   * is gone are dropped.
+   */
+  public List<Session> loadResumable() {
+    List<Session> sessions = new ArrayList<Session>();
+    for (Session session : this.loadAll()) {
+      if (!new File(session.filepath).exists()) {
+        Log.w(TAG, "Dropping upload " + session.taskId + ", " + session.filepath + " is gone");
+        this.remove(session.taskId);
+        continue;
+      }
+      sessions.add(session);
+    }
+    return sessions;
+  }
+
+  public void remove(final String taskId) {
+    mPreferences.edit().remove(taskId).apply();
+  }
+
+  private Session parse(final String taskId, final String value) {
+    if (value == null) {
+      return null;
+    }
+    try {
+      JSONObject json = new JSONObject(value);
+      Session session = new Session(taskId,
+        json.getString("storageUrl"),
+        json.getString("name"),
+        json.getString("filepath"));
+      session.sessionUri = json.isNull("sessionUri") ? null : json.optString("sessionUri", null);
+      session.bytesTransferred = json.optLong("bytesTransferred", 0);
+      session.totalBytes = json.optLong("totalBytes", 0);
+      return session;
+    } catch (JSONException e) {
+      Log.w(TAG, "Dropping unreadable upload session " + taskId);
+      this.remove(taskId);
+      return null;
+    }
+  }
+}
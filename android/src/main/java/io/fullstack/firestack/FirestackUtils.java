@@ -12,7 +12,6 @@ import com.facebook.react.modules.core.DeviceEventManagerModule;
 import com.facebook.react.bridge.Arguments;
 import com.facebook.react.bridge.Callback;
 import com.facebook.react.bridge.WritableMap;
-import com.facebook.react.bridge.WritableArray;
 import com.facebook.react.bridge.ReadableMap;
 
 import com.facebook.react.bridge.ReadableArray;
@@ -49,121 +48,55 @@ public class FirestackUtils {
   }
 
   // snapshot
-  public static WritableMap dataSnapshotToMap(String name, 
-    String path, 
+  public static WritableMap dataSnapshotToMap(String name,
+    String path,
     DataSnapshot dataSnapshot) {
-      WritableMap data = Arguments.createMap();
-
-      data.putString("key", dataSnapshot.getKey());
-      data.putBoolean("exists", dataSnapshot.exists());
-      data.putBoolean("hasChildren", dataSnapshot.hasChildren());
-
-      data.putDouble("childrenCount", dataSnapshot.getChildrenCount());
-      if (!dataSnapshot.hasChildren()) {
-        Object value = dataSnapshot.getValue();
-        String type = value!=null ? value.getClass().getName() : "";
-        switch (type) {
-          case "java.lang.Boolean":
-            data.putBoolean("value", (Boolean)value);
-            break;
-          case "java.lang.Long":
-            Long longVal = (Long) value;
-            data.putDouble("value", (double)longVal);
-            break;
-          case "java.lang.Double":
-            data.putDouble("value", (Double) value);
-            break;
-          case "java.lang.String":
-            data.putString("value",(String) value);
-            break;
-          default:
-            data.putString("value", null);
-        }
-      } else{
-        WritableMap valueMap = FirestackUtils.castSnapshotValue(dataSnapshot);
-        data.putMap("value", valueMap);
-      }
-
-      // Child keys
-      WritableArray childKeys = FirestackUtils.getChildKeys(dataSnapshot);
-      data.putArray("childKeys", childKeys);
+      return dataSnapshotToMap(name, path, dataSnapshot, null);
+  }
 
-      Object priority = dataSnapshot.getPriority();
-      if (priority == null) {
-        data.putString("priority", null);
+  /**
+   * Shapes the snapshot as the plan asks: projected by its `select`,
+   * `maxDepth` or `shallow` options and MessagePack encoded for
+   * `format:binary`.
+   */
+  public static WritableMap dataSnapshotToMap(String name,
+    String path,
+    DataSnapshot dataSnapshot,
+    FirestackQueryPlan plan) {
+      long start = FirestackMetrics.start();
+      FirestackProjection projection = plan == null ? null : plan.getProjection();
+      WritableMap snapshot;
+      if (plan != null && "binary".equals(plan.getOption("format"))) {
+        snapshot = FirestackMsgPackEncoder.snapshotToMap(dataSnapshot, projection);
+      } else if (projection != null) {
+        snapshot = projection.snapshotToMap(dataSnapshot);
       } else {
-        data.putString("priority", priority.toString());
+        snapshot = FirestackSnapshotSerializer.snapshotToMap(dataSnapshot);
       }
 
       WritableMap eventMap = Arguments.createMap();
       eventMap.putString("eventName", name);
-      eventMap.putMap("snapshot", data);
+      eventMap.putMap("snapshot", snapshot);
       eventMap.putString("path", path);
+      FirestackMetrics.stop("serializer.snapshot", start);
       return eventMap;
   }
 
-  public static <Any> Any castSnapshotValue(DataSnapshot snapshot) {
-    if (snapshot.hasChildren()) {
-      WritableMap data = Arguments.createMap();
-      for (DataSnapshot child : snapshot.getChildren()) {
-        Any castedChild = castSnapshotValue(child);
-        switch (castedChild.getClass().getName()) {
-          case "java.lang.Boolean":
-            data.putBoolean(child.getKey(), (Boolean) castedChild);
-            break;
-          case "java.lang.Long":
-            Long longVal = (Long) castedChild;
-            data.putDouble(child.getKey(), (double)longVal);
-            break;
-          case "java.lang.Double":
-            data.putDouble(child.getKey(), (Double) castedChild);
-            break;
-          case "java.lang.String":
-            data.putString(child.getKey(), (String) castedChild);
-            break;
-          case "com.facebook.react.bridge.WritableNativeMap":
-            data.putMap(child.getKey(), (WritableMap) castedChild);
-            break;
-          default:
-            Log.w(TAG, "Invalid type: " + castedChild.getClass().getName());
-            break;
-        }
-      }
-      return (Any) data;
-    } else {
-      if (snapshot.getValue() != null) {
-        String type = snapshot.getValue().getClass().getName();
-        switch (type) {
-          case "java.lang.Boolean":
-            return (Any)(snapshot.getValue());
-          case "java.lang.Long":
-            return (Any)(snapshot.getValue());
-          case "java.lang.Double":
-            return (Any)(snapshot.getValue());
-          case "java.lang.String":
-            return (Any)(snapshot.getValue());
-          default:
-            Log.w(TAG, "Invalid type: "+type);
-            return (Any) null;
-        }
-      }
-      return (Any) null;
-    }
+  public static Map<String, Object> recursivelyDeconstructReadableMap(ReadableMap readableMap) {
+      long start = FirestackMetrics.start();
+      Map<String, Object> deconstructedMap = deconstructReadableMap(readableMap);
+      FirestackMetrics.stop("bridge.readableMap", start);
+      return deconstructedMap;
   }
 
-  public static WritableArray getChildKeys(DataSnapshot snapshot) {
-    WritableArray childKeys = Arguments.createArray();
-
-    if (snapshot.hasChildren()) {
-      for (DataSnapshot child : snapshot.getChildren()) {
-        childKeys.pushString(child.getKey());
-      }
-    }
-
-    return childKeys;
+  public static List<Object> recursivelyDeconstructReadableArray(ReadableArray readableArray) {
+      long start = FirestackMetrics.start();
+      List<Object> deconstructedList = deconstructReadableArray(readableArray);
+      FirestackMetrics.stop("bridge.readableArray", start);
+      return deconstructedList;
   }
 
-  public static Map<String, Object> recursivelyDeconstructReadableMap(ReadableMap readableMap) {
+  private static Map<String, Object> deconstructReadableMap(ReadableMap readableMap) {
       ReadableMapKeySetIterator iterator = readableMap.keySetIterator();
       Map<String, Object> deconstructedMap = new HashMap<>();
       while (iterator.hasNextKey()) {
@@ -183,10 +116,10 @@ public class FirestackUtils {
                   deconstructedMap.put(key, readableMap.getString(key));
                   break;
               case Map:
-                  deconstructedMap.put(key, FirestackUtils.recursivelyDeconstructReadableMap(readableMap.getMap(key)));
+                  deconstructedMap.put(key, FirestackUtils.deconstructReadableMap(readableMap.getMap(key)));
                   break;
               case Array:
-                  deconstructedMap.put(key, FirestackUtils.recursivelyDeconstructReadableArray(readableMap.getArray(key)));
+                  deconstructedMap.put(key, FirestackUtils.deconstructReadableArray(readableMap.getArray(key)));
                   break;
               default:
                   throw new IllegalArgumentException("Could not convert object with key: " + key + ".");
@@ -196,7 +129,7 @@ public class FirestackUtils {
       return deconstructedMap;
   }
 
-  public static List<Object> recursivelyDeconstructReadableArray(ReadableArray readableArray) {
+  private static List<Object> deconstructReadableArray(ReadableArray readableArray) {
       List<Object> deconstructedList = new ArrayList<>(readableArray.size());
       for (int i = 0; i < readableArray.size(); i++) {
           ReadableType indexType = readableArray.getType(i);
@@ -214,10 +147,10 @@ public class FirestackUtils {
                   deconstructedList.add(i, readableArray.getString(i));
                   break;
               case Map:
-                  deconstructedList.add(i, FirestackUtils.recursivelyDeconstructReadableMap(readableArray.getMap(i)));
+                  deconstructedList.add(i, FirestackUtils.deconstructReadableMap(readableArray.getMap(i)));
                   break;
               case Array:
-                  deconstructedList.add(i, FirestackUtils.recursivelyDeconstructReadableArray(readableArray.getArray(i)));
+                  deconstructedList.add(i, FirestackUtils.deconstructReadableArray(readableArray.getArray(i)));
                   break;
               default:
                   throw new IllegalArgumentException("Could not convert object at index " + i + ".");
@@ -0,0 +1,104 @@
+package io.fullstack.firestack;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Folds a list of set/update/remove operations into the fan-out map of a
+ * single root updateChildren() call.
+ *
+ * Operations apply in order. Firebase refuses an update in which one path
+ * is an ancestor of another, so a write below a path that is already in
+ * the batch is merged into that path's value, and a write above it
+ * replaces the entries it covers.
+ */
+class FirestackWriteBatch {
+  private final Map<String, Object> mUpdates = new LinkedHashMap<String, Object>();
+  private int mOperations = 0;
+
+  public void set(final String path, final Object value) {
+    this.put(normalize(path), value);
+    mOperations++;
+  }
+
+  public void update(final String path, final Map<String, Object> values) {
+    String base = normalize(path);
+    for (Map.Entry<String, Object> entry : values.entrySet()) {
+      String child = normalize(entry.getKey());
+      this.put(base.length() == 0 ? child : base + "/" + child, entry.getValue());
+    }
+    mOperations++;
+  }
+
+  public void remove(final String path) {
+    this.put(normalize(path), null);
+    mOperations++;
+  }
+
+  public Map<String, Object> getUpdates() {
+    return mUpdates;
+  }
+
+  public int getOperationCount() {
+    return mOperations;
+  }
+
+  private void put(final String path, final Object value) {
+    if (path.length() == 0) {
+      // a root write replaces everything batched so far
+      mUpdates.clear();
+      mUpdates.put("/", value);
+      return;
+    }
+
+    Iterator<String> it = mUpdates.keySet().iterator();
+    while (it.hasNext()) {
+      String existing = it.next();
+      if (existing.equals(path) || existing.startsWith(path + "/")) {
+        it.remove();
+      }
+    }
+
+    for (Map.Entry<String, Object> entry : mUpdates.entrySet()) {
+      String existing = entry.getKey();
+      if (existing.equals("/") || path.startsWith(existing + "/")) {
+        String relative = existing.equals("/") ? path : path.substring(existing.length() + 1);
+        entry.setValue(merge(entry.getValue(), relative.split("/"), 0, value));
+        return;
+      }
+    }
+    mUpdates.put(path, value);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Object merge(final Object tree, final String[] segments, final int index, final Object value) {
+    Map<String, Object> node = tree instanceof Map
+      ? (Map<String, Object>) tree
+      : new HashMap<String, Object>();
+
+    String key = segments[index];
+    if (index == segments.length - 1) {
+      if (value == null) {
+        node.remove(key);
+      } else {
+        node.put(key, value);
+      }
+    } else {
+      node.put(key, merge(node.get(key), segments, index + 1, value));
+    }
+    return node;
+  }
+
+  private static String normalize(final String path) {
+    String normalized = path == null ? "" : path.trim();
+    while (normalized.startsWith("/")) {
+      normalized = normalized.substring(1);
+    }
+    while (normalized.endsWith("/")) {
+      normalized = normalized.substring(0, normalized.length() - 1);
+    }
+    return normalized;
+  }
+}
@@ -0,0 +1,148 @@
+package io.fullstack.firestack;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.Callback;
+import com.facebook.react.bridge.WritableMap;
+
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.FirebaseDatabase;
+
+/**
+ * Opt-in coalescing for high frequency set() calls on the same path.
+ *
+ * The first write to a path opens a window; writes arriving before it
+ * closes replace the pending value and the write they replace completes
+ * straight away with a `coalesced` status. When the window closes only the
+ * latest value is written.
+ *
+ * A direct write calls flushOverlapping() first, so a pending value at, above
+ * or below its path is sent ahead of it instead of landing on top of it. A
+ * coalesced write to a new path does the same with pending values of other
+ * paths it overlaps, whatever their windows, so overlapping values always
+ * reach Firebase in the order they were issued. Paths are compared without
+ * leading or trailing slashes. Values are handed to Firebase under the lock,
+ * which keeps that order even when the window closes at the same time.
+ */
+class FirestackWriteCoalescer {
+  private static final String TAG = "FirestackCoalescer";
+
+  private static class PendingWrite {
+    String path;
+    Object value;
+    Callback callback;
+  }
+
+  private final Handler mHandler = new Handler(Looper.getMainLooper());
+  private final Map<String, PendingWrite> mPending = new HashMap<String, PendingWrite>();
+
+  public void set(final String path, final Object value, final long windowMs, final Callback callback) {
+    final String key = normalize(path);
+    Callback superseded = null;
+    synchronized (this) {
+      PendingWrite write = mPending.get(key);
+      if (write != null) {
+        superseded = write.callback;
+      } else {
+        // pending values above or below go first, as they were issued first
+        this.flushOverlapping(path);
+        final PendingWrite created = write = new PendingWrite();
+        mPending.put(key, write);
+        mHandler.postDelayed(new Runnable() {
+          @Override
+          public void run() {
+            flush(key, created);
+          }
+        }, Math.max(0, windowMs));
+      }
+      write.path = path;
+      write.value = value;
+      write.callback = callback;
+    }
+
+    if (superseded != null) {
+      FirestackMetrics.increment("database.writesSaved");
+      WritableMap res = Arguments.createMap();
+      res.putString("status", "coalesced");
+      res.putString("method", "set");
+      res.putString("path", path);
+      superseded.invoke(null, res);
+    }
+  }
+
+  /**
+   * Writes the pending values of every path overlapping `path` now.
+   */
+  public synchronized void flushOverlapping(final String path) {
+    if (mPending.isEmpty()) {
+      return;
+    }
+    String normalized = normalize(path);
+    List<String> overlapping = new ArrayList<String>();
+    for (String other : mPending.keySet()) {
+      if (other.equals(normalized) || other.length() == 0 || normalized.length() == 0 ||
+          other.startsWith(normalized + "/") || normalized.startsWith(other + "/")) {
+        overlapping.add(other);
+      }
+    }
+    for (String key : overlapping) {
+      Log.d(TAG, "Flushing coalesced value for " + key + " ahead of a write to " + path);
+      this.flush(key, mPending.get(key));
+    }
+  }
+
+  /**
+   * Sends `write` if it is still the pending write for `key`; the window of
+   * one that was flushed early may close on a newer write of the same path.
+   */
+  private synchronized void flush(final String key, final PendingWrite write) {
+    if (write == null || mPending.get(key) != write) {
+      return;
+    }
+    mPending.remove(key);
+    final String path = write.path;
+    final Callback callback = write.callback;
+
+    FirestackMetrics.increment("database.writesCoalesced");
+    Log.d(TAG, "Writing coalesced value for " + path);
+    DatabaseReference ref = FirebaseDatabase.getInstance().getReference(path);
+    ref.setValue(write.value, new DatabaseReference.CompletionListener() {
+      @Override
+      public void onComplete(DatabaseError error, DatabaseReference ref) {
+        if (error != null) {
+          WritableMap err = Arguments.createMap();
+          err.putInt("errorCode", error.getCode());
+          err.putString("errorDetails", error.getDetails());
+          err.putString("description", error.getMessage());
+          callback.invoke(err);
+        } else {
+          WritableMap res = Arguments.createMap();
+          res.putString("status", "success");
+          res.putString("method", "set");
+          res.putString("path", path);
+          callback.invoke(null, res);
+        }
+      }
+    });
+  }
+
+  private static String normalize(final String path) {
+    String normalized = path == null ? "" : path;
+    while (normalized.startsWith("/")) {
+      normalized = normalized.substring(1);
+    }
+    while (normalized.endsWith("/")) {
+      normalized = normalized.substring(0, normalized.length() - 1);
+    }
+    return normalized;
+  }
+}
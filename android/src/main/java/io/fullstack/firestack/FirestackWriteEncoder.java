@@ -0,0 +1,130 @@
+package io.fullstack.firestack;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.ReadableMapKeySetIterator;
+
+/**
+ * Turns the values javascript writes into the plain java tree that
+ * DatabaseReference.setValue() and updateChildren() accept.
+ *
+ * Unlike FirestackUtils.recursivelyDeconstructReadableMap, whole numbers are
+ * kept as Long (which is what Firebase hands back on reads) instead of being
+ * boxed as Double, maps and lists are allocated at their final size and a
+ * single type switch handles both maps and arrays. The encoder has no state
+ * beyond a per-thread scratch list of keys, so every call shares it.
+ */
+class FirestackWriteEncoder {
+  // largest whole number a javascript double holds exactly
+  private static final double MAX_SAFE_INTEGER = 9007199254740991d;
+
+  // the keys of every map being encoded on this thread, innermost last
+  private static final ThreadLocal<ArrayList<String>> sKeys = new ThreadLocal<ArrayList<String>>() {
+    @Override
+    protected ArrayList<String> initialValue() {
+      return new ArrayList<String>();
+    }
+  };
+
+  public static Map<String, Object> encode(final ReadableMap map) {
+    long start = FirestackMetrics.start();
+    Map<String, Object> tree = encodeMap(map, sKeys.get());
+    FirestackMetrics.stop("bridge.writeEncoder", start);
+    return tree;
+  }
+
+  public static Object encodeNumber(final double value) {
+    if (value == Math.rint(value) && Math.abs(value) <= MAX_SAFE_INTEGER) {
+      return (long) value;
+    }
+    return value;
+  }
+
+  /**
+   * Encodes the entry `key` of `map`, whatever its type.
+   */
+  public static Object encodeValue(final ReadableMap map, final String key) {
+    return encodeValue(map, key, sKeys.get());
+  }
+
+  private static Object encodeValue(final ReadableMap map, final String key, final ArrayList<String> keys) {
+    switch (map.getType(key)) {
+      case Null:
+        return null;
+      case Boolean:
+        return map.getBoolean(key);
+      case Number:
+        return encodeNumber(map.getDouble(key));
+      case String:
+        return map.getString(key);
+      case Map:
+        return encodeMap(map.getMap(key), keys);
+      case Array:
+        return encodeArray(map.getArray(key), keys);
+      default:
+        throw new IllegalArgumentException("Could not convert object with key: " + key + ".");
+    }
+  }
+
+  /**
+   * A bridge map has no size(), so its keys are read once onto the end of
+   * `keys` first and the HashMap is allocated at its final capacity rather
+   * than rehashed as it grows. Nested maps stack their keys after ours and
+   * take them off again, so one list per thread serves any depth.
+   */
+  private static Map<String, Object> encodeMap(final ReadableMap map, final ArrayList<String> keys) {
+    int from = keys.size();
+    ReadableMapKeySetIterator iterator = map.keySetIterator();
+    while (iterator.hasNextKey()) {
+      keys.add(iterator.nextKey());
+    }
+    int to = keys.size();
+    Map<String, Object> tree = new HashMap<String, Object>((int) ((to - from) / 0.75f) + 1);
+    try {
+      for (int i = from; i < to; i++) {
+        String key = keys.get(i);
+        tree.put(key, encodeValue(map, key, keys));
+      }
+    } finally {
+      for (int i = keys.size() - 1; i >= from; i--) {
+        keys.remove(i);
+      }
+    }
+    return tree;
+  }
+
+  private static List<Object> encodeArray(final ReadableArray array, final ArrayList<String> keys) {
+    int size = array.size();
+    List<Object> list = new ArrayList<Object>(size);
+    for (int i = 0; i < size; i++) {
+      switch (array.getType(i)) {
+        case Null:
+          list.add(null);
+          break;
+        case Boolean:
+          list.add(array.getBoolean(i));
+          break;
+        case Number:
+          list.add(encodeNumber(array.getDouble(i)));
+          break;
+        case String:
+          list.add(array.getString(i));
+          break;
+        case Map:
+          list.add(encodeMap(array.getMap(i), keys));
+          break;
+        case Array:
+          list.add(encodeArray(array.getArray(i), keys));
+          break;
+        default:
+          throw new IllegalArgumentException("Could not convert object at index " + i + ".");
+      }
+    }
+    return list;
+  }
+}
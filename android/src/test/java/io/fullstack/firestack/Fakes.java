@@ -0,0 +1,127 @@
+package io.fullstack.firestack;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.mockito.MockedStatic;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+import com.google.firebase.database.DataSnapshot;
+
+/**
+ * Stand-ins for the parts of react native and Firebase that need a device.
+ *
+ * Arguments.createMap() allocates native maps, so tests that serialize
+ * anything open mockArguments() in @Before and close it in @After.
+ */
+class Fakes {
+
+  public static MockedStatic<Arguments> mockArguments() {
+    MockedStatic<Arguments> arguments = Mockito.mockStatic(Arguments.class);
+    arguments.when(new MockedStatic.Verification() {
+      @Override
+      public void apply() {
+        Arguments.createMap();
+      }
+    }).thenAnswer(new Answer<WritableMap>() {
+      @Override
+      public WritableMap answer(InvocationOnMock invocation) {
+        return new JavaOnlyMap();
+      }
+    });
+    arguments.when(new MockedStatic.Verification() {
+      @Override
+      public void apply() {
+        Arguments.createArray();
+      }
+    }).thenAnswer(new Answer<WritableArray>() {
+      @Override
+      public WritableArray answer(InvocationOnMock invocation) {
+        return new JavaOnlyArray();
+      }
+    });
+    return arguments;
+  }
+
+  /**
+   * SystemClock.elapsedRealtime() reads `now[0]`.
+   */
+  public static MockedStatic<SystemClock> mockClock(final long[] now) {
+    MockedStatic<SystemClock> clock = Mockito.mockStatic(SystemClock.class);
+    clock.when(new MockedStatic.Verification() {
+      @Override
+      public void apply() {
+        SystemClock.elapsedRealtime();
+      }
+    }).thenAnswer(new Answer<Long>() {
+      @Override
+      public Long answer(InvocationOnMock invocation) {
+        return now[0];
+      }
+    });
+    return clock;
+  }
+
+  /**
+   * Builds a tree from alternating keys and values, keeping their order.
+   */
+  public static Map<String, Object> tree(final Object... keysAndValues) {
+    Map<String, Object> tree = new LinkedHashMap<String, Object>();
+    for (int i = 0; i < keysAndValues.length; i += 2) {
+      tree.put((String) keysAndValues[i], keysAndValues[i + 1]);
+    }
+    return tree;
+  }
+
+  /**
+   * A DataSnapshot of `value`: nested maps become children in iteration
+   * order, anything else is a leaf. A null value does not exist.
+   */
+  @SuppressWarnings("unchecked")
+  public static DataSnapshot snapshot(final String key, final Object value) {
+    DataSnapshot snapshot = mock(DataSnapshot.class);
+    List<DataSnapshot> children = new ArrayList<DataSnapshot>();
+    final Map<String, DataSnapshot> byKey = new LinkedHashMap<String, DataSnapshot>();
+    if (value instanceof Map) {
+      for (Map.Entry<String, Object> entry : ((Map<String, Object>) value).entrySet()) {
+        DataSnapshot child = snapshot(entry.getKey(), entry.getValue());
+        children.add(child);
+        byKey.put(entry.getKey(), child);
+      }
+    }
+
+    when(snapshot.getKey()).thenReturn(key);
+    when(snapshot.exists()).thenReturn(value != null);
+    when(snapshot.hasChildren()).thenReturn(!children.isEmpty());
+    when(snapshot.getChildrenCount()).thenReturn((long) children.size());
+    when(snapshot.getChildren()).thenReturn(children);
+    when(snapshot.getValue()).thenReturn(value);
+    when(snapshot.child(Mockito.anyString())).thenAnswer(new Answer<DataSnapshot>() {
+      @Override
+      public DataSnapshot answer(InvocationOnMock invocation) {
+        String path = (String) invocation.getArguments()[0];
+        int slash = path.indexOf('/');
+        String first = slash < 0 ? path : path.substring(0, slash);
+        DataSnapshot child = byKey.get(first);
+        if (child == null) {
+          return snapshot(first, null);
+        }
+        return slash < 0 ? child : child.child(path.substring(slash + 1));
+      }
+    });
+    return snapshot;
+  }
+}
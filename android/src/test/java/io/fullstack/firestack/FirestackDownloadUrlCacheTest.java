@@ -0,0 +1,128 @@
+package io.fullstack.firestack;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import android.net.Uri;
+import android.os.SystemClock;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.MockedStatic;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.Callback;
+
+import com.google.firebase.storage.StorageMetadata;
+
+public class FirestackDownloadUrlCacheTest {
+  private final long[] mNow = new long[] { 1000 };
+  private MockedStatic<SystemClock> mClock;
+  private MockedStatic<Arguments> mArguments;
+  private FirestackDownloadUrlCache mCache;
+
+  @Before
+  public void setUp() {
+    mClock = Fakes.mockClock(mNow);
+    mArguments = Fakes.mockArguments();
+    mCache = new FirestackDownloadUrlCache();
+  }
+
+  @After
+  public void tearDown() {
+    mArguments.close();
+    mClock.close();
+  }
+
+  @Test
+  public void resolvedEntriesAreServedUntilTheyExpire() {
+    mCache.configure(10, 500);
+    mCache.await("b/a.png", callback());
+    mCache.resolve("b/a.png", entry("a.png", 500));
+
+    assertNotNull(mCache.get("b/a.png"));
+    mNow[0] += 500;
+    assertNull(mCache.get("b/a.png"));
+    assertEquals(1, stat("expirations"), 0);
+  }
+
+  @Test
+  public void leastRecentlyUsedIsEvictedFirst() {
+    mCache.configure(2, 60000);
+    put("b/1");
+    put("b/2");
+    mCache.get("b/1");
+    put("b/3");
+
+    assertNotNull(mCache.get("b/1"));
+    assertNull(mCache.get("b/2"));
+    assertNotNull(mCache.get("b/3"));
+    assertEquals(1, stat("evictions"), 0);
+  }
+
+  @Test
+  public void concurrentLookupsShareOneRequest() {
+    Callback first = callback();
+    Callback second = callback();
+    assertTrue(mCache.await("b/a.png", first));
+    assertFalse(mCache.await("b/a.png", second));
+
+    List<Callback> waiting = mCache.resolve("b/a.png", entry("a.png", 60000));
+    assertEquals(Arrays.asList(first, second), waiting);
+    assertEquals(1, stat("coalesced"), 0);
+    assertTrue(mCache.await("b/a.png", first));
+  }
+
+  @Test
+  public void invalidationDuringALookupDropsItsResult() {
+    mCache.await("b/a.png", callback());
+    mCache.invalidate("b/a.png");
+    mCache.resolve("b/a.png", entry("a.png", 60000));
+
+    assertNull(mCache.get("b/a.png"));
+    put("b/a.png");
+    assertNotNull(mCache.get("b/a.png"));
+  }
+
+  @Test
+  public void entryKeepsTheDownloadUrlShape() {
+    JavaOnlyMap res = (JavaOnlyMap) entry("a.png", 60000).toMap();
+
+    assertEquals("https://example.com/a.png", res.getString("url"));
+    assertEquals("bucket", res.getString("bucket"));
+    assertEquals(12.0, res.getMap("metadata").getDouble("sizeBytes"), 0);
+  }
+
+  private void put(final String key) {
+    mCache.await(key, callback());
+    mCache.resolve(key, entry(key, mCache.getTtl()));
+  }
+
+  private double stat(final String name) {
+    return ((JavaOnlyMap) mCache.getStats()).getDouble(name);
+  }
+
+  private static Callback callback() {
+    return mock(Callback.class);
+  }
+
+  private static FirestackDownloadUrlCache.Entry entry(final String name, final long ttlMs) {
+    Uri uri = mock(Uri.class);
+    when(uri.toString()).thenReturn("https://example.com/" + name);
+    when(uri.getPath()).thenReturn("/" + name);
+    StorageMetadata metadata = mock(StorageMetadata.class);
+    when(metadata.getBucket()).thenReturn("bucket");
+    when(metadata.getName()).thenReturn(name);
+    when(metadata.getSizeBytes()).thenReturn(12L);
+    return new FirestackDownloadUrlCache.Entry(uri, metadata, ttlMs);
+  }
+}
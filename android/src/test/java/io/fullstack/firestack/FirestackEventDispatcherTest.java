@@ -0,0 +1,154 @@
+package io.fullstack.firestack;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.MockedStatic;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.ReactContext;
+import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.modules.core.DeviceEventManagerModule;
+
+public class FirestackEventDispatcherTest {
+  // every event that reached javascript, batches unpacked, as "name:id"
+  private final List<String> mSent = new ArrayList<String>();
+  private MockedStatic<Arguments> mArguments;
+  private FirestackEventDispatcher mDispatcher;
+
+  @Before
+  public void setUp() {
+    mArguments = Fakes.mockArguments();
+    DeviceEventManagerModule.RCTDeviceEventEmitter emitter = mock(DeviceEventManagerModule.RCTDeviceEventEmitter.class);
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) {
+        String name = (String) invocation.getArguments()[0];
+        Map<String, Object> params = ((JavaOnlyMap) invocation.getArguments()[1]).toHashMap();
+        synchronized (mSent) {
+          if (params.containsKey("batch")) {
+            for (Object item : (List<?>) params.get("batch")) {
+              mSent.add(name + ":" + ((Map<?, ?>) item).get("id"));
+            }
+          } else {
+            mSent.add(name + ":" + params.get("id"));
+          }
+        }
+        return null;
+      }
+    }).when(emitter).emit(anyString(), any());
+
+    ReactContext context = mock(ReactContext.class);
+    when(context.hasActiveCatalystInstance()).thenReturn(true);
+    when(context.getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)).thenReturn(emitter);
+    mDispatcher = new FirestackEventDispatcher(context);
+  }
+
+  @After
+  public void tearDown() {
+    mArguments.close();
+  }
+
+  @Test
+  public void concurrentEmittersKeepTheirOrder() throws Exception {
+    final int threads = 6;
+    final int events = 300;
+    mDispatcher.setBatching("batched", 1000, 50);
+    final CountDownLatch start = new CountDownLatch(1);
+    final List<Throwable> failures = new ArrayList<Throwable>();
+
+    List<Thread> workers = new ArrayList<Thread>();
+    for (int t = 0; t < threads; t++) {
+      final int id = t;
+      Thread worker = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          MockedStatic<Arguments> arguments = Fakes.mockArguments();
+          try {
+            start.await();
+            for (int i = 0; i < events; i++) {
+              // alternate between a batched and a direct name on the same thread
+              mDispatcher.emit(i % 2 == 0 ? "batched" : "direct", JavaOnlyMap.of("id", id + "-" + i));
+            }
+          } catch (Throwable e) {
+            synchronized (failures) {
+              failures.add(e);
+            }
+          } finally {
+            arguments.close();
+          }
+        }
+      });
+      workers.add(worker);
+      worker.start();
+    }
+    start.countDown();
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    mDispatcher.flush();
+
+    assertTrue(failures.toString(), failures.isEmpty());
+    assertEquals(threads * events, mSent.size());
+    int[] next = new int[threads];
+    for (String sent : mSent) {
+      String[] parts = sent.split("[:-]");
+      int thread = Integer.parseInt(parts[1]);
+      int seq = (int) Double.parseDouble(parts[2]);
+      assertEquals("out of order: " + sent, next[thread], seq);
+      next[thread]++;
+    }
+  }
+
+  @Test
+  public void newerEventReplacesTheOneStillWaiting() {
+    mDispatcher.setBatching("database_event", 1000, 100);
+    mDispatcher.emit("database_event", JavaOnlyMap.of("id", "a1"), "a");
+    mDispatcher.emit("database_event", JavaOnlyMap.of("id", "b1"), "b");
+    mDispatcher.emit("database_event", JavaOnlyMap.of("id", "child"));
+    mDispatcher.emit("database_event", JavaOnlyMap.of("id", "a2"), "a");
+    mDispatcher.flush();
+
+    assertEquals(3, mSent.size());
+    assertEquals("database_event:b1", mSent.get(0));
+    assertEquals("database_event:child", mSent.get(1));
+    assertEquals("database_event:a2", mSent.get(2));
+    assertEquals(1, ((ReadableMap) mDispatcher.getStats()).getDouble("eventsCoalesced"), 0);
+  }
+
+  @Test
+  public void chunksAreNeverBatched() {
+    assertFalse(mDispatcher.setBatching("database_chunk", 1000, 100));
+    mDispatcher.emit("database_chunk", JavaOnlyMap.of("id", "c0"));
+
+    assertEquals(1, mSent.size());
+    assertFalse(((ReadableMap) mDispatcher.getStats()).getMap("batching").hasKey("database_chunk"));
+  }
+
+  @Test
+  public void aFullBufferIsFlushedByTheEmitter() {
+    mDispatcher.setBatching("upload_progress", 60000, 100000);
+    for (int i = 0; i < 1000; i++) {
+      mDispatcher.emit("upload_progress", JavaOnlyMap.of("id", "p" + i));
+    }
+
+    assertFalse(mSent.isEmpty());
+    assertTrue(((ReadableMap) mDispatcher.getStats()).getDouble("maxPending") <= 500);
+  }
+}
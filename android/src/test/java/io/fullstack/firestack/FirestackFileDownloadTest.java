@@ -0,0 +1,207 @@
+package io.fullstack.firestack;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FirestackFileDownloadTest {
+  private static final int SIZE = 300 * 1024;
+  private static final int DROP_AT = 100 * 1024;
+
+  @Rule
+  public final TemporaryFolder mFolder = new TemporaryFolder();
+
+  private final byte[] mObject = new byte[SIZE];
+  private final ConcurrentLinkedQueue<String> mRanges = new ConcurrentLinkedQueue<String>();
+  private volatile boolean mDropNext = false;
+  private volatile boolean mIgnoreRange = false;
+  private ServerSocket mServer;
+  private Thread mServerThread;
+  private File mTarget;
+
+  /**
+   * Stands in for the storage download url: one request per connection,
+   * honouring `Range: bytes=N-` unless told not to, and closing the
+   * connection a third of the way into the body when asked to drop it.
+   */
+  private void serve(final Socket socket) throws IOException {
+    try {
+      BufferedReader request = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+      String range = "";
+      String line;
+      while ((line = request.readLine()) != null && line.length() > 0) {
+        if (line.toLowerCase().startsWith("range:")) {
+          range = line.substring("range:".length()).trim();
+        }
+      }
+      mRanges.add(range);
+
+      int from = 0;
+      String status = "200 OK";
+      if (range.startsWith("bytes=") && !mIgnoreRange) {
+        from = Integer.parseInt(range.substring("bytes=".length(), range.length() - 1));
+        status = "206 Partial Content";
+      }
+      int length = SIZE - from;
+      OutputStream out = socket.getOutputStream();
+      String headers = "HTTP/1.1 " + status + "\r\n" +
+        "Content-Length: " + length + "\r\n" +
+        (from > 0 ? "Content-Range: bytes " + from + "-" + (SIZE - 1) + "/" + SIZE + "\r\n" : "") +
+        "Connection: close\r\n\r\n";
+      out.write(headers.getBytes("US-ASCII"));
+      out.write(mObject, from, mDropNext ? DROP_AT : length);
+      mDropNext = false;
+      out.flush();
+    } finally {
+      socket.close();
+    }
+  }
+
+  private static class RecordingListener implements FirestackFileDownload.Listener {
+    final List<Long> resumedAt = new ArrayList<Long>();
+    long lastProgress = -1;
+    Boolean verified;
+    Exception error;
+
+    @Override
+    public void onResumed(FirestackFileDownload download, long offset) {
+      resumedAt.add(offset);
+    }
+
+    @Override
+    public void onProgress(FirestackFileDownload download, long bytesTransferred, long totalBytes) {
+      assertTrue("progress went backwards", bytesTransferred > lastProgress);
+      lastProgress = bytesTransferred;
+    }
+
+    @Override
+    public void onPaused(FirestackFileDownload download, long bytesTransferred) {
+    }
+
+    @Override
+    public void onComplete(FirestackFileDownload download, boolean verified) {
+      this.verified = verified;
+    }
+
+    @Override
+    public void onError(FirestackFileDownload download, Exception error) {
+      this.error = error;
+    }
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    new Random(24).nextBytes(mObject);
+    mTarget = new File(mFolder.getRoot(), "downloads/object.bin");
+    mServer = new ServerSocket(0, 10, InetAddress.getByName("127.0.0.1"));
+    mServerThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          while (true) {
+            serve(mServer.accept());
+          }
+        } catch (IOException e) {
+          // closed by tearDown
+        }
+      }
+    });
+    mServerThread.start();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    mServer.close();
+    mServerThread.join();
+  }
+
+  private RecordingListener download() {
+    RecordingListener listener = new RecordingListener();
+    String url = "http://127.0.0.1:" + mServer.getLocalPort() + "/object.bin";
+    // no hash: android.util.Base64 is not there to check it on the JVM
+    new FirestackFileDownload("task", url, mTarget, SIZE, null, listener).run();
+    return listener;
+  }
+
+  private byte[] read(final File file) throws IOException {
+    byte[] bytes = new byte[(int) file.length()];
+    FileInputStream in = new FileInputStream(file);
+    try {
+      int offset = 0;
+      while (offset < bytes.length) {
+        offset += in.read(bytes, offset, bytes.length - offset);
+      }
+    } finally {
+      in.close();
+    }
+    return bytes;
+  }
+
+  @Test
+  public void downloadsInOneGo() throws Exception {
+    RecordingListener listener = download();
+
+    assertNull(listener.error);
+    assertEquals(Boolean.FALSE, listener.verified);
+    assertEquals(SIZE, listener.lastProgress);
+    assertArrayEquals(mObject, read(mTarget));
+    assertFalse(new File(mTarget.getPath() + ".part").exists());
+    assertEquals(Arrays.asList(""), new ArrayList<String>(mRanges));
+  }
+
+  @Test
+  public void droppedConnectionResumesWithARangeRequest() throws Exception {
+    File part = new File(mTarget.getPath() + ".part");
+    mDropNext = true;
+    RecordingListener first = download();
+
+    assertNotNull(first.error);
+    assertNull(first.verified);
+    assertFalse(mTarget.exists());
+    assertEquals(DROP_AT, part.length());
+
+    RecordingListener second = download();
+    assertNull(second.error);
+    assertEquals(Arrays.asList((long) DROP_AT), second.resumedAt);
+    assertEquals(SIZE, second.lastProgress);
+    assertEquals(Arrays.asList("", "bytes=" + DROP_AT + "-"), new ArrayList<String>(mRanges));
+    assertArrayEquals(mObject, read(mTarget));
+    assertFalse(part.exists());
+  }
+
+  @Test
+  public void serverIgnoringTheRangeStartsOver() throws Exception {
+    mDropNext = true;
+    download();
+    mIgnoreRange = true;
+    RecordingListener second = download();
+
+    assertNull(second.error);
+    assertEquals("bytes=" + DROP_AT + "-", new ArrayList<String>(mRanges).get(1));
+    assertArrayEquals(mObject, read(mTarget));
+  }
+}
@@ -0,0 +1,458 @@
+package io.fullstack.firestack;
+
+import static io.fullstack.firestack.Fakes.snapshot;
+import static io.fullstack.firestack.Fakes.tree;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.MockedStatic;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableMap;
+
+import com.google.firebase.database.ChildEventListener;
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.Query;
+import com.google.firebase.database.ValueEventListener;
+
+public class FirestackListenerRegistryTest {
+  private static final String PATH = "/rooms/1";
+
+  /**
+   * One Firebase query: counts attaches and detaches and keeps the newest
+   * attached listener so the test can deliver events to it.
+   */
+  private static class FakeQuery {
+    final Query query = mock(Query.class);
+    final AtomicInteger attaches = new AtomicInteger();
+    final AtomicInteger detaches = new AtomicInteger();
+    final AtomicReference<ValueEventListener> listener = new AtomicReference<ValueEventListener>();
+    final Set<ValueEventListener> attached = Collections.newSetFromMap(new ConcurrentHashMap<ValueEventListener, Boolean>());
+    final List<ChildEventListener> children = new ArrayList<ChildEventListener>();
+
+    FakeQuery() {
+      when(query.addValueEventListener(any(ValueEventListener.class))).thenAnswer(new Answer<ValueEventListener>() {
+        @Override
+        public ValueEventListener answer(InvocationOnMock invocation) {
+          ValueEventListener added = (ValueEventListener) invocation.getArguments()[0];
+          assertTrue("attached twice", attached.add(added));
+          listener.set(added);
+          attaches.incrementAndGet();
+          return added;
+        }
+      });
+      doAnswer(new Answer<Void>() {
+        @Override
+        public Void answer(InvocationOnMock invocation) {
+          ValueEventListener removed = (ValueEventListener) invocation.getArguments()[0];
+          assertTrue("detached twice", attached.remove(removed));
+          listener.compareAndSet(removed, null);
+          detaches.incrementAndGet();
+          return null;
+        }
+      }).when(query).removeEventListener(any(ValueEventListener.class));
+      when(query.addChildEventListener(any(ChildEventListener.class))).thenAnswer(new Answer<ChildEventListener>() {
+        @Override
+        public ChildEventListener answer(InvocationOnMock invocation) {
+          ChildEventListener added = (ChildEventListener) invocation.getArguments()[0];
+          children.add(added);
+          attaches.incrementAndGet();
+          return added;
+        }
+      });
+      doAnswer(new Answer<Void>() {
+        @Override
+        public Void answer(InvocationOnMock invocation) {
+          assertTrue("detached twice", children.remove(invocation.getArguments()[0]));
+          detaches.incrementAndGet();
+          return null;
+        }
+      }).when(query).removeEventListener(any(ChildEventListener.class));
+    }
+  }
+
+  private final FakeQuery mAll = new FakeQuery();
+  private final FakeQuery mLast = new FakeQuery();
+  private final ConcurrentLinkedQueue<WritableMap> mEmitted = new ConcurrentLinkedQueue<WritableMap>();
+  private final DataSnapshot mSnapshot = snapshot("1", tree("topic", "hello"));
+  private FirestackQueryPlan mAllPlan;
+  private FirestackQueryPlan mLastPlan;
+  private FirestackListenerRegistry mRegistry;
+  private MockedStatic<Arguments> mArguments;
+
+  @Before
+  public void setUp() {
+    mArguments = Fakes.mockArguments();
+    mAllPlan = FirestackQueryPlan.compile(null);
+    mLastPlan = FirestackQueryPlan.compile(JavaOnlyArray.of("limitToLast:5"));
+
+    final DatabaseReference ref = mock(DatabaseReference.class);
+    when(ref.orderByKey()).thenReturn(mAll.query);
+    when(mAll.query.limitToLast(anyInt())).thenReturn(mLast.query);
+
+    // serializes inline, on the thread that delivered the event
+    final FirestackSerializationExecutor serializer = new FirestackSerializationExecutor() {
+      @Override
+      public void execute(String handle, Runnable task, boolean supersedes) {
+        task.run();
+      }
+    };
+    final FirestackEventDispatcher dispatcher = new FirestackEventDispatcher(null) {
+      @Override
+      public void emit(String eventName, WritableMap params, String coalesceKey) {
+        mEmitted.add(params);
+      }
+    };
+    final FirestackSnapshotCache cache = new FirestackSnapshotCache();
+    final FirestackSnapshotStore store = mock(FirestackSnapshotStore.class);
+
+    mRegistry = new FirestackListenerRegistry(new FirestackListenerRegistry.Factory() {
+      @Override
+      public FirestackDBReference create(String key, String path, FirestackQueryPlan plan, String eventName) {
+        return new FirestackDBReference(dispatcher, serializer, cache, store, key, path, plan, eventName) {
+          @Override
+          public DatabaseReference getDatabaseRef() {
+            return ref;
+          }
+        };
+      }
+    });
+  }
+
+  @After
+  public void tearDown() {
+    mArguments.close();
+  }
+
+  @Test
+  public void identicalDescriptorsShareOneListener() {
+    FirestackDBReference first = mRegistry.acquire(PATH, mAllPlan, "value");
+    FirestackDBReference second = mRegistry.acquire(PATH, mAllPlan, "value");
+
+    assertSame(first, second);
+    assertEquals(2, first.getRefCount());
+    assertEquals(1, mAll.attaches.get());
+
+    assertFalse(mRegistry.release(first.getKey()));
+    assertTrue(first.isAttached());
+    assertTrue(mRegistry.release(first.getKey()));
+    assertFalse(first.isAttached());
+    assertEquals(1, mAll.detaches.get());
+    assertEquals(0, mRegistry.size());
+  }
+
+  @Test
+  public void childAddedSubscribersEachGetTheExistingChildren() {
+    DataSnapshot child = snapshot("a", "first");
+    FirestackDBReference first = mRegistry.acquire(PATH, mAllPlan, "child_added");
+    mAll.children.get(0).onChildAdded(child, null);
+
+    // a second subscriber has its own listener, which Firebase replays the children to
+    FirestackDBReference second = mRegistry.acquire(PATH, mAllPlan, "child_added");
+    assertNotSame(first, second);
+    assertEquals(1, second.getRefCount());
+    assertEquals(2, mAll.attaches.get());
+    mAll.children.get(1).onChildAdded(child, null);
+
+    assertEquals(2, mEmitted.size());
+    List<String> handles = new ArrayList<String>();
+    for (WritableMap evt : mEmitted) {
+      handles.add(evt.getString("handle"));
+    }
+    assertEquals(Arrays.asList(first.getKey(), second.getKey()), handles);
+
+    // each one detaches with its own off()
+    assertTrue(mRegistry.release(first.getKey()));
+    assertEquals(1, mAll.detaches.get());
+    assertTrue(second.isAttached());
+    assertTrue(mRegistry.release(second.getKey()));
+    assertEquals(2, mAll.detaches.get());
+    assertEquals(0, mRegistry.size());
+  }
+
+  @Test
+  public void otherChildEventsShareOneListener() {
+    FirestackDBReference first = mRegistry.acquire(PATH, mAllPlan, "child_removed");
+    FirestackDBReference second = mRegistry.acquire(PATH, mAllPlan, "child_removed");
+
+    assertSame(first, second);
+    assertEquals(1, mAll.attaches.get());
+    mRegistry.release(first.getKey());
+    assertEquals(0, mAll.detaches.get());
+    mRegistry.release(first.getKey());
+    assertEquals(1, mAll.detaches.get());
+  }
+
+  @Test
+  public void differentModifiersGetTheirOwnListener() {
+    FirestackDBReference all = mRegistry.acquire(PATH, mAllPlan, "value");
+    FirestackDBReference last = mRegistry.acquire(PATH, mLastPlan, "value");
+    assertNotSame(all, last);
+
+    mLast.listener.get().onDataChange(mSnapshot);
+    assertEquals(1, mEmitted.size());
+    assertEquals(last.getKey(), mEmitted.peek().getString("handle"));
+
+    // releasing one leaves the other attached
+    assertTrue(mRegistry.release(last.getKey()));
+    assertTrue(all.isAttached());
+    assertEquals(0, mAll.detaches.get());
+  }
+
+  @Test
+  public void releasedHandleIsReplacedOnTheNextAcquire() {
+    FirestackDBReference first = mRegistry.acquire(PATH, mAllPlan, "value");
+    mRegistry.release(first.getKey());
+    FirestackDBReference second = mRegistry.acquire(PATH, mAllPlan, "value");
+
+    assertNotSame(first, second);
+    assertFalse(first.acquire());
+    assertEquals(2, mAll.attaches.get());
+  }
+
+  @Test
+  public void idleSweepDetachesQuietHandlesEvenWithSubscribers() {
+    FirestackDBReference ref = mRegistry.acquire(PATH, mAllPlan, "value");
+    mRegistry.acquire(PATH, mAllPlan, "value");
+    mAll.listener.get().onDataChange(mSnapshot);
+    long lastEvent = ref.getLastActivity();
+    assertEquals(1.0, ref.getLifecycle().getDouble("events"), 0);
+
+    // quiet since the cutoff, however many subscribers it has
+    assertFalse(ref.retireIfIdle(lastEvent));
+    assertTrue(ref.retireIfIdle(lastEvent + 1));
+    assertFalse(ref.isAttached());
+    assertEquals(1, mAll.detaches.get());
+    assertFalse(ref.retireIfIdle(Long.MAX_VALUE));
+
+    // its subscribers' releases are no-ops, the next on() gets a new handle
+    mRegistry.remove(ref);
+    assertFalse(mRegistry.release(ref.getKey()));
+    FirestackDBReference next = mRegistry.acquire(PATH, mAllPlan, "value");
+    assertNotSame(ref, next);
+    assertTrue(next.getInstance() > ref.getInstance());
+    assertEquals(2, mAll.attaches.get());
+  }
+
+  @Test
+  public void eventCountHoldsUnderConcurrentDelivery() throws Exception {
+    final int threads = 8;
+    final int rounds = 1000;
+    final FirestackDBReference ref = mRegistry.acquire(PATH, mAllPlan, "value");
+    final CountDownLatch start = new CountDownLatch(1);
+    final List<Throwable> failures = new ArrayList<Throwable>();
+
+    List<Thread> workers = new ArrayList<Thread>();
+    for (int t = 0; t < threads; t++) {
+      Thread worker = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          MockedStatic<Arguments> arguments = Fakes.mockArguments();
+          try {
+            start.await();
+            for (int i = 0; i < rounds; i++) {
+              mAll.listener.get().onDataChange(mSnapshot);
+            }
+          } catch (Throwable e) {
+            synchronized (failures) {
+              failures.add(e);
+            }
+          } finally {
+            arguments.close();
+          }
+        }
+      });
+      workers.add(worker);
+      worker.start();
+    }
+    start.countDown();
+    for (Thread worker : workers) {
+      worker.join();
+    }
+
+    assertTrue(failures.toString(), failures.isEmpty());
+    assertEquals(threads * rounds, ref.getLifecycle().getDouble("events"), 0);
+    assertEquals(threads * rounds, mEmitted.size());
+  }
+
+  @Test
+  public void countsAndPayloadsHoldUnderConcurrentSubscribers() throws Exception {
+    final int threads = 8;
+    final int rounds = 500;
+    final CountDownLatch start = new CountDownLatch(1);
+    final AtomicInteger delivered = new AtomicInteger();
+    final List<Throwable> failures = new ArrayList<Throwable>();
+    final Map<String, AtomicInteger> deliveredByHandle = new ConcurrentHashMap<String, AtomicInteger>();
+
+    List<Thread> workers = new ArrayList<Thread>();
+    for (int t = 0; t < threads; t++) {
+      final boolean limited = t % 2 == 1;
+      Thread worker = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          // static mocks are per thread
+          MockedStatic<Arguments> arguments = Fakes.mockArguments();
+          try {
+            start.await();
+            FakeQuery query = limited ? mLast : mAll;
+            for (int i = 0; i < rounds; i++) {
+              FirestackDBReference ref = mRegistry.acquire(PATH, limited ? mLastPlan : mAllPlan, "value");
+              assertTrue(ref.isAttached());
+              // while we hold a subscriber the listener is attached and hears events
+              query.listener.get().onDataChange(mSnapshot);
+              delivered.incrementAndGet();
+              AtomicInteger count = deliveredByHandle.get(ref.getKey());
+              if (count == null) {
+                deliveredByHandle.putIfAbsent(ref.getKey(), new AtomicInteger());
+                count = deliveredByHandle.get(ref.getKey());
+              }
+              count.incrementAndGet();
+              mRegistry.release(ref.getKey());
+            }
+          } catch (Throwable e) {
+            synchronized (failures) {
+              failures.add(e);
+            }
+          } finally {
+            arguments.close();
+          }
+        }
+      });
+      workers.add(worker);
+      worker.start();
+    }
+    start.countDown();
+    for (Thread worker : workers) {
+      worker.join();
+    }
+
+    assertTrue(failures.toString(), failures.isEmpty());
+    assertEquals(0, mRegistry.size());
+    assertEquals(mAll.attaches.get(), mAll.detaches.get());
+    assertEquals(mLast.attaches.get(), mLast.detaches.get());
+    assertEquals(threads * rounds, delivered.get());
+
+    // one payload per delivered event, each tagged with the handle it came from
+    assertEquals(delivered.get(), mEmitted.size());
+    Map<String, Integer> emittedByHandle = new ConcurrentHashMap<String, Integer>();
+    for (WritableMap evt : mEmitted) {
+      String handle = evt.getString("handle");
+      Integer count = emittedByHandle.get(handle);
+      emittedByHandle.put(handle, count == null ? 1 : count + 1);
+      Map<String, Object> snapshot = (Map<String, Object>) ((JavaOnlyMap) evt.getMap("body")).toHashMap().get("snapshot");
+      assertEquals(tree("topic", "hello"), snapshot.get("value"));
+    }
+    for (Map.Entry<String, AtomicInteger> entry : deliveredByHandle.entrySet()) {
+      assertEquals(entry.getValue().get(), (int) emittedByHandle.get(entry.getKey()));
+    }
+  }
+
+  @Test
+  public void idleSweepRacingSubscribersNeverOrphansAListener() throws Exception {
+    final int threads = 6;
+    final int rounds = 500;
+    final CountDownLatch start = new CountDownLatch(1);
+    final AtomicInteger finished = new AtomicInteger();
+    final AtomicInteger lastReleases = new AtomicInteger();
+    final AtomicInteger swept = new AtomicInteger();
+    final List<Throwable> failures = new ArrayList<Throwable>();
+
+    List<Thread> workers = new ArrayList<Thread>();
+    for (int t = 0; t < threads; t++) {
+      final boolean limited = t % 2 == 1;
+      workers.add(new Thread(new Runnable() {
+        @Override
+        public void run() {
+          MockedStatic<Arguments> arguments = Fakes.mockArguments();
+          try {
+            start.await();
+            FakeQuery query = limited ? mLast : mAll;
+            for (int i = 0; i < rounds; i++) {
+              FirestackDBReference ref = mRegistry.acquire(PATH, limited ? mLastPlan : mAllPlan, "value");
+              // the sweep may already have detached it, then this is dropped
+              ValueEventListener listener = query.listener.get();
+              if (listener != null) {
+                listener.onDataChange(mSnapshot);
+              }
+              if (mRegistry.release(ref.getKey())) {
+                lastReleases.incrementAndGet();
+              }
+            }
+          } catch (Throwable e) {
+            synchronized (failures) {
+              failures.add(e);
+            }
+          } finally {
+            finished.incrementAndGet();
+            arguments.close();
+          }
+        }
+      }));
+    }
+    // sweeps everything as idle, the way the module's idle sweep does
+    workers.add(new Thread(new Runnable() {
+      @Override
+      public void run() {
+        MockedStatic<Arguments> arguments = Fakes.mockArguments();
+        try {
+          start.await();
+          while (finished.get() < threads) {
+            for (FirestackDBReference ref : mRegistry.handles()) {
+              if (ref.retireIfIdle(Long.MAX_VALUE)) {
+                mRegistry.remove(ref);
+                swept.incrementAndGet();
+              }
+            }
+          }
+        } catch (Throwable e) {
+          synchronized (failures) {
+            failures.add(e);
+          }
+        } finally {
+          arguments.close();
+        }
+      }
+    }));
+    for (Thread worker : workers) {
+      worker.start();
+    }
+    start.countDown();
+    for (Thread worker : workers) {
+      worker.join();
+    }
+
+    assertTrue(failures.toString(), failures.isEmpty());
+    assertEquals(0, mRegistry.size());
+    // every listener attached was detached exactly once, by a last release or the sweep
+    int attaches = mAll.attaches.get() + mLast.attaches.get();
+    assertEquals(mAll.attaches.get(), mAll.detaches.get());
+    assertEquals(mLast.attaches.get(), mLast.detaches.get());
+    assertEquals(attaches, lastReleases.get() + swept.get());
+  }
+}
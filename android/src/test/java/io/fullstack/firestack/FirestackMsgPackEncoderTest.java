@@ -0,0 +1,213 @@
+package io.fullstack.firestack;
+
+import static io.fullstack.firestack.Fakes.tree;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class FirestackMsgPackEncoderTest {
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /**
+   * Reads the MessagePack subset the encoder writes, the way
+   * lib/utils/msgpack.js does: maps keep their order, integers come back
+   * as longs and floats as doubles.
+   */
+  private static class Decoder {
+    private final byte[] mBytes;
+    private int mPos = 0;
+
+    Decoder(final byte[] bytes) {
+      mBytes = bytes;
+    }
+
+    Object readAll() {
+      Object value = this.read();
+      assertEquals("trailing bytes", mBytes.length, mPos);
+      return value;
+    }
+
+    Object read() {
+      int b = this.u8();
+      if (b < 0x80) {
+        return (long) b;
+      } else if (b >= 0xe0) {
+        return (long) (byte) b;
+      } else if ((b & 0xf0) == 0x80) {
+        return this.readMap(b & 0x0f);
+      } else if ((b & 0xf0) == 0x90) {
+        return this.readArray(b & 0x0f);
+      } else if ((b & 0xe0) == 0xa0) {
+        return this.readString(b & 0x1f);
+      }
+      switch (b) {
+        case 0xc0: return null;
+        case 0xc2: return false;
+        case 0xc3: return true;
+        case 0xcb: return Double.longBitsToDouble(this.uint(8));
+        case 0xd2: return (long) (int) this.uint(4);
+        case 0xd3: return this.uint(8);
+        case 0xd9: return this.readString((int) this.uint(1));
+        case 0xda: return this.readString((int) this.uint(2));
+        case 0xdb: return this.readString((int) this.uint(4));
+        case 0xdc: return this.readArray((int) this.uint(2));
+        case 0xdd: return this.readArray((int) this.uint(4));
+        case 0xde: return this.readMap((int) this.uint(2));
+        case 0xdf: return this.readMap((int) this.uint(4));
+        default:
+          fail("unexpected type byte 0x" + Integer.toHexString(b) + " at " + (mPos - 1));
+          return null;
+      }
+    }
+
+    private Map<String, Object> readMap(final int size) {
+      Map<String, Object> map = new LinkedHashMap<String, Object>();
+      for (int i = 0; i < size; i++) {
+        map.put((String) this.read(), this.read());
+      }
+      return map;
+    }
+
+    private List<Object> readArray(final int size) {
+      List<Object> list = new ArrayList<Object>();
+      for (int i = 0; i < size; i++) {
+        list.add(this.read());
+      }
+      return list;
+    }
+
+    private String readString(final int length) {
+      String value = new String(mBytes, mPos, length, UTF8);
+      mPos += length;
+      return value;
+    }
+
+    private int u8() {
+      return mBytes[mPos++] & 0xff;
+    }
+
+    private long uint(final int bytes) {
+      long value = 0;
+      for (int i = 0; i < bytes; i++) {
+        value = (value << 8) | this.u8();
+      }
+      return value;
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static void assertRoundTrip(final Object tree) {
+    Map<String, Object> payload = (Map<String, Object>) new Decoder(FirestackMsgPackEncoder.encodeTree(tree)).readAll();
+
+    assertEquals(Arrays.asList("value", "childKeys"), new ArrayList<String>(payload.keySet()));
+    assertEquals(tree, payload.get("value"));
+    List<Object> keys = tree instanceof Map
+      ? new ArrayList<Object>(((Map<String, Object>) tree).keySet())
+      : Collections.emptyList();
+    assertEquals(keys, payload.get("childKeys"));
+    if (tree instanceof Map) {
+      // javascript objects don't keep this order, childKeys does
+      assertEquals(keys, new ArrayList<Object>(((Map<String, Object>) payload.get("value")).keySet()));
+    }
+  }
+
+  private static String repeat(final String part, final int times) {
+    StringBuilder out = new StringBuilder();
+    for (int i = 0; i < times; i++) {
+      out.append(part);
+    }
+    return out.toString();
+  }
+
+  @Test
+  public void leavesRoundTrip() {
+    assertRoundTrip(null);
+    assertRoundTrip(true);
+    assertRoundTrip("plain");
+    assertRoundTrip(1.5);
+    assertRoundTrip(42L);
+  }
+
+  @Test
+  public void integersRoundTripAtEveryWidth() {
+    long[] values = {
+      0, 1, 127, 128, 255, 256, 65535, 65536, -1, -32, -33, -128, -129,
+      Integer.MAX_VALUE, (long) Integer.MAX_VALUE + 1, Integer.MIN_VALUE, (long) Integer.MIN_VALUE - 1,
+      1480000000000L, Long.MAX_VALUE, Long.MIN_VALUE
+    };
+    Map<String, Object> tree = new LinkedHashMap<String, Object>();
+    for (long value : values) {
+      tree.put("n" + value, value);
+    }
+    assertRoundTrip(tree);
+  }
+
+  @Test
+  public void doublesKeepTheirBits() {
+    assertRoundTrip(tree(
+      "half", 0.5, "negative", -1e-300, "big", 1e300, "zero", -0.0,
+      "nan", Double.NaN, "inf", Double.NEGATIVE_INFINITY
+    ));
+  }
+
+  @Test
+  public void stringsRoundTripAtEveryLengthHeader() {
+    assertRoundTrip(tree(
+      "empty", "",
+      "fix", repeat("a", 31),
+      "str8", repeat("b", 32),
+      "str16", repeat("c", 256),
+      "str32", repeat("d", 65536),
+      "utf8", repeat("héllo 世界 😀 ", 5),
+      repeat("kéy", 20), "long utf-8 key"
+    ));
+  }
+
+  @Test
+  public void mapsRoundTripAtEveryHeaderSize() {
+    for (int size : new int[] { 0, 15, 16, 65535, 65536 }) {
+      Map<String, Object> tree = new LinkedHashMap<String, Object>();
+      for (int i = 0; i < size; i++) {
+        tree.put("k" + i, (long) i);
+      }
+      assertRoundTrip(tree);
+    }
+  }
+
+  @Test
+  public void randomTreesRoundTrip() {
+    Random random = new Random(20);
+    for (int i = 0; i < 200; i++) {
+      assertRoundTrip(randomTree(random, 4));
+    }
+  }
+
+  private static Object randomTree(final Random random, final int depth) {
+    int kind = random.nextInt(depth > 0 ? 7 : 6);
+    switch (kind) {
+      case 0: return null;
+      case 1: return random.nextBoolean();
+      case 2: return random.nextLong() >> random.nextInt(64);
+      case 3: return random.nextDouble() * 1000 - 500;
+      case 4: return "s" + random.nextInt(1000);
+      case 5: return repeat("x", random.nextInt(300));
+      default:
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        int size = random.nextInt(20);
+        for (int i = 0; i < size; i++) {
+          map.put("c" + random.nextInt(100000), randomTree(random, depth - 1));
+        }
+        return map;
+    }
+  }
+}
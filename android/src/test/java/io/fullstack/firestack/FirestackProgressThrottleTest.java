@@ -0,0 +1,66 @@
+package io.fullstack.firestack;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.os.SystemClock;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.MockedStatic;
+
+public class FirestackProgressThrottleTest {
+  private final long[] mNow = new long[] { 1000 };
+  private MockedStatic<SystemClock> mClock;
+  private FirestackProgressThrottle mThrottle;
+
+  @Before
+  public void setUp() {
+    mClock = Fakes.mockClock(mNow);
+    mThrottle = new FirestackProgressThrottle();
+  }
+
+  @After
+  public void tearDown() {
+    mClock.close();
+  }
+
+  @Test
+  public void firstUpdateAlwaysPasses() {
+    assertTrue(mThrottle.shouldEmit("a", 0, 1000));
+    assertTrue(mThrottle.shouldEmit("b", 0, 1000));
+  }
+
+  @Test
+  public void needsBothTheIntervalAndThePercentage() {
+    mThrottle.shouldEmit("a", 0, 1000);
+
+    mNow[0] += 100;
+    assertFalse("too soon", mThrottle.shouldEmit("a", 500, 1000));
+    mNow[0] += 500;
+    assertFalse("too little", mThrottle.shouldEmit("a", 5, 1000));
+    assertTrue(mThrottle.shouldEmit("a", 500, 1000));
+  }
+
+  @Test
+  public void completionAlwaysPasses() {
+    mThrottle.shouldEmit("a", 0, 1000);
+    mNow[0] += 1;
+    assertTrue(mThrottle.shouldEmit("a", 1000, 1000));
+  }
+
+  @Test
+  public void forgetStartsTheTaskOver() {
+    mThrottle.shouldEmit("a", 0, 1000);
+    mThrottle.forget("a");
+    assertTrue(mThrottle.shouldEmit("a", 1, 1000));
+  }
+
+  @Test
+  public void configureChangesTheLimits() {
+    mThrottle.configure(0, 0);
+    mThrottle.shouldEmit("a", 0, 1000);
+    assertTrue(mThrottle.shouldEmit("a", 1, 1000));
+  }
+}
@@ -0,0 +1,147 @@
+package io.fullstack.firestack;
+
+import static io.fullstack.firestack.Fakes.snapshot;
+import static io.fullstack.firestack.Fakes.tree;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.MockedStatic;
+
+import com.facebook.react.bridge.Arguments;
+import com.google.firebase.database.DataSnapshot;
+
+public class FirestackProjectionTest {
+  private static final DataSnapshot POSTS = snapshot("posts", tree(
+    "p1", tree("title", "One", "body", "long text", "author", tree("name", "Ann", "email", "a@x")),
+    "p2", tree("title", "Two", "body", "more text", "author", tree("name", "Bob", "email", "b@x"))
+  ));
+
+  private MockedStatic<Arguments> mArguments;
+
+  @Before
+  public void setUp() {
+    mArguments = Fakes.mockArguments();
+  }
+
+  @After
+  public void tearDown() {
+    mArguments.close();
+  }
+
+  @Test
+  public void nothingToCutIsNoProjection() {
+    assertNull(FirestackProjection.fromOptions(null, null, false, null));
+    assertNull(FirestackProjection.fromOptions("", "nope", false, null));
+  }
+
+  @Test
+  public void selectKeepsNamedFieldsUnderAWildcard() {
+    FirestackProjection projection = FirestackProjection.fromOptions("*/title:*/author/name", null, false, null);
+
+    assertEquals(tree(
+      "p1", tree("title", "One", "author", tree("name", "Ann")),
+      "p2", tree("title", "Two", "author", tree("name", "Bob"))
+    ), projection.project(POSTS));
+  }
+
+  @Test
+  public void selectSkipsMissingChildren() {
+    FirestackProjection projection = FirestackProjection.fromOptions("title:subtitle", null, false, null);
+
+    assertEquals(tree("title", "One"), projection.project(POSTS.child("p1")));
+  }
+
+  @Test
+  public void maxDepthCutsDeeperObjects() {
+    FirestackProjection projection = FirestackProjection.fromOptions(null, "2", false, null);
+
+    assertEquals(tree(
+      "p1", tree("title", "One", "body", "long text", "author", true),
+      "p2", tree("title", "Two", "body", "more text", "author", true)
+    ), projection.project(POSTS));
+  }
+
+  @Test
+  public void shallowListsKeysOnly() {
+    FirestackProjection projection = FirestackProjection.fromOptions(null, null, true, null);
+
+    assertEquals(tree("p1", true, "p2", true), projection.project(POSTS));
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void shallowLevelsAreCountedBelowEachChild() {
+    FirestackProjection projection = FirestackProjection.fromOptions(null, null, true, "1");
+    Map<String, Object> whole = (Map<String, Object>) projection.project(POSTS);
+
+    assertEquals(tree(
+      "p1", tree("title", "One", "body", "long text", "author", true),
+      "p2", tree("title", "Two", "body", "more text", "author", true)
+    ), whole);
+    for (DataSnapshot child : POSTS.getChildren()) {
+      assertEquals(whole.get(child.getKey()), projection.projectChild(child));
+    }
+    // a tighter maxDepth still wins
+    assertEquals(tree("p1", true, "p2", true), FirestackProjection.fromOptions(null, "1", true, "2").project(POSTS));
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void childrenProjectOneAtATimeLikeTheWholeTree() {
+    String[][] options = {
+      { "*/title:p2/body", null }, { "p1", null }, { null, "2" }, { "*/author", "1" }
+    };
+    for (String[] option : options) {
+      FirestackProjection projection = FirestackProjection.fromOptions(option[0], option[1], false, null);
+      Map<String, Object> whole = (Map<String, Object>) projection.project(POSTS);
+      for (DataSnapshot child : POSTS.getChildren()) {
+        assertEquals(Arrays.toString(option), whole == null ? null : whole.get(child.getKey()), projection.projectChild(child));
+      }
+    }
+    // a chunk can't collapse the whole list, so each child does
+    assertEquals(true, FirestackProjection.fromOptions(null, "0", false, null).projectChild(POSTS.child("p1")));
+    assertEquals(true, FirestackProjection.fromOptions(null, null, true, null).projectChild(POSTS.child("p1")));
+  }
+
+  @Test
+  public void snapshotToMapSendsTheProjectedTree() {
+    FirestackProjection projection = FirestackProjection.fromOptions("title", null, false, null);
+    Map<String, Object> data = ((JavaOnlyMap) projection.snapshotToMap(POSTS.child("p2"))).toHashMap();
+
+    assertEquals("p2", data.get("key"));
+    assertEquals(tree("title", "Two"), data.get("value"));
+    assertEquals(Arrays.<Object>asList("title"), data.get("childKeys"));
+    assertEquals(1.0, data.get("childrenCount"));
+    assertEquals(true, data.get("hasChildren"));
+  }
+
+  @Test
+  public void countsFollowTheProjectedTree() {
+    FirestackProjection projection = FirestackProjection.fromOptions("subtitle", null, false, null);
+    Map<String, Object> data = ((JavaOnlyMap) projection.snapshotToMap(POSTS.child("p2"))).toHashMap();
+
+    assertNull(data.get("value"));
+    assertEquals(0.0, data.get("childrenCount"));
+    assertEquals(false, data.get("hasChildren"));
+  }
+
+  @Test
+  public void selectPathsFirebaseCanNotMatchAreRejected() {
+    for (String select : new String[] { "title.en", "*/a#b", "$key", "tags[0]", "a]", "bad\u0001key" }) {
+      try {
+        FirestackProjection.fromOptions(select, null, false, null);
+        fail(select);
+      } catch (IllegalArgumentException e) {
+        assertTrue(e.getMessage().contains(select));
+      }
+    }
+  }
+}
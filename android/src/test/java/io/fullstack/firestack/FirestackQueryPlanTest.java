@@ -0,0 +1,122 @@
+package io.fullstack.firestack;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.Test;
+
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.Query;
+
+public class FirestackQueryPlanTest {
+
+  @Test
+  public void keyOrderingTurnsTypedValuesIntoKeys() {
+    DatabaseReference ref = mock(DatabaseReference.class);
+    Query byKey = mock(Query.class);
+    when(ref.orderByKey()).thenReturn(byKey);
+    when(byKey.startAt("5")).thenReturn(byKey);
+    when(byKey.endAt("true")).thenReturn(byKey);
+
+    FirestackQueryPlan plan = FirestackQueryPlan.compile(JavaOnlyArray.of(
+      JavaOnlyArray.of("startAt", 5.0, "ignored"), JavaOnlyArray.of("endAt", true)));
+
+    assertSame(byKey, plan.buildQuery(ref));
+    verify(byKey).startAt("5");
+    verify(byKey).endAt("true");
+  }
+
+  @Test
+  public void otherOrderingsKeepTypedValues() {
+    DatabaseReference ref = mock(DatabaseReference.class);
+    Query byChild = mock(Query.class);
+    when(ref.orderByChild("score")).thenReturn(byChild);
+
+    FirestackQueryPlan.compile(JavaOnlyArray.of(
+      "orderByChild:score", JavaOnlyArray.of("startAt", 5.0, "k"))).buildQuery(ref);
+
+    verify(byChild).startAt(5.0, "k");
+  }
+
+  @Test
+  public void pagedQueriesLeaveLimitsAndTheirOwnBoundToTheCursor() {
+    DatabaseReference ref = mock(DatabaseReference.class);
+    Query byChild = mock(Query.class);
+    when(ref.orderByChild("score")).thenReturn(byChild);
+    when(byChild.endAt(9.0)).thenReturn(byChild);
+    when(byChild.startAt(1.0)).thenReturn(byChild);
+
+    FirestackQueryPlan range = FirestackQueryPlan.compile(JavaOnlyArray.of(
+      "orderByChild:score", "limitToFirst:3", JavaOnlyArray.of("startAt", 1.0), JavaOnlyArray.of("endAt", 9.0)));
+    assertSame(byChild, range.buildPagedQuery(ref, "startAt"));
+    verify(byChild).endAt(9.0);
+    verify(byChild, never()).startAt(1.0);
+    verify(byChild, never()).limitToFirst(anyInt());
+
+    // an exact match pages within itself
+    FirestackQueryPlan exact = FirestackQueryPlan.compile(JavaOnlyArray.of(
+      "orderByChild:score", JavaOnlyArray.of("equalTo", 1.0)));
+    assertSame(byChild, exact.buildPagedQuery(ref, "endAt"));
+    verify(byChild).startAt(1.0);
+    verify(byChild, never()).equalTo(1.0);
+  }
+
+  @Test
+  public void booleanPriorityIsRejectedAtCompile() {
+    try {
+      FirestackQueryPlan.compile(JavaOnlyArray.of("orderByPriority", JavaOnlyArray.of("equalTo", false)));
+      fail();
+    } catch (IllegalArgumentException e) {
+      assertTrue(e.getMessage().contains("orderByPriority"));
+    }
+  }
+
+  @Test
+  public void invalidSelectPathIsRejectedAtCompile() {
+    try {
+      FirestackQueryPlan.compile(JavaOnlyArray.of("select:*/title:author.name"));
+      fail();
+    } catch (IllegalArgumentException e) {
+      assertTrue(e.getMessage().contains("author.name"));
+    }
+  }
+
+  @Test
+  public void equivalentModifiersShareASignature() {
+    FirestackQueryPlan first = FirestackQueryPlan.compile(JavaOnlyArray.of("limitToLast:5", "orderByChild:a", "limitToFirst:2"));
+    FirestackQueryPlan second = FirestackQueryPlan.compile(JavaOnlyArray.of("orderByChild:a", "limitToFirst:2"));
+
+    assertEquals(second.getSignature(), first.getSignature());
+  }
+
+  @Test
+  public void repeatedModifiersReuseTheCompiledPlan() {
+    FirestackQueryPlan first = FirestackQueryPlan.compile(JavaOnlyArray.of("orderByChild:score", JavaOnlyArray.of("startAt", 5.0, "k")));
+    FirestackQueryPlan again = FirestackQueryPlan.compile(JavaOnlyArray.of("orderByChild:score", JavaOnlyArray.of("startAt", 5.0, "k")));
+
+    assertSame(first, again);
+    // same text, different type: a plan of its own
+    assertNotSame(first, FirestackQueryPlan.compile(JavaOnlyArray.of("orderByChild:score", JavaOnlyArray.of("startAt", "5", "k"))));
+  }
+
+  @Test
+  public void cacheDropsTheLeastRecentlyUsedPlan() {
+    FirestackQueryPlan kept = FirestackQueryPlan.compile(JavaOnlyArray.of("orderByChild:kept"));
+    FirestackQueryPlan dropped = FirestackQueryPlan.compile(JavaOnlyArray.of("orderByChild:dropped"));
+    for (int i = 0; i < 64; i++) {
+      FirestackQueryPlan.compile(JavaOnlyArray.of("orderByChild:kept"));
+      FirestackQueryPlan.compile(JavaOnlyArray.of("limitToFirst:" + (i + 1)));
+    }
+
+    assertSame(kept, FirestackQueryPlan.compile(JavaOnlyArray.of("orderByChild:kept")));
+    assertNotSame(dropped, FirestackQueryPlan.compile(JavaOnlyArray.of("orderByChild:dropped")));
+  }
+}
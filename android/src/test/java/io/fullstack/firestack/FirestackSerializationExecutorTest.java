@@ -0,0 +1,161 @@
+package io.fullstack.firestack;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.MockedStatic;
+
+import com.facebook.react.bridge.Arguments;
+
+public class FirestackSerializationExecutorTest {
+  private FirestackSerializationExecutor mExecutor;
+
+  @Before
+  public void setUp() {
+    mExecutor = new FirestackSerializationExecutor();
+  }
+
+  @After
+  public void tearDown() {
+    mExecutor.shutdown();
+  }
+
+  @Test
+  public void eachHandleKeepsItsOrderWhileThePoolIsResized() throws Exception {
+    final int handles = 16;
+    final int events = 2000;
+    final Map<String, List<Integer>> seen = new ConcurrentHashMap<String, List<Integer>>();
+    final CountDownLatch done = new CountDownLatch(handles * events);
+
+    for (int i = 0; i < events; i++) {
+      if (i == events / 3) {
+        mExecutor.setThreads(6);
+      } else if (i == 2 * events / 3) {
+        mExecutor.setThreads(1);
+      }
+      for (int h = 0; h < handles; h++) {
+        final String handle = "/h" + h;
+        final int seq = i;
+        mExecutor.execute(handle, new Runnable() {
+          @Override
+          public void run() {
+            List<Integer> list = seen.get(handle);
+            if (list == null) {
+              seen.put(handle, list = new ArrayList<Integer>());
+            }
+            list.add(seq);
+            done.countDown();
+          }
+        });
+      }
+    }
+
+    assertTrue(done.await(30, TimeUnit.SECONDS));
+    for (List<Integer> list : seen.values()) {
+      assertEquals(events, list.size());
+      for (int i = 0; i < events; i++) {
+        assertEquals(i, (int) list.get(i));
+      }
+    }
+  }
+
+  @Test
+  public void busyPoolNeverRunsWorkOnTheCaller() throws Exception {
+    mExecutor.setThreads(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(1000);
+    final AtomicInteger inline = new AtomicInteger();
+    final Thread caller = Thread.currentThread();
+
+    // hold the only thread
+    mExecutor.execute("/busy", new Runnable() {
+      @Override
+      public void run() {
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    });
+    // many more handles with work than threads
+    for (int h = 0; h < 1000; h++) {
+      mExecutor.execute("/h" + h, new Runnable() {
+        @Override
+        public void run() {
+          if (Thread.currentThread() == caller) {
+            inline.incrementAndGet();
+          }
+          done.countDown();
+        }
+      });
+    }
+
+    assertEquals(1000, done.getCount());
+    release.countDown();
+    assertTrue(done.await(30, TimeUnit.SECONDS));
+    assertEquals(0, inline.get());
+  }
+
+  @Test
+  public void queuedValuesAreSupersededByNewerOnes() throws Exception {
+    MockedStatic<Arguments> arguments = Fakes.mockArguments();
+    try {
+      mExecutor.setThreads(1);
+      final CountDownLatch release = new CountDownLatch(1);
+      final CountDownLatch done = new CountDownLatch(1);
+      final List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+
+      mExecutor.execute("/busy", new Runnable() {
+        @Override
+        public void run() {
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+      });
+      mExecutor.execute("/v", record(ran, "cached"));
+      mExecutor.execute("/v", record(ran, "value1"), true);
+      mExecutor.execute("/v", record(ran, "value2"), true);
+      mExecutor.execute("/v", record(ran, "resync"));
+      mExecutor.execute("/v", record(ran, "value3"), true);
+      mExecutor.execute("/v", new Runnable() {
+        @Override
+        public void run() {
+          done.countDown();
+        }
+      });
+      release.countDown();
+
+      assertTrue(done.await(30, TimeUnit.SECONDS));
+      assertEquals(Arrays.asList("cached", "resync", "value3"), ran);
+      assertEquals(2.0, mExecutor.getStats().getDouble("superseded"), 0);
+    } finally {
+      arguments.close();
+    }
+  }
+
+  private static Runnable record(final List<String> ran, final String name) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        ran.add(name);
+      }
+    };
+  }
+}
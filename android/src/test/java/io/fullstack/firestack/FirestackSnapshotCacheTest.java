@@ -0,0 +1,80 @@
+package io.fullstack.firestack;
+
+import static io.fullstack.firestack.Fakes.snapshot;
+import static io.fullstack.firestack.Fakes.tree;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import android.os.SystemClock;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.MockedStatic;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.ReadableMap;
+
+public class FirestackSnapshotCacheTest {
+  private final long[] mNow = new long[] { 1000 };
+  private MockedStatic<SystemClock> mClock;
+  private MockedStatic<Arguments> mArguments;
+  private FirestackSnapshotCache mCache;
+
+  @Before
+  public void setUp() {
+    mClock = Fakes.mockClock(mNow);
+    mArguments = Fakes.mockArguments();
+    mCache = new FirestackSnapshotCache();
+  }
+
+  @After
+  public void tearDown() {
+    mArguments.close();
+    mClock.close();
+  }
+
+  @Test
+  public void invalidationDropsOverlappingPathsOnly() {
+    for (String path : new String[] { "/rooms", "/rooms/1", "/rooms/1/messages", "/rooms10", "/users" }) {
+      read(path);
+    }
+    mCache.invalidate("/rooms/1/");
+
+    assertNull(mCache.get("/rooms"));
+    assertNull(mCache.get("/rooms/1"));
+    assertNull(mCache.get("/rooms/1/messages"));
+    assertNotNull(mCache.get("/rooms10"));
+    assertNotNull(mCache.get("/users"));
+
+    mCache.invalidate("/");
+    assertNull(mCache.get("/rooms10"));
+    assertNull(mCache.get("/users"));
+    assertEquals(0, ((ReadableMap) mCache.getStats()).getDouble("bytes"), 0);
+  }
+
+  @Test
+  public void readThatRacedAnInvalidationIsNotCached() {
+    long generation = mCache.beginRead();
+    // a child changes while the read of its parent is in flight
+    mCache.invalidate("/rooms/1");
+    mCache.put("/rooms", "/rooms", snapshot("rooms", tree("1", "old")), null, 30000, generation);
+
+    assertNull(mCache.get("/rooms"));
+    assertEquals(1, ((ReadableMap) mCache.getStats()).getDouble("stalePuts"), 0);
+
+    // a read started after the change is fine, and so is one of an unrelated path
+    long later = mCache.beginRead();
+    long unrelated = mCache.beginRead();
+    mCache.invalidate("/users/1");
+    mCache.put("/rooms", "/rooms", snapshot("rooms", tree("1", "new")), null, 30000, later);
+    mCache.put("/rooms/2", "/rooms/2", snapshot("2", tree("a", "b")), null, 30000, unrelated);
+    assertNotNull(mCache.get("/rooms"));
+    assertNotNull(mCache.get("/rooms/2"));
+  }
+
+  private void read(final String path) {
+    mCache.put(path, path, snapshot("key", tree("a", "b")), null, 30000, mCache.beginRead());
+  }
+}
@@ -0,0 +1,196 @@
+package io.fullstack.firestack;
+
+import static io.fullstack.firestack.Fakes.snapshot;
+import static io.fullstack.firestack.Fakes.tree;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.MockedStatic;
+
+import com.facebook.react.bridge.Arguments;
+
+@SuppressWarnings("unchecked")
+public class FirestackSnapshotDiffTest {
+  private MockedStatic<Arguments> mArguments;
+
+  @Before
+  public void setUp() {
+    mArguments = Fakes.mockArguments();
+  }
+
+  @After
+  public void tearDown() {
+    mArguments.close();
+  }
+
+  @Test
+  public void firstEventIsAFullTree() {
+    FirestackSnapshotDiff diff = new FirestackSnapshotDiff();
+    Map<String, Object> payload = payload(diff, tree("a", 1L));
+
+    assertEquals(true, payload.get("resync"));
+    assertEquals(1.0, payload.get("seq"));
+    assertEquals(tree("a", 1.0), snapshotOf(payload).get("value"));
+  }
+
+  @Test
+  public void changesBecomePatchesAgainstThePreviousSeq() {
+    FirestackSnapshotDiff diff = new FirestackSnapshotDiff();
+    payload(diff, tree("a", 1L, "b", tree("c", "x", "d", "y")));
+    Map<String, Object> payload = payload(diff, tree("a", 2L, "b", tree("c", "x"), "e", true));
+
+    assertFalse(payload.containsKey("resync"));
+    assertEquals(1.0, payload.get("baseSeq"));
+    assertEquals(2.0, payload.get("seq"));
+
+    List<Object> patch = (List<Object>) payload.get("patch");
+    assertEquals(3, patch.size());
+    assertTrue(patch.contains(tree("path", "a", "op", "set", "value", 2.0)));
+    assertTrue(patch.contains(tree("path", "b/d", "op", "remove")));
+    assertTrue(patch.contains(tree("path", "e", "op", "set", "value", true)));
+    // child keys changed, so they ride along
+    assertEquals(3.0, snapshotOf(payload).get("childrenCount"));
+  }
+
+  @Test
+  public void unchangedValueIsAnEmptyPatch() {
+    FirestackSnapshotDiff diff = new FirestackSnapshotDiff();
+    payload(diff, tree("a", 1L));
+    Map<String, Object> payload = payload(diff, tree("a", 1L));
+
+    assertTrue(((List<Object>) payload.get("patch")).isEmpty());
+    assertNull(snapshotOf(payload).get("childKeys"));
+  }
+
+  @Test
+  public void resyncRepeatsTheLastTree() {
+    FirestackSnapshotDiff diff = new FirestackSnapshotDiff();
+    assertNull(diff.resyncPayload("value", "/list"));
+    payload(diff, tree("a", 1L));
+    payload(diff, tree("a", 3L));
+
+    Map<String, Object> resync = ((JavaOnlyMap) diff.resyncPayload("value", "/list")).toHashMap();
+    assertEquals(true, resync.get("resync"));
+    assertEquals(3.0, resync.get("seq"));
+    assertEquals(tree("a", 3.0), snapshotOf(resync).get("value"));
+  }
+
+  @Test
+  public void replayedPayloadsRebuildEveryTree() {
+    Random random = new Random(42);
+    for (int run = 0; run < 20; run++) {
+      FirestackSnapshotDiff diff = new FirestackSnapshotDiff();
+      Object rebuilt = null;
+      double seq = 0;
+      int patches = 0;
+
+      for (int step = 0; step < 50; step++) {
+        // mostly small edits of a small key space, now and then a change too big to patch
+        Object tree = step % 17 == 16 ? wideTree(300, step) : randomTree(random, 3);
+        Map<String, Object> payload = payload(diff, tree);
+
+        if (payload.containsKey("patch")) {
+          assertEquals("patch must apply to the last seq", seq, (Double) payload.get("baseSeq"), 0);
+          rebuilt = applyPatch(rebuilt, (List<Object>) payload.get("patch"));
+          patches++;
+        } else {
+          rebuilt = snapshotOf(payload).get("value");
+        }
+        seq = (Double) payload.get("seq");
+        assertEquals("run " + run + " step " + step, tree, rebuilt);
+      }
+      assertTrue(patches > 0);
+    }
+  }
+
+  @Test
+  public void largeChangesFallBackToAFullTree() {
+    FirestackSnapshotDiff diff = new FirestackSnapshotDiff();
+    payload(diff, tree("a", 1.0));
+    Map<String, Object> payload = payload(diff, wideTree(300, 0));
+
+    assertEquals(true, payload.get("resync"));
+    assertEquals(wideTree(300, 0), snapshotOf(payload).get("value"));
+  }
+
+  /**
+   * A value as Firebase would hold it: no empty objects, null for nothing.
+   */
+  private static Object randomTree(final Random random, final int depth) {
+    Map<String, Object> tree = new LinkedHashMap<String, Object>();
+    for (String key : new String[] { "a", "b", "c", "d" }) {
+      int pick = random.nextInt(6);
+      if (pick == 0 && depth > 0) {
+        Object child = randomTree(random, depth - 1);
+        if (child != null) {
+          tree.put(key, child);
+        }
+      } else if (pick == 1) {
+        tree.put(key, (double) random.nextInt(3));
+      } else if (pick == 2) {
+        tree.put(key, random.nextBoolean() ? "x" : "y");
+      } else if (pick == 3) {
+        tree.put(key, random.nextBoolean());
+      }
+    }
+    return tree.isEmpty() ? null : tree;
+  }
+
+  private static Map<String, Object> wideTree(final int size, final int salt) {
+    Map<String, Object> tree = new LinkedHashMap<String, Object>();
+    for (int i = 0; i < size; i++) {
+      tree.put("k" + i, (double) (i + salt));
+    }
+    return tree;
+  }
+
+  /**
+   * Same semantics as lib/utils/patch.js.
+   */
+  @SuppressWarnings("unchecked")
+  private static Object applyPatch(final Object value, final List<Object> ops) {
+    Object current = value;
+    for (Object item : ops) {
+      Map<String, Object> op = (Map<String, Object>) item;
+      String path = (String) op.get("path");
+      String[] keys = path.length() == 0 ? new String[0] : path.split("/");
+      current = setIn(current, keys, 0, op.get("value"), "remove".equals(op.get("op")));
+    }
+    return current;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Object setIn(final Object node, final String[] keys, final int index, final Object value, final boolean remove) {
+    if (index == keys.length) {
+      return remove ? null : value;
+    }
+    Map<String, Object> next = node instanceof Map
+      ? new LinkedHashMap<String, Object>((Map<String, Object>) node)
+      : new LinkedHashMap<String, Object>();
+    if (remove && index == keys.length - 1) {
+      next.remove(keys[index]);
+    } else {
+      next.put(keys[index], setIn(next.get(keys[index]), keys, index + 1, value, remove));
+    }
+    return next;
+  }
+
+  private static Map<String, Object> payload(final FirestackSnapshotDiff diff, final Object value) {
+    return ((JavaOnlyMap) diff.nextPayload("value", "/list", snapshot("list", value), null)).toHashMap();
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Map<String, Object> snapshotOf(final Map<String, Object> payload) {
+    return (Map<String, Object>) payload.get("snapshot");
+  }
+}
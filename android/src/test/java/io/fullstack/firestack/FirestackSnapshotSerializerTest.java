@@ -0,0 +1,246 @@
+package io.fullstack.firestack;
+
+import static io.fullstack.firestack.Fakes.snapshot;
+import static io.fullstack.firestack.Fakes.tree;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.MockedStatic;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+import com.google.firebase.database.DataSnapshot;
+
+public class FirestackSnapshotSerializerTest {
+  private MockedStatic<Arguments> mArguments;
+
+  @Before
+  public void setUp() {
+    mArguments = Fakes.mockArguments();
+  }
+
+  @After
+  public void tearDown() {
+    mArguments.close();
+  }
+
+  @Test
+  public void serializesChildrenInQueryOrder() {
+    Map<String, Object> data = ((JavaOnlyMap) FirestackSnapshotSerializer.snapshotToMap(snapshot("users", tree(
+      "b", tree("name", "Bob", "age", 42L, "admin", true),
+      "a", tree("name", "Ann", "score", 1.5)
+    )))).toHashMap();
+
+    assertEquals("users", data.get("key"));
+    assertEquals(true, data.get("exists"));
+    assertEquals(true, data.get("hasChildren"));
+    assertEquals(2.0, data.get("childrenCount"));
+    assertEquals(Arrays.<Object>asList("b", "a"), data.get("childKeys"));
+    assertEquals(tree(
+      "b", tree("name", "Bob", "age", 42.0, "admin", true),
+      "a", tree("name", "Ann", "score", 1.5)
+    ), data.get("value"));
+    assertNull(data.get("priority"));
+  }
+
+  @Test
+  public void serializesLeaves() {
+    Map<String, Object> data = ((JavaOnlyMap) FirestackSnapshotSerializer.snapshotToMap(snapshot("title", "Hello"))).toHashMap();
+
+    assertEquals("Hello", data.get("value"));
+    assertEquals(false, data.get("hasChildren"));
+    assertEquals(0.0, data.get("childrenCount"));
+    assertEquals(Collections.emptyList(), data.get("childKeys"));
+  }
+
+  @Test
+  public void serializesMissingValuesAsNull() {
+    Map<String, Object> data = ((JavaOnlyMap) FirestackSnapshotSerializer.snapshotToMap(snapshot("gone", null))).toHashMap();
+
+    assertEquals(false, data.get("exists"));
+    assertNull(data.get("value"));
+  }
+
+  @Test
+  public void toTreeKeepsLeafTypes() {
+    Object tree = FirestackSnapshotSerializer.toTree(snapshot("root", tree("n", 1L, "s", "x", "nested", tree("b", false))));
+
+    assertEquals(tree("n", 1L, "s", "x", "nested", tree("b", false)), tree);
+  }
+
+  @Test
+  public void matchesTheOriginalSerializerOnRandomTrees() {
+    Random random = new Random(20161018L);
+    for (int i = 0; i < 500; i++) {
+      Object value = randomValue(random, 0);
+      DataSnapshot snapshot = snapshot("k" + i, value);
+      Object priority = randomPriority(random);
+      when(snapshot.getPriority()).thenReturn(priority);
+
+      Map<String, Object> expected = ((JavaOnlyMap) LegacySerializer.dataSnapshotToMap("value", "/p", snapshot)).toHashMap();
+      Map<String, Object> actual = ((JavaOnlyMap) FirestackUtils.dataSnapshotToMap("value", "/p", snapshot)).toHashMap();
+
+      assertEquals("tree " + i + ": " + value + " priority " + priority, expected, actual);
+    }
+  }
+
+  /**
+   * Trees the way the database hands them over: nested objects, arrays
+   * stored as "0", "1", ... keyed objects and Long, Double, Boolean or
+   * String leaves, with the odd missing value at the root.
+   */
+  private static Object randomValue(Random random, int depth) {
+    int pick = random.nextInt(depth == 0 ? 8 : 10);
+    if (depth < 4 && pick < 3) {
+      Map<String, Object> children = new LinkedHashMap<String, Object>();
+      int count = 1 + random.nextInt(5);
+      boolean array = pick == 0;
+      for (int i = 0; i < count; i++) {
+        children.put(array ? String.valueOf(i) : "c" + random.nextInt(1000), randomValue(random, depth + 1));
+      }
+      return children;
+    }
+    switch (pick % 6) {
+      case 0:
+        return random.nextLong() >> random.nextInt(64);
+      case 1:
+        return random.nextBoolean() ? random.nextDouble() * 1e6 - 5e5 : (double) random.nextInt(100);
+      case 2:
+        return random.nextBoolean();
+      case 3:
+        return random.nextBoolean() ? "" : "s\u00e9" + random.nextInt();
+      case 4:
+        return depth == 0 ? null : (Object) Long.valueOf(random.nextInt(10));
+      default:
+        return (long) random.nextInt();
+    }
+  }
+
+  private static Object randomPriority(Random random) {
+    switch (random.nextInt(3)) {
+      case 0:
+        return null;
+      case 1:
+        return (double) random.nextInt(50);
+      default:
+        return "p" + random.nextInt(50);
+    }
+  }
+
+  /**
+   * The serializer as it was before FirestackSnapshotSerializer, kept as
+   * the reference the new one has to agree with. Nested maps are matched
+   * with instanceof since tests build JavaOnlyMaps rather than
+   * WritableNativeMaps.
+   */
+  private static class LegacySerializer {
+
+    static WritableMap dataSnapshotToMap(String name,
+      String path,
+      DataSnapshot dataSnapshot) {
+        WritableMap data = Arguments.createMap();
+
+        data.putString("key", dataSnapshot.getKey());
+        data.putBoolean("exists", dataSnapshot.exists());
+        data.putBoolean("hasChildren", dataSnapshot.hasChildren());
+
+        data.putDouble("childrenCount", dataSnapshot.getChildrenCount());
+        if (!dataSnapshot.hasChildren()) {
+          Object value = dataSnapshot.getValue();
+          String type = value!=null ? value.getClass().getName() : "";
+          switch (type) {
+            case "java.lang.Boolean":
+              data.putBoolean("value", (Boolean)value);
+              break;
+            case "java.lang.Long":
+              Long longVal = (Long) value;
+              data.putDouble("value", (double)longVal);
+              break;
+            case "java.lang.Double":
+              data.putDouble("value", (Double) value);
+              break;
+            case "java.lang.String":
+              data.putString("value",(String) value);
+              break;
+            default:
+              data.putString("value", null);
+          }
+        } else{
+          WritableMap valueMap = castSnapshotValue(dataSnapshot);
+          data.putMap("value", valueMap);
+        }
+
+        WritableArray childKeys = Arguments.createArray();
+        if (dataSnapshot.hasChildren()) {
+          for (DataSnapshot child : dataSnapshot.getChildren()) {
+            childKeys.pushString(child.getKey());
+          }
+        }
+        data.putArray("childKeys", childKeys);
+
+        Object priority = dataSnapshot.getPriority();
+        if (priority == null) {
+          data.putString("priority", null);
+        } else {
+          data.putString("priority", priority.toString());
+        }
+
+        WritableMap eventMap = Arguments.createMap();
+        eventMap.putString("eventName", name);
+        eventMap.putMap("snapshot", data);
+        eventMap.putString("path", path);
+        return eventMap;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <Any> Any castSnapshotValue(DataSnapshot snapshot) {
+      if (snapshot.hasChildren()) {
+        WritableMap data = Arguments.createMap();
+        for (DataSnapshot child : snapshot.getChildren()) {
+          Any castedChild = castSnapshotValue(child);
+          if (castedChild instanceof WritableMap) {
+            data.putMap(child.getKey(), (WritableMap) castedChild);
+            continue;
+          }
+          switch (castedChild.getClass().getName()) {
+            case "java.lang.Boolean":
+              data.putBoolean(child.getKey(), (Boolean) castedChild);
+              break;
+            case "java.lang.Long":
+              Long longVal = (Long) castedChild;
+              data.putDouble(child.getKey(), (double)longVal);
+              break;
+            case "java.lang.Double":
+              data.putDouble(child.getKey(), (Double) castedChild);
+              break;
+            case "java.lang.String":
+              data.putString(child.getKey(), (String) castedChild);
+              break;
+            default:
+              break;
+          }
+        }
+        return (Any) data;
+      } else {
+        Object value = snapshot.getValue();
+        if (value instanceof Boolean || value instanceof Long
+          || value instanceof Double || value instanceof String) {
+          return (Any) value;
+        }
+        return (Any) null;
+      }
+    }
+  }
+}
@@ -0,0 +1,139 @@
+package io.fullstack.firestack;
+
+import static io.fullstack.firestack.Fakes.snapshot;
+import static io.fullstack.firestack.Fakes.tree;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.MockedStatic;
+
+import com.facebook.react.bridge.Arguments;
+
+public class FirestackSnapshotStoreTest {
+  @Rule
+  public final TemporaryFolder mFolder = new TemporaryFolder();
+
+  private Context mContext;
+  private File mDirectory;
+  private MockedStatic<Arguments> mArguments;
+
+  @Before
+  public void setUp() {
+    mArguments = Fakes.mockArguments();
+    mContext = mock(Context.class);
+    when(mContext.getFilesDir()).thenReturn(mFolder.getRoot());
+    mDirectory = new File(mFolder.getRoot(), "firestack-snapshots");
+  }
+
+  @After
+  public void tearDown() {
+    mArguments.close();
+  }
+
+  @Test
+  public void queuedWritesFinishAfterShutdown() throws Exception {
+    FirestackSnapshotStore store = new FirestackSnapshotStore(mContext);
+    store.save("/rooms[]#value", snapshot("rooms", tree("a", 1L)), null);
+    store.shutdown();
+    awaitFiles(1);
+
+    // later writes are dropped rather than thrown at the caller
+    store.save("/rooms[]#value", snapshot("rooms", tree("a", 2L)), null);
+
+    JavaOnlyMap loaded = (JavaOnlyMap) new FirestackSnapshotStore(mContext).load("/rooms[]#value");
+    assertEquals(tree("a", 1.0), loaded.toHashMap().get("value"));
+  }
+
+  @Test
+  public void leftoverTemporaryFilesAreDeletedAndNotCounted() throws Exception {
+    assertTrue(mDirectory.mkdirs());
+    File leftover = fill(new File(mDirectory, "torn.bin.tmp"), 10000);
+    File older = fill(new File(mDirectory, "older.bin"), 100);
+
+    FirestackSnapshotStore store = new FirestackSnapshotStore(mContext);
+    store.setMaxBytes(1000);
+    store.save("/rooms[]#value", snapshot("rooms", tree("a", 1L)), null);
+    store.shutdown();
+    awaitFiles(2);
+
+    assertFalse(leftover.exists());
+    assertTrue(older.exists());
+  }
+
+  @Test
+  public void loadsLargeValuesAndRejectsCorruptOnes() throws Exception {
+    // a body several times the checksum's scratch size
+    Map<String, Object> value = tree();
+    for (int i = 0; i < 2000; i++) {
+      value.put("item" + i, tree("title", "Item " + i, "score", (long) i));
+    }
+    FirestackSnapshotStore store = new FirestackSnapshotStore(mContext);
+    store.save("/items[]#value", snapshot("items", value), null);
+    store.shutdown();
+    awaitFiles(1);
+
+    Map<String, Object> loaded = ((JavaOnlyMap) store.load("/items[]#value")).toHashMap();
+    assertEquals(2000.0, loaded.get("childrenCount"));
+    assertEquals(tree("title", "Item 1999", "score", 1999.0), ((Map<?, ?>) loaded.get("value")).get("item1999"));
+
+    // flip a byte near the end of the body
+    File file = mDirectory.listFiles()[0];
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.seek(raf.length() - 3);
+      int b = raf.read();
+      raf.seek(raf.length() - 3);
+      raf.write(b ^ 0xff);
+    } finally {
+      raf.close();
+    }
+    assertNull(store.load("/items[]#value"));
+  }
+
+  private static File fill(final File file, final int length) throws IOException {
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(new byte[length]);
+    } finally {
+      out.close();
+    }
+    return file;
+  }
+
+  /**
+   * Waits for the writer to leave `count` snapshot files and nothing else.
+   */
+  private void awaitFiles(final int count) throws InterruptedException {
+    for (int i = 0; i < 500; i++) {
+      String[] names = mDirectory.list();
+      if (names != null && names.length == count) {
+        boolean done = true;
+        for (String name : names) {
+          done &= name.endsWith(".bin");
+        }
+        if (done) {
+          return;
+        }
+      }
+      Thread.sleep(10);
+    }
+    throw new AssertionError("writer did not finish");
+  }
+}
@@ -0,0 +1,255 @@
+package io.fullstack.firestack;
+
+import static io.fullstack.firestack.Fakes.snapshot;
+import static io.fullstack.firestack.Fakes.tree;
+import static io.fullstack.firestack.FirestackTransactionOps.applyOp;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.MockedStatic;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.Callback;
+
+import com.google.firebase.database.MutableData;
+import com.google.firebase.database.Transaction;
+
+public class FirestackTransactionOpsTest {
+  private MockedStatic<Arguments> mArguments;
+  private MockedStatic<Transaction> mTransaction;
+  // runs the result on the calling thread
+  private final FirestackSerializationExecutor mSerializer = new FirestackSerializationExecutor() {
+    @Override
+    public void execute(String handle, Runnable task, boolean supersedes) {
+      task.run();
+    }
+  };
+
+  @Before
+  public void setUp() {
+    mArguments = Fakes.mockArguments();
+    final Transaction.Result success = mock(Transaction.Result.class);
+    when(success.isSuccess()).thenReturn(true);
+    final Transaction.Result abort = mock(Transaction.Result.class);
+    when(abort.isSuccess()).thenReturn(false);
+    mTransaction = Mockito.mockStatic(Transaction.class);
+    mTransaction.when(new MockedStatic.Verification() {
+      @Override
+      public void apply() {
+        Transaction.success(any(MutableData.class));
+      }
+    }).thenReturn(success);
+    mTransaction.when(new MockedStatic.Verification() {
+      @Override
+      public void apply() {
+        Transaction.abort();
+      }
+    }).thenReturn(abort);
+  }
+
+  @After
+  public void tearDown() {
+    mTransaction.close();
+    mArguments.close();
+    mSerializer.shutdown();
+  }
+
+  @Test
+  public void incrementStaysIntegralForIntegers() {
+    assertEquals(3L, applyOp("increment", 2L, 1L));
+    assertEquals(2.5, applyOp("increment", 2L, 0.5));
+    assertEquals(1L, applyOp("increment", null, 1L));
+  }
+
+  @Test
+  public void appendCopiesTheList() {
+    List<Object> current = new ArrayList<Object>(Arrays.<Object>asList("a"));
+
+    assertEquals(Arrays.<Object>asList("a", "b"), applyOp("append", current, "b"));
+    assertEquals(Arrays.<Object>asList("a"), current);
+    assertEquals("ab", applyOp("append", "a", "b"));
+  }
+
+  @Test
+  public void setIfAbsentMaxAndMin() {
+    assertEquals(1L, applyOp("setIfAbsent", null, 1L));
+    assertEquals(2L, applyOp("setIfAbsent", 2L, 1L));
+    assertEquals(5L, applyOp("max", 3L, 5L));
+    assertEquals(3L, applyOp("min", 3L, 5L));
+  }
+
+  @Test
+  public void mismatchedValuesAbort() {
+    assertNull(applyOp("increment", "x", 1L));
+    assertNull(applyOp("max", 1L, "x"));
+    assertNull(applyOp("append", 1L, "x"));
+  }
+
+  @Test
+  public void conflictingCommitsAreRetriedFromTheNewValue() {
+    FakeServer server = new FakeServer(tree("count", 1L, "high", 3L), 3);
+    RecordingCallback callback = new RecordingCallback();
+    FirestackTransactionOps ops = FirestackTransactionOps.parse(JavaOnlyArray.of(
+      JavaOnlyMap.of("op", "increment", "path", "count", "value", 1),
+      JavaOnlyMap.of("op", "max", "path", "high", "value", 7),
+      JavaOnlyMap.of("op", "append", "path", "log", "value", "x")));
+
+    server.run(ops.handler("/stats", mSerializer, callback));
+
+    // each try starts over from what the other writer left
+    assertEquals(4, server.tries);
+    assertEquals(302L, server.value.get("count"));
+    assertEquals(7L, server.value.get("high"));
+    assertEquals(Arrays.<Object>asList("x"), server.value.get("log"));
+
+    JavaOnlyMap res = callback.result();
+    assertEquals("success", res.getString("status"));
+    assertTrue(res.getBoolean("committed"));
+    assertEquals(3, res.getInt("retries"));
+    assertEquals(302.0, res.getMap("snapshot").getMap("value").getDouble("count"), 0);
+  }
+
+  @Test
+  public void mismatchedValueAbortsTheTransaction() {
+    FakeServer server = new FakeServer(tree("count", "x"), 0);
+    RecordingCallback callback = new RecordingCallback();
+    FirestackTransactionOps ops = FirestackTransactionOps.parse(JavaOnlyArray.of(
+      JavaOnlyMap.of("op", "increment", "path", "count", "value", 1)));
+
+    server.run(ops.handler("/stats", mSerializer, callback));
+
+    assertEquals(1, server.tries);
+    assertEquals("x", server.value.get("count"));
+    JavaOnlyMap res = callback.result();
+    assertEquals("aborted", res.getString("status"));
+    assertFalse(res.getBoolean("committed"));
+    assertEquals(0, res.getInt("retries"));
+  }
+
+  /**
+   * The location the transaction runs on, standing in for Firebase. Every
+   * try gets a MutableData over a copy of the value; a successful try only
+   * commits once `conflicts` other writers (each adding 100 to `count`)
+   * have got in first, otherwise Firebase retries it.
+   */
+  private static class FakeServer {
+    Map<String, Object> value;
+    int conflicts;
+    int tries = 0;
+
+    FakeServer(final Map<String, Object> value, final int conflicts) {
+      this.value = value;
+      this.conflicts = conflicts;
+    }
+
+    void run(final Transaction.Handler handler) {
+      while (true) {
+        tries++;
+        Map<String, Object> working = copy(value);
+        Transaction.Result result = handler.doTransaction(mutableData(working, ""));
+        if (!result.isSuccess()) {
+          handler.onComplete(null, false, snapshot("stats", value));
+          return;
+        }
+        if (conflicts > 0) {
+          conflicts--;
+          value.put("count", (Long) value.get("count") + 100);
+          continue;
+        }
+        value = working;
+        handler.onComplete(null, true, snapshot("stats", value));
+        return;
+      }
+    }
+  }
+
+  private static class RecordingCallback implements Callback {
+    final List<Object[]> calls = new ArrayList<Object[]>();
+
+    @Override
+    public void invoke(Object... args) {
+      calls.add(args);
+    }
+
+    JavaOnlyMap result() {
+      assertEquals(1, calls.size());
+      assertNull(calls.get(0)[0]);
+      return (JavaOnlyMap) calls.get(0)[1];
+    }
+  }
+
+  /**
+   * A MutableData for `path` (slash separated, "" for the root) inside `root`.
+   */
+  @SuppressWarnings("unchecked")
+  private static MutableData mutableData(final Map<String, Object> root, final String path) {
+    MutableData data = mock(MutableData.class);
+    when(data.getValue()).thenAnswer(new Answer<Object>() {
+      @Override
+      public Object answer(InvocationOnMock invocation) {
+        Object node = root;
+        for (String key : segments(path)) {
+          node = node instanceof Map ? ((Map<String, Object>) node).get(key) : null;
+        }
+        return node;
+      }
+    });
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) {
+        List<String> keys = segments(path);
+        Map<String, Object> parent = root;
+        for (String key : keys.subList(0, keys.size() - 1)) {
+          if (!(parent.get(key) instanceof Map)) {
+            parent.put(key, new HashMap<String, Object>());
+          }
+          parent = (Map<String, Object>) parent.get(key);
+        }
+        parent.put(keys.get(keys.size() - 1), invocation.getArguments()[0]);
+        return null;
+      }
+    }).when(data).setValue(any());
+    when(data.child(anyString())).thenAnswer(new Answer<MutableData>() {
+      @Override
+      public MutableData answer(InvocationOnMock invocation) {
+        String child = (String) invocation.getArguments()[0];
+        return mutableData(root, path.length() == 0 ? child : path + "/" + child);
+      }
+    });
+    return data;
+  }
+
+  private static List<String> segments(final String path) {
+    return path.length() == 0 ? new ArrayList<String>() : Arrays.asList(path.split("/"));
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Map<String, Object> copy(final Map<String, Object> value) {
+    Map<String, Object> copy = new LinkedHashMap<String, Object>();
+    for (Map.Entry<String, Object> entry : value.entrySet()) {
+      Object child = entry.getValue();
+      copy.put(entry.getKey(), child instanceof Map ? copy((Map<String, Object>) child) : child);
+    }
+    return copy;
+  }
+}
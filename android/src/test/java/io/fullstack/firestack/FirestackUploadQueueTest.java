@@ -0,0 +1,118 @@
+package io.fullstack.firestack;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.MockedStatic;
+
+import com.facebook.react.bridge.Arguments;
+
+public class FirestackUploadQueueTest {
+  private final List<String> mStarted = new ArrayList<String>();
+  private MockedStatic<Arguments> mArguments;
+  private FirestackUploadQueue mQueue;
+
+  @Before
+  public void setUp() {
+    mArguments = Fakes.mockArguments();
+    mQueue = new FirestackUploadQueue(new FirestackUploadQueue.Starter() {
+      @Override
+      public void start(FirestackUploadQueue.Entry entry) {
+        mStarted.add(entry.session.taskId);
+      }
+    });
+  }
+
+  @After
+  public void tearDown() {
+    mArguments.close();
+  }
+
+  @Test
+  public void startsAtMostMaxConcurrent() {
+    mQueue.setMaxConcurrent(2);
+    mQueue.enqueue(entry("u1", "user"));
+    mQueue.enqueue(entry("u2", "user"));
+    mQueue.enqueue(entry("u3", "user"));
+    assertEquals(Arrays.asList("u1", "u2"), mStarted);
+
+    mQueue.finished("u1", true);
+    assertEquals(Arrays.asList("u1", "u2", "u3"), mStarted);
+  }
+
+  @Test
+  public void userUploadsGoFirst() {
+    mQueue.setMaxConcurrent(1);
+    mQueue.enqueue(entry("running", "user"));
+    mQueue.enqueue(entry("b1", "background"));
+    mQueue.enqueue(entry("u1", "user"));
+
+    mQueue.finished("running", true);
+    assertEquals(Arrays.asList("running", "u1"), mStarted);
+  }
+
+  @Test
+  public void backgroundUploadsAreNotStarved() {
+    mQueue.setMaxConcurrent(1);
+    mQueue.enqueue(entry("u0", "user"));
+    mQueue.enqueue(entry("b1", "background"));
+    for (int i = 1; i < 6; i++) {
+      mQueue.enqueue(entry("u" + i, "user"));
+    }
+    for (int i = 0; i < 6; i++) {
+      mQueue.finished(mStarted.get(mStarted.size() - 1), true);
+    }
+
+    // the background lane gets a turn after a burst of four user uploads
+    assertEquals(Arrays.asList("u0", "u1", "u2", "u3", "b1", "u4", "u5"), mStarted);
+  }
+
+  @Test
+  public void dequeueOnlyTakesWaitingUploads() {
+    mQueue.setMaxConcurrent(1);
+    FirestackUploadQueue.Entry waiting = entry("u2", "user");
+    mQueue.enqueue(entry("u1", "user"));
+    mQueue.enqueue(waiting);
+
+    assertEquals(null, mQueue.dequeue("u1"));
+    assertSame(waiting, mQueue.dequeue("u2"));
+    assertTrue(mQueue.contains("u1"));
+    assertFalse(mQueue.contains("u2"));
+  }
+
+  @Test
+  public void progressSumsTheWholeRun() {
+    mQueue.setMaxConcurrent(1);
+    mQueue.enqueue(entry("u1", "user"));
+    mQueue.enqueue(entry("u2", "user"));
+    mQueue.progress("u1", 40, 100);
+    Map<String, Object> progress = ((JavaOnlyMap) mQueue.getProgress()).toHashMap();
+    assertEquals(1.0, progress.get("running"));
+    assertEquals(1.0, progress.get("queued"));
+    assertEquals(40.0, progress.get("bytesTransferred"));
+
+    mQueue.finished("u1", true);
+    mQueue.progress("u2", 10, 50);
+    mQueue.finished("u2", false);
+    progress = ((JavaOnlyMap) mQueue.getProgress()).toHashMap();
+    assertEquals(1.0, progress.get("completed"));
+    assertEquals(1.0, progress.get("failed"));
+    assertEquals(100.0, progress.get("totalBytes"));
+  }
+
+  private static FirestackUploadQueue.Entry entry(final String taskId, final String priority) {
+    FirestackUploadSessions.Session session = new FirestackUploadSessions.Session(
+      taskId, "gs://bucket", taskId, "/does/not/exist/" + taskId);
+    return new FirestackUploadQueue.Entry(session, null, priority);
+  }
+}
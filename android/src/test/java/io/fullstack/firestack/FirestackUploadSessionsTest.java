@@ -0,0 +1,156 @@
+package io.fullstack.firestack;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+public class FirestackUploadSessionsTest {
+  private static final String URL = "gs://bucket.appspot.com";
+
+  @Rule
+  public final TemporaryFolder mFolder = new TemporaryFolder();
+
+  private final Map<String, Object> mStored = new LinkedHashMap<String, Object>();
+  private Context mContext;
+  private File mFile;
+
+  /**
+   * SharedPreferences over mStored; edits are applied right away.
+   */
+  private SharedPreferences preferences() {
+    SharedPreferences preferences = mock(SharedPreferences.class);
+    final SharedPreferences.Editor editor = mock(SharedPreferences.Editor.class);
+    when(preferences.edit()).thenReturn(editor);
+    when(preferences.getAll()).thenAnswer(new Answer<Map<String, ?>>() {
+      @Override
+      public Map<String, ?> answer(InvocationOnMock invocation) {
+        return new LinkedHashMap<String, Object>(mStored);
+      }
+    });
+    when(preferences.getString(anyString(), (String) any())).thenAnswer(new Answer<String>() {
+      @Override
+      public String answer(InvocationOnMock invocation) {
+        Object value = mStored.get(invocation.getArguments()[0]);
+        return value == null ? (String) invocation.getArguments()[1] : (String) value;
+      }
+    });
+    when(editor.putString(anyString(), anyString())).thenAnswer(new Answer<SharedPreferences.Editor>() {
+      @Override
+      public SharedPreferences.Editor answer(InvocationOnMock invocation) {
+        mStored.put((String) invocation.getArguments()[0], invocation.getArguments()[1]);
+        return editor;
+      }
+    });
+    when(editor.remove(anyString())).thenAnswer(new Answer<SharedPreferences.Editor>() {
+      @Override
+      public SharedPreferences.Editor answer(InvocationOnMock invocation) {
+        mStored.remove(invocation.getArguments()[0]);
+        return editor;
+      }
+    });
+    return preferences;
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    mFile = mFolder.newFile("photo.jpg");
+    SharedPreferences preferences = this.preferences();
+    mContext = mock(Context.class);
+    when(mContext.getSharedPreferences(eq("firestack-uploads"), anyInt())).thenReturn(preferences);
+  }
+
+  private FirestackUploadSessions.Session session(final String name, final File file) {
+    return new FirestackUploadSessions.Session(URL + "/" + name, URL, name, file.getPath());
+  }
+
+  @Test
+  public void sessionsSurviveARestart() {
+    FirestackUploadSessions.Session saved = this.session("photo.jpg", mFile);
+    saved.sessionUri = "https://upload.example/session/1";
+    saved.bytesTransferred = 262144;
+    saved.totalBytes = 1048576;
+    new FirestackUploadSessions(mContext).save(saved);
+
+    // a new instance only sees what was persisted
+    FirestackUploadSessions sessions = new FirestackUploadSessions(mContext);
+    FirestackUploadSessions.Session loaded = sessions.load(saved.taskId);
+    assertEquals(saved.taskId, loaded.taskId);
+    assertEquals(URL, loaded.storageUrl);
+    assertEquals("photo.jpg", loaded.name);
+    assertEquals(mFile.getPath(), loaded.filepath);
+    assertEquals("https://upload.example/session/1", loaded.sessionUri);
+    assertEquals(262144, loaded.bytesTransferred);
+    assertEquals(1048576, loaded.totalBytes);
+    assertEquals(1, sessions.loadResumable().size());
+  }
+
+  @Test
+  public void sessionWithoutAnUploadUriYetIsKept() {
+    FirestackUploadSessions sessions = new FirestackUploadSessions(mContext);
+    sessions.save(this.session("photo.jpg", mFile));
+
+    FirestackUploadSessions.Session loaded = sessions.load(URL + "/photo.jpg");
+    assertNull(loaded.sessionUri);
+    assertEquals(0, loaded.bytesTransferred);
+  }
+
+  @Test
+  public void sessionsWhoseFileIsGoneAreDropped() throws Exception {
+    FirestackUploadSessions sessions = new FirestackUploadSessions(mContext);
+    File gone = mFolder.newFile("gone.jpg");
+    sessions.save(this.session("photo.jpg", mFile));
+    sessions.save(this.session("gone.jpg", gone));
+    assertTrue(gone.delete());
+
+    List<FirestackUploadSessions.Session> resumable = sessions.loadResumable();
+    assertEquals(1, resumable.size());
+    assertEquals("photo.jpg", resumable.get(0).name);
+    assertFalse(mStored.containsKey(URL + "/gone.jpg"));
+    assertEquals(1, sessions.loadAll().size());
+  }
+
+  @Test
+  public void cancelledSessionIsForgotten() {
+    FirestackUploadSessions sessions = new FirestackUploadSessions(mContext);
+    sessions.save(this.session("photo.jpg", mFile));
+    sessions.save(this.session("other.jpg", mFile));
+
+    // what cancelUpload does for a task that is not running
+    sessions.remove(URL + "/photo.jpg");
+    assertNull(sessions.load(URL + "/photo.jpg"));
+    assertNull(new FirestackUploadSessions(mContext).load(URL + "/photo.jpg"));
+    assertEquals(1, sessions.loadResumable().size());
+  }
+
+  @Test
+  public void unreadableSessionsAreDropped() {
+    mStored.put(URL + "/broken.jpg", "{not json");
+    mStored.put(URL + "/counter", 3L);
+    FirestackUploadSessions sessions = new FirestackUploadSessions(mContext);
+
+    assertTrue(sessions.loadAll().isEmpty());
+    assertFalse(mStored.containsKey(URL + "/broken.jpg"));
+  }
+}
@@ -0,0 +1,56 @@
+package io.fullstack.firestack;
+
+import static io.fullstack.firestack.Fakes.tree;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class FirestackWriteBatchTest {
+
+  @Test
+  public void independentPathsAreFannedOut() {
+    FirestackWriteBatch batch = new FirestackWriteBatch();
+    batch.set("/users/1/name", "Ann");
+    batch.remove("/users/2");
+    batch.update("/posts/9", tree("title", "Hi", "meta/likes", 3.0));
+
+    assertEquals(tree(
+      "users/1/name", "Ann",
+      "users/2", null,
+      "posts/9/title", "Hi",
+      "posts/9/meta/likes", 3.0
+    ), batch.getUpdates());
+    assertEquals(3, batch.getOperationCount());
+  }
+
+  @Test
+  public void writesBelowABatchedPathMergeIntoItsValue() {
+    FirestackWriteBatch batch = new FirestackWriteBatch();
+    batch.set("users/1", tree("name", "Ann", "age", 30.0));
+    batch.set("users/1/age", 31.0);
+    batch.remove("users/1/name");
+    batch.set("users/1/address/city", "Oslo");
+
+    assertEquals(tree("users/1", tree("age", 31.0, "address", tree("city", "Oslo"))), batch.getUpdates());
+  }
+
+  @Test
+  public void writesAboveABatchedPathReplaceIt() {
+    FirestackWriteBatch batch = new FirestackWriteBatch();
+    batch.set("users/1/name", "Ann");
+    batch.set("users/1/age", 30.0);
+    batch.set("users", tree("2", "Bob"));
+
+    assertEquals(tree("users", tree("2", "Bob")), batch.getUpdates());
+  }
+
+  @Test
+  public void rootWriteReplacesEverything() {
+    FirestackWriteBatch batch = new FirestackWriteBatch();
+    batch.set("a", 1.0);
+    batch.set("/", tree("b", 2.0));
+    batch.set("c", 3.0);
+
+    assertEquals(tree("/", tree("b", 2.0, "c", 3.0)), batch.getUpdates());
+  }
+}
@@ -0,0 +1,130 @@
+package io.fullstack.firestack;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.mockito.MockedStatic;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.Callback;
+
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.FirebaseDatabase;
+
+public class FirestackWriteCoalescerTest {
+  private final Map<String, DatabaseReference> mRefs = new HashMap<String, DatabaseReference>();
+  private MockedStatic<Arguments> mArguments;
+  private MockedStatic<FirebaseDatabase> mDatabase;
+  private FirestackWriteCoalescer mCoalescer;
+
+  @Before
+  public void setUp() {
+    mArguments = Fakes.mockArguments();
+    final FirebaseDatabase database = mock(FirebaseDatabase.class);
+    when(database.getReference(anyString())).thenAnswer(new Answer<DatabaseReference>() {
+      @Override
+      public DatabaseReference answer(InvocationOnMock invocation) {
+        return ref((String) invocation.getArguments()[0]);
+      }
+    });
+    mDatabase = Mockito.mockStatic(FirebaseDatabase.class);
+    mDatabase.when(new MockedStatic.Verification() {
+      @Override
+      public void apply() {
+        FirebaseDatabase.getInstance();
+      }
+    }).thenReturn(database);
+    // windows only close through flushOverlapping() here
+    mCoalescer = new FirestackWriteCoalescer();
+  }
+
+  @After
+  public void tearDown() {
+    mDatabase.close();
+    mArguments.close();
+  }
+
+  @Test
+  public void directWritesSendOverlappingPendingValuesFirst() {
+    mCoalescer.set("/cursors/a/x", 1.0, 60000, mock(Callback.class));
+    mCoalescer.set("/cursors/b", 2.0, 60000, mock(Callback.class));
+    mCoalescer.set("/users/a", 3.0, 60000, mock(Callback.class));
+
+    // a write above one pending path and beside the others
+    mCoalescer.flushOverlapping("/cursors/a");
+    verify(ref("/cursors/a/x")).setValue(eq(1.0), any(DatabaseReference.CompletionListener.class));
+    verify(ref("/cursors/b"), never()).setValue(any(), any(DatabaseReference.CompletionListener.class));
+
+    // a write below a pending path
+    mCoalescer.flushOverlapping("/users/a/name/");
+    verify(ref("/users/a")).setValue(eq(3.0), any(DatabaseReference.CompletionListener.class));
+
+    // flushed values are sent once
+    mCoalescer.flushOverlapping("/");
+    verify(ref("/cursors/a/x"), times(1)).setValue(any(), any(DatabaseReference.CompletionListener.class));
+    verify(ref("/cursors/b")).setValue(eq(2.0), any(DatabaseReference.CompletionListener.class));
+  }
+
+  @Test
+  public void pathsAreComparedWithoutSlashes() {
+    Callback first = mock(Callback.class);
+    Callback second = mock(Callback.class);
+    mCoalescer.set("/rooms/1", 1.0, 60000, first);
+    mCoalescer.set("rooms/1/", 2.0, 60000, second);
+
+    // one pending write, the first one completed as coalesced
+    ArgumentCaptor<Object> res = ArgumentCaptor.forClass(Object.class);
+    verify(first).invoke(eq(null), res.capture());
+    assertEquals("coalesced", ((JavaOnlyMap) res.getValue()).getString("status"));
+
+    mCoalescer.flushOverlapping("rooms/1");
+    verify(ref("rooms/1/")).setValue(eq(2.0), any(DatabaseReference.CompletionListener.class));
+    verify(ref("/rooms/1"), never()).setValue(any(), any(DatabaseReference.CompletionListener.class));
+  }
+
+  @Test
+  public void overlappingCoalescedWritesKeepTheirOrder() {
+    // the title has a long window, the room a short one
+    mCoalescer.set("/rooms/1/title", "a", 60000, mock(Callback.class));
+    mCoalescer.set("/rooms/1", 2.0, 10, mock(Callback.class));
+
+    // the title was issued first and goes first, whenever the room's window closes
+    verify(ref("/rooms/1/title")).setValue(eq("a"), any(DatabaseReference.CompletionListener.class));
+    verify(ref("/rooms/1"), never()).setValue(any(), any(DatabaseReference.CompletionListener.class));
+
+    // and a later title waits behind the room
+    mCoalescer.set("/rooms/1/title", "b", 60000, mock(Callback.class));
+    InOrder order = Mockito.inOrder(ref("/rooms/1/title"), ref("/rooms/1"));
+    order.verify(ref("/rooms/1/title")).setValue(eq("a"), any(DatabaseReference.CompletionListener.class));
+    order.verify(ref("/rooms/1")).setValue(eq(2.0), any(DatabaseReference.CompletionListener.class));
+    mCoalescer.flushOverlapping("/rooms");
+    order.verify(ref("/rooms/1/title")).setValue(eq("b"), any(DatabaseReference.CompletionListener.class));
+  }
+
+  private DatabaseReference ref(final String path) {
+    DatabaseReference ref = mRefs.get(path);
+    if (ref == null) {
+      ref = mock(DatabaseReference.class);
+      mRefs.put(path, ref);
+    }
+    return ref;
+  }
+}
@@ -0,0 +1,56 @@
+package io.fullstack.firestack;
+
+import static io.fullstack.firestack.Fakes.tree;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class FirestackWriteEncoderTest {
+
+  @Test
+  public void wholeNumbersBecomeLongs() {
+    assertEquals(0L, FirestackWriteEncoder.encodeNumber(0));
+    assertEquals(42L, FirestackWriteEncoder.encodeNumber(42));
+    assertEquals(-7L, FirestackWriteEncoder.encodeNumber(-7));
+    assertEquals(1480000000000L, FirestackWriteEncoder.encodeNumber(1480000000000d));
+    assertEquals(9007199254740991L, FirestackWriteEncoder.encodeNumber(9007199254740991d));
+  }
+
+  @Test
+  public void otherNumbersStayDoubles() {
+    assertEquals(1.5, FirestackWriteEncoder.encodeNumber(1.5));
+    assertEquals(-0.25, FirestackWriteEncoder.encodeNumber(-0.25));
+    // past what a javascript number holds exactly it may not be whole any more
+    assertEquals(9007199254740992d, FirestackWriteEncoder.encodeNumber(9007199254740992d));
+    assertEquals(1e300, FirestackWriteEncoder.encodeNumber(1e300));
+    assertEquals(Double.NaN, FirestackWriteEncoder.encodeNumber(Double.NaN));
+  }
+
+  @Test
+  public void encodesNestedValues() {
+    JavaOnlyMap map = JavaOnlyMap.of(
+      "count", 3,
+      "ratio", 0.5,
+      "title", "Hello",
+      "done", true,
+      "tags", JavaOnlyArray.of("a", 2, 2.5, false),
+      "author", JavaOnlyMap.of("name", "Ann", "karma", 12));
+    map.putNull("deletedAt");
+
+    Map<String, Object> tree = FirestackWriteEncoder.encode(map);
+
+    assertEquals(tree(
+      "count", 3L,
+      "ratio", 0.5,
+      "title", "Hello",
+      "done", true,
+      "tags", Arrays.<Object>asList("a", 2L, 2.5, false),
+      "author", tree("name", "Ann", "karma", 12L),
+      "deletedAt", null), tree);
+    assertNull(tree.get("deletedAt"));
+  }
+}
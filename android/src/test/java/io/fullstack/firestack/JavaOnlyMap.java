@@ -0,0 +1,310 @@
+package io.fullstack.firestack;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.ReadableMapKeySetIterator;
+import com.facebook.react.bridge.ReadableType;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+/**
+ * WritableMap backed by a LinkedHashMap, for tests that run without the
+ * react native bridge. Numbers are kept as doubles, like the bridge does.
+ */
+class JavaOnlyMap implements WritableMap {
+  private final Map<String, Object> mValues = new LinkedHashMap<String, Object>();
+
+  /**
+   * Builds a map from alternating keys and values.
+   */
+  public static JavaOnlyMap of(final Object... keysAndValues) {
+    JavaOnlyMap map = new JavaOnlyMap();
+    for (int i = 0; i < keysAndValues.length; i += 2) {
+      map.put((String) keysAndValues[i], keysAndValues[i + 1]);
+    }
+    return map;
+  }
+
+  void put(final String key, final Object value) {
+    if (value instanceof Number) {
+      mValues.put(key, ((Number) value).doubleValue());
+    } else {
+      mValues.put(key, value);
+    }
+  }
+
+  Object get(final String key) {
+    return mValues.get(key);
+  }
+
+  /**
+   * Plain java copy, with nested maps and arrays converted as well.
+   */
+  public Map<String, Object> toHashMap() {
+    Map<String, Object> copy = new LinkedHashMap<String, Object>();
+    for (Map.Entry<String, Object> entry : mValues.entrySet()) {
+      copy.put(entry.getKey(), unwrap(entry.getValue()));
+    }
+    return copy;
+  }
+
+  static Object unwrap(final Object value) {
+    if (value instanceof JavaOnlyMap) {
+      return ((JavaOnlyMap) value).toHashMap();
+    }
+    if (value instanceof JavaOnlyArray) {
+      return ((JavaOnlyArray) value).toArrayList();
+    }
+    return value;
+  }
+
+  static ReadableType typeOf(final Object value) {
+    if (value == null) {
+      return ReadableType.Null;
+    }
+    if (value instanceof Boolean) {
+      return ReadableType.Boolean;
+    }
+    if (value instanceof Number) {
+      return ReadableType.Number;
+    }
+    if (value instanceof String) {
+      return ReadableType.String;
+    }
+    if (value instanceof ReadableMap) {
+      return ReadableType.Map;
+    }
+    if (value instanceof ReadableArray) {
+      return ReadableType.Array;
+    }
+    throw new IllegalArgumentException("Unsupported value " + value);
+  }
+
+  @Override
+  public boolean hasKey(final String name) {
+    return mValues.containsKey(name);
+  }
+
+  @Override
+  public boolean isNull(final String name) {
+    return mValues.get(name) == null;
+  }
+
+  @Override
+  public boolean getBoolean(final String name) {
+    return (Boolean) mValues.get(name);
+  }
+
+  @Override
+  public double getDouble(final String name) {
+    return ((Number) mValues.get(name)).doubleValue();
+  }
+
+  @Override
+  public int getInt(final String name) {
+    return ((Number) mValues.get(name)).intValue();
+  }
+
+  @Override
+  public String getString(final String name) {
+    return (String) mValues.get(name);
+  }
+
+  @Override
+  public ReadableArray getArray(final String name) {
+    return (ReadableArray) mValues.get(name);
+  }
+
+  @Override
+  public ReadableMap getMap(final String name) {
+    return (ReadableMap) mValues.get(name);
+  }
+
+  @Override
+  public ReadableType getType(final String name) {
+    return typeOf(mValues.get(name));
+  }
+
+  @Override
+  public ReadableMapKeySetIterator keySetIterator() {
+    final Iterator<String> keys = new ArrayList<String>(mValues.keySet()).iterator();
+    return new ReadableMapKeySetIterator() {
+      @Override
+      public boolean hasNextKey() {
+        return keys.hasNext();
+      }
+
+      @Override
+      public String nextKey() {
+        return keys.next();
+      }
+    };
+  }
+
+  @Override
+  public void putNull(final String key) {
+    mValues.put(key, null);
+  }
+
+  @Override
+  public void putBoolean(final String key, final boolean value) {
+    mValues.put(key, value);
+  }
+
+  @Override
+  public void putDouble(final String key, final double value) {
+    mValues.put(key, value);
+  }
+
+  @Override
+  public void putInt(final String key, final int value) {
+    mValues.put(key, (double) value);
+  }
+
+  @Override
+  public void putString(final String key, final String value) {
+    mValues.put(key, value);
+  }
+
+  @Override
+  public void putArray(final String key, final WritableArray value) {
+    mValues.put(key, value);
+  }
+
+  @Override
+  public void putMap(final String key, final WritableMap value) {
+    mValues.put(key, value);
+  }
+
+  @Override
+  public void merge(final ReadableMap source) {
+    ReadableMapKeySetIterator it = source.keySetIterator();
+    while (it.hasNextKey()) {
+      String key = it.nextKey();
+      mValues.put(key, ((JavaOnlyMap) source).get(key));
+    }
+  }
+
+  @Override
+  public String toString() {
+    return toHashMap().toString();
+  }
+}
+
+/**
+ * WritableArray counterpart of JavaOnlyMap.
+ */
+class JavaOnlyArray implements WritableArray {
+  private final List<Object> mValues = new ArrayList<Object>();
+
+  public static JavaOnlyArray of(final Object... values) {
+    JavaOnlyArray array = new JavaOnlyArray();
+    for (Object value : values) {
+      array.add(value);
+    }
+    return array;
+  }
+
+  void add(final Object value) {
+    mValues.add(value instanceof Number ? (Object) ((Number) value).doubleValue() : value);
+  }
+
+  public List<Object> toArrayList() {
+    List<Object> copy = new ArrayList<Object>();
+    for (Object value : mValues) {
+      copy.add(JavaOnlyMap.unwrap(value));
+    }
+    return copy;
+  }
+
+  @Override
+  public int size() {
+    return mValues.size();
+  }
+
+  @Override
+  public boolean isNull(final int index) {
+    return mValues.get(index) == null;
+  }
+
+  @Override
+  public boolean getBoolean(final int index) {
+    return (Boolean) mValues.get(index);
+  }
+
+  @Override
+  public double getDouble(final int index) {
+    return ((Number) mValues.get(index)).doubleValue();
+  }
+
+  @Override
+  public int getInt(final int index) {
+    return ((Number) mValues.get(index)).intValue();
+  }
+
+  @Override
+  public String getString(final int index) {
+    return (String) mValues.get(index);
+  }
+
+  @Override
+  public ReadableArray getArray(final int index) {
+    return (ReadableArray) mValues.get(index);
+  }
+
+  @Override
+  public ReadableMap getMap(final int index) {
+    return (ReadableMap) mValues.get(index);
+  }
+
+  @Override
+  public ReadableType getType(final int index) {
+    return JavaOnlyMap.typeOf(mValues.get(index));
+  }
+
+  @Override
+  public void pushNull() {
+    mValues.add(null);
+  }
+
+  @Override
+  public void pushBoolean(final boolean value) {
+    mValues.add(value);
+  }
+
+  @Override
+  public void pushDouble(final double value) {
+    mValues.add(value);
+  }
+
+  @Override
+  public void pushInt(final int value) {
+    mValues.add((double) value);
+  }
+
+  @Override
+  public void pushString(final String value) {
+    mValues.add(value);
+  }
+
+  @Override
+  public void pushArray(final WritableArray value) {
+    mValues.add(value);
+  }
+
+  @Override
+  public void pushMap(final WritableMap value) {
+    mValues.add(value);
+  }
+
+  @Override
+  public String toString() {
+    return toArrayList().toString();
+  }
+}
@@ -170,6 +170,35 @@ export class Firestack extends Singleton {
     }
   }
 
+  /**
+   * Deliver native events with the given name in batches, flushed
+   * every `windowMs` or as soon as `maxEvents` are pending.
+   * A window of 0 turns batching off again.
+   */
+  setEventBatching(eventName, {windowMs=16, maxEvents=100}={}) {
+    return promisify('setEventBatching', FirestackModule)(eventName, windowMs, maxEvents);
+  }
+
+  eventStats() {
+    return promisify('getEventStats', FirestackModule)();
+  }
+
+  /**
+   * Native timing of the bridge conversion paths (android).
+   * Timers report count, mean, max, p50/p99 and calls per second.
+   */
+  setMetricsEnabled(enabled=true) {
+    return promisify('setMetricsEnabled', FirestackModule)(enabled);
+  }
+
+  metrics() {
+    return promisify('getMetrics', FirestackModule)();
+  }
+
+  resetMetrics() {
+    return promisify('resetMetrics', FirestackModule)();
+  }
+
   /**
    * Global event handlers for the single Firestack instance
    */
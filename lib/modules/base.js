@@ -65,12 +65,24 @@ export class Base {
       if (!nativeModule) {
         nativeModule = FirestackModuleEvt;
       }
-      const sub = nativeModule.addListener(name, cb);
+      const sub = nativeModule.addListener(name, this._unbatched(cb));
       this.eventHandlers[name] = sub;
       resolve(sub);
     })
   }
 
+  // Events can be batched natively (see Firestack#setEventBatching),
+  // in which case they arrive as `{batch: [...]}`
+  _unbatched(cb) {
+    return (evt) => {
+      if (evt && Array.isArray(evt.batch)) {
+        evt.batch.forEach(item => cb(item));
+      } else {
+        cb(evt);
+      }
+    }
+  }
+
   _off(name) {
     return new Promise((resolve, reject) => {
       if (this.eventHandlers[name]) {
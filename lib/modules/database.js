@@ -1,14 +1,34 @@
 /**
  * Database representation wrapper
  */
-import {NativeModules, NativeEventEmitter} from 'react-native';
+import {Platform, NativeModules, NativeEventEmitter} from 'react-native';
 const FirestackDatabase = NativeModules.FirestackDatabase;
 const FirestackDatabaseEvt = new NativeEventEmitter(FirestackDatabase);
 
 import promisify from '../utils/promisify'
+import applyPatch from '../utils/patch'
+import decodeMsgPack from '../utils/msgpack'
 import { Base, ReferenceBase } from './base'
 
 let dbSubscriptions = {};
+// android: javascript callbacks per native listener, keyed by the descriptor on() returns
+let dbHandles = {};
+// android: events for a descriptor whose on() has not resolved yet
+let pendingEvents = [];
+let pendingOns = 0;
+let diffStates = {};
+let streamCounter = 0;
+let cursorCounter = 0;
+
+// `format:binary` snapshots carry their value and child keys in `data`
+const decodeSnapshot = (snapshot) => {
+  if (!snapshot || snapshot.encoding !== 'msgpack') {
+    return snapshot;
+  }
+  const {encoding, data, ...meta} = snapshot;
+  const {value, childKeys} = decodeMsgPack(data);
+  return {...meta, value, childKeys};
+}
 
 class DataSnapshot {
   static key:String;
@@ -49,6 +69,45 @@ class DataSnapshot {
   }
 }
 
+class DatabaseCursor {
+  constructor(ref, cursorId, opened) {
+    this.ref = ref;
+    this.cursorId = cursorId;
+    this.opened = opened;
+    // native loads one page at a time, so calls wait for the one before
+    this.pending = opened;
+  }
+
+  next() {
+    return this._page('cursorNext');
+  }
+
+  prev() {
+    return this._page('cursorPrev');
+  }
+
+  close() {
+    return this.opened
+      .then(() => promisify('closeCursor', FirestackDatabase)(this.cursorId));
+  }
+
+  _page(method) {
+    const page = this.pending
+      .then(() => promisify(method, FirestackDatabase)(this.cursorId));
+    this.pending = page.catch(() => {});
+    return page
+      .then(page => ({
+        ...page,
+        snapshot: new DataSnapshot(this.ref, {
+          value: page.value,
+          childKeys: page.childKeys,
+          hasChildren: page.count > 0,
+          childrenCount: page.count
+        })
+      }));
+  }
+}
+
 class DatabaseOnDisconnect {
   constructor(ref) {
     this.ref = ref;
@@ -100,6 +159,13 @@ class DatabaseQuery {
     return this.ref;
   }
 
+  // Options only change how the native side serializes results,
+  // they are understood by the android module only
+  setOption(name, ...args) {
+    this.options[name] = args.filter(n => n != undefined);
+    return this.ref;
+  }
+
   build() {
     const argsSeparator = ':'
     let modifiers = [];
@@ -114,10 +180,19 @@ class DatabaseQuery {
         let filter = this.filters[key];
         if (filter) {
           const cleanFilters = filter.filter((f) => typeof f !== "undefined");
-          const filterArgs = ([key].concat(cleanFilters)).join(argsSeparator);
+          // android accepts typed filters, so numbers and booleans aren't stringified
+          const filterArgs = Platform.OS === 'android' ?
+                              [key].concat(cleanFilters) :
+                              ([key].concat(cleanFilters)).join(argsSeparator);
           modifiers.push(filterArgs);
         }
       })
+    if (Platform.OS === 'android') {
+      Object.keys(this.options)
+        .forEach(key => {
+          modifiers.push(([key].concat(this.options[key])).join(argsSeparator));
+        })
+    }
     return modifiers;
   }
 
@@ -125,6 +200,7 @@ class DatabaseQuery {
     this.orderBy = null;
     this.limit = null;
     this.filters = {};
+    this.options = {};
     ['startAt', 'endAt', 'equalTo']
       .forEach(key => this.filters[key] = null);
     return this.ref;
@@ -182,6 +258,33 @@ class DatabaseRef extends ReferenceBase {
     return promisify('set', FirestackDatabase)(path, value)
   }
 
+  /**
+   * set() for values that change many times a second, such as cursor
+   * positions (android). Only the latest value within `windowMs` is
+   * written; replaced writes resolve with `{status: 'coalesced'}`.
+   */
+  setCoalesced(val, {windowMs=50}={}) {
+    if (Platform.OS !== 'android') {
+      return this.setAt(val);
+    }
+    const path = this.dbPath();
+    const value = this._serializeValue(val);
+    return promisify('setCoalesced', FirestackDatabase)(path, value, windowMs);
+  }
+
+  /**
+   * Atomic update expressed as ops that run natively on every retry
+   * (android), e.g. `[{op: 'increment', path: 'likes', value: 1}]`.
+   * Supported ops: increment, append, setIfAbsent, max and min.
+   */
+  transaction(operations=[], {applyLocally=true}={}) {
+    if (Platform.OS !== 'android') {
+      return Promise.reject(new Error('transaction() is only supported on Android'));
+    }
+    const path = this.dbPath();
+    return promisify('runTransaction', FirestackDatabase)(path, operations, applyLocally);
+  }
+
   updateAt(val) {
     const path = this.dbPath();
     const value = this._serializeValue(val);
@@ -205,22 +308,19 @@ class DatabaseRef extends ReferenceBase {
   on(evt, cb) {
     const path = this.dbPath();
     const modifiers = this.dbModifiers();
-    return this.db.on(path, evt, cb)
+    return this.db.on(path, modifiers, evt, cb)
       .then(({callback, subscriptions}) => {
-        return promisify('on', FirestackDatabase)(path, modifiers, evt)
-                .then(() => {
-                  this.listeners[evt] = subscriptions;
-                  callback(this);
-                  return subscriptions;
-                })
-    });
+        this.listeners[evt] = subscriptions;
+        callback(this);
+        return subscriptions;
+      });
   }
 
   once(evt='once', cb) {
     const path = this.dbPath();
     const modifiers = this.dbModifiers();
     return promisify('onOnce', FirestackDatabase)(path, modifiers, evt)
-      .then(({snapshot}) => new DataSnapshot(this, snapshot))
+      .then(({snapshot}) => new DataSnapshot(this, decodeSnapshot(snapshot)))
       .then(snapshot => {
         if (cb && typeof cb === 'function') {
           cb(snapshot);
@@ -229,8 +329,57 @@ class DatabaseRef extends ReferenceBase {
       })
   }
 
+  /**
+   * One-time read delivered in chunks of at most `chunkSize` children, so a
+   * huge list is never built as one native map. `onChunk` gets
+   * `{value, childKeys, seq}` per chunk; the promise resolves with the
+   * snapshot metadata once the last chunk arrived. `select()`, `maxDepth()`,
+   * `shallow()` and `binary()` apply to every chunk. Other platforms
+   * read the value in one go and deliver it as a single chunk.
+   */
+  onceChunked(onChunk, {chunkSize=500}={}) {
+    const path = this.dbPath();
+    const modifiers = this.dbModifiers();
+    if (Platform.OS !== 'android') {
+      return promisify('onOnce', FirestackDatabase)(path, modifiers, 'value')
+        .then(({snapshot}) => {
+          const {value, childKeys, ...meta} = snapshot;
+          if (onChunk) {
+            onChunk({seq: 0, value, childKeys});
+          }
+          return meta;
+        });
+    }
+    return this.db.stream(path, modifiers, chunkSize, onChunk);
+  }
+
+  /**
+   * Pages through the children in the order set on this ref (android).
+   * `next()` and `prev()` resolve with `{snapshot, childKeys, hasMore}`;
+   * calls made before the previous page arrives wait for it. Call
+   * `close()` when done to release the native cursor.
+   */
+  cursor({pageSize=20}={}) {
+    if (Platform.OS !== 'android') {
+      throw new Error('cursor() is only supported on Android');
+    }
+    const path = this.dbPath();
+    const modifiers = this.dbModifiers();
+    const cursorId = `${path}#cursor-${Date.now()}-${cursorCounter++}`;
+    const opened = promisify('openCursor', FirestackDatabase)(cursorId, path, modifiers, pageSize);
+    return new DatabaseCursor(this, cursorId, opened);
+  }
+
   off(evt='', origCB) {
     const path = this.dbPath();
+    if (Platform.OS === 'android') {
+      return this.db.offHandles(path, evt, origCB)
+        .then(({callback, subscriptions}) => {
+          this.db.forgetReleasedListeners(this);
+          callback(this);
+          return subscriptions;
+        });
+    }
     return this.db.off(path, evt, origCB)
       .then(({callback, subscriptions}) => {
         if (dbSubscriptions[path] && dbSubscriptions[path][evt] && dbSubscriptions[path][evt].length > 0) {
@@ -323,6 +472,43 @@ class DatabaseRef extends ReferenceBase {
     return this.query.setFilter('startAt', value, key);
   }
 
+  // Options
+  // Only send what changed since the last 'value' event
+  withDiffs() {
+    return this.query.setOption('diff');
+  }
+
+  // android: only serialize these child paths (`*` matches any key)
+  select(...paths) {
+    return this.query.setOption('select', ...paths);
+  }
+
+  // android: serialize at most `depth` levels, deeper objects arrive as `true`
+  maxDepth(depth) {
+    return this.query.setOption('maxDepth', depth);
+  }
+
+  // android: list children as `{key: true}` without reading below them,
+  // or with `levels` levels of their values
+  shallow(levels) {
+    return this.query.setOption('shallow', levels);
+  }
+
+  // android: send the value MessagePack encoded instead of as a bridge map
+  binary() {
+    return this.query.setOption('format', 'binary');
+  }
+
+  // android: keep the last value on disk and replay it (`body.cached`) on the next start
+  persisted() {
+    return this.query.setOption('persist');
+  }
+
+  // android: serve repeated once() reads from a native cache for `ttl` ms
+  cached(ttl) {
+    return this.query.setOption('cache', ttl);
+  }
+
   presence(path) {
     const presence = this.firestack.presence;
     const ref = path ? this.child(path) : this;
@@ -372,6 +558,7 @@ export class Database extends Base {
     this.persistenceEnabled = false;
     this.successListener = null;
     this.errorListener = null;
+    this.detachedListener = null;
     this.refs = {};
   }
 
@@ -397,30 +584,265 @@ export class Database extends Base {
     return promise;
   }
 
+  /**
+   * Applies `[{op: 'set'|'update'|'remove', path, value}]` in order as
+   * one atomic write with a single round trip (android). Other platforms
+   * run the operations one after another.
+   */
+  batchWrite(operations=[]) {
+    if (Platform.OS === 'android') {
+      return promisify('batchWrite', FirestackDatabase)(operations);
+    }
+    return operations.reduce((promise, {op, path, value}) => promise.then(() => {
+      const ref = this.ref(path);
+      if (op === 'remove') {
+        return ref.removeAt();
+      }
+      return op === 'update' ? ref.updateAt(value) : ref.setAt(value);
+    }), Promise.resolve());
+  }
+
+  /**
+   * Byte budget of the native cache behind ref.cached().once() (android).
+   */
+  configureSnapshotCache({maxBytes=2 * 1024 * 1024, clear=false}={}) {
+    return promisify('configureSnapshotCache', FirestackDatabase)(maxBytes, clear);
+  }
+
+  /**
+   * Detach native listeners that heard nothing for `idleMs`, along with
+   * their callbacks (android). 0 turns it off.
+   * `listeners()` lists every native listener with its event counts.
+   */
+  setIdleDetach(idleMs) {
+    return promisify('setIdleDetach', FirestackDatabase)(idleMs);
+  }
+
+  listeners() {
+    return promisify('dumpListeners', FirestackDatabase)();
+  }
+
+  /**
+   * Size cap of the on-disk store behind ref.persisted() (android).
+   */
+  configurePersistedSnapshots({maxBytes=5 * 1024 * 1024, clear=false}={}) {
+    return promisify('configurePersistedSnapshots', FirestackDatabase)(maxBytes, clear);
+  }
+
+  snapshotCacheStats() {
+    return promisify('getSnapshotCacheStats', FirestackDatabase)();
+  }
+
+  /**
+   * Snapshots are converted on a small native thread pool (android).
+   * Events for one listener always arrive in order.
+   */
+  setSerializationThreads(threads) {
+    return promisify('setSerializationThreads', FirestackDatabase)(threads);
+  }
+
+  serializationStats() {
+    return promisify('getSerializationStats', FirestackDatabase)();
+  }
+
+  stream(path, modifiers, chunkSize, onChunk) {
+    const streamId = `${path}#${Date.now()}-${streamCounter++}`;
+    return new Promise((resolve, reject) => {
+      // resolve on the terminal chunk, events may be batched behind the callback
+      const sub = FirestackDatabaseEvt.addListener('database_chunk', this._unbatched(evt => {
+        if (evt.streamId !== streamId) {
+          return;
+        }
+        if (!evt.complete) {
+          if (onChunk) {
+            onChunk(decodeSnapshot(evt));
+          }
+          return;
+        }
+        sub.remove();
+        resolve(evt.snapshot);
+      }));
+
+      promisify('onceChunked', FirestackDatabase)(path, modifiers, streamId, chunkSize)
+        .catch(err => {
+          sub.remove();
+          reject(err);
+        });
+    });
+  }
+
   handleDatabaseEvent(evt) {
     const body = evt.body;
     const path = body.path;
     const evtName = body.eventName;
 
+    // android events name the native listener they came from
+    if (evt.handle !== undefined) {
+      const handle = dbHandles[evt.handle];
+      if (handle) {
+        this._deliver(evt.handle, handle, body);
+      } else if (pendingOns > 0) {
+        pendingEvents.push(evt);
+      }
+      return;
+    }
+
     const subscriptions = dbSubscriptions[path];
 
     if (subscriptions) {
-      const cbs = subscriptions[evtName];
-      cbs.forEach(cb => {
-        if (cb && typeof(cb) === 'function') {
-          const snap = new DataSnapshot(this, body.snapshot);
-          this.log.debug('database_event received', path, evtName);
-          cb(snap, body);
-        }
-      });
+      const snapshot = this._resolveSnapshot(path, body);
+      if (!snapshot) {
+        return;
+      }
+      const cbs = subscriptions[evtName] || [];
+      cbs.forEach(cb => this._invoke(cb, {snapshot, body}));
+    }
+  }
+
+  _deliver(descriptor, handle, body) {
+    const snapshot = this._resolveSnapshot(descriptor, body);
+    if (!snapshot) {
+      return;
+    }
+    const delivery = {snapshot, body};
+    if (body.eventName === 'value') {
+      handle.last = delivery;
     }
+    handle.callbacks.slice().forEach(cb => this._invoke(cb, delivery));
+  }
+
+  _invoke(cb, {snapshot, body}) {
+    if (cb && typeof(cb) === 'function') {
+      this.log.debug('database_event received', body.path, body.eventName);
+      cb(new DataSnapshot(this, snapshot), body);
+    }
+  }
+
+  _subscribeHandle(descriptor, instance, path, eventName, cb) {
+    let handle = dbHandles[descriptor];
+    if (handle && handle.instance !== instance) {
+      // the native listener was detached and replaced, its callbacks went with it
+      delete diffStates[descriptor];
+      handle = null;
+    }
+    if (!handle) {
+      handle = dbHandles[descriptor] = {path, eventName, instance, callbacks: [], last: null};
+    }
+    handle.callbacks.push(cb);
+    if (handle.last) {
+      // a shared value listener only fires again once the value changes
+      this._invoke(cb, handle.last);
+    }
+    const early = pendingEvents.filter(evt => evt.handle === descriptor);
+    if (early.length > 0) {
+      pendingEvents = pendingEvents.filter(evt => evt.handle !== descriptor);
+      early.forEach(evt => this._deliver(descriptor, handle, evt.body));
+    }
+  }
+
+  // Diff-mode events carry a `seq`; patches are applied to the
+  // last value we saw from the same native listener (its handle on
+  // android) or trigger a resync of just that listener
+  _resolveSnapshot(key, body) {
+    if (body.seq === undefined) {
+      return decodeSnapshot(body.snapshot);
+    }
+
+    if (!body.patch) {
+      diffStates[key] = {
+        seq: body.seq,
+        value: body.snapshot.value,
+        childKeys: body.snapshot.childKeys
+      };
+      return body.snapshot;
+    }
+
+    const state = diffStates[key];
+    if (!state || state.seq !== body.baseSeq) {
+      this.log.debug('database diff out of sync, resyncing', key);
+      delete diffStates[key];
+      promisify('resync', FirestackDatabase)(key);
+      return null;
+    }
+
+    const value = applyPatch(state.value, body.patch);
+    const childKeys = body.snapshot.childKeys || state.childKeys;
+    diffStates[key] = {seq: body.seq, value, childKeys};
+    return {
+      ...body.snapshot,
+      value,
+      childKeys
+    };
   }
 
   handleDatabaseError(evt) {
     this.log.debug('handleDatabaseError ->', evt);
   }
 
-  on(path, evt, cb) {
+  // the native side dropped an idle listener, forget its callbacks too.
+  // A later on() of the same descriptor gets a new native instance, whose
+  // callbacks stay
+  handleDatabaseDetached(evt) {
+    this.log.warn('database listener detached', evt.descriptor, evt.reason);
+    const handle = dbHandles[evt.descriptor];
+    if (handle && handle.instance !== evt.instance) {
+      return;
+    }
+    delete dbHandles[evt.descriptor];
+    delete diffStates[evt.descriptor];
+    Object.keys(this.refs).forEach(key => this.forgetReleasedListeners(this.refs[key]));
+    this._removeEmittersIfIdle();
+  }
+
+  /**
+   * android: drops the `ref.listeners` entries of events that no longer
+   * have a callback on the ref's path.
+   */
+  forgetReleasedListeners(ref) {
+    const path = ref.dbPath();
+    Object.keys(ref.listeners).forEach(evt => {
+      const held = Object.keys(dbHandles).some(descriptor => {
+        const handle = dbHandles[descriptor];
+        return handle.path === path && handle.eventName === evt;
+      });
+      if (!held) {
+        delete ref.listeners[evt];
+      }
+    });
+  }
+
+  on(path, modifiers, evt, cb) {
+    this._addEmitters();
+    const callback = (ref) => {
+      const key = this._pathKey(ref.path);
+      this.refs[key] = ref;
+    }
+    const subscriptions = [this.successListener, this.errorListener];
+
+    if (Platform.OS === 'android') {
+      // native listeners are shared per (path, modifiers, event), every
+      // callback holds one subscriber of the descriptor it resolves to.
+      // child_added descriptors are never shared, only a new native
+      // listener hears the existing children
+      pendingOns++;
+      const settled = () => {
+        pendingOns--;
+        if (pendingOns === 0) {
+          pendingEvents = [];
+        }
+      };
+      return promisify('on', FirestackDatabase)(path, modifiers, evt)
+        .then(({descriptor, instance}) => {
+          this._subscribeHandle(descriptor, instance, path, evt, cb);
+          settled();
+          return {callback, subscriptions};
+        }, err => {
+          settled();
+          this._removeEmittersIfIdle();
+          throw err;
+        });
+    }
+
     const key = this._pathKey(path);
 
     if (!dbSubscriptions[key]) {
@@ -432,26 +854,83 @@ export class Database extends Base {
     }
     dbSubscriptions[key][evt].push(cb);
 
+    return promisify('on', FirestackDatabase)(path, modifiers, evt)
+      .then(() => ({callback, subscriptions}));
+  }
+
+  _addEmitters() {
     if (!this.successListener) {
       this.successListener = FirestackDatabaseEvt
         .addListener(
           'database_event', 
-          this.handleDatabaseEvent.bind(this));
+          this._unbatched(this.handleDatabaseEvent.bind(this)));
     }
 
     if (!this.errorListener) {
       this.errorListener = FirestackDatabaseEvt
         .addListener(
           'database_error', 
-          this.handleDatabaseError.bind(this));
+          this._unbatched(this.handleDatabaseError.bind(this)));
     }
 
+    if (!this.detachedListener) {
+      this.detachedListener = FirestackDatabaseEvt
+        .addListener(
+          'database_detached',
+          this._unbatched(this.handleDatabaseDetached.bind(this)));
+    }
+  }
+
+  _removeEmittersIfIdle() {
+    if (Object.keys(dbSubscriptions).length > 0 || Object.keys(dbHandles).length > 0 || pendingOns > 0) {
+      return;
+    }
+    if (this.successListener) {
+      this.successListener.remove();
+      this.successListener = null;
+    }
+    if (this.errorListener) {
+      this.errorListener.remove();
+      this.errorListener = null;
+    }
+    if (this.detachedListener) {
+      this.detachedListener.remove();
+      this.detachedListener = null;
+    }
+  }
+
+  /**
+   * android: removes the callbacks registered for `path` (and `evt`, or
+   * just `origCB`), releasing one native subscriber for each of them.
+   */
+  offHandles(path, evt, origCB) {
+    const released = [];
+    Object.keys(dbHandles).forEach(descriptor => {
+      const handle = dbHandles[descriptor];
+      if (handle.path !== path || (evt && handle.eventName !== evt)) {
+        return;
+      }
+      handle.callbacks = handle.callbacks.filter(cb => {
+        if (origCB && cb !== origCB) {
+          return true;
+        }
+        released.push(descriptor);
+        return false;
+      });
+      if (handle.callbacks.length === 0) {
+        delete dbHandles[descriptor];
+        delete diffStates[descriptor];
+      }
+    });
+    this._removeEmittersIfIdle();
+
     const callback = (ref) => {
       const key = this._pathKey(ref.path);
-      this.refs[key] = ref;
+      delete this.refs[key];
     }
     const subscriptions = [this.successListener, this.errorListener];
-    return Promise.resolve({callback, subscriptions});
+    return Promise.all(released.map(descriptor => promisify('off', FirestackDatabase)(descriptor)))
+      .then(() => ({callback, subscriptions}));
   }
 
   off(path, evt, origCB) {
@@ -472,17 +951,9 @@ export class Database extends Base {
         // there are no more subscriptions
         // so we can unwatch
         delete dbSubscriptions[key]
+        delete diffStates[key]
       }
-      if (Object.keys(dbSubscriptions).length == 0) {
-        if (this.successListener) {
-          this.successListener.remove();
-          this.successListener = null;
-        }
-        if (this.errorListener) {
-          this.errorListener.remove();
-          this.errorListener = null; 
-        }
-      }
+      this._removeEmittersIfIdle();
     }
     const callback = (ref) => {
       const key = this._pathKey(ref.path);
@@ -1,5 +1,5 @@
 
-import {NativeModules, NativeEventEmitter} from 'react-native';
+import {Platform, NativeModules, NativeEventEmitter} from 'react-native';
 const FirestackStorage = NativeModules.FirestackStorage;
 const FirestackStorageEvt = new NativeEventEmitter(FirestackStorage);
 
@@ -18,6 +18,11 @@ class StorageRef extends ReferenceBase {
     return promisify('downloadUrl', FirestackStorage)(this.storage.storageUrl, path);
   }
 
+  // android: forget the cached downloadUrl() result, e.g. after the object changed elsewhere
+  invalidateDownloadUrl() {
+    return promisify('invalidateDownloadUrl', FirestackStorage)(this.pathToString());
+  }
+
   /**
    * Downloads a reference to the device
    * @param {String} downloadPath Where to store the file
@@ -29,22 +34,38 @@ class StorageRef extends ReferenceBase {
       callback = (evt) => {};
     }
 
+    const path = this.pathToString();
+    const taskId = this.storage.uploadTaskId(path);
+    const onEvent = (evt) => {
+      if (!evt || !evt.taskId || evt.taskId === taskId) {
+        callback(evt);
+      }
+    };
+
     const listeners = [];
-    listeners.push(this.storage._addListener('download_progress', callback));
-    listeners.push(this.storage._addListener('download_paused', callback));
-    listeners.push(this.storage._addListener('download_resumed', callback));
+    listeners.push(this.storage._addListener('download_progress', onEvent));
+    listeners.push(this.storage._addListener('download_paused', onEvent));
+    listeners.push(this.storage._addListener('download_resumed', onEvent));
 
-    const path = this.pathToString();
+    const removeListeners = () => listeners.forEach(sub => sub.remove());
     return promisify('downloadFile', FirestackStorage)(this.storage.storageUrl, path, downloadPath)
       .then((res) => {
-        console.log('res --->', res);
-        listeners.forEach(this.storage._removeListener);
+        removeListeners();
         return res;
       })
       .catch(err => {
-        console.log('Got an error ->', err);
+        removeListeners();
+        throw err;
       })
   }
+
+  /**
+   * Stops a running download() and keeps the partial file; downloading
+   * to the same path again continues from there (android).
+   */
+  pauseDownload() {
+    return promisify('pauseDownload', FirestackStorage)(this.storage.uploadTaskId(this.pathToString()));
+  }
 }
 
 export class Storage extends Base {
@@ -56,6 +77,17 @@ export class Storage extends Base {
     }
 
     this.refs = {};
+
+    // android: carry on with uploads the app was killed in the middle of
+    if (Platform.OS === 'android') {
+      this.whenReady(() => promisify('resumePendingUploads', FirestackStorage)())
+        .then(taskIds => {
+          if (taskIds && taskIds.length > 0) {
+            this.log.info('Resumed uploads', taskIds);
+          }
+        })
+        .catch(err => this.log.error('Could not resume uploads', err));
+    }
   }
 
   ref(...path) {
@@ -72,9 +104,10 @@ export class Storage extends Base {
    * @param  {string} name     The destination for the file
    * @param  {string} filepath The local path of the file
    * @param  {object} metadata An object containing metadata
+   * @param  {object} options  `priority` of 'user' (default) or 'background' (android)
    * @return {Promise}
    */
-  uploadFile(name, filepath, metadata={}, cb) {
+  uploadFile(name, filepath, metadata={}, cb, {priority='user'}={}) {
     let callback = cb;
     if (!callback || typeof callback !== 'function') {
       callback = (evt) => {}
@@ -82,23 +115,97 @@ export class Storage extends Base {
 
     filepath = filepath.replace("file://", "");
 
+    // only this upload's events, when they say which upload they are for
+    const taskId = this.uploadTaskId(name);
+    const onEvent = (evt) => {
+      if (!evt || !evt.taskId || evt.taskId === taskId) {
+        callback(evt);
+      }
+    };
+
     const listeners = [];
-    listeners.push(this._addListener('upload_progress', callback));
-    listeners.push(this._addListener('upload_paused', callback));
-    listeners.push(this._addListener('upload_resumed', callback));
-    return promisify('uploadFile', FirestackStorage)(this.storageUrl, name, filepath, metadata)
+    listeners.push(this._addListener('upload_progress', onEvent));
+    listeners.push(this._addListener('upload_paused', onEvent));
+    listeners.push(this._addListener('upload_resumed', onEvent));
+    const args = [this.storageUrl, name, filepath, metadata];
+    if (Platform.OS === 'android') {
+      args.push(priority);
+    }
+    return promisify('uploadFile', FirestackStorage)(...args)
       .then((res) => {
         listeners.forEach(this._removeListener);
         return res;
       });
   }
 
+  /**
+   * Id of the upload of `name`, for pausing, resuming or cancelling it.
+   * Uploads started after a restart report their result through the
+   * `upload_complete` and `upload_failed` events (android).
+   */
+  uploadTaskId(name) {
+    const base = (this.storageUrl || '').replace(/\/$/, '');
+    return `${base}/${name.replace(/^\//, '')}`;
+  }
+
+  pauseUpload(taskId) {
+    return promisify('pauseUpload', FirestackStorage)(taskId);
+  }
+
+  resumeUpload(taskId) {
+    return promisify('resumeUpload', FirestackStorage)(taskId);
+  }
+
+  cancelUpload(taskId) {
+    return promisify('cancelUpload', FirestackStorage)(taskId);
+  }
+
+  /**
+   * downloadUrl() results are cached natively for `ttlMs`, keeping the
+   * `maxEntries` most recently used (android).
+   */
+  configureDownloadUrlCache({maxEntries=500, ttlMs=3600000}={}) {
+    return promisify('configureDownloadUrlCache', FirestackStorage)(maxEntries, ttlMs);
+  }
+
+  clearDownloadUrlCache() {
+    return promisify('invalidateDownloadUrl', FirestackStorage)(null);
+  }
+
+  downloadUrlCacheStats() {
+    return promisify('getDownloadUrlCacheStats', FirestackStorage)();
+  }
+
+  /**
+   * Progress events of one transfer are sent at most every `intervalMs`
+   * and only after `minPercent` more has been transferred (android).
+   */
+  setProgressThrottle({intervalMs=250, minPercent=1}={}) {
+    return promisify('setProgressThrottle', FirestackStorage)(intervalMs, minPercent);
+  }
+
+  /**
+   * Uploads beyond `maxConcurrent` wait in the native queue (android).
+   */
+  setUploadConcurrency(maxConcurrent) {
+    return promisify('setUploadConcurrency', FirestackStorage)(maxConcurrent);
+  }
+
+  uploadQueue() {
+    return promisify('getUploadQueue', FirestackStorage)();
+  }
+
+  // `{running, queued, completed, failed, bytesTransferred, totalBytes}`
+  onUploadQueueProgress(cb) {
+    return this._addListener('upload_queue_progress', cb);
+  }
+
   getRealPathFromURI(uri) {
     return promisify('getRealPathFromURI', FirestackStorage)(uri);
   }
 
   _addListener(evt, cb) {
-    return FirestackStorageEvt.addListener(evt, cb);
+    return FirestackStorageEvt.addListener(evt, this._unbatched(cb));
   }
 
   _removeListener(evt) {
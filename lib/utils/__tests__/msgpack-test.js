@@ -0,0 +1,67 @@
+jest.unmock('../msgpack');
+
+import decodeBase64, { base64ToBytes, decode, utf8DecodeChunked } from '../msgpack';
+
+const bytes = (...values) => new Uint8Array(values);
+
+describe('msgpack', () => {
+
+  it('decodes base64', () => {
+    expect(Array.from(base64ToBytes('AAEC/w=='))).toEqual([0, 1, 2, 255]);
+    expect(Array.from(base64ToBytes('YWJj'))).toEqual([97, 98, 99]);
+  });
+
+  it('decodes nil and booleans', () => {
+    expect(decode(bytes(0xc0))).toBeNull();
+    expect(decode(bytes(0xc2))).toBe(false);
+    expect(decode(bytes(0xc3))).toBe(true);
+  });
+
+  it('decodes integers', () => {
+    expect(decode(bytes(0x07))).toBe(7);
+    expect(decode(bytes(0xff))).toBe(-1);
+    expect(decode(bytes(0xd2, 0xff, 0xff, 0xff, 0x00))).toBe(-256);
+    expect(decode(bytes(0xd3, 0x00, 0x00, 0x00, 0x01, 0x00, 0x00, 0x00, 0x00))).toBe(4294967296);
+    expect(decode(bytes(0xd3, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xfe))).toBe(-2);
+  });
+
+  it('decodes doubles', () => {
+    expect(decode(bytes(0xcb, 0x3f, 0xf8, 0, 0, 0, 0, 0, 0))).toBe(1.5);
+  });
+
+  it('decodes utf-8 strings', () => {
+    expect(decode(bytes(0xa2, 0x68, 0x69))).toBe('hi');
+    expect(decode(bytes(0xa2, 0xc3, 0xa9))).toBe('é');
+    expect(decode(bytes(0xa4, 0xf0, 0x9f, 0x98, 0x80))).toBe('😀');
+  });
+
+  it('decodes long strings a chunk at a time', () => {
+    const text = 'aé😀'.repeat(3000);
+    const utf8 = unescape(encodeURIComponent(text));
+    const data = new Uint8Array(utf8.length + 2);
+    for (let i = 0; i < utf8.length; i++) {
+      data[i + 1] = utf8.charCodeAt(i);
+    }
+    expect(utf8DecodeChunked(data, 1, utf8.length + 1)).toBe(text);
+    expect(utf8DecodeChunked(data, 1, 1)).toBe('');
+  });
+
+  it('decodes maps and arrays', () => {
+    // {value: {a: 1}, childKeys: ['a']}
+    const payload = bytes(
+      0x82,
+      0xa5, 0x76, 0x61, 0x6c, 0x75, 0x65, 0x81, 0xa1, 0x61, 0x01,
+      0xa9, 0x63, 0x68, 0x69, 0x6c, 0x64, 0x4b, 0x65, 0x79, 0x73, 0x91, 0xa1, 0x61
+    );
+    expect(decode(payload)).toEqual({value: {a: 1}, childKeys: ['a']});
+  });
+
+  it('decodes a base64 payload', () => {
+    expect(decodeBase64('gaFhww==')).toEqual({a: true});
+  });
+
+  it('throws on truncated data', () => {
+    expect(() => decode(bytes(0x92, 0x01))).toThrow();
+  });
+
+})
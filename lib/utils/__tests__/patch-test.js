@@ -0,0 +1,54 @@
+jest.unmock('../patch');
+
+import applyPatch from '../patch';
+
+describe('applyPatch', () => {
+
+  it('sets and removes nested paths', () => {
+    const value = {a: {b: 1, c: 2}, d: 'x'};
+    const next = applyPatch(value, [
+      {op: 'set', path: 'a/b', value: 10},
+      {op: 'remove', path: 'a/c'},
+      {op: 'set', path: 'e', value: {f: true}},
+    ]);
+    expect(next).toEqual({a: {b: 10}, d: 'x', e: {f: true}});
+  });
+
+  it('does not mutate the previous value', () => {
+    const value = {a: {b: 1}, d: {e: 2}};
+    const next = applyPatch(value, [{op: 'set', path: 'a/b', value: 3}]);
+    expect(value.a.b).toBe(1);
+    expect(next.d).toBe(value.d);
+  });
+
+  it('replaces and removes the root', () => {
+    expect(applyPatch({a: 1}, [{op: 'set', path: '', value: 'leaf'}])).toBe('leaf');
+    expect(applyPatch({a: 1}, [{op: 'remove', path: ''}])).toBe(null);
+    expect(applyPatch(null, [{op: 'set', path: 'a/b', value: 1}])).toEqual({a: {b: 1}});
+  });
+
+  it('reconstructs the full value when replaying a change sequence', () => {
+    const states = [
+      {},
+      {m1: {text: 'hi', at: 1}},
+      {m1: {text: 'hi', at: 1}, m2: {text: 'yo', at: 2}},
+      {m1: {text: 'hello', at: 1}, m2: {text: 'yo', at: 2}},
+      {m2: {text: 'yo', at: 2, edited: true}},
+      {m2: 'deleted'},
+    ];
+    const patches = [
+      [{op: 'set', path: 'm1', value: {text: 'hi', at: 1}}],
+      [{op: 'set', path: 'm2', value: {text: 'yo', at: 2}}],
+      [{op: 'set', path: 'm1/text', value: 'hello'}],
+      [{op: 'remove', path: 'm1'}, {op: 'set', path: 'm2/edited', value: true}],
+      [{op: 'set', path: 'm2', value: 'deleted'}],
+    ];
+
+    let value = states[0];
+    patches.forEach((ops, i) => {
+      value = applyPatch(value, ops);
+      expect(value).toEqual(states[i + 1]);
+    });
+  });
+
+})
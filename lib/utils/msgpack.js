@@ -0,0 +1,166 @@
+/**
+ * Decodes the base64 MessagePack payloads the native database module sends
+ * for `format:binary` queries.
+ *
+ * Only the subset the encoder writes (and the rest of the fixed width ints
+ * and floats) is supported: nil, booleans, ints, floats, str, array and map.
+ * Binary, ext and timestamp types throw.
+ */
+const BASE64 = 'ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/';
+const lookup = {};
+for (let i = 0; i < BASE64.length; i++) {
+  lookup[BASE64.charAt(i)] = i;
+}
+
+export const base64ToBytes = (input) => {
+  const str = input.replace(/[^A-Za-z0-9+/]/g, '');
+  const bytes = new Uint8Array(Math.floor(str.length * 3 / 4));
+
+  let out = 0;
+  for (let i = 0; i < str.length; i += 4) {
+    const a = lookup[str.charAt(i)];
+    const b = lookup[str.charAt(i + 1)];
+    const c = lookup[str.charAt(i + 2)];
+    const d = lookup[str.charAt(i + 3)];
+
+    bytes[out++] = (a << 2) | (b >> 4);
+    if (c !== undefined) bytes[out++] = ((b & 15) << 4) | (c >> 2);
+    if (d !== undefined) bytes[out++] = ((c & 3) << 6) | d;
+  }
+  return bytes;
+}
+
+const textDecoder = typeof TextDecoder !== 'undefined' ? new TextDecoder('utf-8') : null;
+
+// code units are collected here and turned into a string a chunk at a time
+const CHUNK = 4096;
+const units = new Uint16Array(CHUNK + 1);
+
+export const utf8DecodeChunked = (bytes, start, end) => {
+  let str = '';
+  let n = 0;
+  let i = start;
+  while (i < end) {
+    const b = bytes[i++];
+    let code;
+    if (b < 0x80) {
+      code = b;
+    } else if (b < 0xe0) {
+      code = ((b & 0x1f) << 6) | (bytes[i++] & 0x3f);
+    } else if (b < 0xf0) {
+      code = ((b & 0x0f) << 12) | ((bytes[i++] & 0x3f) << 6) | (bytes[i++] & 0x3f);
+    } else {
+      code = ((b & 0x07) << 18) | ((bytes[i++] & 0x3f) << 12)
+        | ((bytes[i++] & 0x3f) << 6) | (bytes[i++] & 0x3f);
+    }
+
+    if (code > 0xffff) {
+      code -= 0x10000;
+      units[n++] = 0xd800 + (code >> 10);
+      units[n++] = 0xdc00 + (code & 0x3ff);
+    } else {
+      units[n++] = code;
+    }
+    if (n >= CHUNK) {
+      str += String.fromCharCode.apply(null, units.subarray(0, n));
+      n = 0;
+    }
+  }
+  return n > 0 ? str + String.fromCharCode.apply(null, units.subarray(0, n)) : str;
+}
+
+const utf8Decode = textDecoder
+  ? (bytes, start, end) => textDecoder.decode(bytes.subarray(start, end))
+  : utf8DecodeChunked;
+
+class Reader {
+  constructor(bytes) {
+    this.bytes = bytes;
+    this.view = new DataView(bytes.buffer, bytes.byteOffset, bytes.byteLength);
+    this.pos = 0;
+  }
+
+  read() {
+    const type = this.bytes[this.pos++];
+    if (type === undefined) {
+      throw new Error('msgpack: unexpected end of data');
+    }
+
+    if (type < 0x80) return type;
+    if (type < 0x90) return this.map(type & 0x0f);
+    if (type < 0xa0) return this.array(type & 0x0f);
+    if (type < 0xc0) return this.str(type & 0x1f);
+    if (type >= 0xe0) return type - 0x100;
+
+    switch (type) {
+      case 0xc0: return null;
+      case 0xc2: return false;
+      case 0xc3: return true;
+      case 0xca: return this.fixed('getFloat32', 4);
+      case 0xcb: return this.fixed('getFloat64', 8);
+      case 0xcc: return this.fixed('getUint8', 1);
+      case 0xcd: return this.fixed('getUint16', 2);
+      case 0xce: return this.fixed('getUint32', 4);
+      case 0xcf: return this.int64(false);
+      case 0xd0: return this.fixed('getInt8', 1);
+      case 0xd1: return this.fixed('getInt16', 2);
+      case 0xd2: return this.fixed('getInt32', 4);
+      case 0xd3: return this.int64(true);
+      case 0xd9: return this.str(this.fixed('getUint8', 1));
+      case 0xda: return this.str(this.fixed('getUint16', 2));
+      case 0xdb: return this.str(this.fixed('getUint32', 4));
+      case 0xdc: return this.array(this.fixed('getUint16', 2));
+      case 0xdd: return this.array(this.fixed('getUint32', 4));
+      case 0xde: return this.map(this.fixed('getUint16', 2));
+      case 0xdf: return this.map(this.fixed('getUint32', 4));
+      default:
+        throw new Error('msgpack: unsupported type 0x' + type.toString(16));
+    }
+  }
+
+  fixed(getter, size) {
+    const value = this.view[getter](this.pos);
+    this.pos += size;
+    return value;
+  }
+
+  // JS numbers hold 53 bits, larger values lose precision like JSON would
+  int64(signed) {
+    const high = signed ? this.view.getInt32(this.pos) : this.view.getUint32(this.pos);
+    const low = this.view.getUint32(this.pos + 4);
+    this.pos += 8;
+    return high * 4294967296 + low;
+  }
+
+  str(length) {
+    const start = this.pos;
+    this.pos += length;
+    if (this.pos > this.bytes.length) {
+      throw new Error('msgpack: string past end of data');
+    }
+    return utf8Decode(this.bytes, start, this.pos);
+  }
+
+  array(length) {
+    const arr = new Array(length);
+    for (let i = 0; i < length; i++) {
+      arr[i] = this.read();
+    }
+    return arr;
+  }
+
+  map(length) {
+    const obj = {};
+    for (let i = 0; i < length; i++) {
+      const key = this.read();
+      obj[key] = this.read();
+    }
+    return obj;
+  }
+}
+
+export const decode = (bytes) => new Reader(bytes).read();
+
+export const decodeBase64 = (data) => decode(base64ToBytes(data));
+
+export default decodeBase64
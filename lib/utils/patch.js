@@ -0,0 +1,33 @@
+/**
+ * Applies a structural patch, as emitted by the native database module for
+ * diff-mode `value` listeners, to a previously received value.
+ *
+ * Each op is `{op: 'set' | 'remove', path: 'a/b', value}` where an empty path
+ * is the root. Branches that are not touched by the patch are shared with the
+ * previous value, so snapshots handed out earlier are never mutated.
+ */
+const setIn = (node, keys, value, remove) => {
+  if (keys.length === 0) {
+    return remove ? null : value;
+  }
+
+  const [key, ...rest] = keys;
+  const base = (node && typeof node === 'object') ? node : {};
+  const next = {...base};
+
+  if (remove && rest.length === 0) {
+    delete next[key];
+  } else {
+    next[key] = setIn(base[key], rest, value, remove);
+  }
+  return next;
+}
+
+export const applyPatch = (value, ops=[]) => {
+  return ops.reduce((current, {op, path, value}) => {
+    const keys = path ? path.split('/') : [];
+    return setIn(current, keys, value, op === 'remove');
+  }, value);
+}
+
+export default applyPatch